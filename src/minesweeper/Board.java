@@ -4,38 +4,148 @@
 package minesweeper;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A board object representing a grid of squares. Each square is either flagged, dug, or untouched.
  * Each square also either contains a bomb, or does not contain a bomb - this is unknown to the player.
  * A dug square will indicate how many untouched bomb squares it borders (orthagonally and diagonally).
  */
-public class Board {
+public class Board implements PlayerView {
     
     private final Map<Point, Square> grid;
+    private final Point[] points;
     private final int MAXCOLUMN;
     private final int MAXROW;
+    private final double bombProbability;
+    private volatile boolean bombsPlaced;
+    private final List<Point> revealed = Collections.synchronizedList(new ArrayList<Point>());
+    private final Set<Point> explodedSquares = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger safeSquaresLeft;
+    private final AtomicInteger flagsPlaced = new AtomicInteger();
+    private final AtomicInteger bombsDetonated = new AtomicInteger();
+    private volatile char[][][] shown;
+    private volatile long version = 0;
+    private final char[] blankRow;
+    private final AtomicInteger readers = new AtomicInteger();
+    private final Recycler<char[]> spareRows = new Recycler<>();
+    private final Recycler<char[][]> spareTiles = new Recycler<>();
+    private final Recycler<char[][][]> spareIndexes = new Recycler<>();
+    private final char[][] draftRows;
+    private final int[] dirtyRows;
+    private int dirtyCount = 0;
+    private final RegionIndex index;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private BoardAuditor auditor = null;
+    private int[] touched = null;
+    private int touchedCount = 0;
+    private Runnable yieldHook = null;
+    
+    /** Run by every cascade a thread performs between slices, on any board, if set for that thread. */
+    private static final ThreadLocal<Runnable> threadYieldHook = new ThreadLocal<>();
     
     private static final int[][] adjacencies = {{0,1},{0,-1},{1,0},{-1,0},{1,1},{-1,1},{1,-1},{-1,-1}};
+    
+    //Squares are immutable, so every board shares one instance of each possible square, and changing
+    //a square never allocates one
+    private static final Square UNTOUCHED = new UntouchedSquare(false);
+    private static final Square UNTOUCHED_BOMB = new UntouchedSquare(true);
+    private static final Square FLAGGED = new FlaggedSquare(false);
+    private static final Square FLAGGED_BOMB = new FlaggedSquare(true);
+    private static final Square[] DUG = new Square[9];
+    static {
+        for (int adjacentBombs = 0; adjacentBombs < DUG.length; adjacentBombs++) {
+            DUG[adjacentBombs] = new DugSquare(adjacentBombs);
+        }
+    }
+    
+    /** Boards with at least this many squares are rendered in parallel bands. */
+    private static final int PARALLEL_RENDER_SQUARES = 1 << 18;
+    /** Number of squares rendered by each parallel task. */
+    private static final int RENDER_BAND_SQUARES = 1 << 16;
+    /** Squares a dig cascade opens before letting waiting mutators run. */
+    private static final int CASCADE_SLICE_SQUARES = 1 << 12;
+    /** Most squares buffered at once when streaming the board to a Writer. */
+    private static final int RENDER_CHUNK_SQUARES = 1 << 20;
+    /** Rows shown are grouped in tiles of 1 << ROW_TILE_SHIFT rows, the unit a publication copies. */
+    private static final int ROW_TILE_SHIFT = 6;
+    private static final int ROW_TILE = 1 << ROW_TILE_SHIFT;
+    /** Retired index arrays kept for reuse; each publication retires one. */
+    private static final int SPARE_INDEXES = 2;
+    
+    /** Format number written first by writeTo(). */
+    private static final int SAVED_FORMAT = 0x4D534231;
+    /** Bits of a saved square holding what it shows: its adjacent bomb count if dug, or one of the below. */
+    private static final int SAVED_SHOWN = 0x0F;
+    /** Saved square which is neither dug nor flagged. */
+    private static final int SAVED_UNTOUCHED = 9;
+    /** Saved square which is flagged. */
+    private static final int SAVED_FLAGGED = 10;
+    /** Bit of a saved square which holds a bomb. */
+    private static final int SAVED_BOMB = 0x10;
+    /** Bit of a saved square which was dug while it held a bomb. */
+    private static final int SAVED_EXPLODED = 0x20;
+    
+    /** Chance of any given square containing a bomb on a randomly generated board. */
+    public static final double DEFAULT_BOMB_PROBABILITY = 0.25;
     //
     // Abstraction function:
     //  A board mapping containing x * y Square objects, each of which is a value mapping at a unique point P,
-    // where p = (x,y).
+    // where p = (x,y). points[x * MAXCOLUMN + y] is the key object of p, so lookups need not allocate one.
+    //  shown is the snapshot of the board as players last saw it, published by the last mutator to
+    //  finish, and version counts the snapshots published. Row r of a snapshot is
+    //  shown[r >> ROW_TILE_SHIFT][r mod ROW_TILE], its squares separated by spaces as in look(); every
+    //  untouched row of a fresh board is blankRow. The mutator running, if any, writes the rows it
+    //  changes into copies, draftRows, and publishes them as the next snapshot when it finishes.
+    //  readers counts the looks rendering a snapshot. spareRows, spareTiles and spareIndexes hold
+    //  the rows, tiles and tile indexes published snapshots replaced, for mutators to reuse. index counts the squares in each SquareState over tiles
+    //  of every power of two size, as of the last mutator to finish. If auditor is set, it audits the
+    //  squares each mutator changes, whose indexes row * MAXCOLUMN + column are touched[0 .. touchedCount-1].
+    //  If yieldHook is set, a cascade runs it between every two slices, without the lock, and then
+    //  the hook threadYieldHook holds for the cascading thread, if any.
     //
     //
     // rep invariant:  0 <= MAXCOLUMN
     //                 0 <= MAXROW
     //                 boardState size == MAXCOLUMN*MAXROW
+    //                 points[x * MAXCOLUMN + y] equals (x,y) for every square in the grid
+    //                 revealed holds each dug square exactly once, in the order they were dug
+    //                 explodedSquares holds exactly the dug squares which held a bomb when dug
+    //                 safeSquaresLeft == number of squares neither dug nor holding a bomb
+    //                 flagsPlaced == number of flagged squares
+    //                 bombsDetonated == number of dug squares which held a bomb when dug
+    //                 outside a mutator, shown shows every square of the grid and dirtyCount == 0;
+    //                 within one, draftRows[r] != null exactly for the rows dirtyRows[0 .. dirtyCount-1]
+    //                 touched != null iff auditor != null; outside a mutator, touchedCount == 0
+    //                 no array held by spareRows, spareTiles or spareIndexes is used by shown
+    //                 every square is shown as it is in shown and in index, and every dug square
+    //                 shows at least the bombs around it and at most those plus its exploded neighbours;
+    //                 these take a walk over the grid, so BoardAuditor checks them rather than checkRep
     //
-    // rep exposure: Fields are private and final. Mutable boardState contains immutable Square objects
-    // that are updated in place.
+    // rep exposure: Fields are private and final, except bombsPlaced which only ever changes from false
+    // to true. Mutable boardState contains immutable Square objects that are updated in place.
     //
     // thread safety: This datatype is threadsafe:
     // - Uses ConcurrentMap data structure for board state, which establishes happens-before
@@ -44,6 +154,23 @@ public class Board {
     // - Mutator methods only affect value mappings, never keys.
     // - Mutators replace the mapping of keys with new immutable datatype, rather than altering state
     //   of existing value objects.
+    // - Deferred bomb placement happens at most once, inside a method holding lock which re-checks
+    //   the volatile bombsPlaced flag.
+    // - Status counters are atomic, and only change after a compare-and-replace of the square they
+    //   count succeeds, so concurrent mutators of the same square never count it twice.
+    // - Mutators hold lock, so every other change is applied as one operation, except dig cascades:
+    //   every CASCADE_SLICE_SQUARES squares a cascade publishes what it has dug and lets the mutators
+    //   queued on the fair lock run before carrying on. Each slice leaves the rep invariant holding,
+    //   with the region partly opened. Readers do not lock.
+    // - draftRows, dirtyRows, dirtyCount, auditor, touched, touchedCount, yieldHook and the spare
+    //   arrays are only used under lock.
+    //   Snapshots are immutable once published through the volatile shown field, so look()
+    //   renders one consistent version of the board without ever waiting for a mutator. A snapshot's
+    //   arrays are only written again once they are reused, after a mutator publishing the snapshot
+    //   replacing them finds readers at 0; readers is incremented before shown is read, so no
+    //   reader can still hold them.
+    // - index hides each mutator's changes from readers until it publishes, as documented in RegionIndex.
+    // - threadYieldHook is thread-local, so each thread only ever runs the hook it set.
     // 
     // 
     //
@@ -55,31 +182,64 @@ public class Board {
      */
     
     public void checkRep() {
+        //grid is a ConcurrentHashMap, which cannot hold null squares, so there is no need to visit
+        //every square; checkRep runs on every command and must stay constant time
         assert this.grid != null;
-        for (Point p:this.grid.keySet()) {
-            assert this.grid.get(p) != null;
-        }
         assert this.MAXCOLUMN >= 0;
         assert this.MAXROW >= 0;
-        assert (this.MAXCOLUMN * this.MAXROW) == this.grid.keySet().size();
+        assert (this.MAXCOLUMN * this.MAXROW) == this.grid.size();
+        assert this.points.length == this.grid.size();
     }
     
     
     public Board (int rows, int cols) {
+        this(rows, cols, DEFAULT_BOMB_PROBABILITY);
+    }
+    
+    /**
+     * Creates a random board of untouched squares, each containing a bomb with the given probability.
+     * @param rows Number of rows, greater than zero
+     * @param cols Number of columns, greater than zero
+     * @param bombProbability Chance of each square containing a bomb, 0 <= bombProbability <= 1
+     */
+    public Board (int rows, int cols, double bombProbability) {
+        this(rows, cols, bombProbability, false);
+    }
+    
+    /**
+     * Creates a random board of untouched squares, each containing a bomb with the given probability.
+     * If safeFirstDig is set, no bombs are placed until the first dig, and then none are placed on
+     * or around the dug square, so the first dig can never detonate a bomb.
+     * @param rows Number of rows, greater than zero
+     * @param cols Number of columns, greater than zero
+     * @param bombProbability Chance of each square containing a bomb, 0 <= bombProbability <= 1
+     * @param safeFirstDig Defer bomb placement until the first dig
+     */
+    public Board (int rows, int cols, double bombProbability, boolean safeFirstDig) {
         this.MAXCOLUMN = cols;
         this.MAXROW = rows;
-        this.grid = new ConcurrentHashMap<Point, Square>(); 
+        this.bombProbability = bombProbability;
+        this.bombsPlaced = !safeFirstDig;
+        this.grid = new ConcurrentHashMap<Point, Square>(rows * cols); 
+        this.points = new Point[rows * cols];
+        this.blankRow = blankRow(cols);
+        this.shown = untouched(rows, this.blankRow);
+        this.draftRows = new char[rows][];
+        this.dirtyRows = new int[rows];
+        this.index = new RegionIndex(rows, cols);
+        //One generator per board; seeding a new Random for every square dominated construction time
+        Random rng = new Random();
+        int safeSquares = 0;
         
         for (int i = 0; i < this.MAXROW; i++) {
             for (int j = 0; j < this.MAXCOLUMN; j++) {
-                this.grid.put(new Point(i,j), new UntouchedSquare());
-                int rngVal = new Random().nextInt(4);
-                if (rngVal == 0) {
-                    placeBomb(i, j);
-                    }
-                
+                boolean bomb = !safeFirstDig && rng.nextDouble() < bombProbability;
+                this.grid.put(newPoint(i, j), bomb ? UNTOUCHED_BOMB : UNTOUCHED);
+                if (!bomb) safeSquares++;
             }
-        } checkRep();
+        }
+        this.safeSquaresLeft = new AtomicInteger(safeSquares);
+        checkRep();
     }
     
     /**
@@ -94,13 +254,22 @@ public class Board {
             
             this.MAXCOLUMN = boardInput.nextInt();
             this.MAXROW = boardInput.nextInt();
+            this.bombProbability = 0;
+            this.bombsPlaced = true;
             this.grid = new ConcurrentHashMap<Point, Square>();
+            this.points = new Point[this.MAXROW * this.MAXCOLUMN];
+            this.blankRow = blankRow(this.MAXCOLUMN);
+            this.shown = untouched(this.MAXROW, this.blankRow);
+            this.draftRows = new char[this.MAXROW][];
+            this.dirtyRows = new int[this.MAXROW];
+            this.index = new RegionIndex(this.MAXROW, this.MAXCOLUMN);
+            //placeBomb takes each bomb square off the safe count
+            this.safeSquaresLeft = new AtomicInteger(this.MAXROW * this.MAXCOLUMN);
                 
             for (int row = 0; row < this.MAXROW; row++) {
                 for (int col = 0; col < this.MAXCOLUMN; col++) {
                     if (boardInput.hasNextInt()) {
-                        Point position = new Point(row,col);
-                        this.grid.put(position, new UntouchedSquare());
+                        this.grid.put(newPoint(row, col), UNTOUCHED);
                         if (boardInput.nextInt() == 1) {
                             placeBomb(row, col);
                             }
@@ -111,20 +280,199 @@ public class Board {
     }
     
     /**
-     * Constructor for testing purposes
+     * Creates a board of untouched squares with no bombs. Bombs may then be laid out with placeBomb.
+     * Used for testing and for generating boards from a chosen layout.
      */
     public Board (int rows, int cols, boolean hasBombs) {
         this.MAXCOLUMN = cols;
         this.MAXROW = rows;
+        this.bombProbability = 0;
+        this.bombsPlaced = true;
         this.grid = new ConcurrentHashMap<Point, Square>(); 
+        this.points = new Point[rows * cols];
+        this.blankRow = blankRow(cols);
+        this.shown = untouched(rows, this.blankRow);
+        this.draftRows = new char[rows][];
+        this.dirtyRows = new int[rows];
+        this.index = new RegionIndex(rows, cols);
+        this.safeSquaresLeft = new AtomicInteger(rows * cols);
         
         for (int i = 0; i < this.MAXROW; i++) {
             for (int j = 0; j < this.MAXCOLUMN; j++) {
-                this.grid.put(new Point(i,j), new UntouchedSquare());     
+                this.grid.put(newPoint(i, j), UNTOUCHED);     
             }
         } checkRep();
     }
     
+    /**
+     * Restores a board saved by writeTo().
+     * @param squares Each square's code, as written by writeTo(), indexed row * cols + col
+     * @param revealOrder Index of each dug square, in the order they were dug
+     * @param version Version of the board's snapshot when it was saved
+     */
+    private Board(int rows, int cols, double bombProbability, boolean bombsPlaced, byte[] squares,
+            int[] revealOrder, long version) {
+        this.MAXCOLUMN = cols;
+        this.MAXROW = rows;
+        this.bombProbability = bombProbability;
+        this.bombsPlaced = bombsPlaced;
+        this.grid = new ConcurrentHashMap<Point, Square>(rows * cols);
+        this.points = new Point[rows * cols];
+        this.draftRows = new char[rows][];
+        this.dirtyRows = new int[rows];
+        this.index = new RegionIndex(rows, cols);
+        int safeSquares = 0;
+        this.blankRow = blankRow(cols);
+        char[][][] text = untouched(rows, this.blankRow);
+        for (int i = 0; i < rows; i++) {
+            char[] row = this.blankRow.clone();
+            text[i >>> ROW_TILE_SHIFT][i & (ROW_TILE - 1)] = row;
+            for (int j = 0; j < cols; j++) {
+                int code = squares[i * cols + j];
+                boolean bomb = (code & SAVED_BOMB) != 0;
+                int shown = code & SAVED_SHOWN;
+                Square square;
+                SquareState state;
+                if (shown == SAVED_UNTOUCHED) {
+                    square = bomb ? UNTOUCHED_BOMB : UNTOUCHED;
+                    state = SquareState.UNTOUCHED;
+                } else if (shown == SAVED_FLAGGED) {
+                    square = bomb ? FLAGGED_BOMB : FLAGGED;
+                    state = SquareState.FLAGGED;
+                } else {
+                    square = DUG[shown];
+                    state = (code & SAVED_EXPLODED) != 0 ? SquareState.EXPLODED : SquareState.DUG;
+                }
+                if (!bomb && !square.isDug()) safeSquares++;
+                if (square.hasFlag()) this.flagsPlaced.incrementAndGet();
+                Point position = newPoint(i, j);
+                if (state == SquareState.EXPLODED) {
+                    this.bombsDetonated.incrementAndGet();
+                    this.explodedSquares.add(position);
+                }
+                this.grid.put(position, square);
+                this.index.change(i, j, state);
+                row[2 * j] = symbol(square);
+            }
+        }
+        this.index.endChanges();
+        for (int square : revealOrder) {
+            this.revealed.add(this.points[square]);
+        }
+        this.safeSquaresLeft = new AtomicInteger(safeSquares);
+        this.shown = text;
+        this.version = version;
+        checkRep();
+    }
+    
+    /**
+     * Saves the board in a compact binary format, which readFrom() restores. The format is a
+     * DataOutput header of rows, columns, bomb probability, whether bombs are placed and the snapshot
+     * version, then one byte per square row by row, then the reveal log as a count followed by the
+     * index row * columns + column of each dug square. A square's byte holds, in its low four bits,
+     * its adjacent bomb count if dug, else SAVED_UNTOUCHED or SAVED_FLAGGED, plus SAVED_BOMB if it
+     * holds a bomb and SAVED_EXPLODED if it was dug while holding one. Nearly all of the bytes repeat,
+     * so the format compresses well.
+     * @param out Destination; flushed but not closed
+     * @throws IOException if out cannot be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        this.lock.lock();
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(SAVED_FORMAT);
+            data.writeInt(this.MAXROW);
+            data.writeInt(this.MAXCOLUMN);
+            data.writeDouble(this.bombProbability);
+            data.writeBoolean(this.bombsPlaced);
+            data.writeLong(this.version);
+            byte[] row = new byte[this.MAXCOLUMN];
+            for (int i = 0; i < this.MAXROW; i++) {
+                for (int j = 0; j < this.MAXCOLUMN; j++) {
+                    Square square = this.grid.get(this.points[i * this.MAXCOLUMN + j]);
+                    int code = square.hasFlag() ? SAVED_FLAGGED
+                            : square.isDug() ? ((DugSquare) square).getAdjacentBombs() : SAVED_UNTOUCHED;
+                    if (square.hasBomb()) code |= SAVED_BOMB;
+                    if (this.index.state(i, j) == SquareState.EXPLODED) code |= SAVED_EXPLODED;
+                    row[j] = (byte) code;
+                }
+                data.write(row);
+            }
+            synchronized (this.revealed) {
+                data.writeInt(this.revealed.size());
+                for (Point square : this.revealed) {
+                    data.writeInt(square.getX() * this.MAXCOLUMN + square.getY());
+                }
+            }
+            data.flush();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Restores a board saved by writeTo().
+     * @param in Source, positioned at the start of a saved board; not closed
+     * @return The board as it was saved
+     * @throws IOException if in cannot be read, or does not hold a board saved by writeTo()
+     */
+    public static Board readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != SAVED_FORMAT) throw new IOException("Not a saved board");
+        int rows = data.readInt();
+        int cols = data.readInt();
+        double bombProbability = data.readDouble();
+        boolean bombsPlaced = data.readBoolean();
+        long version = data.readLong();
+        if (rows < 0 || cols < 0 || (long) rows * cols > Integer.MAX_VALUE) {
+            throw new IOException("Saved board has invalid dimensions " + rows + "x" + cols);
+        }
+        byte[] squares = new byte[rows * cols];
+        data.readFully(squares);
+        for (byte code : squares) {
+            int shown = code & SAVED_SHOWN;
+            if ((code & ~(SAVED_SHOWN | SAVED_BOMB | SAVED_EXPLODED)) != 0 || shown > SAVED_FLAGGED) {
+                throw new IOException("Saved board has an invalid square");
+            }
+        }
+        int dug = data.readInt();
+        if (dug < 0 || dug > squares.length) throw new IOException("Saved board has an invalid reveal log");
+        int[] revealOrder = new int[dug];
+        for (int i = 0; i < dug; i++) {
+            revealOrder[i] = data.readInt();
+            if (revealOrder[i] < 0 || revealOrder[i] >= squares.length) {
+                throw new IOException("Saved board has an invalid reveal log");
+            }
+        }
+        return new Board(rows, cols, bombProbability, bombsPlaced, squares, revealOrder, version);
+    }
+    
+    /**
+     * Creates the key object of a square, during construction.
+     * @return The new key, recorded in points
+     */
+    private Point newPoint(int row, int col) {
+        Point position = new Point(row, col);
+        this.points[row * this.MAXCOLUMN + col] = position;
+        return position;
+    }
+    
+    /**
+     * @return The key object of the square at (row, col), or null if it lies outside the grid
+     */
+    private Point pointAt(int row, int col) {
+        if (row < 0 || row >= this.MAXROW || col < 0 || col >= this.MAXCOLUMN) return null;
+        return this.points[row * this.MAXCOLUMN + col];
+    }
+    
+    /**
+     * @return The square at (row, col), or null if it lies outside the grid
+     */
+    private Square squareAt(int row, int col) {
+        Point position = pointAt(row, col);
+        return position == null ? null : this.grid.get(position);
+    }
+    
     
     /**
      * Places a bomb in a particular grid square
@@ -133,9 +481,44 @@ public class Board {
      * 
      */
     public void placeBomb(int row, int column) {
-        Point position = new Point(row, column);
-        if (this.grid.containsKey(position)) {
-            this.grid.replace(position, new UntouchedSquare(true));
+        this.lock.lock();
+        try {
+            Point position = pointAt(row, column);
+            Square current = position == null ? null : this.grid.get(position);
+            if (current != null && this.grid.replace(position, current, UNTOUCHED_BOMB)) {
+                if (current.hasFlag()) this.flagsPlaced.decrementAndGet();
+                if (!current.hasBomb() && !current.isDug()) this.safeSquaresLeft.decrementAndGet();
+                //Players only see the change if the square was flagged or dug
+                if (current.hasFlag() || current.isDug()) show(position, SquareState.UNTOUCHED);
+            }
+            publish();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Places the deferred bombs of a safe-first-dig board, leaving the given square and its
+     * neighbours clear. Flags placed before the first dig are kept.
+     * @param row Row of the first dug square
+     * @param col Column of the first dug square
+     */
+    private void placeBombsAround(int row, int col) {
+        this.lock.lock();
+        try {
+            if (bombsPlaced) return;
+            Random rng = new Random();
+            for (Map.Entry<Point, Square> entry : this.grid.entrySet()) {
+                Point position = entry.getKey();
+                boolean nearFirstDig = Math.abs(position.getX() - row) <= 1 && Math.abs(position.getY() - col) <= 1;
+                if (!nearFirstDig && rng.nextDouble() < this.bombProbability) {
+                    entry.setValue(entry.getValue().hasFlag() ? FLAGGED_BOMB : UNTOUCHED_BOMB);
+                    this.safeSquaresLeft.decrementAndGet();
+                }
+            }
+            bombsPlaced = true;
+        } finally {
+            this.lock.unlock();
         }
     }
     
@@ -155,37 +538,773 @@ public class Board {
     }
     
     /**
-     * Digs a square, reavealing either a bomb or an empty square
+     * Writes the current board state, in the same format as look(), a band of rows at a time. At most
+     * RENDER_CHUNK_SQUARES squares are ever buffered, so memory use is bounded whatever the board size.
+     * @param out Destination of the board state; not flushed
+     * @throws IOException if out cannot be written
+     */
+    public void look(Writer out) throws IOException {
+        look(out, new RenderBuffer());
+    }
+    
+    /**
+     * Writes the current board state as look(out) does, rendering into buffer, so that looking again
+     * with the same buffer allocates nothing the size of the board.
+     * @param out Destination of the board state; not flushed
+     * @param buffer Buffer to render into, grown to hold a band of up to RENDER_CHUNK_SQUARES squares
+     *        if it is smaller; not used by any other thread until this returns
+     * @throws IOException if out cannot be written
+     */
+    public void look(Writer out, RenderBuffer buffer) throws IOException {
+        checkRep();
+        if (this.MAXROW == 0 || this.MAXCOLUMN == 0) return;
+        RenderEvent event = new RenderEvent();
+        event.begin();
+        int rowsPerChunk = Math.max(1, Math.min(this.MAXROW, RENDER_CHUNK_SQUARES / this.MAXCOLUMN));
+        char[] chunk = buffer.chars(rowsPerChunk * 2 * this.MAXCOLUMN);
+        long rendered = 0;
+        char[][][] board = pinShown();
+        try {
+            for (int start = 0; start < this.MAXROW; start += rowsPerChunk) {
+                int end = Math.min(this.MAXROW, start + rowsPerChunk);
+                int length = renderRows(board, start, end, chunk);
+                out.write(chunk, 0, length);
+                rendered += length;
+            }
+        } finally {
+            this.readers.decrementAndGet();
+        }
+        commitRender(event, rendered, true);
+    }
+    
+    /**
+     * Writes a zoomed out view of the board, one character per tile of 2^zoom x 2^zoom squares, in
+     * the same format as look(). A tile shows '*' if any of its squares exploded, '-' if none is dug,
+     * or 'F' if none is dug and some are flagged, ' ' if every square is dug, and otherwise the tenths
+     * of its squares dug, from 1 to 9. The view costs O(tiles), not O(squares), and shows the board
+     * as of the last mutator to finish.
+     * @param out Destination of the view; not flushed
+     * @param zoom 0 for the full board as in look(), greater to zoom out; zooming out beyond
+     *        zoomLevels() shows a single tile
+     * @throws IOException if out cannot be written
+     */
+    public void look(Writer out, int zoom) throws IOException {
+        look(out, zoom, new RenderBuffer());
+    }
+    
+    /**
+     * Writes a zoomed out view of the board as look(out, zoom) does, rendering the full board at
+     * zoom 0 into buffer as look(out, buffer) does.
+     * @param out Destination of the view; not flushed
+     * @param zoom 0 for the full board as in look(), greater to zoom out
+     * @param buffer Buffer to render the full board into; not used by any other thread until this returns
+     * @throws IOException if out cannot be written
+     */
+    public void look(Writer out, int zoom, RenderBuffer buffer) throws IOException {
+        if (zoom <= 0 || zoomLevels() == 0 || this.MAXROW == 0 || this.MAXCOLUMN == 0) {
+            look(out, buffer);
+            return;
+        }
+        RenderEvent event = new RenderEvent();
+        event.begin();
+        char[] tiles = this.index.render(Math.min(zoom, zoomLevels()));
+        out.write(tiles);
+        commitRender(event, tiles.length, true);
+    }
+    
+    /**
+     * @return The smallest zoom at which look(out, zoom) shows the whole board as a single tile
+     */
+    public int zoomLevels() {
+        return this.index.levels() - 1;
+    }
+    
+    /**
+     * Counts the squares of a region in a given state, in time logarithmic in the board's size for
+     * each tile along the region's edge, rather than proportional to the region's area.
+     * @param state State to count
+     * @param top First row of the region
+     * @param left First column of the region
+     * @param bottom Row after the last row of the region
+     * @param right Column after the last column of the region
+     * @return Number of squares in the region, clipped to the grid, in state as of the last mutator to finish
+     */
+    public int count(SquareState state, int top, int left, int bottom, int right) {
+        return this.index.count(state, top, left, bottom, right);
+    }
+    
+    private void commitRender(RenderEvent event, long charactersRendered, boolean streamed) {
+        if (event.shouldCommit()) {
+            event.rows = this.MAXROW;
+            event.columns = this.MAXCOLUMN;
+            event.charactersRendered = charactersRendered;
+            event.streamed = streamed;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Renders rows [start, end) of a snapshot into buffer, row i at offset (i - start) * 2 * MAXCOLUMN. Bands of
+     * at least PARALLEL_RENDER_SQUARES squares are split across the common ForkJoinPool, each task
+     * writing its rows straight into their place in buffer.
+     * @param board Snapshot to render, pinned by pinShown()
+     * @param start First row to render
+     * @param end Row after the last row to render
+     * @param buffer Destination, of length at least (end - start) * 2 * MAXCOLUMN
+     * @return Number of characters rendered
+     */
+    private int renderRows(char[][][] board, int start, int end, char[] buffer) {
+        if ((long) (end - start) * this.MAXCOLUMN < PARALLEL_RENDER_SQUARES) {
+            for (int i = start; i < end; i++) {
+                renderRow(board, i, buffer, (i - start) * 2 * this.MAXCOLUMN);
+            }
+        } else {
+            ForkJoinPool.commonPool().invoke(new RenderBand(board, start, end, start, buffer));
+        }
+        //Every row takes 2 * MAXCOLUMN characters, except the final row which has no newline
+        return (end - start) * 2 * this.MAXCOLUMN - (end == this.MAXROW ? 1 : 0);
+    }
+    
+    /**
+     * Renders a row as its squares separated by spaces, followed by a newline unless it is the final row.
+     * @param board Snapshot to render, pinned by pinShown()
+     * @param i The grid row
+     * @param buffer Destination
+     * @param offset Position in buffer of the row's first character
+     */
+    private void renderRow(char[][][] board, int i, char[] buffer, int offset) {
+        //Snapshot rows are kept with their spacing, so rendering is a copy
+        System.arraycopy(shownRow(board, i), 0, buffer, offset, 2 * this.MAXCOLUMN - 1);
+        //Newline added at end of row, except for final row
+        if (i != this.MAXROW-1) buffer[offset + 2 * this.MAXCOLUMN - 1] = '\n';
+    }
+    
+    /**
+     * @param board A snapshot
+     * @param i The grid row
+     * @return Row i of board
+     */
+    private static char[] shownRow(char[][][] board, int i) {
+        return board[i >>> ROW_TILE_SHIFT][i & (ROW_TILE - 1)];
+    }
+    
+    /**
+     * Pins the current snapshot, so no mutator reuses its arrays until the caller is done with it
+     * and decrements readers, which it must do in a finally block.
+     * @return The snapshot published last
+     */
+    private char[][][] pinShown() {
+        //Incremented before shown is read, so a mutator which sees no readers after publishing knows
+        //every later reader sees its snapshot or a newer one
+        this.readers.incrementAndGet();
+        return this.shown;
+    }
+    
+    /**
+     * @param cols Number of columns
+     * @return The row of an untouched board, its squares separated by spaces as in look()
+     */
+    private static char[] blankRow(int cols) {
+        char[] row = new char[Math.max(0, 2 * cols - 1)];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = j % 2 == 0 ? '-' : ' ';
+        }
+        return row;
+    }
+    
+    /**
+     * @param rows Number of rows
+     * @param blank The row of an untouched board
+     * @return Version 0 of a board whose squares are all untouched, every row sharing blank, in
+     *         tiles of ROW_TILE rows of their own
+     */
+    private static char[][][] untouched(int rows, char[] blank) {
+        char[][][] board = new char[(rows + ROW_TILE - 1) >>> ROW_TILE_SHIFT][][];
+        for (int t = 0; t < board.length; t++) {
+            board[t] = new char[ROW_TILE][];
+            Arrays.fill(board[t], 0, Math.min(ROW_TILE, rows - (t << ROW_TILE_SHIFT)), blank);
+        }
+        return board;
+    }
+    
+    /**
+     * Shows a square's new state in the next snapshot, copying its row on the row's first change
+     * since the last snapshot was published, and in the region index. Called by mutators only.
+     * @param position The square which changed
+     * @param state The square's new state
+     */
+    private void show(Point position, SquareState state) {
+        int row = position.getX();
+        this.index.change(row, position.getY(), state);
+        char[] text = this.draftRows[row];
+        if (text == null) {
+            char[] current = shownRow(this.shown, row);
+            text = this.spareRows.take();
+            if (text == null) {
+                text = current.clone();
+            } else {
+                System.arraycopy(current, 0, text, 0, current.length);
+            }
+            this.draftRows[row] = text;
+            this.dirtyRows[this.dirtyCount++] = row;
+        }
+        text[2 * position.getY()] = symbol(this.grid.get(position));
+        if (this.touched != null) {
+            if (this.touchedCount == this.touched.length) {
+                this.touched = Arrays.copyOf(this.touched, 2 * this.touched.length);
+            }
+            this.touched[this.touchedCount++] = row * this.MAXCOLUMN + position.getY();
+        }
+    }
+    
+    /**
+     * Publishes the rows changed by the mutator finishing as the next snapshot, copying the index of
+     * tiles and each tile holding a changed row, and sharing every other tile and row with the
+     * current one. The arrays the new snapshot replaces are retired, and reused once no reader can
+     * still be rendering them. Does nothing if no square changed. Called by mutators only.
+     */
+    private void publish() {
+        if (this.dirtyCount == 0) return;
+        char[][][] current = this.shown;
+        char[][][] next = this.spareIndexes.take();
+        if (next == null) next = new char[current.length][][];
+        System.arraycopy(current, 0, next, 0, current.length);
+        for (int i = 0; i < this.dirtyCount; i++) {
+            int row = this.dirtyRows[i];
+            int tile = row >>> ROW_TILE_SHIFT;
+            if (next[tile] == current[tile]) {
+                char[][] copy = this.spareTiles.take();
+                if (copy == null) copy = new char[ROW_TILE][];
+                System.arraycopy(current[tile], 0, copy, 0, ROW_TILE);
+                next[tile] = copy;
+                this.spareTiles.retire(current[tile], current.length);
+            }
+            char[] replaced = next[tile][row & (ROW_TILE - 1)];
+            //Untouched rows of a fresh board share blankRow, so it is never reused
+            if (replaced != this.blankRow) this.spareRows.retire(replaced, this.MAXROW);
+            next[tile][row & (ROW_TILE - 1)] = this.draftRows[row];
+            this.draftRows[row] = null;
+        }
+        this.dirtyCount = 0;
+        this.shown = next;
+        //Written after shown, so whoever reads a version then renders sees that version or a newer one
+        this.version = this.version + 1;
+        this.spareIndexes.retire(current, SPARE_INDEXES);
+        if (this.readers.get() == 0) {
+            this.spareRows.reclaim();
+            this.spareTiles.reclaim();
+            this.spareIndexes.reclaim();
+        }
+        this.index.endChanges();
+        if (this.touchedCount > 0) {
+            for (int i = 0; i < this.touchedCount; i++) {
+                auditSquare(this.auditor, this.touched[i]);
+            }
+            auditCounters(this.auditor);
+            this.auditor.checked(this.touchedCount);
+            this.touchedCount = 0;
+        }
+    }
+    
+    /**
+     * Has auditor audit the squares every mutator changes from now on, or stops if auditor is null.
+     * @param auditor The auditor, or null
+     */
+    void auditEachChange(BoardAuditor auditor) {
+        this.lock.lock();
+        try {
+            this.auditor = auditor;
+            this.touched = auditor == null ? null : new int[16];
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Audits the board's counters and squares picked at random, holding the board's lock for no more
+     * than that many squares.
+     * @param auditor Receives the violations found
+     * @param random Picks the squares
+     * @param samples Number of squares to audit
+     */
+    void auditSample(BoardAuditor auditor, Random random, int samples) {
+        this.lock.lock();
+        try {
+            auditCounters(auditor);
+            if (this.points.length == 0) return;
+            for (int i = 0; i < samples; i++) {
+                auditSquare(auditor, random.nextInt(this.points.length));
+            }
+            auditor.checked(samples);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Checks that a square is shown as it is in the snapshot and in the region index, and that it
+     * shows the right number of bombs if it is dug, reporting any violation to auditor. Called under
+     * the board's lock, outside mutators or once they have published.
+     * @param square Index row * MAXCOLUMN + column of the square
+     */
+    private void auditSquare(BoardAuditor auditor, int square) {
+        int row = square / this.MAXCOLUMN;
+        int col = square % this.MAXCOLUMN;
+        Point position = this.points[square];
+        Square current = position == null ? null : this.grid.get(position);
+        if (current == null) {
+            auditor.report(String.format("Square (%d,%d) is missing from the grid", row, col));
+            return;
+        }
+        char shown = shownRow(this.shown, row)[2 * col];
+        if (shown != symbol(current)) {
+            auditor.report(String.format("Square (%d,%d) is shown as '%c' but is '%c'", row, col, shown, symbol(current)));
+        }
+        int exploded = this.index.count(SquareState.EXPLODED, row, col, row + 1, col + 1);
+        int indexed = current.hasFlag() ? this.index.count(SquareState.FLAGGED, row, col, row + 1, col + 1)
+                : !current.isDug() ? this.index.count(SquareState.UNTOUCHED, row, col, row + 1, col + 1)
+                : this.index.count(SquareState.DUG, row, col, row + 1, col + 1) + exploded;
+        if (indexed != 1) {
+            auditor.report(String.format("Square (%d,%d) is in the wrong state in the region index", row, col));
+        }
+        if (current.isDug() && exploded == 0) {
+            //Bombs dug since the square was dug are gone, but it still counts them
+            int count = ((DugSquare) current).getAdjacentBombs();
+            int bombs = adjacentBombs(row, col);
+            int explodedAround = this.index.count(SquareState.EXPLODED, row - 1, col - 1, row + 2, col + 2);
+            if (count < bombs || count > bombs + explodedAround) {
+                auditor.report(String.format("Square (%d,%d) shows %d but has %d bombs around it", row, col, count, bombs));
+            }
+        }
+    }
+    
+    /**
+     * Checks the board's counters against the region index, reporting any violation to auditor.
+     * Called under the board's lock, outside mutators or once they have published.
+     */
+    private void auditCounters(BoardAuditor auditor) {
+        int flagged = this.index.count(SquareState.FLAGGED, 0, 0, this.MAXROW, this.MAXCOLUMN);
+        int exploded = this.index.count(SquareState.EXPLODED, 0, 0, this.MAXROW, this.MAXCOLUMN);
+        int dug = this.index.count(SquareState.DUG, 0, 0, this.MAXROW, this.MAXCOLUMN) + exploded;
+        if (flagged != this.flagsPlaced.get()) {
+            auditor.report(String.format("%d flags counted but %d squares flagged", this.flagsPlaced.get(), flagged));
+        }
+        if (exploded != this.bombsDetonated.get()) {
+            auditor.report(String.format("%d bombs detonated counted but %d squares exploded", this.bombsDetonated.get(), exploded));
+        }
+        if (dug != this.revealed.size()) {
+            auditor.report(String.format("%d squares in the reveal log but %d squares dug", this.revealed.size(), dug));
+        }
+    }
+    
+    /**
+     * @return Number of snapshots published since the board was created, each after a mutator
+     *         changed what players see
+     */
+    public long version() {
+        return this.version;
+    }
+    
+    /**
+     * @return The character of square in look(), the same as the first of square.toString() but
+     *         without building a string
+     */
+    private static char symbol(Square square) {
+        if (square.hasFlag()) return 'F';
+        if (!square.isDug()) return '-';
+        if (square.hasBomb()) return '*';
+        int adjacentBombs = ((DugSquare) square).getAdjacentBombs();
+        return adjacentBombs > 0 ? (char) ('0' + adjacentBombs) : ' ';
+    }
+    
+    /**
+     * A task rendering a band of rows into a shared buffer, splitting itself in half until each band
+     * is small enough to render on one thread.
+     */
+    private class RenderBand extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final char[][][] board;
+        private final int start;
+        private final int end;
+        private final int base;
+        private final char[] buffer;
+        
+        // Thread safety: Sibling tasks write disjoint ranges of buffer, and ForkJoinPool.invoke
+        //  establishes happens-before between every task's writes and the caller's return.
+        
+        RenderBand(char[][][] board, int start, int end, int base, char[] buffer) {
+            this.board = board;
+            this.start = start;
+            this.end = end;
+            this.base = base;
+            this.buffer = buffer;
+        }
+        
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= 1 || (long) (this.end - this.start) * MAXCOLUMN <= RENDER_BAND_SQUARES) {
+                for (int i = this.start; i < this.end; i++) {
+                    renderRow(this.board, i, this.buffer, (i - this.base) * 2 * MAXCOLUMN);
+                }
+                return;
+            }
+            int middle = (this.start + this.end) >>> 1;
+            invokeAll(new RenderBand(this.board, this.start, middle, this.base, this.buffer),
+                    new RenderBand(this.board, middle, this.end, this.base, this.buffer));
+        }
+    }
+    
+    /**
+     * Arrays of one kind which published snapshots no longer use, kept for mutators to reuse: retired
+     * ones, which a reader may still be rendering, and spare ones, which none can be.
+     */
+    private static class Recycler<T> {
+        
+        private final ArrayDeque<T> retired = new ArrayDeque<>();
+        private final ArrayDeque<T> spare = new ArrayDeque<>();
+        
+        // Thread safety: Not threadsafe; only used under the board's lock.
+        
+        /**
+         * @return A spare array, or null if there is none
+         */
+        T take() {
+            return this.spare.pollFirst();
+        }
+        
+        /**
+         * Retires an array a snapshot just stopped using, or leaves it to the garbage collector if
+         * limit arrays are kept already.
+         * @param array The array, used by no snapshot published from now on
+         * @param limit Most arrays kept, retired and spare together
+         */
+        void retire(T array, int limit) {
+            if (this.retired.size() + this.spare.size() < limit) this.retired.addFirst(array);
+        }
+        
+        /**
+         * Makes every retired array spare. Called once no reader can be rendering a snapshot
+         * published before the current one.
+         */
+        void reclaim() {
+            while (!this.retired.isEmpty()) {
+                this.spare.addFirst(this.retired.pollFirst());
+            }
+        }
+    }
+    
+    /**
+     * Digs a square, reavealing either a bomb or an empty square. If the square has no adjacent
+     * bombs, the region around it is opened too, in slices which other mutators may run between.
      * @param row The row containing the square to be dug
      * @param col The column containing the square to be dug
-     * @return A new dugSquare object with the same coordinates
+     * @return The safe squares this dig dug, and whether it dug a bomb
      */
-    public void dig(int row, int col) {
-        Point currentSquare = new Point(row,col);
+    public DigResult dig(int row, int col) {
+        this.lock.lock();
+        try {
+            DigResult result = digSquare(row, col);
+            publish();
+            return result;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Digs a square as dig() does, without publishing the result.
+     */
+    private DigResult digSquare(int row, int col) {
+        DigEvent event = new DigEvent();
+        event.begin();
+        DigResult result = cascade(row, col);
+        if (event.shouldCommit()) {
+            event.row = row;
+            event.column = col;
+            //A bomb is dug alone, never cascading
+            event.squaresRevealed = result.detonated() ? 1 : result.safeSquaresDug();
+            event.detonated = result.detonated();
+            event.commit();
+        }
+        return result;
+    }
+    
+    /**
+     * Digs a square and, if it has no adjacent bombs, opens the region around it: every square next
+     * to a dug square without adjacent bombs is dug too, unless it is flagged. The region is walked
+     * breadth first from a queue of the dug squares whose neighbours are left to dig, so even a region
+     * as large as the board takes no stack. Every CASCADE_SLICE_SQUARES squares, the cascade publishes
+     * what it has dug and lets any mutators waiting for the lock run; squares they change meanwhile
+     * are skipped, as if they had changed before the cascade began. Called by mutators only, holding
+     * the lock once.
+     * @param row The row containing the square to be dug
+     * @param col The column containing the square to be dug
+     * @return The safe squares dug, whether a bomb was dug, and whether the last safe square was
+     */
+    private DigResult cascade(int row, int col) {
+        Point start = pointAt(row, col);
+        if (start == null) return DigResult.NOTHING;
+        if (!bombsPlaced) placeBombsAround(row, col);
+        Square square = grid.get(start);
+        if (square.hasBomb()) {
+            return reveal(start, adjacentBombs(row, col)) ? new DigResult(0, true) : DigResult.NOTHING;
+        }
+        if (square.isDug() || square.hasFlag()) return DigResult.NOTHING;
+        int adjacentBombs = adjacentBombs(row, col);
+        reveal(start, adjacentBombs);
+        //The lock is held from each reveal to the check after it, so only this cascade can have emptied
+        //safeSquaresLeft then, even though other mutators run between its slices
+        if (adjacentBombs > 0) return new DigResult(1, false, this.safeSquaresLeft.get() == 0);
         
-        //base case: square has bomb
-        if (grid.get(currentSquare).hasBomb()) {
-            grid.replace(currentSquare,  new DugSquare(adjacentBombs(row,col)));
-            return; 
+        int dug = 1;
+        boolean clearedLastSquare = this.safeSquaresLeft.get() == 0;
+        int sliceLeft = CASCADE_SLICE_SQUARES - 1;
+        SquareQueue open = new SquareQueue();
+        open.add(row * this.MAXCOLUMN + col);
+        while (!open.isEmpty()) {
+            if (sliceLeft <= 0) {
+                yieldLock();
+                sliceLeft = CASCADE_SLICE_SQUARES;
+            }
+            int next = open.remove();
+            for (int[] offset : adjacencies) {
+                int neighbourRow = next / this.MAXCOLUMN + offset[0];
+                int neighbourColumn = next % this.MAXCOLUMN + offset[1];
+                Point position = pointAt(neighbourRow, neighbourColumn);
+                if (position == null) continue;
+                Square neighbour = grid.get(position);
+                //A bomb placed next to the region while the cascade let others run is never dug
+                if (neighbour.isDug() || neighbour.hasFlag() || neighbour.hasBomb()) continue;
+                int bombs = adjacentBombs(neighbourRow, neighbourColumn);
+                if (!reveal(position, bombs)) continue;
+                dug++;
+                if (this.safeSquaresLeft.get() == 0) clearedLastSquare = true;
+                sliceLeft--;
+                if (bombs == 0) open.add(neighbourRow * this.MAXCOLUMN + neighbourColumn);
+            }
         }
+        checkRep();
+        return new DigResult(dug, false, clearedLastSquare);
+    }
+    
+    /**
+     * Publishes the changes made so far, then lets any mutators waiting for the lock run before
+     * taking it back. Called by mutators only, holding the lock once.
+     */
+    private void yieldLock() {
+        publish();
+        Runnable hook = this.yieldHook;
+        Runnable threadHook = threadYieldHook.get();
+        //The lock is fair, so taking it back queues behind every mutator already waiting
+        if ((this.lock.hasQueuedThreads() || hook != null || threadHook != null) && this.lock.getHoldCount() == 1) {
+            this.lock.unlock();
+            try {
+                if (hook != null) hook.run();
+                if (threadHook != null) threadHook.run();
+            } finally {
+                this.lock.lock();
+            }
+        }
+    }
+    
+    /**
+     * Has every cascade the calling thread performs from now on, on any board, run hook between its
+     * slices, after publishing what it has dug and releasing the board's lock; or stops if hook is
+     * null. Lets the caller hand over what else it holds while dig() runs, such as a server's turn to
+     * run commands, so that others need not wait for the whole cascade.
+     * @param hook Run on the calling thread between slices of its cascades, or null
+     */
+    public static void onThreadYield(Runnable hook) {
+        if (hook == null) {
+            threadYieldHook.remove();
+        } else {
+            threadYieldHook.set(hook);
+        }
+    }
+    
+    /**
+     * Has every cascade run hook between its slices from now on, after publishing what it has dug and
+     * releasing the lock, so that mutators may run then; or stops if hook is null. Lets tests choose
+     * exactly where between slices other mutators run.
+     * @param hook Run on the cascading thread between slices, or null
+     */
+    void onYield(Runnable hook) {
+        this.lock.lock();
+        try {
+            this.yieldHook = hook;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * A first-in first-out queue of square indexes row * MAXCOLUMN + column, growing as needed.
+     */
+    private static class SquareQueue {
         
-        //base case: square has flag or is already dug
-        if (grid.get(currentSquare).isDug() || grid.get(currentSquare).hasFlag()) return;
+        private int[] ring = new int[16];
+        private int head = 0;
+        private int size = 0;
         
-        //base case: adjacent bombs
-        int adjacentBombs = adjacentBombs(row, col);
-        if (adjacentBombs(row, col) > 0) { 
-            grid.replace(currentSquare, new DugSquare(adjacentBombs));
-            return; 
+        // Abstraction function: The queue ring[head], ring[(head + 1) % ring.length], ... of length size.
+        // Rep invariant: ring.length is a power of two, 0 <= head < ring.length, 0 <= size <= ring.length
+        // Thread safety: Confined to the mutator using it.
+        
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+        
+        void add(int square) {
+            if (this.size == this.ring.length) {
+                int[] larger = new int[2 * this.ring.length];
+                for (int i = 0; i < this.size; i++) {
+                    larger[i] = this.ring[(this.head + i) & (this.ring.length - 1)];
+                }
+                this.ring = larger;
+                this.head = 0;
             }
+            this.ring[(this.head + this.size) & (this.ring.length - 1)] = square;
+            this.size++;
+        }
         
-        //Recursively calls dig on adjacent squares
-        else grid.replace(currentSquare, new DugSquare(0)); 
-            for (int[] square: adjacencies) {
-            Point adjacentPosition = new Point(row+square[0], col + square[1]); 
-            if (this.grid.containsKey(adjacentPosition)) dig(row + square[0], col + square[1]);            
+        int remove() {
+            int square = this.ring[this.head];
+            this.head = (this.head + 1) & (this.ring.length - 1);
+            this.size--;
+            return square;
+        }
+    }
+    
+    /**
+     * Replaces a square with a dug square, recording it in the reveal log unless another thread
+     * dug it first.
+     * @param position The square to dig
+     * @param adjacentBombs Number of bombs adjacent to position
+     * @return true if the square was dug
+     */
+    private boolean reveal(Point position, int adjacentBombs) {
+        Square current = grid.get(position);
+        if (!current.isDug() && grid.replace(position, current, DUG[adjacentBombs])) {
+            show(position, current.hasBomb() ? SquareState.EXPLODED : SquareState.DUG);
+            //Added before the reveal log, so a reader finding position in the log finds it here too
+            if (current.hasBomb()) explodedSquares.add(position);
+            revealed.add(position);
+            if (current.hasFlag()) flagsPlaced.decrementAndGet();
+            if (current.hasBomb()) bombsDetonated.incrementAndGet();
+            else safeSquaresLeft.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * @return The number of squares dug so far
+     */
+    public int revealedCount() {
+        return this.revealed.size();
+    }
+    
+    /**
+     * @param index Position in the reveal log, 0 <= index < revealedCount()
+     * @return The index-th square to have been dug
+     */
+    public Point revealed(int index) {
+        return this.revealed.get(index);
+    }
+    
+    /**
+     * @param row The grid row
+     * @param col The grid column
+     * @return The number of adjacent bombs shown on a dug square, or -1 if the square is not dug
+     *         or lies outside the grid
+     */
+    public int dugCount(int row, int col) {
+        Square square = squareAt(row, col);
+        if (square == null || !square.isDug()) return -1;
+        return ((DugSquare) square).getAdjacentBombs();
+    }
+    
+    /**
+     * @param row The grid row
+     * @param col The grid column
+     * @return true if the square has been dug and held a bomb when it was dug
+     */
+    public boolean exploded(int row, int col) {
+        Point position = pointAt(row, col);
+        return position != null && this.explodedSquares.contains(position);
+    }
+    
+    /**
+     * Digs every given square as a single operation, except that large cascades are opened in slices
+     * as dig() opens them. Squares already opened by an earlier square's cascade are skipped, so
+     * overlapping cascades are only walked once.
+     * @param squares Positions (row, column) to dig; positions outside the grid are ignored
+     * @return The safe squares dug, and whether any of the squares dug held a bomb
+     */
+    public DigResult digAll(List<Point> squares) {
+        this.lock.lock();
+        try {
+            DigResult result = DigResult.NOTHING;
+            for (Point square : squares) {
+                result = result.plus(digSquare(square.getX(), square.getY()));
+            }
+            publish();
+            return result;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Flags every given square as a single operation.
+     * @param squares Positions (row, column) to flag; positions outside the grid are ignored
+     */
+    public void flagAll(List<Point> squares) {
+        this.lock.lock();
+        try {
+            for (Point square : squares) {
+                flagSquare(square.getX(), square.getY());
+            }
+            publish();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Chords a dug number: if exactly as many of its neighbours are flagged as the number shows,
+     * digs every neighbour which is neither flagged nor dug, cascading as dig does. Otherwise, or if
+     * the square is not a dug number, does nothing. The chord is applied as a single operation,
+     * except that large cascades are opened in slices as dig() opens them.
+     * @param row The row containing the dug number
+     * @param col The column containing the dug number
+     * @return The safe squares dug, and whether a wrongly flagged neighbour meant a bomb was dug
+     */
+    public DigResult chord(int row, int col) {
+        this.lock.lock();
+        try {
+            int number = dugCount(row, col);
+            if (number <= 0) return DigResult.NOTHING;
+            int flags = 0;
+            for (int[] square : adjacencies) {
+                Square neighbour = squareAt(row + square[0], col + square[1]);
+                if (neighbour != null && neighbour.hasFlag()) flags++;
+            }
+            if (flags != number) return DigResult.NOTHING;
+        
+            DigResult result = DigResult.NOTHING;
+            for (int[] square : adjacencies) {
+                Square neighbour = squareAt(row + square[0], col + square[1]);
+                if (neighbour == null || neighbour.isDug() || neighbour.hasFlag()) continue;
+                result = result.plus(digSquare(row + square[0], col + square[1]));
+            }
+            publish();
+            return result;
+        } finally {
+            this.lock.unlock();
         }
-        checkRep();
     }
     
     /**
@@ -197,8 +1316,8 @@ public class Board {
         int bombCount = 0;
         //Checks all adjacencies for bombs
         for (int[] squares:adjacencies) {
-            Point adjacentSquare = new Point(squares[0]+row, squares[1]+col);
-            if (this.grid.containsKey(adjacentSquare) && this.grid.get(adjacentSquare).hasBomb()) bombCount++;
+            Square adjacentSquare = squareAt(squares[0]+row, squares[1]+col);
+            if (adjacentSquare != null && adjacentSquare.hasBomb()) bombCount++;
         }
         checkRep();
         return bombCount;
@@ -225,23 +1344,37 @@ public class Board {
      * @param col A grid column
      */
     public boolean checkBomb(int row, int col) {
-        Point position = new Point(row, col);
-        if (!this.grid.containsKey(position)) return false;
-        else return this.grid.get(position).hasBomb();
+        Square square = squareAt(row, col);
+        return square != null && square.hasBomb();
     }
 
     /**
-     * Places a flag on a square
+     * Places a flag on an untouched square. Dug and already flagged squares are left unchanged.
      * @param row The row containing the square to be flagged.
      * @param col The column containing the square to be flagged.
      * @return A new FlaggedSquare object
      */
     public void flag(int row, int col) {
-        Point position = new Point(row,col);
-        if (this.grid.containsKey(position)) {
+        this.lock.lock();
+        try {
+            flagSquare(row, col);
+            publish();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Flags a square as flag() does, without publishing the result.
+     */
+    private void flagSquare(int row, int col) {
+        Point position = pointAt(row, col);
+        if (position != null) {
             Square currentSquare = this.grid.get(position);
-            if (!currentSquare.hasFlag()) {
-                this.grid.replace(position, new FlaggedSquare(currentSquare.hasBomb()));
+            if (!currentSquare.hasFlag() && !currentSquare.isDug()
+                    && this.grid.replace(position, currentSquare, currentSquare.hasBomb() ? FLAGGED_BOMB : FLAGGED)) {
+                show(position, SquareState.FLAGGED);
+                this.flagsPlaced.incrementAndGet();
             }
         } checkRep();
     }
@@ -253,31 +1386,70 @@ public class Board {
      * @return A new UncoveredSquare object
      */
     public void deflag(int row, int col) {
-        Point position = new Point(row,col);
-        if (this.grid.containsKey(position)) {
-            Square currentSquare = this.grid.get(position);
-            if (currentSquare.hasFlag()) {
-                this.grid.replace(position, new UntouchedSquare(currentSquare.hasBomb()));
+        this.lock.lock();
+        try {
+            Point position = pointAt(row, col);
+            if (position != null) {
+                Square currentSquare = this.grid.get(position);
+                if (currentSquare.hasFlag()
+                        && this.grid.replace(position, currentSquare, currentSquare.hasBomb() ? UNTOUCHED_BOMB : UNTOUCHED)) {
+                    show(position, SquareState.UNTOUCHED);
+                    this.flagsPlaced.decrementAndGet();
+                }
             }
-        } checkRep();
+            publish();
+            checkRep();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * @return Number of squares without a bomb which have not been dug yet
+     */
+    public int safeSquaresLeft() {
+        return this.safeSquaresLeft.get();
+    }
+    
+    /**
+     * @return Number of squares currently flagged
+     */
+    public int flagsPlaced() {
+        return this.flagsPlaced.get();
+    }
+    
+    /**
+     * @return Number of bombs detonated by digging
+     */
+    public int bombsDetonated() {
+        return this.bombsDetonated.get();
+    }
+    
+    /**
+     * @return true once every square without a bomb has been dug
+     */
+    public boolean isWon() {
+        return this.safeSquaresLeft.get() == 0;
     }
     
     /**
      * @return A string representation of the current board state
      */
     public String toString() { 
-        String repr = "";
-        for (int i = 0; i < this.MAXROW; i++) {
-            for (int j = 0; j < this.MAXCOLUMN; j++) {
-                Point position = new Point(i,j);
-                repr += grid.get(position).toString();
-                //Spacing added if not end of row
-                if (j != MAXCOLUMN-1) repr += " ";
-                //Newline added at end of row, except for final row
-                if (j == this.MAXCOLUMN-1 && i != this.MAXROW-1) repr += "\n";
-            }
-        } checkRep();
-        return repr;
+        if (this.MAXROW == 0 || this.MAXCOLUMN == 0) return "";
+        RenderEvent event = new RenderEvent();
+        event.begin();
+        char[] repr = new char[this.MAXROW * 2 * this.MAXCOLUMN];
+        int length;
+        char[][][] board = pinShown();
+        try {
+            length = renderRows(board, 0, this.MAXROW, repr);
+        } finally {
+            this.readers.decrementAndGet();
+        }
+        commitRender(event, length, false);
+        checkRep();
+        return new String(repr, 0, length);
     }
     
     
@@ -0,0 +1,192 @@
+package minesweeper;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Checks the rep invariants of boards which checkRep() leaves out because they take a walk over
+ * the grid: that every square is shown as it is in the snapshot players see and in the region index,
+ * that dug squares show the number of bombs around them, and that the board's counters agree with
+ * the region index. A board is audited at one of three levels:
+ * <ul>
+ * <li>OFF: never.</li>
+ * <li>INCREMENTAL: after every mutator, the squares it changed, under the board's lock.</li>
+ * <li>SAMPLING: by a background thread, every period, a number of squares picked at random,
+ *     holding the board's lock only for that many squares.</li>
+ * </ul>
+ * Every violation found is counted and passed to a listener, such as a server's log.
+ */
+public class BoardAuditor implements Closeable {
+
+    /** How closely boards are audited. */
+    public enum Level {
+        /** Boards are not audited. */
+        OFF,
+        /** The squares each mutator changes are audited as it finishes. */
+        INCREMENTAL,
+        /** Squares picked at random are audited periodically in the background. */
+        SAMPLING
+    }
+
+    /** An auditor which audits nothing. */
+    public static final BoardAuditor OFF = new BoardAuditor(Level.OFF, 0, 0, violation -> {});
+
+    private final Level level;
+    private final int samples;
+    private final long periodMillis;
+    private final Consumer<String> listener;
+    private final Set<Board> boards = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private final AtomicLong violations = new AtomicLong();
+    private final AtomicLong squaresChecked = new AtomicLong();
+    private final Thread sampler;
+    private volatile boolean closed = false;
+
+    // Abstraction function: An auditor checking boards at level, each board at most once, until
+    //  closed. At the SAMPLING level, sampler audits samples random squares of every board every
+    //  periodMillis. violations counts the violations found, each also passed to listener, and
+    //  squaresChecked the squares audited.
+    //
+    // Rep invariant: samples >= 0, periodMillis >= 0
+    //                sampler != null iff level == SAMPLING
+    //
+    // Rep exposure: All fields are private; boards are only held weakly, so an auditor never keeps
+    //  a board alive.
+    //
+    // Thread safety: boards is a synchronized set, copied before the sampler walks it; the counters
+    //  are atomic. Each board audits its own squares under its own lock. listener may be called from
+    //  any thread that mutates an audited board, and from the sampler.
+
+    /**
+     * Makes an auditor, starting its background thread at the SAMPLING level.
+     *
+     * @param level how closely boards are audited
+     * @param samples squares of each board audited every period at the SAMPLING level, >= 0
+     * @param periodMillis milliseconds between samples at the SAMPLING level, >= 0
+     * @param listener receives a description of each violation found
+     */
+    public BoardAuditor(Level level, int samples, long periodMillis, Consumer<String> listener) {
+        this.level = level;
+        this.samples = samples;
+        this.periodMillis = periodMillis;
+        this.listener = listener;
+        if (level == Level.SAMPLING) {
+            this.sampler = new Thread(this::sample, "board-auditor");
+            this.sampler.setDaemon(true);
+            this.sampler.start();
+        } else {
+            this.sampler = null;
+        }
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.samples >= 0;
+        assert this.periodMillis >= 0;
+        assert (this.sampler != null) == (this.level == Level.SAMPLING);
+    }
+
+    /**
+     * @return how closely boards are audited
+     */
+    public Level level() {
+        return level;
+    }
+
+    /**
+     * Starts auditing a board, at this auditor's level. A board audited incrementally by another
+     * auditor is audited by this one instead.
+     *
+     * @param board the board
+     */
+    public void watch(Board board) {
+        if (level == Level.OFF || closed) return;
+        boards.add(board);
+        if (level == Level.INCREMENTAL) board.auditEachChange(this);
+    }
+
+    /**
+     * Stops auditing a board. Does nothing if the board is not audited by this auditor.
+     *
+     * @param board the board
+     */
+    public void unwatch(Board board) {
+        if (boards.remove(board) && level == Level.INCREMENTAL) board.auditEachChange(null);
+    }
+
+    /**
+     * @return number of violations found so far
+     */
+    public long violations() {
+        return violations.get();
+    }
+
+    /**
+     * @return number of squares audited so far
+     */
+    public long squaresChecked() {
+        return squaresChecked.get();
+    }
+
+    /**
+     * Stops auditing every board, and stops the background thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Board board : watched()) {
+            unwatch(board);
+        }
+        if (sampler != null) {
+            sampler.interrupt();
+        }
+    }
+
+    /**
+     * Counts and reports a violation. Called by boards while auditing.
+     *
+     * @param violation description of the violation
+     */
+    void report(String violation) {
+        violations.incrementAndGet();
+        listener.accept(violation);
+    }
+
+    /**
+     * Counts squares audited. Called by boards while auditing.
+     *
+     * @param squares number of squares audited
+     */
+    void checked(int squares) {
+        squaresChecked.addAndGet(squares);
+    }
+
+    private List<Board> watched() {
+        synchronized (boards) {
+            return new ArrayList<>(boards);
+        }
+    }
+
+    /**
+     * Body of the background thread at the SAMPLING level.
+     */
+    private void sample() {
+        Random random = new Random();
+        while (!closed) {
+            for (Board board : watched()) {
+                board.auditSample(this, random, samples);
+            }
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+}
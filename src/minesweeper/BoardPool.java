@@ -0,0 +1,216 @@
+package minesweeper;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A factory of random boards which keeps a pool of ready-made boards for commonly requested sizes
+ * and bomb densities. Background threads refill the pool whenever a board is taken, so a new game
+ * can be handed a finished Board without waiting for it to be constructed.
+ */
+public class BoardPool {
+
+    /** Rough heap cost of one square: map entry, Point key and Square value. */
+    public static final long ESTIMATED_BYTES_PER_SQUARE = 96;
+
+    private final int boardsPerSize;
+    private final long memoryBudget;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final Map<BoardSize, BlockingQueue<Board>> ready = new ConcurrentHashMap<>();
+    private final Set<BoardSize> refilling = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refillers;
+
+    // Abstraction function:
+    //  A pool holding, for every prepared BoardSize s, the untouched random boards ready.get(s),
+    //  which are handed out in FIFO order. The pool is topped back up to boardsPerSize boards per
+    //  size by the refillers, as long as the boards held stay within memoryBudget bytes.
+    //
+    // Rep invariant: boardsPerSize >= 0
+    //                0 <= pooledBytes <= memoryBudget
+    //                pooledBytes == sum of estimatedBytes(s) for every board in ready.get(s)
+    //
+    // Rep exposure: All fields are private and final. Boards are removed from the pool before they
+    //  are handed out, so no two callers ever receive the same Board.
+    //
+    // Thread safety: Pooled boards are kept in blocking queues and budget accounting uses an atomic
+    //  compare-and-set, so take() may be called from any thread. At most one refill task runs for
+    //  any size at once, guarded by the concurrent refilling set.
+
+    /**
+     * Creates an empty pool.
+     * @param boardsPerSize Number of boards to keep ready for each prepared size, >= 0
+     * @param memoryBudget Maximum estimated heap bytes held by pooled boards, >= 0
+     * @param refillThreads Number of background threads constructing boards, > 0
+     */
+    public BoardPool(int boardsPerSize, long memoryBudget, int refillThreads) {
+        this.boardsPerSize = boardsPerSize;
+        this.memoryBudget = memoryBudget;
+        this.refillers = Executors.newFixedThreadPool(refillThreads, runnable -> {
+            Thread thread = new Thread(runnable, "board-pool-refill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkRep();
+    }
+
+    public void checkRep() {
+        assert this.boardsPerSize >= 0;
+        assert this.pooledBytes.get() >= 0;
+        assert this.pooledBytes.get() <= this.memoryBudget;
+    }
+
+    /**
+     * Registers a commonly requested board size, and starts filling the pool for it in the background.
+     * @param rows Number of rows, greater than zero
+     * @param cols Number of columns, greater than zero
+     * @param bombProbability Chance of each square containing a bomb
+     */
+    public void prepare(int rows, int cols, double bombProbability) {
+        BoardSize size = new BoardSize(rows, cols, bombProbability);
+        this.ready.putIfAbsent(size, new LinkedBlockingQueue<Board>());
+        refill(size);
+    }
+
+    /**
+     * Hands out an untouched random board. A pooled board is returned if one is ready, otherwise
+     * one is constructed on the calling thread. Either way the size is (re)registered and its pool
+     * is topped back up in the background.
+     * @param rows Number of rows, greater than zero
+     * @param cols Number of columns, greater than zero
+     * @param bombProbability Chance of each square containing a bomb
+     * @return A new board which has not been handed out before
+     */
+    public Board take(int rows, int cols, double bombProbability) {
+        return take(rows, cols, bombProbability, true);
+    }
+
+    /**
+     * Hands out an untouched random board as take(rows, cols, bombProbability) does, except that the
+     * size is only registered and topped back up if refill is true, so a size needed just once is not
+     * left being built in the background.
+     * @param rows Number of rows, greater than zero
+     * @param cols Number of columns, greater than zero
+     * @param bombProbability Chance of each square containing a bomb
+     * @param refill Whether to top the pool back up for this size
+     * @return A new board which has not been handed out before
+     */
+    public Board take(int rows, int cols, double bombProbability, boolean refill) {
+        BoardSize size = new BoardSize(rows, cols, bombProbability);
+        BlockingQueue<Board> boards = refill
+                ? this.ready.computeIfAbsent(size, s -> new LinkedBlockingQueue<Board>())
+                : this.ready.get(size);
+        Board board = boards == null ? null : boards.poll();
+        if (board != null) {
+            this.pooledBytes.addAndGet(-size.estimatedBytes());
+        } else {
+            board = new Board(rows, cols, bombProbability);
+        }
+        if (refill) refill(size);
+        checkRep();
+        return board;
+    }
+
+    /**
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param bombProbability Chance of each square containing a bomb
+     * @return Number of boards of this size currently ready to be taken
+     */
+    public int available(int rows, int cols, double bombProbability) {
+        BlockingQueue<Board> boards = this.ready.get(new BoardSize(rows, cols, bombProbability));
+        return boards == null ? 0 : boards.size();
+    }
+
+    /**
+     * @return Estimated heap bytes currently held by pooled boards
+     */
+    public long pooledBytes() {
+        return this.pooledBytes.get();
+    }
+
+    /**
+     * Stops the background refill threads. Boards already pooled may still be taken.
+     */
+    public void shutdown() {
+        this.refillers.shutdownNow();
+    }
+
+    /**
+     * Schedules a background refill for size, unless one is already running.
+     */
+    private void refill(BoardSize size) {
+        if (this.refillers.isShutdown() || !this.refilling.add(size)) return;
+        try {
+            this.refillers.execute(() -> {
+                try {
+                    BlockingQueue<Board> boards = this.ready.get(size);
+                    while (boards.size() < this.boardsPerSize && reserve(size.estimatedBytes())) {
+                        boards.add(new Board(size.rows, size.cols, size.bombProbability));
+                    }
+                } finally {
+                    this.refilling.remove(size);
+                }
+            });
+        } catch (RuntimeException ree) {
+            //Executor rejected the task because the pool is shutting down
+            this.refilling.remove(size);
+        }
+    }
+
+    /**
+     * Reserves room in the memory budget for one more pooled board.
+     * @return true if the board fits within the budget
+     */
+    private boolean reserve(long bytes) {
+        while (true) {
+            long current = this.pooledBytes.get();
+            if (current + bytes > this.memoryBudget) return false;
+            if (this.pooledBytes.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    /**
+     * An immutable key identifying the dimensions and bomb density of pooled boards.
+     */
+    private static class BoardSize {
+
+        private final int rows;
+        private final int cols;
+        private final double bombProbability;
+
+        // Threadsafe: This datatype is threadsafe because it's immutable: all fields are final
+
+        BoardSize(int rows, int cols, double bombProbability) {
+            this.rows = rows;
+            this.cols = cols;
+            this.bombProbability = bombProbability;
+        }
+
+        long estimatedBytes() {
+            return (long) this.rows * this.cols * ESTIMATED_BYTES_PER_SQUARE;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (!(thatObject instanceof BoardSize)) return false;
+            BoardSize that = (BoardSize) thatObject;
+            return that.rows == this.rows && that.cols == this.cols
+                    && Double.compare(that.bombProbability, this.bombProbability) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 373;
+            hash = 37 * hash + this.rows;
+            hash = 37 * hash + this.cols;
+            hash = 37 * hash + Double.hashCode(this.bombProbability);
+            return hash;
+        }
+    }
+}
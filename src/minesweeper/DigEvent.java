@@ -0,0 +1,32 @@
+package minesweeper;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one call to Board.dig, including its whole cascade. Its duration shows
+ * how long the board was held for the dig.
+ */
+@Name("minesweeper.Dig")
+@Label("Dig")
+@Category({"Minesweeper", "Board"})
+@Description("A dig on the board, with every square its cascade revealed")
+@StackTrace(false)
+class DigEvent extends jdk.jfr.Event {
+
+    @Label("Row")
+    int row;
+
+    @Label("Column")
+    int column;
+
+    @Label("Squares Revealed")
+    @Description("Squares newly dug by the dig and its cascade")
+    int squaresRevealed;
+
+    @Label("Detonated")
+    boolean detonated;
+}
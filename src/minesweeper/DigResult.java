@@ -0,0 +1,84 @@
+package minesweeper;
+
+/**
+ * The outcome of one dig, chord or bulk dig on a board: how many safe squares it dug, cascades
+ * included, whether it dug a bomb, and whether it dug the board's last safe square, winning the game.
+ * Only squares this operation dug itself are counted, never squares other players dug at the same time.
+ */
+public class DigResult {
+
+    /** Outcome of an operation which dug nothing. */
+    static final DigResult NOTHING = new DigResult(0, false);
+
+    private final int safeSquaresDug;
+    private final boolean detonated;
+    private final boolean clearedLastSquare;
+
+    //Abstraction function: An operation which dug safeSquaresDug safe squares, a bomb iff detonated,
+    //  and the board's last safe square iff clearedLastSquare
+    //
+    //Rep invariant: safeSquaresDug >= 0
+    //               clearedLastSquare implies safeSquaresDug > 0
+    //
+    //Rep exposure: All fields are private and final
+    //
+    //Threadsafe: This datatype is threadsafe because it's immutable: all fields are final
+
+    /**
+     * @param safeSquaresDug Number of safe squares dug, >= 0
+     * @param detonated Whether a bomb was dug
+     */
+    DigResult(int safeSquaresDug, boolean detonated) {
+        this(safeSquaresDug, detonated, false);
+    }
+
+    /**
+     * @param safeSquaresDug Number of safe squares dug, >= 0
+     * @param detonated Whether a bomb was dug
+     * @param clearedLastSquare Whether the board's last safe square was dug, requires safeSquaresDug > 0
+     */
+    DigResult(int safeSquaresDug, boolean detonated, boolean clearedLastSquare) {
+        this.safeSquaresDug = safeSquaresDug;
+        this.detonated = detonated;
+        this.clearedLastSquare = clearedLastSquare;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.safeSquaresDug >= 0;
+        assert !this.clearedLastSquare || this.safeSquaresDug > 0;
+    }
+
+    /**
+     * @return Number of safe squares the operation dug
+     */
+    public int safeSquaresDug() {
+        return this.safeSquaresDug;
+    }
+
+    /**
+     * @return true if the operation dug a bomb
+     */
+    public boolean detonated() {
+        return this.detonated;
+    }
+
+    /**
+     * @return true if the operation dug the board's last safe square, so that this operation, and no
+     *         other, won the game
+     */
+    public boolean clearedLastSquare() {
+        return this.clearedLastSquare;
+    }
+
+    /**
+     * @param other The outcome of a later part of the same operation
+     * @return The outcome of both parts together
+     */
+    DigResult plus(DigResult other) {
+        if (other == NOTHING) return this;
+        if (this == NOTHING) return other;
+        return new DigResult(this.safeSquaresDug + other.safeSquaresDug, this.detonated || other.detonated,
+                this.clearedLastSquare || other.clearedLastSquare);
+    }
+}
@@ -39,6 +39,13 @@ public class DugSquare implements Square {
         checkRep();
     }
 
+    /**
+     * @return the number of bombs adjacent to this square when it was dug
+     */
+    public int getAdjacentBombs() {
+        return this.adjacentBombs;
+    }
+    
     /**
      * @return true if square contains a bomb
      */
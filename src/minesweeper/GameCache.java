@@ -0,0 +1,292 @@
+package minesweeper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Named games held within a memory budget. When the boards in memory exceed the budget, the games
+ * used least recently and not in use at the moment are saved to a directory, compressed in the
+ * format of Board.writeTo(), and dropped from memory. Acquiring an evicted game loads it back, so
+ * callers see every game as if it had stayed in memory.
+ *
+ * A board is only safe to use between acquire() and the matching release(): once released, the
+ * game may be evicted, and a later acquire() returns a different Board object restored from disk.
+ */
+public class GameCache {
+
+    /** Game names allowed, which are used as file names. */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    /** Extension of the files holding evicted games. */
+    private static final String SUFFIX = ".board";
+
+    private final Path directory;
+    private final long memoryBudget;
+    private final Function<String, Board> newGame;
+    private final LinkedHashMap<String, Game> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentBytes = 0;
+    private long evictions = 0;
+    private long reloads = 0;
+    private BoardAuditor auditor = BoardAuditor.OFF;
+
+    // Abstraction function: Every game ever acquired, each either resident, in memory with its board
+    //  and the number of callers between acquire() and release(), or saved in directory as name + SUFFIX.
+    //  resident iterates from the game used least recently to the one used most recently. Games never
+    //  acquired before are created by newGame. auditor audits the boards of the resident games.
+    //
+    // Rep invariant: memoryBudget >= 0
+    //                residentBytes == sum of the estimated bytes of the resident games
+    //                residentBytes <= memoryBudget, unless every resident game but the one most
+    //                recently acquired is in use
+    //                no game is both resident and saved
+    //
+    // Rep exposure: All fields are private. Boards are handed out deliberately, for use until release().
+    //
+    // Thread safety: Every method is synchronized on the cache, including the disk reads and writes,
+    //  so a game is never loaded twice or used while it is being saved.
+
+    /**
+     * Creates an empty cache.
+     * @param directory Directory evicted games are saved in, which must exist
+     * @param memoryBudget Estimated heap bytes the resident boards may take, >= 0
+     * @param newGame Creates the board of a game acquired for the first time, given its name
+     */
+    public GameCache(Path directory, long memoryBudget, Function<String, Board> newGame) {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.newGame = newGame;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.memoryBudget >= 0;
+        assert this.residentBytes >= 0;
+    }
+
+    /**
+     * Has an auditor audit the boards of the resident games, and of every game loaded or created from
+     * now on, in place of the auditor set before.
+     * @param auditor The auditor
+     */
+    public synchronized void setAuditor(BoardAuditor auditor) {
+        for (Game game : this.resident.values()) {
+            this.auditor.unwatch(game.board);
+            auditor.watch(game.board);
+        }
+        this.auditor = auditor;
+    }
+
+    /**
+     * @param name A game name
+     * @return true if name is a valid game name: 1 to 64 letters, digits, '_' or '-'
+     */
+    public static boolean isValidName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    /**
+     * Marks a game as in use and returns its board, loading it if it was evicted or creating it if it
+     * is new. Evicts idle games if the board brings the resident games over the budget.
+     * @param name Name of the game, valid according to isValidName()
+     * @return The game's board, which must not be used after the matching release()
+     * @throws IOException if the game was evicted and cannot be loaded, or another game cannot be evicted
+     */
+    public synchronized Board acquire(String name) throws IOException {
+        if (!isValidName(name)) throw new IllegalArgumentException("Invalid game name: " + name);
+        Game game = this.resident.get(name);
+        if (game == null) {
+            Path file = this.directory.resolve(name + SUFFIX);
+            Board board;
+            if (Files.exists(file)) {
+                try (InputStream in = new InflaterInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    board = Board.readFrom(in);
+                }
+                Files.delete(file);
+                this.reloads++;
+            } else {
+                board = this.newGame.apply(name);
+            }
+            game = new Game(board);
+            this.auditor.watch(board);
+            this.resident.put(name, game);
+            this.residentBytes += game.bytes;
+        }
+        game.users++;
+        evictIdle();
+        checkRep();
+        return game.board;
+    }
+
+    /**
+     * Marks a game as no longer in use by one caller, making it eligible for eviction once no caller
+     * uses it.
+     * @param name Name of a game acquired and not yet released by the caller
+     * @throws IOException if an idle game cannot be evicted
+     */
+    public synchronized void release(String name) throws IOException {
+        Game game = this.resident.get(name);
+        if (game == null || game.users == 0) throw new IllegalStateException("Game not acquired: " + name);
+        game.users--;
+        evictIdle();
+        checkRep();
+    }
+
+    /**
+     * Removes a game from the cache, whether resident or evicted, so it can be moved elsewhere.
+     * @param name Name of the game, valid according to isValidName()
+     * @return The game, compressed in the format evicted games are saved in, or null if the cache
+     *         holds no game of that name
+     * @throws IOException if the game was evicted and cannot be read
+     * @throws IllegalStateException if the game is in use
+     */
+    public synchronized byte[] exportGame(String name) throws IOException {
+        if (!isValidName(name)) throw new IllegalArgumentException("Invalid game name: " + name);
+        Game game = this.resident.get(name);
+        if (game != null) {
+            if (game.users > 0) throw new IllegalStateException("Game in use: " + name);
+            ByteArrayOutputStream saved = new ByteArrayOutputStream();
+            writeCompressed(game.board, saved);
+            this.auditor.unwatch(game.board);
+            this.resident.remove(name);
+            this.residentBytes -= game.bytes;
+            checkRep();
+            return saved.toByteArray();
+        }
+        Path file = this.directory.resolve(name + SUFFIX);
+        if (!Files.exists(file)) return null;
+        byte[] saved = Files.readAllBytes(file);
+        Files.delete(file);
+        return saved;
+    }
+
+    /**
+     * Adds a game removed from another cache by exportGame(), replacing any game of the same name.
+     * The game is kept evicted until it is next acquired.
+     * @param name Name of the game, valid according to isValidName()
+     * @param saved The game as returned by exportGame()
+     * @throws IOException if saved does not hold a game, or the game cannot be saved
+     * @throws IllegalStateException if a game of the same name is in use
+     */
+    public synchronized void importGame(String name, byte[] saved) throws IOException {
+        if (!isValidName(name)) throw new IllegalArgumentException("Invalid game name: " + name);
+        Game game = this.resident.get(name);
+        if (game != null && game.users > 0) throw new IllegalStateException("Game in use: " + name);
+        //Checked now, rather than failing the next acquire()
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(saved))) {
+            Board.readFrom(in);
+        }
+        Path file = this.directory.resolve(name + SUFFIX);
+        Path partial = this.directory.resolve(name + SUFFIX + ".partial");
+        Files.write(partial, saved);
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (game != null) {
+            this.auditor.unwatch(game.board);
+            this.resident.remove(name);
+            this.residentBytes -= game.bytes;
+        }
+        checkRep();
+    }
+
+    /**
+     * Saves and drops games not in use, least recently used first, until the resident games fit the budget.
+     */
+    private void evictIdle() throws IOException {
+        Iterator<Map.Entry<String, Game>> leastRecent = this.resident.entrySet().iterator();
+        while (this.residentBytes > this.memoryBudget && leastRecent.hasNext()) {
+            Map.Entry<String, Game> entry = leastRecent.next();
+            Game game = entry.getValue();
+            if (game.users > 0) continue;
+            save(entry.getKey(), game.board);
+            this.auditor.unwatch(game.board);
+            leastRecent.remove();
+            this.residentBytes -= game.bytes;
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Writes a board to its game's file, replacing the file only once the board is completely written.
+     */
+    private void save(String name, Board board) throws IOException {
+        Path file = this.directory.resolve(name + SUFFIX);
+        Path partial = this.directory.resolve(name + SUFFIX + ".partial");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial))) {
+            writeCompressed(board, out);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes a board in the format of Board.writeTo(), compressed with DEFLATE, leaving out open.
+     */
+    private static void writeCompressed(Board board, OutputStream out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater);
+            board.writeTo(compressed);
+            compressed.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param name A game name
+     * @return true if the game's board is in memory
+     */
+    public synchronized boolean isResident(String name) {
+        return this.resident.containsKey(name);
+    }
+
+    /**
+     * @return Estimated heap bytes taken by the boards in memory
+     */
+    public synchronized long residentBytes() {
+        return this.residentBytes;
+    }
+
+    /**
+     * @return Number of games saved to disk and dropped from memory so far
+     */
+    public synchronized long evictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return Number of evicted games loaded back so far
+     */
+    public synchronized long reloads() {
+        return this.reloads;
+    }
+
+    /**
+     * A resident game.
+     */
+    private static class Game {
+        private final Board board;
+        private final long bytes;
+        private int users = 0;
+
+        // Thread safety: users is guarded by the cache's lock.
+
+        Game(Board board) {
+            this.board = board;
+            this.bytes = BoardPool.ESTIMATED_BYTES_PER_SQUARE * board.getRows() * board.getColumns();
+        }
+    }
+}
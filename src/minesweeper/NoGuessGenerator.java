@@ -0,0 +1,253 @@
+package minesweeper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates random boards which can be solved without guessing. Each board comes with an opening
+ * already dug around a starting square, and from there every remaining safe square can be found by
+ * the deterministic Solver alone.
+ *
+ * Candidate layouts are generated and checked on several threads at once, and the first one to pass
+ * is returned. If none passes before the deadline, a board whose opening is dug but which may need
+ * a guess later on is returned instead.
+ */
+public class NoGuessGenerator {
+
+    private final int rows;
+    private final int cols;
+    private final double bombProbability;
+    private final int threads;
+    private final AtomicLong candidatesChecked = new AtomicLong();
+
+    // Abstraction function:
+    //  A generator of no-guess boards of rows x cols squares, each square outside the opening holding
+    //  a bomb with probability bombProbability, searching with the given number of threads.
+    //  candidatesChecked counts the layouts checked so far, over every call to generate.
+    //
+    // Rep invariant: rows > 0, cols > 0, threads > 0
+    //
+    // Rep exposure: All fields are private and final. Generated boards are new objects.
+    //
+    // Thread safety: Each search thread works on its own candidate boards and solvers. The only
+    //  shared state is the atomic candidate counter.
+
+    /**
+     * @param rows Number of rows, greater than zero
+     * @param cols Number of columns, greater than zero
+     * @param bombProbability Chance of each square outside the opening holding a bomb
+     * @param threads Number of threads checking candidates, greater than zero
+     */
+    public NoGuessGenerator(int rows, int cols, double bombProbability, int threads) {
+        this.rows = rows;
+        this.cols = cols;
+        this.bombProbability = bombProbability;
+        this.threads = threads;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.rows > 0;
+        assert this.cols > 0;
+        assert this.threads > 0;
+    }
+
+    /**
+     * Searches for a no-guess board, opened at the centre square.
+     * @param deadlineMillis Milliseconds to search before falling back to a board that may need guessing
+     * @return A board with the opening around its centre square dug
+     */
+    public Board generate(long deadlineMillis) {
+        ExecutorService searchers = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "no-guess-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Callable<boolean[]>> searches = new ArrayList<Callable<boolean[]>>();
+        for (int i = 0; i < this.threads; i++) {
+            searches.add(this::search);
+        }
+        try {
+            return open(searchers.invokeAny(searches, deadlineMillis, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException | ExecutionException e) {
+            return open(layout(new Random()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return open(layout(new Random()));
+        } finally {
+            searchers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Number of candidate layouts checked so far
+     */
+    public long candidatesChecked() {
+        return this.candidatesChecked.get();
+    }
+
+    /**
+     * Generates and checks candidate layouts until one passes, or the thread is interrupted.
+     * @return A layout solvable without guessing
+     * @throws InterruptedException if another search finished first or the deadline passed
+     */
+    private boolean[] search() throws InterruptedException {
+        Random rng = new Random();
+        while (!Thread.currentThread().isInterrupted()) {
+            boolean[] bombs = layout(rng);
+            this.candidatesChecked.incrementAndGet();
+            if (isSolvableWithoutGuessing(bombs)) return bombs;
+        }
+        throw new InterruptedException();
+    }
+
+    /**
+     * Places bombs at random, keeping the centre square and its neighbours clear.
+     * @return Bomb layout indexed row * cols + col
+     */
+    boolean[] layout(Random rng) {
+        boolean[] bombs = new boolean[this.rows * this.cols];
+        for (int row = 0; row < this.rows; row++) {
+            for (int col = 0; col < this.cols; col++) {
+                boolean nearStart = Math.abs(row - this.rows / 2) <= 1 && Math.abs(col - this.cols / 2) <= 1;
+                bombs[row * this.cols + col] = !nearStart && rng.nextDouble() < this.bombProbability;
+            }
+        }
+        return bombs;
+    }
+
+    /**
+     * Plays a layout from its opening, digging only squares the solver proves safe.
+     * @return true if every safe square gets dug
+     */
+    boolean isSolvableWithoutGuessing(boolean[] bombs) {
+        Candidate candidate = new Candidate(this.rows, this.cols, bombs);
+        candidate.dig(this.rows / 2, this.cols / 2);
+        Solver solver = new Solver(candidate, this.bombProbability);
+        while (true) {
+            List<Point> safe = solver.safeSquares();
+            if (safe.isEmpty()) return candidate.revealedCount() == candidate.safeSquares;
+            for (Point square : safe) {
+                candidate.dig(square.getX(), square.getY());
+            }
+        }
+    }
+
+    /**
+     * @return A board with the given layout, and the opening around its centre square dug
+     */
+    private Board open(boolean[] bombs) {
+        Board board = new Board(this.rows, this.cols, false);
+        for (int square = 0; square < bombs.length; square++) {
+            if (bombs[square]) board.placeBomb(square / this.cols, square % this.cols);
+        }
+        board.dig(this.rows / 2, this.cols / 2);
+        return board;
+    }
+
+    /**
+     * A packed, single-threaded playing field for checking a candidate layout. Adjacent bomb counts are
+     * computed once up front, and digs flood-fill with an explicit stack, so playing out a layout
+     * costs far less than building and digging a full Board.
+     */
+    private static class Candidate implements PlayerView {
+
+        private final int rows;
+        private final int cols;
+        private final int[] adjacentBombs;
+        private final boolean[] dug;
+        private final int[] revealed;
+        private final int safeSquares;
+        private int revealedCount = 0;
+
+        // Abstraction function: A grid with bombs where adjacentBombs[square] < 0, whose dug squares are
+        //  dug[square], dug in the order revealed[0 .. revealedCount-1].
+        //
+        // Thread safety: Not threadsafe; each candidate is confined to the search thread checking it.
+
+        Candidate(int rows, int cols, boolean[] bombs) {
+            this.rows = rows;
+            this.cols = cols;
+            this.adjacentBombs = new int[bombs.length];
+            this.dug = new boolean[bombs.length];
+            this.revealed = new int[bombs.length];
+            int safe = 0;
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    int square = row * cols + col;
+                    if (bombs[square]) {
+                        this.adjacentBombs[square] = -1;
+                        continue;
+                    }
+                    safe++;
+                    for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                        for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                            if (bombs[r * cols + c]) this.adjacentBombs[square]++;
+                        }
+                    }
+                }
+            }
+            this.safeSquares = safe;
+        }
+
+        /**
+         * Digs a safe square, opening the surrounding area if it has no adjacent bombs.
+         */
+        void dig(int row, int col) {
+            int[] stack = new int[8];
+            int size = 0;
+            stack[size++] = row * this.cols + col;
+            while (size > 0) {
+                int square = stack[--size];
+                if (this.dug[square] || this.adjacentBombs[square] < 0) continue;
+                this.dug[square] = true;
+                this.revealed[this.revealedCount++] = square;
+                if (this.adjacentBombs[square] > 0) continue;
+                int r0 = square / this.cols, c0 = square % this.cols;
+                for (int r = Math.max(0, r0 - 1); r <= Math.min(this.rows - 1, r0 + 1); r++) {
+                    for (int c = Math.max(0, c0 - 1); c <= Math.min(this.cols - 1, c0 + 1); c++) {
+                        if (this.dug[r * this.cols + c]) continue;
+                        if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+                        stack[size++] = r * this.cols + c;
+                    }
+                }
+            }
+        }
+
+        public int getRows() {
+            return this.rows;
+        }
+
+        public int getColumns() {
+            return this.cols;
+        }
+
+        public int revealedCount() {
+            return this.revealedCount;
+        }
+
+        public Point revealed(int index) {
+            return new Point(this.revealed[index] / this.cols, this.revealed[index] % this.cols);
+        }
+
+        public int dugCount(int row, int col) {
+            if (row < 0 || row >= this.rows || col < 0 || col >= this.cols) return -1;
+            int square = row * this.cols + col;
+            return this.dug[square] ? this.adjacentBombs[square] : -1;
+        }
+
+        public boolean exploded(int row, int col) {
+            //dig() never digs a bomb
+            return false;
+        }
+    }
+}
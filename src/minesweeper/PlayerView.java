@@ -0,0 +1,51 @@
+package minesweeper;
+
+/**
+ * What a player can see of a minesweeper grid: its dimensions, which squares have been dug and in
+ * what order, the number of adjacent bombs shown on each dug square, and which dug squares exploded.
+ * A bomb that explodes is gone, but the numbers dug before it still count it.
+ */
+public interface PlayerView {
+    
+    // Abstraction function: Represents the visible state of a grid of getRows() x getColumns() squares,
+    // where the squares dug so far are revealed(0) ... revealed(revealedCount()-1).
+    //
+    // Rep exposure: Implementations only ever add to the reveal log, and a dug square's number never changes.
+
+    /**
+     * @return Number of rows in the grid
+     */
+    public int getRows();
+    
+    /**
+     * @return Number of columns in the grid
+     */
+    public int getColumns();
+    
+    /**
+     * @return The number of squares dug so far
+     */
+    public int revealedCount();
+    
+    /**
+     * @param index Position in the reveal log, 0 <= index < revealedCount()
+     * @return The index-th square to have been dug
+     */
+    public Point revealed(int index);
+    
+    /**
+     * @param row The grid row
+     * @param col The grid column
+     * @return The number of adjacent bombs shown on a dug square, or -1 if the square is not dug
+     *         or lies outside the grid
+     */
+    public int dugCount(int row, int col);
+    
+    /**
+     * @param row The grid row
+     * @param col The grid column
+     * @return true if the square has been dug and held a bomb when it was dug; the numbers shown on
+     *         its neighbours dug before it count that bomb, which is no longer there
+     */
+    public boolean exploded(int row, int col);
+}
@@ -76,6 +76,7 @@ public class Point implements Comparable<Point> {
     public int compareTo(Point other) {
         if (this.getX() < other.getX()) return -1;
         else if ((this.getX() == other.getX()) && (this.getY() < other.getY())) return -1;
+        else if (this.equals(other)) return 0;
         else return 1;
     }
 }
@@ -0,0 +1,248 @@
+package minesweeper;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Counts of the squares in each SquareState over a board, kept for square tiles of every power of two
+ * size, like the levels of a mipmap. Level k divides the board into tiles of 2^k x 2^k squares, the
+ * last tiles of each row and column cut short by the board's edge; level 0 is the squares themselves,
+ * and the top level is a single tile covering the whole board.
+ *
+ * Changing a square updates one tile per level, so counts over a tile cost O(1) to read and counts over
+ * any rectangle O(log size) per tile along its edge, however large the board.
+ */
+class RegionIndex {
+
+    private static final int STATES = SquareState.values().length;
+    /** Optimistic reads tried before a reader waits for the mutator in progress to finish. */
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+    private final int rows;
+    private final int cols;
+    private final int levels;
+    private final byte[] states;
+    private final int[][] counts;
+    private final StampedLock lock = new StampedLock();
+    private long writeStamp = 0;
+
+    // Abstraction function: A board of rows x cols squares, square (r, c) in state
+    //  SquareState.values()[states[r * cols + c]]. For 1 <= k < levels, the tile (tr, tc) of level k holds
+    //  counts[k][(tr * tileColumns(k) + tc) * STATES + s] squares in state s. counts[0] is unused.
+    //
+    // Rep invariant: rows >= 0, cols >= 0
+    //                2^(levels - 1) >= max(rows, cols), the top level being a single tile
+    //                each tile's counts sum to its number of squares, and equal the sums over its
+    //                children at the level below
+    //
+    // Rep exposure: All fields are private; the index is only reachable through its board.
+    //
+    // Thread safety: Only the board's mutators change the index, one at a time under the board's lock,
+    //  and they hold lock's write lock from their first change until endChanges(). Readers take an
+    //  optimistic read stamp and retry if a mutator changed the index meanwhile, falling back to the
+    //  read lock after OPTIMISTIC_ATTEMPTS tries, so every read sees the index between two mutators.
+
+    /**
+     * Creates the index of a board whose squares are all untouched.
+     *
+     * @param rows Number of rows, >= 0
+     * @param cols Number of columns, >= 0
+     */
+    RegionIndex(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        int top = 0;
+        while ((1 << top) < Math.max(rows, cols)) {
+            top++;
+        }
+        this.levels = top + 1;
+        this.states = new byte[rows * cols];
+        this.counts = new int[this.levels][];
+        for (int level = 1; level < this.levels; level++) {
+            int tileRows = tileRows(level);
+            int tileColumns = tileColumns(level);
+            this.counts[level] = new int[tileRows * tileColumns * STATES];
+            for (int tr = 0; tr < tileRows; tr++) {
+                for (int tc = 0; tc < tileColumns; tc++) {
+                    int height = Math.min(1 << level, rows - (tr << level));
+                    int width = Math.min(1 << level, cols - (tc << level));
+                    this.counts[level][(tr * tileColumns + tc) * STATES + SquareState.UNTOUCHED.ordinal()] = height * width;
+                }
+            }
+        }
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.rows >= 0;
+        assert this.cols >= 0;
+        assert (1 << (this.levels - 1)) >= Math.max(this.rows, this.cols);
+        assert this.counts[this.levels - 1] == null || this.counts[this.levels - 1].length == STATES;
+    }
+
+    /**
+     * @return Number of levels, the top one being a single tile
+     */
+    int levels() {
+        return this.levels;
+    }
+
+    /**
+     * @return Number of rows of tiles at level
+     */
+    int tileRows(int level) {
+        return (this.rows + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * @return Number of columns of tiles at level
+     */
+    int tileColumns(int level) {
+        return (this.cols + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * @return The state of square (row, col), as of the last change recorded
+     */
+    SquareState state(int row, int col) {
+        return SquareState.values()[this.states[row * this.cols + col]];
+    }
+
+    /**
+     * Records a square's new state, updating every tile containing it. Called by the board's mutators
+     * only, under the board's lock; the change is hidden from readers until endChanges().
+     *
+     * @param row The square's row
+     * @param col The square's column
+     * @param state The square's new state
+     */
+    void change(int row, int col, SquareState state) {
+        int old = this.states[row * this.cols + col];
+        int now = state.ordinal();
+        if (old == now) return;
+        if (this.writeStamp == 0) this.writeStamp = this.lock.writeLock();
+        this.states[row * this.cols + col] = (byte) now;
+        for (int level = 1; level < this.levels; level++) {
+            int tile = ((row >> level) * tileColumns(level) + (col >> level)) * STATES;
+            this.counts[level][tile + old]--;
+            this.counts[level][tile + now]++;
+        }
+    }
+
+    /**
+     * Makes the changes since the last call visible to readers. Called by the board's mutators only,
+     * under the board's lock.
+     */
+    void endChanges() {
+        if (this.writeStamp == 0) return;
+        this.lock.unlockWrite(this.writeStamp);
+        this.writeStamp = 0;
+    }
+
+    /**
+     * @param state State to count
+     * @param top First row of the region
+     * @param left First column of the region
+     * @param bottom Row after the last row of the region
+     * @param right Column after the last column of the region
+     * @return Number of squares in the region, clipped to the board, which are in state
+     */
+    int count(SquareState state, int top, int left, int bottom, int right) {
+        int clippedTop = Math.max(0, top);
+        int clippedLeft = Math.max(0, left);
+        int clippedBottom = Math.min(this.rows, bottom);
+        int clippedRight = Math.min(this.cols, right);
+        if (clippedTop >= clippedBottom || clippedLeft >= clippedRight) return 0;
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = this.lock.tryOptimisticRead();
+            if (stamp == 0) continue;
+            int count = countWithin(state.ordinal(), this.levels - 1, 0, 0,
+                    clippedTop, clippedLeft, clippedBottom, clippedRight);
+            if (this.lock.validate(stamp)) return count;
+        }
+        long stamp = this.lock.readLock();
+        try {
+            return countWithin(state.ordinal(), this.levels - 1, 0, 0,
+                    clippedTop, clippedLeft, clippedBottom, clippedRight);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Counts the squares in state within the region and the tile (tr, tc) of level, using the counts
+     * of whole tiles and descending only into the tiles the region's edge cuts through.
+     */
+    private int countWithin(int state, int level, int tr, int tc, int top, int left, int bottom, int right) {
+        int tileTop = tr << level;
+        int tileLeft = tc << level;
+        int tileBottom = Math.min(this.rows, tileTop + (1 << level));
+        int tileRight = Math.min(this.cols, tileLeft + (1 << level));
+        if (tileTop >= bottom || tileBottom <= top || tileLeft >= right || tileRight <= left) return 0;
+        if (level == 0) return this.states[tr * this.cols + tc] == state ? 1 : 0;
+        if (top <= tileTop && tileBottom <= bottom && left <= tileLeft && tileRight <= right) {
+            return this.counts[level][(tr * tileColumns(level) + tc) * STATES + state];
+        }
+        int count = 0;
+        for (int child = 0; child < 4; child++) {
+            int childRow = 2 * tr + child / 2;
+            int childColumn = 2 * tc + child % 2;
+            if (childRow < tileRows(level - 1) && childColumn < tileColumns(level - 1)) {
+                count += countWithin(state, level - 1, childRow, childColumn, top, left, bottom, right);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Renders every tile of a level as one character, in the format of Board.look(): rows of tiles
+     * separated by newlines, tiles within a row by spaces.
+     *
+     * @param level Level to render, 1 <= level < levels()
+     * @return The rendered tiles, of length tileRows(level) * 2 * tileColumns(level) - 1
+     */
+    char[] render(int level) {
+        char[] buffer = new char[tileRows(level) * 2 * tileColumns(level) - 1];
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = this.lock.tryOptimisticRead();
+            if (stamp == 0) continue;
+            renderInto(level, buffer);
+            if (this.lock.validate(stamp)) return buffer;
+        }
+        long stamp = this.lock.readLock();
+        try {
+            renderInto(level, buffer);
+            return buffer;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    private void renderInto(int level, char[] buffer) {
+        int tileColumns = tileColumns(level);
+        int length = 0;
+        for (int tr = 0; tr < tileRows(level); tr++) {
+            if (tr > 0) buffer[length++] = '\n';
+            for (int tc = 0; tc < tileColumns; tc++) {
+                if (tc > 0) buffer[length++] = ' ';
+                int tile = (tr * tileColumns + tc) * STATES;
+                buffer[length++] = symbol(this.counts[level][tile + SquareState.UNTOUCHED.ordinal()],
+                        this.counts[level][tile + SquareState.FLAGGED.ordinal()],
+                        this.counts[level][tile + SquareState.DUG.ordinal()],
+                        this.counts[level][tile + SquareState.EXPLODED.ordinal()]);
+            }
+        }
+    }
+
+    /**
+     * @return The character of a tile with the given counts: '*' if any square exploded, '-' if none is
+     *         dug, or 'F' if none is dug but some are flagged, ' ' if every square is dug, and otherwise
+     *         the tenths of the tile dug, from 1 to 9
+     */
+    private static char symbol(int untouched, int flagged, int dug, int exploded) {
+        if (exploded > 0) return '*';
+        if (dug == 0) return flagged > 0 ? 'F' : '-';
+        if (untouched == 0 && flagged == 0) return ' ';
+        int tenths = dug * 10 / (untouched + flagged + dug);
+        return (char) ('0' + Math.max(1, Math.min(9, tenths)));
+    }
+}
@@ -0,0 +1,38 @@
+package minesweeper;
+
+/**
+ * A mutable buffer Board.look(Writer, RenderBuffer) renders bands of rows into, kept by a caller
+ * that looks at boards repeatedly, such as a client connection, so that each look reuses the
+ * buffer instead of allocating one the size of a band of the board.
+ */
+public class RenderBuffer {
+
+    private char[] chars = new char[0];
+
+    //Abstraction function: A buffer whose space is chars, grown to the largest band rendered into it
+    //
+    //Rep invariant: chars != null
+    //
+    //Rep exposure: chars is handed out only to Board, which fills it and writes it out before returning
+    //
+    //Threadsafe: Not threadsafe; confined to the caller of Board.look(), which must not share it
+    //  between threads looking at the same time
+
+    /**
+     * @param length the number of chars needed
+     * @return the buffer, holding at least length chars, grown if it held fewer
+     */
+    char[] chars(int length) {
+        if (this.chars.length < length) {
+            this.chars = new char[length];
+        }
+        return this.chars;
+    }
+
+    /**
+     * @return the number of chars the buffer holds now
+     */
+    public int capacity() {
+        return this.chars.length;
+    }
+}
@@ -0,0 +1,31 @@
+package minesweeper;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for rendering the board, either to a String or streamed to a Writer.
+ */
+@Name("minesweeper.Render")
+@Label("Render")
+@Category({"Minesweeper", "Board"})
+@Description("The board rendered in the format of look()")
+@StackTrace(false)
+class RenderEvent extends jdk.jfr.Event {
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Columns")
+    int columns;
+
+    @Label("Characters Rendered")
+    long charactersRendered;
+
+    @Label("Streamed")
+    @Description("True if the board was streamed to a Writer rather than built as a String")
+    boolean streamed;
+}
@@ -0,0 +1,470 @@
+package minesweeper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A minesweeper solver working only from what a player can see: which squares are dug, the number
+ * shown on each of them, and which of them exploded. It deduces squares which are certainly safe or certainly bombs by
+ * constraint propagation, and estimates the bomb probability of the remaining frontier squares by
+ * enumerating their consistent bomb layouts.
+ *
+ * The solver is incremental: each update() only reads the squares dug since the previous update
+ * from the board's reveal log, and only re-examines the numbers around them.
+ *
+ * A bomb which explodes is taken off the board, but the numbers dug before it still count it. The
+ * solver reads the reveal log in order, so it knows which numbers those are, and takes the exploded
+ * bomb out of each of them.
+ */
+public class Solver {
+
+    /** Largest connected frontier whose layouts are enumerated exactly. */
+    public static final int MAX_ENUMERATED_FRONTIER = 20;
+    /** Default number of partial layouts one call to probabilities() may visit, over all its frontiers. */
+    public static final int DEFAULT_SEARCH_BUDGET = 1 << 16;
+
+    // Constraint masks are bitboards over the 7x7 window centred on the square being examined,
+    // wide enough to hold the neighbours of any number within two squares of it.
+    private static final int WINDOW = 7;
+    private static final int WINDOW_CENTRE = 3;
+
+    private static final int[][] adjacencies = {{0,1},{0,-1},{1,0},{-1,0},{1,1},{-1,1},{1,-1},{-1,-1}};
+
+    private final PlayerView board;
+    private final int rows;
+    private final int cols;
+    private final double bombProbability;
+    private final int searchBudget;
+    private final BitSet revealed = new BitSet();
+    private final BitSet safe = new BitSet();
+    private final BitSet bombs = new BitSet();
+    private final BitSet queued = new BitSet();
+    private final Map<Integer, Integer> explodedAround = new HashMap<Integer, Integer>();
+    private final Deque<Integer> worklist = new ArrayDeque<Integer>();
+    private int revealLogPosition = 0;
+
+    // Abstraction function:
+    //  Squares are indexed row * cols + col. revealed is the set of dug squares seen so far, which
+    //  are the first revealLogPosition entries of the board's reveal log. safe and bombs are the
+    //  squares deduced to be free of bombs, or to hold one, given those dug squares. worklist holds
+    //  the dug squares whose numbers may yield new deductions. explodedAround maps each dug square to
+    //  the number of its neighbours which exploded after it was dug, bombs its number counts but which
+    //  are gone. Each call to probabilities() visits at most searchBudget partial layouts while enumerating.
+    //
+    // Rep invariant: searchBudget >= 0
+    //                revealed is a subset of safe
+    //                safe and bombs are disjoint
+    //                queued is exactly the set of squares in worklist
+    //                every key of explodedAround is in revealed, and every value > 0
+    //
+    // Rep exposure: All fields are private. Deductions are returned as new Point lists.
+    //
+    // Thread safety: Every public method is synchronized on this solver. The board is only read,
+    //  through its reveal log, which only grows, and dug squares, which never change once dug.
+
+    /**
+     * Creates a solver following the given board.
+     * @param board The visible state of the board to solve
+     * @param bombProbability Prior chance of an undeduced square holding a bomb, 0 < bombProbability < 1
+     */
+    public Solver(PlayerView board, double bombProbability) {
+        this(board, bombProbability, DEFAULT_SEARCH_BUDGET);
+    }
+
+    /**
+     * Creates a solver following the given board, limiting the work of each probabilities() call.
+     * @param board The visible state of the board to solve
+     * @param bombProbability Prior chance of an undeduced square holding a bomb, 0 < bombProbability < 1
+     * @param searchBudget Most partial layouts one call to probabilities() visits while enumerating
+     *                     frontiers, >= 0; frontiers left once it runs out are estimated instead
+     */
+    public Solver(PlayerView board, double bombProbability, int searchBudget) {
+        this.board = board;
+        this.rows = board.getRows();
+        this.cols = board.getColumns();
+        this.bombProbability = bombProbability;
+        this.searchBudget = searchBudget;
+    }
+
+    /**
+     * Creates a solver following the given board, assuming the default bomb density.
+     * @param board The visible state of the board to solve
+     */
+    public Solver(PlayerView board) {
+        this(board, Board.DEFAULT_BOMB_PROBABILITY);
+    }
+
+    private void checkRep() {
+        assert this.searchBudget >= 0;
+        assert !this.safe.intersects(this.bombs);
+        assert this.queued.cardinality() == this.worklist.size();
+        for (Map.Entry<Integer, Integer> stale : this.explodedAround.entrySet()) {
+            assert this.revealed.get(stale.getKey()) && stale.getValue() > 0;
+        }
+    }
+
+    /**
+     * Reads the squares dug since the last update and propagates what can be deduced from them.
+     */
+    public synchronized void update() {
+        int end = this.board.revealedCount();
+        while (this.revealLogPosition < end) {
+            Point position = this.board.revealed(this.revealLogPosition++);
+            int square = index(position.getX(), position.getY());
+            if (this.board.exploded(position.getX(), position.getY())) {
+                //The bomb is gone; the numbers already dug around it still count it
+                this.bombs.clear(square);
+                for (int[] offset : adjacencies) {
+                    int r = position.getX() + offset[0], c = position.getY() + offset[1];
+                    if (inBounds(r, c) && this.revealed.get(index(r, c))) {
+                        this.explodedAround.merge(index(r, c), 1, Integer::sum);
+                    }
+                }
+            } else if (this.bombs.get(square)) {
+                //A square deduced to be a bomb was dug safely, so the board changed under the
+                //deductions: start again
+                clear();
+                end = this.board.revealedCount();
+                continue;
+            }
+            this.revealed.set(square);
+            this.safe.set(square);
+            enqueueAround(square, true);
+        }
+        propagate();
+        checkRep();
+    }
+
+    /**
+     * @return Squares certainly free of bombs which have not been dug yet, in natural order
+     */
+    public synchronized List<Point> safeSquares() {
+        update();
+        BitSet undug = (BitSet) this.safe.clone();
+        undug.andNot(this.revealed);
+        return points(undug);
+    }
+
+    /**
+     * @return Squares certainly holding a bomb, in natural order
+     */
+    public synchronized List<Point> bombSquares() {
+        update();
+        return points(this.bombs);
+    }
+
+    /**
+     * Estimates the chance of holding a bomb for every square next to a dug square, and every square
+     * deduced safe or a bomb, which has not been dug yet. Each connected frontier of at most
+     * MAX_ENUMERATED_FRONTIER squares is solved exactly by enumerating its layouts consistent with
+     * the numbers shown, weighted by the prior bomb probability, as long as the whole call stays
+     * within the search budget. Larger frontiers, and any frontier the budget runs out on, fall back
+     * to the highest local estimate among their numbers.
+     * @return Map from square to its bomb probability, in natural order of squares
+     */
+    public synchronized Map<Point, Double> probabilities() {
+        update();
+        Map<Point, Double> result = new TreeMap<Point, Double>();
+        for (int square = this.safe.nextSetBit(0); square >= 0; square = this.safe.nextSetBit(square + 1)) {
+            if (!this.revealed.get(square)) result.put(point(square), 0.0);
+        }
+        for (int square = this.bombs.nextSetBit(0); square >= 0; square = this.bombs.nextSetBit(square + 1)) {
+            result.put(point(square), 1.0);
+        }
+
+        BitSet assigned = new BitSet();
+        int[] nodesLeft = {this.searchBudget};
+        for (int number = this.revealed.nextSetBit(0); number >= 0; number = this.revealed.nextSetBit(number + 1)) {
+            for (int square : unknownNeighbours(number)) {
+                if (assigned.get(square)) continue;
+                List<Integer> frontier = new ArrayList<Integer>();
+                List<Integer> numbers = new ArrayList<Integer>();
+                collectFrontier(square, assigned, frontier, numbers);
+                double[] probability = frontier.size() <= MAX_ENUMERATED_FRONTIER
+                        ? enumerate(frontier, numbers, nodesLeft) : null;
+                if (probability == null) probability = estimate(frontier, numbers);
+                for (int i = 0; i < frontier.size(); i++) {
+                    result.put(point(frontier.get(i)), probability[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Prior chance of a bomb in any square not listed by probabilities()
+     */
+    public double otherProbability() {
+        return this.bombProbability;
+    }
+
+    /**
+     * Forgets every deduction, so the next update re-reads the whole reveal log.
+     */
+    private void clear() {
+        this.revealed.clear();
+        this.safe.clear();
+        this.bombs.clear();
+        this.queued.clear();
+        this.worklist.clear();
+        this.explodedAround.clear();
+        this.revealLogPosition = 0;
+    }
+
+    /**
+     * Applies the single-number and subset rules to queued numbers until nothing more follows.
+     */
+    private void propagate() {
+        while (!this.worklist.isEmpty()) {
+            int centre = this.worklist.poll();
+            this.queued.clear(centre);
+            long unknown = unknownMask(centre, centre);
+            if (unknown == 0) continue;
+            int remaining = remainingBombs(centre);
+            if (remaining == 0) {
+                mark(centre, unknown, false);
+                continue;
+            } else if (remaining == Long.bitCount(unknown)) {
+                mark(centre, unknown, true);
+                continue;
+            }
+            //Subset rule: a nearby number whose unknown squares all lie within ours accounts for
+            //some of our bombs, and the squares it does not cover hold the rest
+            int row = centre / this.cols;
+            int col = centre % this.cols;
+            for (int dr = -2; dr <= 2; dr++) {
+                for (int dc = -2; dc <= 2; dc++) {
+                    int r = row + dr, c = col + dc;
+                    if ((dr == 0 && dc == 0) || !inBounds(r, c) || !this.revealed.get(index(r, c))) continue;
+                    int other = index(r, c);
+                    long otherUnknown = unknownMask(other, centre);
+                    if (otherUnknown == 0 || (otherUnknown & ~unknown) != 0) continue;
+                    long difference = unknown & ~otherUnknown;
+                    int differenceBombs = remaining - remainingBombs(other);
+                    if (difference == 0) continue;
+                    if (differenceBombs == 0) {
+                        mark(centre, difference, false);
+                    } else if (differenceBombs == Long.bitCount(difference)) {
+                        mark(centre, difference, true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records every square of a window mask as safe or a bomb, and queues the numbers around them.
+     */
+    private void mark(int centre, long mask, boolean bomb) {
+        int row = centre / this.cols;
+        int col = centre % this.cols;
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            int bit = Long.numberOfTrailingZeros(bits);
+            int square = index(row + bit / WINDOW - WINDOW_CENTRE, col + bit % WINDOW - WINDOW_CENTRE);
+            if (this.safe.get(square) || this.bombs.get(square)) continue;
+            (bomb ? this.bombs : this.safe).set(square);
+            enqueueAround(square, false);
+        }
+    }
+
+    /**
+     * Queues the dug squares around square, and square itself if includeSelf.
+     */
+    private void enqueueAround(int square, boolean includeSelf) {
+        if (includeSelf) enqueue(square);
+        int row = square / this.cols;
+        int col = square % this.cols;
+        for (int[] offset : adjacencies) {
+            int r = row + offset[0], c = col + offset[1];
+            if (inBounds(r, c) && this.revealed.get(index(r, c))) enqueue(index(r, c));
+        }
+    }
+
+    private void enqueue(int square) {
+        if (!this.queued.get(square)) {
+            this.queued.set(square);
+            this.worklist.add(square);
+        }
+    }
+
+    /**
+     * @return The undeduced, undug neighbours of a dug square, as a bitboard over the window
+     *         centred on centre
+     */
+    private long unknownMask(int number, int centre) {
+        int row = number / this.cols;
+        int col = number % this.cols;
+        int dr = row - centre / this.cols;
+        int dc = col - centre % this.cols;
+        long mask = 0;
+        for (int[] offset : adjacencies) {
+            int r = row + offset[0], c = col + offset[1];
+            if (!inBounds(r, c)) continue;
+            int square = index(r, c);
+            if (this.safe.get(square) || this.bombs.get(square)) continue;
+            mask |= 1L << ((dr + offset[0] + WINDOW_CENTRE) * WINDOW + (dc + offset[1] + WINDOW_CENTRE));
+        }
+        return mask;
+    }
+
+    /**
+     * @return The undeduced, undug neighbours of a dug square
+     */
+    private List<Integer> unknownNeighbours(int number) {
+        List<Integer> unknown = new ArrayList<Integer>();
+        int row = number / this.cols;
+        int col = number % this.cols;
+        for (int[] offset : adjacencies) {
+            int r = row + offset[0], c = col + offset[1];
+            if (!inBounds(r, c)) continue;
+            int square = index(r, c);
+            if (!this.safe.get(square) && !this.bombs.get(square)) unknown.add(square);
+        }
+        return unknown;
+    }
+
+    /**
+     * @return The number shown on a dug square, less the bombs around it which have since exploded and
+     *         the deduced bombs around it
+     */
+    private int remainingBombs(int number) {
+        int row = number / this.cols;
+        int col = number % this.cols;
+        int remaining = this.board.dugCount(row, col) - this.explodedAround.getOrDefault(number, 0);
+        for (int[] offset : adjacencies) {
+            int r = row + offset[0], c = col + offset[1];
+            if (inBounds(r, c) && this.bombs.get(index(r, c))) remaining--;
+        }
+        return remaining;
+    }
+
+    /**
+     * Collects the connected frontier containing start: undeduced squares linked by sharing a number.
+     */
+    private void collectFrontier(int start, BitSet assigned, List<Integer> frontier, List<Integer> numbers) {
+        BitSet seenNumbers = new BitSet();
+        Deque<Integer> pending = new ArrayDeque<Integer>();
+        assigned.set(start);
+        pending.add(start);
+        while (!pending.isEmpty()) {
+            int square = pending.poll();
+            frontier.add(square);
+            int row = square / this.cols;
+            int col = square % this.cols;
+            for (int[] offset : adjacencies) {
+                int r = row + offset[0], c = col + offset[1];
+                if (!inBounds(r, c) || !this.revealed.get(index(r, c)) || seenNumbers.get(index(r, c))) continue;
+                int number = index(r, c);
+                seenNumbers.set(number);
+                numbers.add(number);
+                for (int neighbour : unknownNeighbours(number)) {
+                    if (!assigned.get(neighbour)) {
+                        assigned.set(neighbour);
+                        pending.add(neighbour);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Exact bomb probabilities for a frontier, by backtracking over its layouts.
+     * @param nodesLeft Partial layouts which may still be visited, reduced by those this search visits
+     * @return The probabilities, or null if the search ran out of nodes
+     */
+    private double[] enumerate(List<Integer> frontier, List<Integer> numbers, int[] nodesLeft) {
+        int[][] covers = new int[numbers.size()][];
+        int[] needed = new int[numbers.size()];
+        for (int n = 0; n < numbers.size(); n++) {
+            List<Integer> unknown = unknownNeighbours(numbers.get(n));
+            covers[n] = new int[unknown.size()];
+            for (int i = 0; i < unknown.size(); i++) covers[n][i] = frontier.indexOf(unknown.get(i));
+            needed[n] = remainingBombs(numbers.get(n));
+        }
+        double odds = this.bombProbability / (1 - this.bombProbability);
+        double[] bombWeight = new double[frontier.size()];
+        double[] total = new double[1];
+        if (!search(0, new int[frontier.size()], covers, needed, odds, bombWeight, total, nodesLeft)) return null;
+
+        double[] probability = new double[frontier.size()];
+        for (int i = 0; i < probability.length; i++) {
+            probability[i] = total[0] == 0 ? this.bombProbability : bombWeight[i] / total[0];
+        }
+        return probability;
+    }
+
+    /**
+     * @return false if the search ran out of nodes before visiting every layout
+     */
+    private boolean search(int next, int[] layout, int[][] covers, int[] needed, double odds,
+            double[] bombWeight, double[] total, int[] nodesLeft) {
+        if (nodesLeft[0]-- <= 0) return false;
+        for (int n = 0; n < covers.length; n++) {
+            int placed = 0, open = 0;
+            for (int square : covers[n]) {
+                if (square >= next) open++;
+                else placed += layout[square];
+            }
+            if (placed > needed[n] || placed + open < needed[n]) return true;
+        }
+        if (next == layout.length) {
+            int count = 0;
+            for (int bomb : layout) count += bomb;
+            double weight = Math.pow(odds, count);
+            total[0] += weight;
+            for (int i = 0; i < layout.length; i++) bombWeight[i] += layout[i] * weight;
+            return true;
+        }
+        for (int bomb = 0; bomb <= 1; bomb++) {
+            layout[next] = bomb;
+            if (!search(next + 1, layout, covers, needed, odds, bombWeight, total, nodesLeft)) return false;
+        }
+        layout[next] = 0;
+        return true;
+    }
+
+    /**
+     * Approximate bomb probabilities for a frontier too large to enumerate: each square takes the
+     * highest ratio of remaining bombs to unknown squares among the numbers around it.
+     */
+    private double[] estimate(List<Integer> frontier, List<Integer> numbers) {
+        Map<Integer, Integer> position = new HashMap<Integer, Integer>();
+        for (int i = 0; i < frontier.size(); i++) position.put(frontier.get(i), i);
+        double[] probability = new double[frontier.size()];
+        for (int number : numbers) {
+            List<Integer> unknown = unknownNeighbours(number);
+            double ratio = (double) remainingBombs(number) / unknown.size();
+            for (int square : unknown) {
+                int i = position.get(square);
+                probability[i] = Math.max(probability[i], ratio);
+            }
+        }
+        return probability;
+    }
+
+    private List<Point> points(BitSet squares) {
+        List<Point> result = new ArrayList<Point>();
+        for (int square = squares.nextSetBit(0); square >= 0; square = squares.nextSetBit(square + 1)) {
+            result.add(point(square));
+        }
+        return result;
+    }
+
+    private boolean inBounds(int row, int col) {
+        return row >= 0 && row < this.rows && col >= 0 && col < this.cols;
+    }
+
+    private int index(int row, int col) {
+        return row * this.cols + col;
+    }
+
+    private Point point(int square) {
+        return new Point(square / this.cols, square % this.cols);
+    }
+}
@@ -0,0 +1,15 @@
+package minesweeper;
+
+/**
+ * What a player can see of a square, as counted by Board.count().
+ */
+public enum SquareState {
+    /** Neither dug nor flagged. */
+    UNTOUCHED,
+    /** Flagged, and not dug. */
+    FLAGGED,
+    /** Dug, and held no bomb. */
+    DUG,
+    /** Dug while it held a bomb. */
+    EXPLODED
+}
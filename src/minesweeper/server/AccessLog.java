@@ -0,0 +1,362 @@
+package minesweeper.server;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of every command a server runs, and every connection it serves, one line per record:
+ * <pre>
+ *   2026-10-19T09:14:03.512Z client=#7@/127.0.0.1:50412 verb=dig row=3 col=4 micros=85 bytes=220
+ * </pre>
+ * row and col are left out of commands without a position. For a connection's "disconnect" record,
+ * micros is how long it lasted and bytes how many it was sent in all.
+ *
+ * Connection threads only copy their record into a preallocated slot of a ring buffer, which takes
+ * neither a lock nor any allocation; a writer thread of the log's own formats the records and writes
+ * them to the file in batches, sleeping while there are none until a connection thread wakes it. When
+ * the ring is full, records are dropped and counted rather than making a connection thread wait. The
+ * file is rotated once it reaches a size limit, keeping a number of older files, file.1 the most recent.
+ *
+ * If the file cannot be written, the records not yet flushed to it are dropped and counted, and the
+ * writer reopens the file every RETRY_NANOS; records made meanwhile wait in the ring.
+ */
+public class AccessLog implements Closeable {
+
+    /** A log which records nothing. */
+    public static final AccessLog DISABLED = new AccessLog();
+    /** Row and column of a record without a position. */
+    public static final int NO_POSITION = Integer.MIN_VALUE;
+
+    /** Nanoseconds the writer waits before reopening a file it failed to write, 1s. */
+    private static final long RETRY_NANOS = 1_000_000_000;
+    /** Characters buffered by the writer before they go to the file. */
+    private static final int BATCH_CHARS = 64 << 10;
+
+    private final int capacity;
+    private final String[] clients;
+    private final String[] verbs;
+    private final int[] rows;
+    private final int[] columns;
+    private final long[] times;
+    private final long[] latencies;
+    private final long[] replyBytes;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long written = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final ServerMetrics metrics;
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int keepFiles;
+    private final Thread writer;
+    private volatile boolean closing = false;
+    private volatile boolean writerParked = false;
+    private volatile IOException failure = null;
+
+    // Abstraction function: Records number written to claimed - 1, in order. Record s is held in slot
+    //  s % capacity of clients, verbs, rows, columns, times (epoch milliseconds), latencies (nanoseconds)
+    //  and replyBytes, and is complete once published[s % capacity] == s + 1. Records before written
+    //  have been handed to the file, the current one of the rotation of file, which is limited to
+    //  maxFileBytes, with keepFiles older ones. dropped counts the records not logged, for want of room
+    //  or because the file could not be written, as does metrics. failure is the error the file last
+    //  failed with, or null if it has been written since. A log without a writer, DISABLED, records nothing.
+    //
+    // Rep invariant: capacity is a power of two, or 0 with writer null
+    //                written <= claimed <= written + capacity
+    //
+    // Rep exposure: All fields are private; the arrays never escape.
+    //
+    // Thread safety: Any number of threads record at once. Each claims a sequence number by CAS on
+    //  claimed, which fails rather than overtaking written by a whole ring, fills in the slot it owns,
+    //  then publishes it with a volatile write to published, which the writer thread reads before the
+    //  slot's fields. Only the writer reads slots and advances written, releasing them for reuse. The
+    //  writer sets writerParked before checking for a record one last time and parking, and a producer
+    //  checks it after publishing; both are volatile, so either the writer sees the record or the
+    //  producer sees writerParked and unparks it. The file is only touched by the writer thread, until
+    //  close() has joined it.
+
+    /**
+     * Makes DISABLED.
+     */
+    private AccessLog() {
+        this.capacity = 0;
+        this.clients = null;
+        this.verbs = null;
+        this.rows = null;
+        this.columns = null;
+        this.times = null;
+        this.latencies = null;
+        this.replyBytes = null;
+        this.published = null;
+        this.metrics = null;
+        this.file = null;
+        this.maxFileBytes = 0;
+        this.keepFiles = 0;
+        this.writer = null;
+    }
+
+    /**
+     * Opens a log appending to file, and starts its writer thread.
+     *
+     * @param file the log file, created if it does not exist
+     * @param capacity records the ring holds, a power of two; records beyond it are dropped while the
+     *                 writer catches up
+     * @param maxFileBytes size at which the file is rotated, > 0
+     * @param keepFiles rotated files kept, >= 0
+     * @throws IOException if the file cannot be opened
+     */
+    public AccessLog(Path file, int capacity, long maxFileBytes, int keepFiles) throws IOException {
+        this(file, capacity, maxFileBytes, keepFiles, new ServerMetrics());
+    }
+
+    /**
+     * Opens a log as AccessLog(file, capacity, maxFileBytes, keepFiles) does, counting the records it
+     * drops in a server's metrics too.
+     *
+     * @param file the log file, created if it does not exist
+     * @param capacity records the ring holds, a power of two
+     * @param maxFileBytes size at which the file is rotated, > 0
+     * @param keepFiles rotated files kept, >= 0
+     * @param metrics counts the records dropped
+     * @throws IOException if the file cannot be opened
+     */
+    public AccessLog(Path file, int capacity, long maxFileBytes, int keepFiles, ServerMetrics metrics)
+            throws IOException {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.clients = new String[capacity];
+        this.verbs = new String[capacity];
+        this.rows = new int[capacity];
+        this.columns = new int[capacity];
+        this.times = new long[capacity];
+        this.latencies = new long[capacity];
+        this.replyBytes = new long[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.metrics = metrics;
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.keepFiles = keepFiles;
+        Writer out = open();
+        this.writer = new Thread(() -> drain(out), "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert (this.writer == null && this.capacity == 0) || Integer.bitCount(this.capacity) == 1;
+        assert this.written <= this.claimed.get();
+    }
+
+    /**
+     * Records a command or connection event. Never blocks, and allocates nothing.
+     *
+     * @param client name of the client
+     * @param verb the command's verb, or "connect" or "disconnect"
+     * @param row the command's row, or NO_POSITION
+     * @param column the command's column, or NO_POSITION
+     * @param latencyNanos nanoseconds from receiving the command to queueing its reply
+     * @param bytes bytes of the reply
+     */
+    public void record(String client, String verb, int row, int column, long latencyNanos, long bytes) {
+        if (writer == null) return;
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written >= capacity) {
+                drop(1);
+                return;
+            }
+        } while ( ! claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & (capacity - 1);
+        clients[slot] = client;
+        verbs[slot] = verb;
+        rows[slot] = row;
+        columns[slot] = column;
+        times[slot] = System.currentTimeMillis();
+        latencies[slot] = latencyNanos;
+        replyBytes[slot] = bytes;
+        published.set(slot, sequence + 1);
+        if (writerParked) LockSupport.unpark(writer);
+    }
+
+    /**
+     * @return number of records dropped because the ring was full or the file could not be written
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return true if the file could not be written when the writer last tried
+     */
+    boolean failing() {
+        return failure != null;
+    }
+
+    /**
+     * Writes every record made so far to the file, then stops the writer thread and closes the file.
+     *
+     * @throws IOException if the file could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer == null) return;
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Body of the writer thread: formats records as they are published, writing them out whenever it
+     * runs out of records and then parking until more are published, until the log is closed and every
+     * record is written. While the file cannot be written, retries it every RETRY_NANOS, and once more
+     * when the log is closed.
+     */
+    private void drain(Writer initial) {
+        Writer out = initial;
+        StringBuilder line = new StringBuilder(256);
+        long fileBytes = fileSize();
+        long retryAt = 0;
+        while (true) {
+            if (out == null && (closing || System.nanoTime() - retryAt >= 0)) {
+                try {
+                    out = open();
+                    fileBytes = fileSize();
+                    failure = null;
+                    System.err.println("Access log reopened: " + file);
+                } catch (IOException ioe) {
+                    failure = ioe;
+                    retryAt = System.nanoTime() + RETRY_NANOS;
+                }
+            }
+            if (out != null) {
+                //Records handed to out since it was last flushed, which are lost if it fails
+                long unflushed = 0;
+                try {
+                    long next = written;
+                    while (published.get((int) next & (capacity - 1)) == next + 1) {
+                        int slot = (int) next & (capacity - 1);
+                        line.setLength(0);
+                        line.append(Instant.ofEpochMilli(times[slot])).append(" client=").append(clients[slot])
+                                .append(" verb=").append(verbs[slot]);
+                        if (rows[slot] != NO_POSITION) line.append(" row=").append(rows[slot]).append(" col=").append(columns[slot]);
+                        line.append(" micros=").append(latencies[slot] / 1000).append(" bytes=").append(replyBytes[slot]).append('\n');
+                        clients[slot] = null;
+                        verbs[slot] = null;
+                        //Releases the slot to producers
+                        written = ++next;
+                        unflushed++;
+                        out.append(line);
+                        fileBytes += line.length();
+                        if (fileBytes >= maxFileBytes) {
+                            out.close();
+                            unflushed = 0;
+                            fileBytes = 0;
+                            rotate();
+                            out = open();
+                        }
+                    }
+                    out.flush();
+                } catch (IOException ioe) {
+                    drop(unflushed);
+                    closeQuietly(out);
+                    out = null;
+                    failure = ioe;
+                    retryAt = System.nanoTime() + RETRY_NANOS;
+                    System.err.println("Access log failed, retrying every second: " + ioe.getMessage());
+                    continue;
+                }
+            }
+            if (closing && (out == null || claimed.get() == written)) break;
+            if (out == null) {
+                //Records wait in the ring until the file is reopened, or close() wakes the writer
+                LockSupport.parkNanos(this, retryAt - System.nanoTime());
+            } else {
+                writerParked = true;
+                if ( ! closing && published.get((int) written & (capacity - 1)) != written + 1) {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+            }
+        }
+        if (out == null) {
+            //The file could not be reopened, so the records left are lost
+            drop(claimed.get() - written);
+        } else {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        }
+    }
+
+    /**
+     * Counts records dropped.
+     */
+    private void drop(long records) {
+        dropped.addAndGet(records);
+        metrics.droppedLogRecords(records);
+    }
+
+    private static void closeQuietly(Writer out) {
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            //The records it held are already counted as dropped
+        }
+    }
+
+    private Writer open() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND, StandardOpenOption.WRITE), StandardCharsets.UTF_8), BATCH_CHARS);
+    }
+
+    private long fileSize() {
+        try {
+            return Files.size(file);
+        } catch (IOException ioe) {
+            return 0;
+        }
+    }
+
+    /**
+     * Shifts file.1 .. file.(keepFiles-1) up by one, dropping the oldest, and moves file to file.1.
+     */
+    private void rotate() throws IOException {
+        if (keepFiles == 0) {
+            Files.delete(file);
+            return;
+        }
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            Path older = rotated(i);
+            if (Files.exists(older)) Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rotated(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+}
@@ -0,0 +1,270 @@
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A client for the binary protocol of MinesweeperServer. Requests may be pipelined: send() buffers
+ * a request and returns its id, flush() sends every buffered request, and receive() returns the
+ * replies in the order the requests were sent.
+ */
+public class BinaryClient implements Closeable {
+
+    /** Largest reply frame accepted, enough for a board of 2^24 squares. */
+    private static final int MAX_REPLY_FRAME = (1 << 23) + 16;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    private int nextRequestId = 0;
+
+    // Abstraction function: A connection to a server over socket, which has completed the handshake.
+    //  Requests are written to out, replies read from in, and the next request sent gets id nextRequestId.
+    //
+    // Rep invariant: nextRequestId >= 0
+    //
+    // Thread safety: Not threadsafe; each client should be used by one thread.
+
+    /**
+     * Connects to a server and switches the connection to the binary protocol.
+     *
+     * @param host server host name
+     * @param port server port
+     * @throws IOException if the connection fails or the server does not accept the binary protocol
+     */
+    public BinaryClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        readLine();
+        out.write((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        String acknowledgement = readLine();
+        if (!acknowledgement.equals(BinaryProtocol.HANDSHAKE_REPLY)) {
+            socket.close();
+            throw new IOException("Server refused the binary protocol: " + acknowledgement);
+        }
+    }
+
+    /**
+     * Reads a text line, before any frames arrive.
+     *
+     * @return the line, without its line terminator
+     * @throws IOException if the connection fails or ends
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException("Server closed the connection");
+            if (b != '\r') line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buffers a request without arguments.
+     *
+     * @param opcode BinaryProtocol.LOOK, STATUS or BYE
+     * @return id of the request
+     * @throws IOException if the connection fails
+     */
+    public int send(int opcode) throws IOException {
+        request.reset();
+        int id = nextRequestId++;
+        BinaryProtocol.writeVarint(request, id);
+        request.write(opcode);
+        BinaryProtocol.writeFrame(out, request.toByteArray(), request.size());
+        return id;
+    }
+
+    /**
+     * Buffers a request on a square.
+     *
+     * @param opcode BinaryProtocol.DIG, FLAG, DEFLAG or CHORD
+     * @param row row of the square
+     * @param col column of the square
+     * @return id of the request
+     * @throws IOException if the connection fails
+     */
+    public int send(int opcode, int row, int col) throws IOException {
+        request.reset();
+        int id = nextRequestId++;
+        BinaryProtocol.writeVarint(request, id);
+        request.write(opcode);
+        BinaryProtocol.writeVarint(request, BinaryProtocol.zigzag(row));
+        BinaryProtocol.writeVarint(request, BinaryProtocol.zigzag(col));
+        BinaryProtocol.writeFrame(out, request.toByteArray(), request.size());
+        return id;
+    }
+
+    /**
+     * Sends every buffered request.
+     *
+     * @throws IOException if the connection fails
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Waits for the next reply.
+     *
+     * @return the reply
+     * @throws IOException if the connection fails or ends, or the reply is malformed
+     */
+    public Reply receive() throws IOException {
+        byte[] frame = BinaryProtocol.readFrame(in, MAX_REPLY_FRAME);
+        if (frame == null) throw new EOFException("Server closed the connection");
+        return new Reply(new ByteArrayInputStream(frame));
+    }
+
+    /**
+     * Sends a request on a square and waits for its reply.
+     *
+     * @param opcode BinaryProtocol.DIG, FLAG, DEFLAG or CHORD
+     * @param row row of the square
+     * @param col column of the square
+     * @return the reply
+     * @throws IOException if the connection fails
+     */
+    public Reply call(int opcode, int row, int col) throws IOException {
+        send(opcode, row, col);
+        flush();
+        return receive();
+    }
+
+    /**
+     * Sends a request without arguments and waits for its reply.
+     *
+     * @param opcode BinaryProtocol.LOOK, STATUS or BYE
+     * @return the reply
+     * @throws IOException if the connection fails
+     */
+    public Reply call(int opcode) throws IOException {
+        send(opcode);
+        flush();
+        return receive();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * An immutable reply from the server.
+     */
+    public static class Reply {
+
+        private final int requestId;
+        private final int code;
+        private final int rows;
+        private final int cols;
+        private final byte[] squares;
+        private final int[] status;
+
+        // Abstraction function: The reply with the given code to request requestId. If it carries a
+        //  board, the board has rows x cols squares packed two to a byte in squares; if it carries the
+        //  status, status holds safe squares left, flags placed and bombs detonated.
+        //
+        // Rep exposure: squares and status are never handed out.
+        //
+        // Thread safety: Immutable: all fields are final and the arrays are never changed after construction.
+
+        Reply(InputStream payload) throws IOException {
+            this.requestId = BinaryProtocol.readVarint(payload);
+            this.code = payload.read();
+            if (code == BinaryProtocol.REPLY_BOARD || code == BinaryProtocol.REPLY_WON
+                    || code == BinaryProtocol.REPLY_UPDATE) {
+                this.rows = BinaryProtocol.readVarint(payload);
+                this.cols = BinaryProtocol.readVarint(payload);
+                this.squares = new byte[(int) (((long) rows * cols + 1) / 2)];
+                if (payload.read(squares, 0, squares.length) < squares.length) {
+                    throw new EOFException("Board reply is truncated");
+                }
+            } else {
+                this.rows = 0;
+                this.cols = 0;
+                this.squares = new byte[0];
+            }
+            this.status = new int[3];
+            if (code == BinaryProtocol.REPLY_STATUS) {
+                for (int i = 0; i < status.length; i++) {
+                    status[i] = BinaryProtocol.readVarint(payload);
+                }
+            }
+        }
+
+        /**
+         * @return id of the request this reply answers
+         */
+        public int requestId() {
+            return requestId;
+        }
+
+        /**
+         * @return one of the BinaryProtocol.REPLY_ codes
+         */
+        public int code() {
+            return code;
+        }
+
+        /**
+         * @return number of rows of the board carried, or 0 if none
+         */
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * @return number of columns of the board carried, or 0 if none
+         */
+        public int getColumns() {
+            return cols;
+        }
+
+        /**
+         * @param row row of a square, 0 <= row < getRows()
+         * @param col column of a square, 0 <= col < getColumns()
+         * @return the square's adjacent bomb count if dug, else BinaryProtocol.UNTOUCHED or FLAGGED
+         */
+        public int square(int row, int col) {
+            int index = row * cols + col;
+            int packed = squares[index / 2] & 0xFF;
+            return index % 2 == 0 ? packed >>> 4 : packed & 0x0F;
+        }
+
+        /**
+         * @return safe squares left, if this is a status reply
+         */
+        public int safeSquaresLeft() {
+            return status[0];
+        }
+
+        /**
+         * @return flags placed, if this is a status reply
+         */
+        public int flagsPlaced() {
+            return status[1];
+        }
+
+        /**
+         * @return bombs detonated, if this is a status reply
+         */
+        public int bombsDetonated() {
+            return status[2];
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package minesweeper.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import minesweeper.Board;
+import minesweeper.RenderBuffer;
+
+/**
+ * Wire format of the binary protocol, which a client selects by sending 'protocol binary' and
+ * waiting for the "Protocol: binary." acknowledgement. From then on both directions carry frames
+ * instead of lines, for the rest of the connection.
+ *
+ * A frame is its payload length as a varint, followed by the payload. Varints are unsigned LEB128:
+ * seven bits per byte, least significant group first, with the high bit set on every byte but the
+ * last. Coordinates may be negative, so they are zigzag encoded before being written as varints.
+ *
+ * Request payload: request id (varint), opcode (one byte), then row and column (zigzag varints)
+ * for DIG, FLAG, DEFLAG and CHORD.
+ *
+ * Reply payload: id of the request answered (varint), reply code (one byte), then
+ *   for BOARD, WON and UPDATE, the board: rows and columns (varints) and every square at 4 bits, row by row,
+ *     two squares to a byte with the first in the high nibble, padded with a zero nibble;
+ *   for STATUS, safe squares left, flags placed and bombs detonated (varints).
+ *
+ * Replies are sent in the order requests arrive, so a client may pipeline several requests and
+ * match the replies by id. A request which is truncated, or whose frame is too long, is answered with
+ * ERROR, with request id 0 if its id could not be read. The server goes on to the next frame, unless
+ * the stream ended within the frame or its length could not be read, in which case it disconnects.
+ */
+public final class BinaryProtocol {
+
+    /** Command sent on the text protocol to switch the connection to this one. */
+    public static final String HANDSHAKE = "protocol binary";
+    /** Text reply acknowledging the handshake; the first frame follows it. */
+    public static final String HANDSHAKE_REPLY = "Protocol: binary.";
+
+    /** Request the board. */
+    public static final int LOOK = 1;
+    /** Dig a square, replying BOARD, WON or BOOM. */
+    public static final int DIG = 2;
+    /** Flag a square, replying BOARD. */
+    public static final int FLAG = 3;
+    /** Remove a flag, replying BOARD. */
+    public static final int DEFLAG = 4;
+    /** Dig around a satisfied number, replying BOARD, WON or BOOM. */
+    public static final int CHORD = 5;
+    /** Request the game status, replying STATUS. */
+    public static final int STATUS = 6;
+    /** End the connection, replying BYE. */
+    public static final int BYE = 7;
+
+    /** Reply carrying the board. */
+    public static final int REPLY_BOARD = 1;
+    /** Reply to a dig which hit a bomb; the server disconnects unless in debug mode. */
+    public static final int REPLY_BOOM = 2;
+    /** Reply carrying the board after a dig which cleared the last safe square. */
+    public static final int REPLY_WON = 3;
+    /** Reply carrying the game status. */
+    public static final int REPLY_STATUS = 4;
+    /** Reply to BYE; the server disconnects after sending it. */
+    public static final int REPLY_BYE = 5;
+    /** Reply to any request but BYE while the board is still loading. */
+    public static final int REPLY_LOADING = 6;
+    /** Reply to an unknown opcode, or a malformed or truncated request or frame. */
+    public static final int REPLY_ERROR = 7;
+    /** Reply to a request refused, without being run, because the client is sending too many. */
+    public static final int REPLY_THROTTLED = 8;
+    /** Board sent unasked, with request id 0, after another client changed it; WebSocket clients only. */
+    public static final int REPLY_UPDATE = 9;
+
+    /** Square value of an untouched square; dug squares are their adjacent bomb count, 0 to 8. */
+    public static final int UNTOUCHED = 9;
+    /** Square value of a flagged square. */
+    public static final int FLAGGED = 10;
+
+    /** Largest frame accepted, which bounds the memory one malformed length can claim. */
+    static final int MAX_REQUEST_FRAME = 64;
+
+    private BinaryProtocol() {
+        // not instantiable
+    }
+
+    /**
+     * @param opcode a request opcode
+     * @return the name of the equivalent text command, or "unknown"
+     */
+    static String verb(int opcode) {
+        switch (opcode) {
+        case LOOK: return "look";
+        case DIG: return "dig";
+        case FLAG: return "flag";
+        case DEFLAG: return "deflag";
+        case CHORD: return "chord";
+        case STATUS: return "status";
+        case BYE: return "bye";
+        default: return "unknown";
+        }
+    }
+
+    /**
+     * Writes a non-negative value as an unsigned varint.
+     *
+     * @param out destination
+     * @param value value to write, >= 0
+     * @throws IOException if out fails
+     */
+    public static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @param in source
+     * @return the value read
+     * @throws IOException if in fails, ends within the varint, or the varint is longer than an int
+     */
+    public static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("End of stream within a varint");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint longer than 32 bits");
+    }
+
+    /**
+     * @param value any int
+     * @return value mapped to a non-negative int, small magnitudes to small results
+     */
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * @param value result of zigzag()
+     * @return the int originally zigzag encoded
+     */
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes a frame holding payload[0 .. length-1].
+     *
+     * @param out destination
+     * @param payload frame contents
+     * @param length number of bytes of payload to send
+     * @throws IOException if out fails
+     */
+    public static void writeFrame(OutputStream out, byte[] payload, int length) throws IOException {
+        writeVarint(out, length);
+        out.write(payload, 0, length);
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @param in source
+     * @param maxLength largest payload accepted
+     * @return the payload, or null if in ended cleanly before the frame
+     * @throws MalformedFrameException if in ends within the frame, its length cannot be read, or it is
+     *                                 longer than maxLength, in which case its payload is skipped
+     * @throws IOException if in fails
+     */
+    public static byte[] readFrame(InputStream in, int maxLength) throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        int length = first & 0x7F;
+        if ((first & 0x80) != 0) {
+            try {
+                length |= readVarint(in) << 7;
+            } catch (IOException ioe) {
+                throw new MalformedFrameException(false, "Frame length unreadable: " + ioe.getMessage());
+            }
+        }
+        if (length < 0) throw new MalformedFrameException(false, "Frame length out of range");
+        if (length > maxLength) {
+            //Skipped rather than buffered, so one malformed length claims no memory
+            for (long left = length; left > 0; left--) {
+                if (in.read() < 0) throw new MalformedFrameException(false, "End of stream within a frame");
+            }
+            throw new MalformedFrameException(true, "Frame of " + length + " bytes is too long");
+        }
+        byte[] payload = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = in.read(payload, read, length - read);
+            if (n < 0) throw new MalformedFrameException(false, "End of stream within a frame");
+            read += n;
+        }
+        return payload;
+    }
+
+    /**
+     * Writes the board's dimensions and squares at 4 bits per square.
+     *
+     * @param board board to write
+     * @param out destination
+     * @param buffer buffer to render the board into, reused from one board to the next
+     * @throws IOException if out fails
+     */
+    static void writeBoard(Board board, OutputStream out, RenderBuffer buffer) throws IOException {
+        writeVarint(out, board.getRows());
+        writeVarint(out, board.getColumns());
+        SquarePacker packer = new SquarePacker(out);
+        board.look(packer, buffer);
+        packer.finish();
+    }
+
+    /**
+     * @param square a square's character in Board.look()
+     * @return the square's 4 bit value
+     */
+    static int squareValue(char square) {
+        switch (square) {
+        case '-': return UNTOUCHED;
+        case 'F': return FLAGGED;
+        case ' ': return 0;
+        default: return square - '0';
+        }
+    }
+
+    /**
+     * A frame which cannot be read as one, which the server answers with REPLY_ERROR.
+     */
+    public static class MalformedFrameException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final boolean atNextFrame;
+
+        MalformedFrameException(boolean atNextFrame, String message) {
+            super(message);
+            this.atNextFrame = atNextFrame;
+        }
+
+        /**
+         * @return true if the frame was skipped whole, so the stream is positioned at the next frame
+         */
+        public boolean atNextFrame() {
+            return atNextFrame;
+        }
+    }
+
+    /**
+     * A writer taking a board in the format of Board.look(), and writing its squares two to a byte.
+     */
+    private static class SquarePacker extends Writer {
+
+        private final OutputStream out;
+        private int position = 0;
+        private int pending = -1;
+
+        // Abstraction function: position is the index of the next character within the current row;
+        //  even positions hold squares and odd positions the spaces between them. pending is the value
+        //  of a square waiting for its partner in the low nibble, or -1 if none.
+        //
+        // Thread safety: Not threadsafe; confined to the connection thread sending the board.
+
+        SquarePacker(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                char c = buffer[i];
+                if (c == '\n') {
+                    position = 0;
+                } else if (position++ % 2 == 0) {
+                    int value = squareValue(c);
+                    if (pending < 0) {
+                        pending = value;
+                    } else {
+                        out.write(pending << 4 | value);
+                        pending = -1;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes the last square, if it has no partner.
+         */
+        void finish() throws IOException {
+            if (pending >= 0) out.write(pending << 4);
+            pending = -1;
+        }
+
+        @Override
+        public void flush() {
+            // squares are written to out as they are packed; the caller flushes out
+        }
+
+        @Override
+        public void close() {
+            // out belongs to the caller
+        }
+    }
+}
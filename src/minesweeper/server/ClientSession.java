@@ -0,0 +1,236 @@
+package minesweeper.server;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import minesweeper.RenderBuffer;
+
+/**
+ * The state of one client connection: the stream replies are written to, and the wire encoding the
+ * client has chosen for board replies.
+ */
+class ClientSession implements Closeable {
+    
+    private final String name;
+    private final AccessLog accessLog;
+    private final long openedNanos;
+    private final OutputQueue socketOut;
+    private final CommandLimiter limiter;
+    private final RenderBuffer renderBuffer = new RenderBuffer();
+    private OutputStream stream;
+    private Writer writer;
+    private PrintWriter out;
+    private boolean runLength = false;
+    private boolean deflate = false;
+    private boolean binary = false;
+    private boolean routed = false;
+    private String game = null;
+    
+    // Abstraction function: A connection of the client called name in the access log, whose replies are written to out, which writes
+    //  through writer, without buffering of its own, to stream.
+    //  stream is the connection's output queue socketOut itself or, once deflate is set, a DEFLATE stream over it kept for the rest
+    //  of the connection. Board replies are run-length encoded iff runLength. Once binary is set, the
+    //  client has switched to the binary protocol and replies are frames written straight to stream.
+    //  limiter holds the client's command rate budgets. Board commands play on the server's own game
+    //  if game is null, else on the named game the client joined. Once routed is set, the client is a
+    //  cluster router and every reply is followed by RoutedProtocol.END. The connection was opened at
+    //  System.nanoTime() openedNanos, and is logged to accessLog. Boards sent to the client are
+    //  rendered into renderBuffer, kept for the whole connection.
+    //
+    // Rep invariant: stream != null, writer != null, out != null
+    //
+    // Thread safety: Not threadsafe; confined to the thread handling the connection, except for
+    //  queueFrame(), which only reaches the threadsafe socketOut.
+    
+    /**
+     * Opens a session, recording the connection in the access log.
+     * 
+     * @param name the client's name in the access log
+     * @param accessLog log of the client's connection and commands
+     * @param socketOut output queue of the client's socket
+     * @param limiter the client's command rate limiter
+     */
+    ClientSession(String name, AccessLog accessLog, OutputQueue socketOut, CommandLimiter limiter) {
+        this.name = name;
+        this.accessLog = accessLog;
+        this.openedNanos = System.nanoTime();
+        this.socketOut = socketOut;
+        this.limiter = limiter;
+        this.stream = socketOut;
+        this.writer = new BufferedWriter(new OutputStreamWriter(socketOut, StandardCharsets.UTF_8));
+        this.out = new PrintWriter(writer, true);
+        accessLog.record(name, "connect", AccessLog.NO_POSITION, AccessLog.NO_POSITION, 0, 0);
+    }
+    
+    /**
+     * @return the client's name in the access log
+     */
+    String name() {
+        return name;
+    }
+    
+    /**
+     * @return bytes queued for the client so far, after any compression; what is written to out
+     *         counts once it is flushed
+     */
+    long bytesSent() {
+        return socketOut.totalBytes();
+    }
+    
+    /**
+     * @return writer for replies to the client, flushed on every println
+     */
+    PrintWriter out() {
+        return out;
+    }
+    
+    /**
+     * @return writer beneath out, for board replies; unlike out, it throws once the client can no
+     *         longer be written to, and is not flushed on every line
+     */
+    Writer boardOut() {
+        return writer;
+    }
+    
+    /**
+     * @return the client's command rate limiter
+     */
+    CommandLimiter limiter() {
+        return limiter;
+    }
+    
+    /**
+     * @return the buffer boards sent to the client are rendered into, reused by every board reply
+     */
+    RenderBuffer renderBuffer() {
+        return renderBuffer;
+    }
+    
+    /**
+     * @return byte stream to the client, beneath out, for binary protocol replies
+     */
+    OutputStream stream() {
+        return stream;
+    }
+    
+    /**
+     * Queues a complete reply, already encoded, as it is. Unlike the other methods, may be called from
+     * any thread, as long as nothing is written to out meanwhile.
+     * 
+     * @param bytes the reply, which must never change afterwards
+     * @param snapshot true if the reply is a complete board, which a later one may replace while queued
+     * @throws IOException if the connection is closed
+     */
+    void queueFrame(byte[] bytes, boolean snapshot) throws IOException {
+        socketOut.queueFrame(bytes, snapshot);
+    }
+    
+    /**
+     * Sends the board reply written to out since the last reply. Unless the reply passes through a
+     * DEFLATE stream, whose later output depends on it, a later board reply may replace it while it
+     * is still queued.
+     * 
+     * @throws IOException if the client can no longer be written to
+     */
+    void flushBoard() throws IOException {
+        if (!deflate) socketOut.markSnapshot();
+        writer.flush();
+    }
+    
+    /**
+     * @return true if board replies are run-length encoded
+     */
+    boolean runLength() {
+        return runLength;
+    }
+    
+    /**
+     * @param runLength whether board replies should be run-length encoded
+     */
+    void setRunLength(boolean runLength) {
+        this.runLength = runLength;
+    }
+    
+    /**
+     * @return true if replies are sent through a DEFLATE stream
+     */
+    boolean deflate() {
+        return deflate;
+    }
+    
+    /**
+     * Sends every later reply through a DEFLATE stream. The stream is sync-flushed after every reply,
+     * and its dictionary is kept for the rest of the connection, so a board that changed little since
+     * the last reply compresses to very little. Has no effect if already started.
+     */
+    void startDeflate() {
+        if (deflate) return;
+        out.flush();
+        stream = new DeflaterOutputStream(socketOut, new Deflater(Deflater.BEST_SPEED), true);
+        writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        out = new PrintWriter(writer, true);
+        deflate = true;
+    }
+    
+    /**
+     * @return name of the game the client joined, or null if it plays on the server's own game
+     */
+    String game() {
+        return game;
+    }
+    
+    /**
+     * @param game name of the game the client joined
+     */
+    void setGame(String game) {
+        this.game = game;
+    }
+    
+    /**
+     * @return true if the client has switched to the binary protocol
+     */
+    boolean binary() {
+        return binary;
+    }
+    
+    /**
+     * Records that the client has switched to the binary protocol for the rest of the connection.
+     */
+    void startBinary() {
+        out.flush();
+        binary = true;
+    }
+    
+    /**
+     * @return true if the client is a cluster router
+     */
+    boolean routed() {
+        return routed;
+    }
+    
+    /**
+     * Records that the client is a cluster router for the rest of the connection.
+     */
+    void startRouted() {
+        routed = true;
+    }
+    
+    /**
+     * Closes the reply stream, finishing any DEFLATE stream, and the client's socket with it, and
+     * records the disconnection in the access log.
+     */
+    @Override
+    public void close() {
+        out.close();
+        accessLog.record(name, "disconnect", AccessLog.NO_POSITION, AccessLog.NO_POSITION,
+                System.nanoTime() - openedNanos, bytesSent());
+    }
+}
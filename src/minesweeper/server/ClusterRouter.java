@@ -0,0 +1,558 @@
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Front end of a Minesweeper cluster. Clients connect to the router with the text protocol, as they
+ * would to a MinesweeperServer, and the router spreads their games over several MinesweeperServer
+ * nodes: each game lives on the node the HashRing assigns its name to, and every command a client
+ * sends is forwarded to the node of the game it plays, over connections pooled per node and speaking
+ * the RoutedProtocol. Clients start in the game DEFAULT_GAME and move with 'join NAME', as on a server.
+ * The router proves to the nodes that it belongs to the cluster with the cluster's secret, which
+ * every node must have been given too.
+ *
+ * Nodes may join and leave while clients play. The games whose node changes are exported from their
+ * old node and imported into the new one, while every command waits, so no client sees a game
+ * half moved. A game which cannot be moved stays on its old node, even one that has left the ring,
+ * and is moved again at the next change of membership; so a node which fails keeps its games,
+ * unavailable, until it is back. failedMoves() counts the games which could not be moved.
+ *
+ * Board replies are plain text: 'encoding' and 'protocol' are answered by the router and not forwarded.
+ *
+ * The router limits each client's commands by its RateLimits, as a server limits its own clients,
+ * since the nodes see only the router's shared connections. Unlike a server, the router charges a
+ * dig only for the squares it names, not for the further squares its cascade reveals, which only
+ * the node knows.
+ */
+public class ClusterRouter {
+
+    /** Default port number where the router listens for connections. */
+    private static final int DEFAULT_PORT = 4444;
+    /** Game clients play until they join another. */
+    static final String DEFAULT_GAME = "main";
+    /** Idle connections kept open to each node. */
+    private static final int IDLE_CONNECTIONS_PER_NODE = 16;
+    /** Milliseconds a client may send nothing before it is disconnected. */
+    private static final int IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    /** A command moving the client to another game. */
+    private static final Pattern JOIN = Pattern.compile("join ([A-Za-z0-9_-]{1,64})");
+    /** A node's reply to a join, giving the game's size. */
+    private static final Pattern JOINED = Pattern.compile("Joined game [A-Za-z0-9_-]+: (\\d+ columns by \\d+ rows)\\.");
+    private static final String UNAVAILABLE_MESSAGE = "The game's server is unavailable, please try again shortly.";
+    private static final String UNSUPPORTED_MESSAGE = "Encodings and other protocols are not available through the cluster router.";
+
+    /** Socket for receiving incoming connections. */
+    private final ServerSocket serverSocket;
+    /** True if the router should *not* disconnect a client after a BOOM message. */
+    private final boolean debug;
+    /** Held to read the ring and pools for a command, and to change them. */
+    private final ReentrantReadWriteLock membership = new ReentrantReadWriteLock(true);
+    /** Assignment of games to nodes. */
+    private HashRing ring;
+    /** Connections to each node on the ring, and to each node holding a stranded game. */
+    private final Map<String, NodePool> pools = new HashMap<>();
+    /** Games which could not be moved to the node the ring assigns them, and the node they stayed on. */
+    private Map<String, String> stranded = new HashMap<>();
+    /** Moves of a game to another node which failed. */
+    private final AtomicLong failedMoves = new AtomicLong();
+    /** Games exported from their node by a failed move, which could not be imported back either. */
+    private final AtomicLong lostGames = new AtomicLong();
+    /** Secret the nodes require in the RoutedProtocol handshake. */
+    private final String secret;
+    /** Every game a command has been forwarded to. */
+    private final Set<String> games = ConcurrentHashMap.newKeySet();
+    /** Clients connected. */
+    private final AtomicInteger connections = new AtomicInteger();
+    /** Command rate limits applied to each client. */
+    private volatile RateLimits rateLimits = RateLimits.UNLIMITED;
+    /** Commands delayed and refused by clients' rate limits. */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Abstraction function: A router listening on serverSocket, whose clients play the games in games,
+    //  game g on node locate(g), which is stranded.get(g) if g is stranded and ring.nodeFor(g) if not,
+    //  reached through pools.get(locate(g)). failedMoves and lostGames count the moves which failed,
+    //  and the games they lost.
+    //
+    // Rep invariant: pools.keySet() equals ring.nodes() plus stranded.values()
+    //                stranded.get(g) != ring.nodeFor(g) for every stranded game g
+    //                ring has at least one node
+    //
+    // Rep exposure: All fields are private; node names are strings.
+    //
+    // Thread safety: ring, pools and stranded are guarded by membership: commands hold its read lock
+    //  while forwarded, and adding or removing a node holds its write lock while games move, so a
+    //  command never reaches a node its game is leaving. The fair lock keeps a steady stream of commands
+    //  from holding off a node change. games is a concurrent set, added to under the read lock, so a
+    //  move always sees the games commands have reached. The counters are atomic. Each client is
+    //  handled by its own thread, to which its CommandLimiter is confined.
+
+    /**
+     * Make a ClusterRouter that listens for connections on port.
+     *
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param nodes names of the nodes, "host:port", at least one
+     * @param secret the cluster's secret, which the nodes were given, valid according to
+     *               RoutedProtocol.isValidSecret()
+     * @throws IOException if an error occurs opening the server socket
+     */
+    public ClusterRouter(int port, boolean debug, Collection<String> nodes, String secret) throws IOException {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("A cluster needs at least one node");
+        if ( ! RoutedProtocol.isValidSecret(secret)) throw new IllegalArgumentException("Invalid cluster secret");
+        this.serverSocket = new ServerSocket(port);
+        this.debug = debug;
+        this.secret = secret;
+        this.ring = new HashRing(nodes);
+        for (String node : this.ring.nodes()) {
+            this.pools.put(node, new NodePool(node, secret, IDLE_CONNECTIONS_PER_NODE));
+        }
+        checkRep();
+    }
+
+    private void checkRep() {
+        Set<String> reached = new HashSet<>(this.ring.nodes());
+        reached.addAll(this.stranded.values());
+        assert this.pools.keySet().equals(reached);
+        for (Map.Entry<String, String> game : this.stranded.entrySet()) {
+            assert !game.getValue().equals(this.ring.nodeFor(game.getKey()));
+        }
+        assert !this.ring.nodes().isEmpty();
+    }
+
+    /**
+     * Limits how fast each client may send commands. Applies to clients connecting afterwards.
+     *
+     * @param limits the limits of each client
+     */
+    public void setRateLimits(RateLimits limits) {
+        this.rateLimits = limits;
+    }
+
+    /**
+     * @return counts of the commands clients' rate limits delayed and refused
+     */
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Run the router, listening for client connections and handling each on its own thread. Never
+     * returns unless an exception is thrown.
+     *
+     * @throws IOException if the main server socket is broken
+     */
+    public void serve() throws IOException {
+        ExecutorService clientThreads = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "router-client"));
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                clientThreads.execute(() -> {
+                    try {
+                        handleConnection(socket);
+                    } catch (IOException ioe) {
+                        System.out.println("Client disconnected");
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ioe) {
+                            //ignore
+                        }
+                        connections.decrementAndGet();
+                    }
+                });
+            }
+        } finally {
+            clientThreads.shutdown();
+        }
+    }
+
+    /**
+     * Handle a single client connection. Returns when the client disconnects.
+     *
+     * @param socket socket where the client is connected
+     * @throws IOException if the connection encounters an error
+     */
+    private void handleConnection(Socket socket) throws IOException {
+        socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+        CommandLimiter limiter = new CommandLimiter(rateLimits, metrics);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream())) {
+            String game = DEFAULT_GAME;
+            String boardDescription = "unavailable";
+            List<String> joined = forward(game, "join " + game);
+            Matcher size = JOINED.matcher(joined.isEmpty() ? "" : joined.get(0));
+            if (size.matches()) boardDescription = size.group(1);
+            out.println(String.format("Welcome to Minesweeper. "
+                    + "Players: %1$s including you. "
+                    + "Board: %2$s. "
+                    + "Type 'help' for help.", connections.get(), boardDescription));
+            out.flush();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String verb = line.split(" ")[0];
+                List<String> reply;
+                if (line.equals("bye")) {
+                    out.println("bye");
+                    return;
+                } else if ( ! limiter.admitCommand(line)) {
+                    reply = Collections.singletonList(CommandLimiter.THROTTLED_MESSAGE);
+                } else if (verb.equals("encoding") || verb.equals("protocol")) {
+                    reply = Collections.singletonList(UNSUPPORTED_MESSAGE);
+                } else if (verb.equals("export") || verb.equals("import")) {
+                    //Only the router moves games, so clients get the help any unknown command gets
+                    reply = forward(game, "help");
+                } else {
+                    Matcher join = JOIN.matcher(line);
+                    String target = join.matches() ? join.group(1) : game;
+                    reply = forward(target, line);
+                    if (join.matches() && ! reply.isEmpty() && reply.get(0).startsWith("Joined game ")) {
+                        game = target;
+                    }
+                }
+                for (String replyLine : reply) out.println(replyLine);
+                out.flush();
+                if (reply.contains("BOOM!") && ! debug) return;
+            }
+        } catch (SocketTimeoutException ste) {
+            //idle client
+        }
+    }
+
+    /**
+     * Runs a command on the node of a game.
+     *
+     * @param game name of the game the command is for
+     * @param command a command of the text protocol
+     * @return lines of the node's reply, or of a message saying the node is unavailable
+     */
+    private List<String> forward(String game, String command) {
+        membership.readLock().lock();
+        try {
+            games.add(game);
+            NodePool pool = pools.get(locate(game));
+            try {
+                return pool.send(game, command);
+            } catch (IOException ioe) {
+                return Collections.singletonList(UNAVAILABLE_MESSAGE);
+            }
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param game name of a game
+     * @return name of the node the game lives on
+     */
+    String nodeFor(String game) {
+        membership.readLock().lock();
+        try {
+            return locate(game);
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of moves of a game to another node which failed, leaving the game on its old
+     *         node, or losing it if it could not be put back there either
+     */
+    public long failedMoves() {
+        return failedMoves.get();
+    }
+
+    /**
+     * @return number of games lost by failed moves, which start afresh on their new node
+     */
+    public long lostGames() {
+        return lostGames.get();
+    }
+
+    /**
+     * @return number of games kept on a node other than the one the ring assigns them, because they
+     *         could not be moved there
+     */
+    public int strandedGames() {
+        membership.readLock().lock();
+        try {
+            return stranded.size();
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * Requires either lock of membership.
+     *
+     * @return name of the node game lives on
+     */
+    private String locate(String game) {
+        String node = stranded.get(game);
+        return node != null ? node : ring.nodeFor(game);
+    }
+
+    /**
+     * Adds a node to the cluster, moving to it the games it takes over from the other nodes, and
+     * trying again to move stranded games. Clients' commands wait until the games have moved. Games
+     * which cannot be moved stay where they are, and are counted by failedMoves().
+     *
+     * @param node name of the node, "host:port"
+     * @return number of games moved
+     * @throws IOException if the node cannot be reached, in which case the cluster is unchanged
+     */
+    public int addNode(String node) throws IOException {
+        membership.writeLock().lock();
+        try {
+            if (ring.nodes().contains(node)) return 0;
+            //A node which left may still hold stranded games, and so have its pool
+            NodePool pool = pools.get(node);
+            boolean opened = pool == null;
+            if (opened) pool = new NodePool(node, secret, IDLE_CONNECTIONS_PER_NODE);
+            try {
+                pool.send(null, "help");
+            } catch (IOException ioe) {
+                if (opened) pool.close();
+                throw ioe;
+            }
+            pools.put(node, pool);
+            int moved = moveGames(ring.withNode(node));
+            checkRep();
+            return moved;
+        } finally {
+            membership.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a node from the cluster, moving its games to the nodes which take them over, and
+     * trying again to move stranded games. Clients' commands wait until the games have moved. Games
+     * which cannot be moved stay on their node, even this one, and are counted by failedMoves(); the
+     * router keeps its connections to the node until they have been moved.
+     *
+     * @param node name of a node of the cluster, other than its last
+     * @return number of games moved
+     */
+    public int removeNode(String node) {
+        membership.writeLock().lock();
+        try {
+            if ( ! ring.nodes().contains(node)) return 0;
+            if (ring.nodes().size() == 1) throw new IllegalStateException("Cannot remove the last node " + node);
+            int moved = moveGames(ring.withoutNode(node));
+            checkRep();
+            return moved;
+        } finally {
+            membership.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves every game whose node differs on next to that node, then switches to next, keeping the
+     * games which could not be moved on their old nodes and dropping the pools no longer needed.
+     * Requires the write lock of membership, and a pool for every node of next.
+     *
+     * @return number of games moved
+     */
+    private int moveGames(HashRing next) {
+        int moved = 0;
+        Map<String, String> unmoved = new HashMap<>();
+        for (String game : games) {
+            String from = locate(game);
+            String to = next.nodeFor(game);
+            if (from.equals(to)) continue;
+            try {
+                if (moveGame(game, pools.get(from), pools.get(to))) moved++;
+            } catch (IOException ioe) {
+                failedMoves.incrementAndGet();
+                unmoved.put(game, from);
+            } catch (GameLostException gle) {
+                failedMoves.incrementAndGet();
+                lostGames.incrementAndGet();
+            }
+        }
+        ring = next;
+        stranded = unmoved;
+        for (String node : new ArrayList<>(pools.keySet())) {
+            if ( ! ring.nodes().contains(node) && ! stranded.containsValue(node)) pools.remove(node).close();
+        }
+        return moved;
+    }
+
+    /**
+     * Exports a game from one node and imports it into another. If the second node fails or refuses
+     * the game, it is imported back into the first.
+     *
+     * @return true if the game was moved, false if the first node had no such game
+     * @throws IOException if the game was not moved, and is still on the first node
+     * @throws GameLostException if the game was exported, but neither node imported it
+     */
+    private static boolean moveGame(String game, NodePool from, NodePool to) throws IOException, GameLostException {
+        List<String> exported = from.send(null, "export " + game);
+        String prefix = RoutedProtocol.EXPORT_REPLY + game + ": ";
+        if (exported.size() != 1) throw new IOException("Unexpected reply to export: " + exported);
+        if (exported.get(0).equals("No game " + game + ".")) return false;
+        if ( ! exported.get(0).startsWith(prefix)) throw new IOException(exported.get(0));
+        String data = exported.get(0).substring(prefix.length());
+        try {
+            importGame(game, data, to);
+        } catch (IOException ioe) {
+            try {
+                importGame(game, data, from);
+            } catch (IOException lost) {
+                throw new GameLostException();
+            }
+            throw ioe;
+        }
+        return true;
+    }
+
+    /**
+     * Imports a game exported from another node.
+     *
+     * @throws IOException if the node fails, or refuses the game
+     */
+    private static void importGame(String game, String data, NodePool into) throws IOException {
+        List<String> imported = into.send(null, "import " + game + " " + data);
+        if ( ! imported.equals(Collections.singletonList("Imported game " + game + "."))) {
+            throw new IOException("Unexpected reply to import: " + imported);
+        }
+    }
+
+    /**
+     * Thrown when a game was exported from its node, but could be imported into no node.
+     */
+    private static class GameLostException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Start a ClusterRouter using the given arguments.
+     *
+     * <br> Usage:
+     *      ClusterRouter [--debug | --no-debug] [--port PORT] --cluster-secret SECRET_FILE --node HOST:PORT [--node HOST:PORT ...]
+     *
+     * <br> The --debug argument means the router should not disconnect a client after a BOOM message.
+     * <br> PORT is an optional integer in the range 0 to 65535 inclusive, the port the router listens on.
+     * <br> SECRET_FILE is the file whose first line is the cluster's secret, which every node must have
+     *      been started with too, by its own --cluster-secret argument.
+     * <br> Each --node names a MinesweeperServer the router spreads games over; at least one is required.
+     * <br> E.g. "ClusterRouter --port 4444 --cluster-secret cluster.key --node localhost:5001 --node localhost:5002"
+     *      routes clients connecting on port 4444 to two servers running on the same machine.
+     *
+     * <br> While it runs, the router reads commands from standard input, one per line:
+     *      "add HOST:PORT" adds a node to the cluster, and "remove HOST:PORT" removes one, moving the
+     *      games it takes over or gives up.
+     *
+     * @param args arguments as described
+     */
+    public static void main(String[] args) {
+        boolean debug = false;
+        int port = DEFAULT_PORT;
+        Optional<File> secretFile = Optional.empty();
+        List<String> nodes = new ArrayList<>();
+
+        Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        try {
+            while ( ! arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--debug")) {
+                        debug = true;
+                    } else if (flag.equals("--no-debug")) {
+                        debug = false;
+                    } else if (flag.equals("--port")) {
+                        port = Integer.parseInt(arguments.remove());
+                        if (port < 0 || port > 65535) {
+                            throw new IllegalArgumentException("port " + port + " out of range");
+                        }
+                    } else if (flag.equals("--cluster-secret")) {
+                        secretFile = Optional.of(new File(arguments.remove()));
+                    } else if (flag.equals("--node")) {
+                        String node = arguments.remove();
+                        if ( ! node.matches(".+:\\d{1,5}")) {
+                            throw new IllegalArgumentException("node must be HOST:PORT: \"" + node + "\"");
+                        }
+                        nodes.add(node);
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+            if (nodes.isEmpty()) throw new IllegalArgumentException("at least one --node is required");
+            if ( ! secretFile.isPresent()) throw new IllegalArgumentException("--cluster-secret is required");
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: ClusterRouter [--debug | --no-debug] [--port PORT] --cluster-secret SECRET_FILE"
+                    + " --node HOST:PORT [--node HOST:PORT ...]");
+            return;
+        }
+
+        try {
+            String secret = RoutedProtocol.readSecret(secretFile.get().toPath());
+            ClusterRouter router = new ClusterRouter(port, debug, nodes, secret);
+            Thread console = new Thread(() -> readMembershipCommands(router), "router-console");
+            console.setDaemon(true);
+            console.start();
+            router.serve();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /**
+     * Adds and removes nodes as standard input asks, until it ends.
+     */
+    private static void readMembershipCommands(ClusterRouter router) {
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            for (String line = console.readLine(); line != null; line = console.readLine()) {
+                String[] words = line.trim().split("\\s+");
+                try {
+                    if (words.length == 2 && words[0].equals("add")) {
+                        System.out.println("Added " + words[1] + ", moving " + router.addNode(words[1]) + " games. "
+                                + router.strandedGames() + " games are still to move.");
+                    } else if (words.length == 2 && words[0].equals("remove")) {
+                        System.out.println("Removed " + words[1] + ", moving " + router.removeNode(words[1]) + " games. "
+                                + router.strandedGames() + " games are still to move.");
+                    } else {
+                        System.out.println("Commands: 'add HOST:PORT', 'remove HOST:PORT'.");
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Cannot " + words[0] + " " + words[1] + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException ioe) {
+            //standard input closed
+        }
+    }
+}
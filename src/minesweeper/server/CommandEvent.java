@@ -0,0 +1,39 @@
+package minesweeper.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for one client command, from receiving it to writing its reply.
+ */
+@Name("minesweeper.Command")
+@Label("Command")
+@Category({"Minesweeper", "Server"})
+@Description("A client command, handled and replied to")
+@StackTrace(false)
+class CommandEvent extends jdk.jfr.Event {
+
+    @Label("Verb")
+    String verb;
+
+    @Label("Protocol")
+    @Description("text or binary")
+    String protocol;
+
+    @Label("Row")
+    @Description("Row of the first square named, if any")
+    int row;
+
+    @Label("Column")
+    @Description("Column of the first square named, if any")
+    int column;
+
+    @Label("Turn Wait")
+    @Description("Time spent waiting for a turn to run, behind other clients' commands")
+    @Timespan(Timespan.NANOSECONDS)
+    long turnWait;
+}
@@ -0,0 +1,96 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces a MinesweeperServer's or ClusterRouter's RateLimits on one client connection, delaying
+ * commands until the client's buckets hold enough tokens for them.
+ */
+class CommandLimiter {
+
+    /** Sent instead of running a command which the client's rate limits would delay for too long. */
+    static final String THROTTLED_MESSAGE = "Too many commands, please slow down.";
+    /** Commands which dig, charged from the expensive budget and for the squares they reveal. */
+    private static final Set<String> DIG_VERBS = new HashSet<>(Arrays.asList("dig", "chord", "dig-many"));
+    /** Other commands charged from the expensive budget, as they render the board or run the solver. */
+    private static final Set<String> EXPENSIVE_VERBS = new HashSet<>(Arrays.asList("look", "hint"));
+    /** Commands never rate limited, so a throttled client can still find out why, or leave. */
+    private static final Set<String> UNLIMITED_COMMANDS = new HashSet<>(Arrays.asList("help", "bye"));
+
+    private final RateLimits limits;
+    private final TokenBucket cheap;
+    private final TokenBucket expensive;
+    private final ServerMetrics metrics;
+
+    // Abstraction function: The limits of one client, whose remaining budgets for cheap and expensive
+    //  commands are the cheap and expensive buckets. Delays and refusals are counted in metrics.
+    //
+    // Thread safety: Not threadsafe; confined to the thread handling the connection.
+
+    /**
+     * @param limits the server's rate limits
+     * @param metrics receives counts of delayed and refused commands
+     */
+    CommandLimiter(RateLimits limits, ServerMetrics metrics) {
+        this.limits = limits;
+        this.cheap = new TokenBucket(limits.cheapPerSecond(), limits.cheapBurst());
+        this.expensive = new TokenBucket(limits.expensivePerSecond(), limits.expensiveBurst());
+        this.metrics = metrics;
+    }
+
+    /**
+     * Waits until a command of the text protocol may run, and spends its tokens: an expensive token
+     * per square a dig names, or per look or hint, and a cheap token per square any other command
+     * names. help and bye are never limited.
+     * 
+     * @param line the command
+     * @return true if the command may run now, false if it would have had to wait too long and is refused
+     */
+    boolean admitCommand(String line) {
+        if (UNLIMITED_COMMANDS.contains(line)) return true;
+        String[] words = line.split(" ");
+        boolean isExpensive = DIG_VERBS.contains(words[0]) || EXPENSIVE_VERBS.contains(words[0]);
+        //Bulk commands are charged for every position they name
+        int squares = words[0].endsWith("-many") ? Math.max(1, (words.length - 1) / 2) : 1;
+        return admit(isExpensive, squares);
+    }
+
+    /**
+     * Waits until a command may run, and spends its tokens.
+     * 
+     * @param isExpensive true if the command renders or digs the board
+     * @param squares number of squares the command names, at least 1
+     * @return true if the command may run now, false if it would have had to wait too long and is refused
+     */
+    boolean admit(boolean isExpensive, int squares) {
+        TokenBucket bucket = isExpensive ? expensive : cheap;
+        long delay = bucket.delayFor(squares);
+        if (delay > TimeUnit.MILLISECONDS.toNanos(limits.maxDelayMillis())) {
+            metrics.refusedCommand();
+            return false;
+        }
+        if (delay > 0) {
+            metrics.delayedCommand();
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        bucket.spend(squares);
+        return true;
+    }
+
+    /**
+     * Charges a dig for the squares it revealed beyond the one dug. The cost is not waited for here;
+     * the client's next expensive command waits for the debt to be paid off instead.
+     * 
+     * @param revealedSquares number of squares the dig revealed
+     */
+    void chargeCascade(int revealedSquares) {
+        if (revealedSquares > 1) expensive.spend((revealedSquares - 1) * limits.costPerRevealedSquare());
+    }
+}
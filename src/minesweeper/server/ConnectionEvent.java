@@ -0,0 +1,25 @@
+package minesweeper.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a client connection, lasting from accept to close.
+ */
+@Name("minesweeper.Connection")
+@Label("Connection")
+@Category({"Minesweeper", "Server"})
+@Description("A client connection, from accept to close")
+@StackTrace(false)
+class ConnectionEvent extends jdk.jfr.Event {
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Rejected")
+    @Description("True if the client was turned away because the server was full")
+    boolean rejected;
+}
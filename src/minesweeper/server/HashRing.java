@@ -0,0 +1,110 @@
+package minesweeper.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hashing of game names onto cluster nodes. Every node is hashed to POINTS_PER_NODE points
+ * on a ring of 32 bit hashes, and a game belongs to the node of the first point at or after the
+ * game's own hash, wrapping around. Adding a node therefore only moves the games that land just
+ * before its points, about 1/n of them with n nodes afterwards, and removing one only moves its own.
+ *
+ * Immutable: adding or removing a node makes a new ring.
+ */
+final class HashRing {
+
+    /** Points each node is hashed to; more spread the games more evenly over the nodes. */
+    static final int POINTS_PER_NODE = 160;
+
+    private final Set<String> nodes;
+    private final TreeMap<Integer, String> points;
+
+    // Abstraction function: The nodes in nodes, each owning the arc of the ring which ends at one of
+    //  its points, points mapping each hash to the node hashed there.
+    //
+    // Rep invariant: the values of points are exactly nodes
+    //                every node has at most POINTS_PER_NODE points, fewer only where nodes collide
+    //
+    // Rep exposure: All fields are private and final; nodes is unmodifiable and points never escapes.
+    //
+    // Thread safety: Immutable.
+
+    /**
+     * @param nodes names of the nodes, "host:port"
+     */
+    HashRing(Collection<String> nodes) {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        this.points = new TreeMap<>();
+        for (String node : this.nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                //Nodes colliding on a point settle it by name, so a ring never depends on the order nodes joined
+                this.points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.nodes.containsAll(this.points.values());
+        assert this.points.size() <= this.nodes.size() * POINTS_PER_NODE;
+    }
+
+    /**
+     * @return the nodes on the ring
+     */
+    Set<String> nodes() {
+        return this.nodes;
+    }
+
+    /**
+     * @param node name of a node
+     * @return a ring with the same nodes and node
+     */
+    HashRing withNode(String node) {
+        Set<String> more = new TreeSet<>(this.nodes);
+        more.add(node);
+        return new HashRing(more);
+    }
+
+    /**
+     * @param node name of a node
+     * @return a ring with the same nodes but node
+     */
+    HashRing withoutNode(String node) {
+        Set<String> fewer = new TreeSet<>(this.nodes);
+        fewer.remove(node);
+        return new HashRing(fewer);
+    }
+
+    /**
+     * @param game name of a game
+     * @return the node the game belongs to, or null if the ring has no nodes
+     */
+    String nodeFor(String game) {
+        if (this.points.isEmpty()) return null;
+        Map.Entry<Integer, String> owner = this.points.ceilingEntry(hash(game));
+        return owner != null ? owner.getValue() : this.points.firstEntry().getValue();
+    }
+
+    /**
+     * @return a 32 bit hash of key, the same in every JVM: FNV-1a over its UTF-8 bytes, then
+     *         MurmurHash3's finalizer, which spreads similar names apart
+     */
+    private static int hash(String key) {
+        int hash = 0x811C9DC5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -5,12 +5,39 @@ package minesweeper.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import minesweeper.Board;
+import minesweeper.BoardAuditor;
+import minesweeper.BoardPool;
+import minesweeper.DigResult;
+import minesweeper.GameCache;
+import minesweeper.NoGuessGenerator;
+import minesweeper.Point;
+import minesweeper.Solver;
 
 /**
  * Multiplayer Minesweeper server.
+ * 
+ * Commands, digs, board renders and connections are recorded as flight recorder events, which cost
+ * next to nothing unless a recording is running. src/minesweeper/minesweeper.jfc enables them along
+ * with the JDK's lock contention, GC and sampling events.
  */
 public class MinesweeperServer {
 
@@ -20,26 +47,147 @@ public class MinesweeperServer {
     private static final int DEFAULT_PORT = 4444;
     /** Maximum port number as defined by ServerSocket. */
     private static final int MAXIMUM_PORT = 65535;
+    /** Milliseconds a command waits for a loading board before the client is told to retry. */
+    private static final long BOARD_WAIT_MILLIS = 500;
+    /** Sent after the board to the client whose dig clears the last safe square. */
+    private static final String WIN_MESSAGE = "You win! Every safe square has been dug.";
     /** Default square board size. */
     private static final int DEFAULT_SIZE = 10;
+    /** Bomb density of no-guess boards; denser boards rarely turn out solvable without guessing. */
+    private static final double NO_GUESS_BOMB_PROBABILITY = 0.15;
+    /** Milliseconds spent searching for a no-guess board before falling back to a random one. */
+    private static final long NO_GUESS_DEADLINE_MILLIS = 5000;
+    /** Number of ready-made random boards kept per requested size. */
+    private static final int POOLED_BOARDS_PER_SIZE = 1;
+    /** Estimated heap bytes the board pool may hold, 64MB. */
+    private static final long POOL_MEMORY_BUDGET = 64L << 20;
+    /** Default milliseconds a client may send nothing before it is disconnected, 10 minutes. */
+    private static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    /** Default bytes of replies which may wait to be sent to one client, 4MB. */
+    private static final long DEFAULT_OUTPUT_QUEUE_BYTES = 4L << 20;
+    /** Default most clients connected at once. */
+    private static final int DEFAULT_MAX_CONNECTIONS = 256;
+    /** Connections the operating system may hold waiting to be accepted. */
+    private static final int ACCEPT_BACKLOG = 50;
+    /** Seconds an idle connection thread is kept for the next client. */
+    private static final long CONNECTION_THREAD_KEEP_ALIVE_SECONDS = 60;
+    /** Estimated heap bytes the boards of games joined by name may take before idle ones are saved to disk, 256MB. */
+    private static final long DEFAULT_GAME_CACHE_BYTES = 256L << 20;
+    /** Access log records which may wait for the log's writer before more are dropped. */
+    private static final int ACCESS_LOG_CAPACITY = 1 << 16;
+    /** Size at which the access log file is rotated, 64MB. */
+    private static final long ACCESS_LOG_FILE_BYTES = 64L << 20;
+    /** Rotated access log files kept. */
+    private static final int ACCESS_LOG_KEPT_FILES = 4;
+    /** Squares of each board the sampling auditor checks every AUDIT_PERIOD_MILLIS. */
+    private static final int AUDIT_SAMPLES = 256;
+    /** Milliseconds between the sampling auditor's checks. */
+    private static final long AUDIT_PERIOD_MILLIS = 100;
+    /** Printed by main() when its arguments are invalid. */
+    private static final String USAGE = "usage: MinesweeperServer [--debug | --no-debug] [--port PORT]"
+            + " [--size SIZE_X,SIZE_Y | --file FILE] [--safe-first | --no-guess] [--websocket-port WS_PORT]"
+            + " [--access-log LOG_FILE] [--audit off|incremental|sampling] [--cluster-secret SECRET_FILE]";
+    /** Sent to clients turned away because the server is full. */
+    private static final String BUSY_MESSAGE = "The server is full, please try again later.";
+    /** Grammar of the text protocol's commands, compiled once rather than on every command. */
+    private static final Pattern COMMAND = Pattern.compile(
+            "(look)|(look zoom \\d{1,9})|(join [A-Za-z0-9_-]{1,64})|(help)|(bye)|(hint)|(hint all)|(status)|(encoding (plain|rle|rle deflate))|(protocol binary)|(protocol routed( [!-~]{1,256})?)|"
+            + "(export [A-Za-z0-9_-]{1,64})|(import [A-Za-z0-9_-]{1,64} [A-Za-z0-9+/=]+)|"
+            + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)|(chord -?\\d+ -?\\d+)|"
+            + "(dig-many( -?\\d+ -?\\d+)+)|(flag-many( -?\\d+ -?\\d+)+)");
+    
+    /**
+     * What the server does with clients connecting once the connection limit is reached.
+     */
+    public enum OverloadPolicy {
+        /** Accept them only to send BUSY_MESSAGE, then disconnect them. */
+        REJECT,
+        /** Stop accepting until a client leaves, so they wait in the accept backlog. */
+        WAIT
+    }
+    
+    /** Factory handing out ready-made random boards. */
+    private static final BoardPool BOARD_POOL = new BoardPool(POOLED_BOARDS_PER_SIZE, POOL_MEMORY_BUDGET, 1);
 
     /** Socket for receiving incoming connections. */
     private final ServerSocket serverSocket;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
     
-    /**Game Board. */
-    private static Board gameBoard;
-    
-    /** Number of current connections */
-    private static int CURRENT_CONNECTIONS = 0;
+    /** Game board, or null while it is still being built in the background. */
+    private volatile Board gameBoard;
+    /** Solver following gameBoard, answering hint requests. Set before gameBoard is published. */
+    private Solver solver;
+    /** System.nanoTime() when the server was started, for measuring time to first accept. */
+    private final long startNanos;
+    /** Released once gameBoard has been built. */
+    private final CountDownLatch boardLoaded = new CountDownLatch(1);
+    /** Queue depths, dropped replies and disconnects of this server's clients. */
+    private final ServerMetrics metrics = new ServerMetrics();
+    /** Milliseconds a client may send nothing before it is disconnected, 0 for no limit. */
+    private volatile int idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    /** Bytes of replies which may wait to be sent to one client. */
+    private volatile long outputQueueLimit = DEFAULT_OUTPUT_QUEUE_BYTES;
+    /** Most clients connected at once. */
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    /** What happens to clients connecting beyond maxConnections. */
+    private volatile OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+    /** Games clients may join by name, besides gameBoard, or null until the first is joined or set. */
+    private GameCache games;
+    /** Temporary directory this server saves evicted games in, deleted on exit, or null if none. */
+    private Path gamesDirectory;
+    /** Command rate limits applied to each client. */
+    private volatile RateLimits rateLimits = RateLimits.UNLIMITED;
+    /** Turns at running a command, handed out fairly in the order clients ask for them. */
+    private volatile Semaphore commandTurns = new Semaphore(Runtime.getRuntime().availableProcessors(), true);
+    /** WebSocket endpoint playing on gameBoard, or null if none has been started. */
+    private volatile WebSocketGateway webSockets;
+    /** Log of every connection and command. */
+    private volatile AccessLog accessLog = AccessLog.DISABLED;
+    /** Secret cluster routers send to use the RoutedProtocol, in ASCII, or null to refuse every router. */
+    private volatile byte[] clusterSecret = null;
+    /** Audits the invariants of gameBoard and of the games in games. */
+    private volatile BoardAuditor auditor = BoardAuditor.OFF;
+    /** Number of the next client to connect, naming it in the access log. */
+    private final AtomicLong nextClient = new AtomicLong(1);
+    /** Limit on the clients of every socket of the server connected at once, or null until it first accepts clients. */
+    private Semaphore connectionSlots;
+    /** Handles clients holding connectionSlots, or null until the server first accepts clients. */
+    private ThreadPoolExecutor connectionThreads;
+    /** What happens to clients connecting beyond connectionSlots. */
+    private OverloadPolicy slotPolicy;
+    /** Sends queued replies, for every client, with at most maxConnections threads. */
+    private final ThreadPoolExecutor replyWriters = new ThreadPoolExecutor(DEFAULT_MAX_CONNECTIONS,
+            DEFAULT_MAX_CONNECTIONS, CONNECTION_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "client-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     // Abstraction function: TO DO
     //
     // Rep invariant: 0 <= serverSocket port <= 65535
-    //                CURRENT_CONNECTIONS >= 0
+    //                metrics.connections() <= maxConnections
     //
-    // Rep exposure: All fields are private and final
+    // Rep exposure: All fields are private and final, except gameBoard which is
+    //               only ever written once, and the volatile connection limits and command turns. metrics is shared
+    //               with callers, who can only read it.
+    //
+    // Thread safety: gameBoard is volatile, so the board built by the loader thread is safely
+    //               published to every connection thread. Until then it is null; commands wait
+    //               on boardLoaded for up to BOARD_WAIT_MILLIS, then are rejected with a loading message.
+    //               Replies are sent by each connection's OutputQueue, so a connection thread never
+    //               blocks on a client that is slow to read; its writer runs on replyWriters only while
+    //               it has replies to send, so idle clients hold no writer thread, and there are never
+    //               more writer threads than maxConnections. Connection threads come from a pool no
+    //               larger than maxConnections, shared by the clients of every socket of the server,
+    //               and run commands only while holding one of the fair commandTurns, so under load
+    //               clients take turns rather than racing for the board. A command whose dig cascades
+    //               passes its turn on between slices of the cascade, so other clients wait for a
+    //               slice rather than the whole cascade. games, gamesDirectory and the
+    //               connection slots, threads and policy are guarded by the server's lock, held only to
+    //               read them or to create them when they are first needed.
 
     /**
      * Make a MinesweeperServer that listens for connections on port.
@@ -49,44 +197,476 @@ public class MinesweeperServer {
      * @throws IOException if an error occurs opening the server socket
      */
     public MinesweeperServer(int port, boolean debug) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this.startNanos = System.nanoTime();
+        serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
         this.debug = debug;
+        replyWriters.allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Make a MinesweeperServer that listens for connections on port, playing on an already built board.
+     * 
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param board game board
+     * @throws IOException if an error occurs opening the server socket
+     */
+    public MinesweeperServer(int port, boolean debug, Board board) throws IOException {
+        this(port, debug);
+        setBoard(board);
+    }
+    
+    /**
+     * Start building the game board on a background thread. Clients may connect in the meantime,
+     * and are told the board is loading until it is ready. If the board cannot be built the server
+     * socket is closed, so serve() throws.
+     * 
+     * @param boardLoader builds the game board
+     * @param failure receives the exception thrown by boardLoader, if any
+     * @return the loader thread
+     */
+    private Thread loadBoard(Callable<Board> boardLoader, Consumer<Exception> failure) {
+        Thread loader = new Thread(() -> {
+            try {
+                setBoard(boardLoader.call());
+            } catch (Exception e) {
+                failure.accept(e);
+                try {
+                    serverSocket.close();
+                } catch (IOException ioe) {
+                    //ignore;
+                }
+            }
+        }, "board-loader");
+        loader.setDaemon(true);
+        loader.start();
+        return loader;
+    }
+    
+    /**
+     * Publishes the game board, with a solver following it, to all connection threads.
+     * 
+     * @param board the built game board
+     */
+    private void setBoard(Board board) {
+        this.solver = new Solver(board);
+        this.gameBoard = board;
+        //setAuditLevel() watches gameBoard after setting auditor, so one of the two watches the board
+        this.auditor.watch(board);
+        this.metrics.boardReady(elapsedMillis());
+        this.boardLoaded.countDown();
+    }
+    
+    /**
+     * @return true once the game board has been built
+     */
+    boolean boardReady() {
+        return gameBoard != null;
+    }
+    
+    /**
+     * Waits up to BOARD_WAIT_MILLIS for the game board to be built.
+     * 
+     * @return the game board, or null if it is still loading
+     */
+    private Board awaitBoard() {
+        try {
+            boardLoaded.await(BOARD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return gameBoard;
+    }
+    
+    /**
+     * Sets how long clients may send nothing before they are disconnected. Applies to clients
+     * connecting afterwards.
+     * 
+     * @param millis idle time limit in milliseconds, >= 0, or 0 for no limit
+     */
+    public void setIdleTimeout(int millis) {
+        this.idleTimeoutMillis = millis;
+    }
+    
+    /**
+     * Sets how many bytes of replies may wait to be sent to one client before the client is
+     * disconnected, or, for board replies, older boards still waiting are dropped. Applies to clients
+     * connecting afterwards.
+     * 
+     * @param bytes most bytes queued per client, > 0
+     */
+    public void setOutputQueueLimit(long bytes) {
+        this.outputQueueLimit = bytes;
+    }
+    
+    /**
+     * Limits how many clients may be connected at once, over the server's own socket and its WebSocket
+     * gateway together, and so how many threads send them replies. Takes effect when the server first
+     * accepts clients, on either.
+     * 
+     * @param maxConnections most clients connected at once, > 0
+     * @param policy what happens to clients connecting beyond the limit
+     */
+    public void setConnectionLimit(int maxConnections, OverloadPolicy policy) {
+        this.maxConnections = maxConnections;
+        this.overloadPolicy = policy;
+        //The core size may never exceed the maximum, even between the two calls
+        if (maxConnections > replyWriters.getMaximumPoolSize()) {
+            replyWriters.setMaximumPoolSize(maxConnections);
+            replyWriters.setCorePoolSize(maxConnections);
+        } else {
+            replyWriters.setCorePoolSize(maxConnections);
+            replyWriters.setMaximumPoolSize(maxConnections);
+        }
+    }
+    
+    /**
+     * Limits how many clients' commands may run at once; other clients wait for a turn in the order
+     * their commands arrived. Takes effect for commands received after the call.
+     * 
+     * @param workers most commands run at once, > 0
+     */
+    public void setCommandWorkers(int workers) {
+        this.commandTurns = new Semaphore(workers, true);
+    }
+    
+    /**
+     * Replaces the games clients may join by name. Takes effect for commands received after the call.
+     * 
+     * @param games the games, kept within their memory budget
+     */
+    public synchronized void setGameCache(GameCache games) {
+        games.setAuditor(auditor);
+        this.games = games;
+    }
+    
+    /**
+     * Returns the games clients may join by name, creating them in a temporary directory, deleted when
+     * the JVM exits, if none have been set.
+     * 
+     * @return the games
+     * @throws IOException if the directory cannot be created
+     */
+    private synchronized GameCache games() throws IOException {
+        if (games == null) {
+            Path directory = Files.createTempDirectory("minesweeper-games");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteDirectory(directory)));
+            gamesDirectory = directory;
+            games = new GameCache(directory, DEFAULT_GAME_CACHE_BYTES,
+                    name -> BOARD_POOL.take(DEFAULT_SIZE, DEFAULT_SIZE, Board.DEFAULT_BOMB_PROBABILITY));
+            games.setAuditor(auditor);
+        }
+        return games;
+    }
+    
+    /**
+     * @return the temporary directory this server saves evicted games in, or null if it has not
+     *         created one
+     */
+    synchronized Path gamesDirectory() {
+        return gamesDirectory;
+    }
+    
+    /**
+     * Deletes a directory and the files in it, as far as it can.
+     * 
+     * @param directory the directory
+     */
+    private static void deleteDirectory(Path directory) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException ioe) {
+            System.err.println("Games not deleted from " + directory + ": " + ioe.getMessage());
+        }
+    }
+    
+    /**
+     * Audits the invariants of the game board and of the games joined by name at a level, in place of
+     * the level set before, which is OFF by default. Violations are counted in metrics() and printed to
+     * System.err.
+     * 
+     * @param level how closely boards are audited
+     * @return the auditor
+     */
+    public BoardAuditor setAuditLevel(BoardAuditor.Level level) {
+        BoardAuditor previous = this.auditor;
+        BoardAuditor audit = new BoardAuditor(level, AUDIT_SAMPLES, AUDIT_PERIOD_MILLIS, violation -> {
+            metrics.invariantViolated();
+            System.err.println("Board invariant violated: " + violation);
+        });
+        this.auditor = audit;
+        previous.close();
+        Board board = gameBoard;
+        if (board != null) audit.watch(board);
+        //games() reads auditor when it creates the games, so one of the two sets their auditor
+        GameCache joinable;
+        synchronized (this) {
+            joinable = games;
+        }
+        if (joinable != null) joinable.setAuditor(audit);
+        return audit;
+    }
+    
+    /**
+     * Limits how fast each client may send commands. Applies to clients connecting afterwards.
+     * 
+     * @param limits the limits of each client
+     */
+    public void setRateLimits(RateLimits limits) {
+        this.rateLimits = limits;
+    }
+    
+    /**
+     * Logs every connection and command to an access log, in place of any set before. Applies to
+     * clients connecting afterwards.
+     * 
+     * @param log the access log, which the caller closes once the server is done with it
+     */
+    public void setAccessLog(AccessLog log) {
+        this.accessLog = log;
+    }
+    
+    /**
+     * Lets cluster routers which send a secret in their handshake use the RoutedProtocol, which may
+     * export and import any game and is never disconnected after a BOOM. Until a secret is set, every
+     * router is refused. Applies to handshakes received after the call.
+     * 
+     * @param secret the cluster's secret, valid according to RoutedProtocol.isValidSecret()
+     */
+    public void setClusterSecret(String secret) {
+        if ( ! RoutedProtocol.isValidSecret(secret)) throw new IllegalArgumentException("Invalid cluster secret");
+        this.clusterSecret = secret.getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * @return metrics of this server's client connections
+     */
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+    
+    /**
+     * Starts accepting WebSocket clients on a port of their own, on a background thread. They play on
+     * the same board, and are sent it whenever any client changes it.
+     * 
+     * @param port port number, requires 0 <= port <= 65535
+     * @return the WebSocket endpoint
+     * @throws IOException if an error occurs opening the port
+     */
+    public WebSocketGateway startWebSockets(int port) throws IOException {
+        WebSocketGateway gateway = new WebSocketGateway(this, port);
+        Thread acceptor = new Thread(() -> {
+            try {
+                gateway.serve();
+            } catch (IOException ioe) {
+                System.out.println("WebSocket port closed");
+            }
+        }, "websocket-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        webSockets = gateway;
+        return gateway;
+    }
+    
+    /**
+     * Opens the session of a client connected to this server or its WebSocket gateway, with the
+     * output queue limit, rate limits and access log currently set.
+     * 
+     * @param socket the client's socket
+     * @return the client's session
+     * @throws IOException if the socket's output stream cannot be opened
+     */
+    ClientSession openSession(Socket socket) throws IOException {
+        String name = "#" + nextClient.getAndIncrement() + "@" + socket.getRemoteSocketAddress();
+        return new ClientSession(name, accessLog, new OutputQueue(socket, outputQueueLimit, metrics, replyWriters),
+                new CommandLimiter(rateLimits, metrics));
+    }
+    
+    /**
+     * @return true if clients stay connected after a BOOM
+     */
+    boolean debug() {
+        return debug;
+    }
+    
+    /**
+     * @return milliseconds a client may send nothing before it is disconnected, 0 for no limit
+     */
+    int idleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+    
+    /**
+     * Sends the game board to WebSocket clients if a command has changed it since it was last sent.
+     * 
+     * @param origin the WebSocket connection whose command changed the board, which has its reply
+     *               already, or null if the command came by another protocol
+     */
+    void publishToWebSockets(Object origin) {
+        WebSocketGateway sockets = webSockets;
+        Board board = gameBoard;
+        if (sockets != null && board != null) sockets.publish(board, origin);
+    }
+    
+    /**
+     * @return milliseconds since this server was started
+     */
+    private long elapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
     }
 
     /**
-     * Run the server, listening for client connections and handling them.
-     * Never returns unless an exception is thrown.
+     * Run the server, listening for client connections and handling them, at most the connection limit
+     * at once. Never returns unless an exception is thrown.
      * 
      * @throws IOException if the main server socket is broken
      *                     (IOExceptions from individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
+        try {
+            acceptClients(serverSocket, this::handleConnection,
+                    (BUSY_MESSAGE + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            connectionThreads().shutdown();
+        }
+    }
+    
+    /**
+     * Handles a client's connection, returning when it ends.
+     */
+    @FunctionalInterface
+    interface ConnectionHandler {
+        /**
+         * @param socket the client's socket, which the caller closes afterwards
+         * @throws IOException if the connection fails
+         */
+        void handle(Socket socket) throws IOException;
+    }
+    
+    /**
+     * Accepts clients on one of this server's sockets until it fails. Every socket of the server
+     * shares the connection limit: each client holds one of its slots while it is handled on one of
+     * its connection threads, and clients beyond it are turned away or wait in the accept backlog, as
+     * its overload policy says.
+     * 
+     * @param listener the socket clients connect to
+     * @param handler handles each client admitted
+     * @param busyReply sent to each client turned away because the server is full
+     * @throws IOException if listener is broken
+     */
+    void acceptClients(ServerSocket listener, ConnectionHandler handler, byte[] busyReply) throws IOException {
+        ThreadPoolExecutor threads;
+        Semaphore slots;
+        OverloadPolicy policy;
+        synchronized (this) {
+            threads = connectionThreads();
+            slots = connectionSlots;
+            policy = slotPolicy;
+        }
         while (true) {
+            if (policy == OverloadPolicy.WAIT) {
+                //Clients connecting meanwhile wait in the accept backlog
+                slots.acquireUninterruptibly();
+            }
             // block until a client connects
+            Socket socket;
             try {
-                Socket socket = serverSocket.accept();
-                CURRENT_CONNECTIONS++;
-                
-                // starts new thread to handle client connection
-                new Thread(new Runnable() {
-                    public void run() {
-                        try {
-                            handleConnection(socket);
-                        } catch (IOException ioe) {
-                            System.out.println("Client disconnected");
-                            // doesn't interrupt serve()
-                        } finally {
-                            try {
-                                socket.close();
-                                CURRENT_CONNECTIONS--;
-                            } catch (IOException ioe) {
-                                //ignore;
-                            }
-                        }
-                    }}).start();
-            } catch (IOException ioe) { 
+                socket = listener.accept();
+            } catch (IOException ioe) {
+                if (policy == OverloadPolicy.WAIT) slots.release();
+                if (listener.isClosed()) throw ioe;
                 System.out.println("Server socket broken");
-                ioe.printStackTrace();}
+                ioe.printStackTrace();
+                continue;
+            }
+            metrics.firstAccepted(elapsedMillis());
+            ConnectionEvent event = new ConnectionEvent();
+            event.begin();
+            if (policy == OverloadPolicy.REJECT && ! slots.tryAcquire()) {
+                reject(socket, busyReply);
+                event.rejected = true;
+                commitConnection(event, socket);
+                continue;
+            }
+            metrics.connected();
+            
+            // hands the connection to a pooled thread, of which there are never more than the slots
+            try {
+                threads.execute(() -> {
+                    try {
+                        handler.handle(socket);
+                    } catch (IOException ioe) {
+                        // doesn't interrupt serve(); the session logged the disconnection
+                    } finally {
+                        endConnection(socket, slots, event);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                //The server has stopped
+                endConnection(socket, slots, event);
+            }
+        }
+    }
+    
+    /**
+     * Returns the threads connections are handled on, creating them, with the slots limiting them,
+     * when the server first accepts connections.
+     */
+    private synchronized ThreadPoolExecutor connectionThreads() {
+        if (connectionThreads == null) {
+            int limit = maxConnections;
+            slotPolicy = overloadPolicy;
+            connectionSlots = new Semaphore(limit);
+            //A slot is released just before its thread is free again, so a connection may briefly wait in
+            //the queue; the slots keep the queue from ever holding more than limit connections
+            connectionThreads = new ThreadPoolExecutor(limit, limit,
+                    CONNECTION_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    runnable -> new Thread(runnable, "client-connection"));
+            connectionThreads.allowCoreThreadTimeOut(true);
+        }
+        return connectionThreads;
+    }
+    
+    /**
+     * Closes a client's socket, and frees its slot.
+     */
+    private void endConnection(Socket socket, Semaphore slots, ConnectionEvent event) {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            //ignore;
+        }
+        metrics.disconnected();
+        slots.release();
+        commitConnection(event, socket);
+    }
+    
+    /**
+     * Records a connection which has ended in the flight recorder, if enabled.
+     */
+    private static void commitConnection(ConnectionEvent event, Socket socket) {
+        if (event.shouldCommit()) {
+            event.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+            event.commit();
+        }
+    }
+    
+    /**
+     * Turns away a client connecting while the server is full.
+     * 
+     * @param socket the client's socket, which is closed
+     * @param busyReply sent to the client before its socket is closed
+     */
+    private void reject(Socket socket, byte[] busyReply) {
+        metrics.rejected();
+        try (Socket rejected = socket) {
+            //A fresh connection's send buffer always has room for the message, so this never blocks
+            rejected.getOutputStream().write(busyReply);
+        } catch (IOException ioe) {
+            //the client has gone already
         }
     }
 
@@ -97,82 +677,650 @@ public class MinesweeperServer {
      * @throws IOException if the connection encounters an error or terminates unexpectedly
      */
     private void handleConnection(Socket socket) throws IOException {
+        socket.setSoTimeout(idleTimeoutMillis);
+        //The session is closed first, so queued replies are sent before the scanner closes the socket
         try(Scanner in = new Scanner(new BufferedReader(new InputStreamReader(socket.getInputStream())));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                ClientSession session = openSession(socket)) {
+            Board board = awaitBoard();
+            String boardDescription = board == null ? "loading" 
+                    : String.format("%1$d columns by %2$d rows", board.getColumns(), board.getRows());
             String welcomeMessage = String.format("Welcome to Minesweeper. "
                     + "Players: %1$s including you. "
-                    + "Board: %2$d columns by %3$d rows. "
-                    + "Type 'help' for help.", CURRENT_CONNECTIONS, gameBoard.getRows(), gameBoard.getColumns());
-            out.println(welcomeMessage);
+                    + "Board: %2$s. "
+                    + "Type 'help' for help.", metrics.connections(), boardDescription);
+            session.out().println(welcomeMessage);
             while (in.hasNextLine()) {
                 String line = in.nextLine();
-                String output = handleRequest(line);
-                if (output.contains("BOOM!") && this.debug == false) {
-                    out.println(output);
-                    //Disconnect client on boom message
-                    out.close();
-                    CURRENT_CONNECTIONS--;
-                } if (output.contains("bye")) {
-                    out.println(output);
-                    out.close();
+                String[] words = line.split(" ");
+                //A router limits each of its clients itself, so the connections they share are not limited
+                if ( ! session.routed() && ! session.limiter().admitCommand(line)) {
+                    session.out().println(CommandLimiter.THROTTLED_MESSAGE);
+                    continue;
+                }
+                CommandEvent event = new CommandEvent();
+                event.begin();
+                long waitStart = System.nanoTime();
+                long bytesBefore = session.bytesSent();
+                Semaphore turns = commandTurns;
+                turns.acquireUninterruptibly();
+                long turnWait = System.nanoTime() - waitStart;
+                String output;
+                Board.onThreadYield(passTurn(turns));
+                try {
+                    output = handleRequest(line, session);
+                } finally {
+                    Board.onThreadYield(null);
+                    turns.release();
+                }
+                publishToWebSockets(null);
+                if (event.shouldCommit()) {
+                    event.verb = words[0];
+                    event.protocol = "text";
+                    event.turnWait = turnWait;
+                    if (words.length >= 3 && line.matches("[a-z-]+( -?\\d+ -?\\d+)+")) {
+                        event.row = Integer.parseInt(words[1]);
+                        event.column = Integer.parseInt(words[2]);
+                    }
+                    event.commit();
+                }
+                if (session.binary()) {
+                    logCommand(session, words, waitStart, bytesBefore);
+                    //The client waited for the acknowledgement, so no frames are buffered in the scanner
+                    //Pipelined replies are flushed as soon as the requests run out, so don't let them wait on ACKs
+                    socket.setTcpNoDelay(true);
+                    serveBinary(socket.getInputStream(), session);
+                    break;
+                }
+                try {
+                    if (session.routed()) {
+                        //The router answers bye and BOOM for its own clients; this connection serves them all
+                        if (output != null) session.out().println(output);
+                        session.out().println(RoutedProtocol.END);
+                        continue;
+                    }
+                    //Board replies have already been streamed to the client
+                    if (output == null) continue;
+                    //The session may have switched to a compressed stream while handling the request
+                    PrintWriter out = session.out();
+                    if (output.contains("BOOM!") && this.debug == false) {
+                        out.println(output);
+                        //Disconnect client on boom message; serve() counts the disconnection
+                        out.close();
+                    } if (output.contains("bye")) {
+                        out.println(output);
+                        out.close();
+                    }
+                    else out.println(output);
+                } finally {
+                    //Once the reply has been queued, whichever way it went
+                    logCommand(session, words, waitStart, bytesBefore);
                 }
-                else out.println(output);
                 }
+            //The scanner ends input on any read error, including the idle timeout
+            if (in.ioException() instanceof SocketTimeoutException) {
+                metrics.idleDisconnected();
             }
+            }
+        catch (SocketTimeoutException ste) {
+            metrics.idleDisconnected();
+        }
         catch (IOException ioe) {
             throw new IOException("Error, unexpected termination.");
         }
         }
 
+    /**
+     * Returns the hook a command's dig cascades run between slices: if other clients are waiting for
+     * a turn, it releases the command's turn and takes one again, behind them, as turns are fair.
+     *
+     * @param turns the turns the command holds one of
+     * @return the hook, for Board.onThreadYield()
+     */
+    private static Runnable passTurn(Semaphore turns) {
+        return () -> {
+            if (turns.hasQueuedThreads()) {
+                turns.release();
+                turns.acquireUninterruptibly();
+            }
+        };
+    }
+
+    /**
+     * Records a text command in the access log.
+     * 
+     * @param session connection to the client
+     * @param words the command's words
+     * @param startNanos System.nanoTime() when the command was received
+     * @param bytesBefore session.bytesSent() before the command ran
+     */
+    private void logCommand(ClientSession session, String[] words, long startNanos, long bytesBefore) {
+        int row = position(words, 1);
+        int column = row == AccessLog.NO_POSITION ? AccessLog.NO_POSITION : position(words, 2);
+        if (column == AccessLog.NO_POSITION) row = AccessLog.NO_POSITION;
+        accessLog.record(session.name(), words[0], row, column, System.nanoTime() - startNanos,
+                session.bytesSent() - bytesBefore);
+    }
+    
+    /**
+     * @param words a command's words
+     * @param index index of a word
+     * @return words[index] as an int if there is such a word and it is one, else AccessLog.NO_POSITION
+     */
+    private static int position(String[] words, int index) {
+        if (index >= words.length) return AccessLog.NO_POSITION;
+        String word = words[index];
+        int start = word.startsWith("-") ? 1 : 0;
+        //Checked by hand, as parsing a word that is not a number throws
+        if (word.length() == start || word.length() - start > 9) return AccessLog.NO_POSITION;
+        for (int i = start; i < word.length(); i++) {
+            if (word.charAt(i) < '0' || word.charAt(i) > '9') return AccessLog.NO_POSITION;
+        }
+        return Integer.parseInt(word);
+    }
+
     /**
      * Handler for client input, performing requested operations and returning an output message.
+     * Replies showing the board are streamed to the client row by row, in the encoding chosen for the
+     * session, rather than built up as a message.
      * 
      * @param input message from client
+     * @param session connection to the client, which board replies are written to, ending with a newline
      * @return message to client, or null if none
+     * @throws IOException if a board reply cannot be written to the client
      */
-    private String handleRequest(String input) {
-        String regex = "(look)|(help)|(bye)|"
-                     + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
+    private String handleRequest(String input, ClientSession session) throws IOException {
         String helpMessage = "Enter 'dig' or 'flag' and a position to interact with the board. eg. 'dig 0 4'." +
-                " Type 'look' to view the current board state.";
+                " Enter 'chord' and the position of a number to dig around it once all its bombs are flagged." +
+                " 'dig-many' and 'flag-many' take any number of positions, eg. 'dig-many 0 4 2 3'." +
+                " Type 'look' to view the current board state, 'look zoom N' for an overview with one square" +
+                " per 2^N x 2^N tile, 'status' for the squares left to clear," +
+                " or 'hint' for the squares known to be safe." +
+                " 'encoding rle' run-length encodes board replies, and 'encoding rle deflate' also compresses them." +
+                " 'protocol binary' switches the connection to the binary protocol." +
+                " 'join NAME' moves you to the game called NAME, starting it if nobody has yet.";
+        String loadingMessage = "The board is still loading, please try again shortly.";
         
-        if ( ! input.matches(regex)) {
+        if ( ! COMMAND.matcher(input).matches()) {
             return helpMessage;
         }
         String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
-            return gameBoard.look();
-        } else if (tokens[0].equals("help")) {
+        if (tokens[0].equals("help")) {
             return helpMessage;
         } else if (tokens[0].equals("bye")) {
             return "bye";
+        } else if (tokens[0].equals("encoding")) {
+            session.setRunLength(tokens[1].equals("rle"));
+            //Acknowledged before compression starts, so the client knows where the compressed stream begins
+            session.out().println("Encoding: " + input.substring("encoding ".length()) + ".");
+            if (tokens.length == 3) session.startDeflate();
+            return null;
+        } else if (tokens[0].equals("protocol")) {
+            if (tokens[1].equals("routed")) {
+                byte[] secret = clusterSecret;
+                //Compared in constant time, so how long the reply takes says nothing about the secret
+                if (secret == null || tokens.length < 3
+                        || ! MessageDigest.isEqual(secret, tokens[2].getBytes(StandardCharsets.US_ASCII))) {
+                    return RoutedProtocol.REFUSED_REPLY;
+                }
+                session.out().println(RoutedProtocol.HANDSHAKE_REPLY);
+                session.startRouted();
+                return null;
+            }
+            session.out().println(BinaryProtocol.HANDSHAKE_REPLY);
+            session.startBinary();
+            return null;
+        } else if (tokens[0].equals("export") || tokens[0].equals("import")) {
+            //Only routers which sent the cluster's secret move games between servers
+            if ( ! session.routed()) return helpMessage;
+            return tokens[0].equals("export") ? exportGame(tokens[1]) : importGame(tokens[1], tokens[2]);
+        } else if (tokens[0].equals("join")) {
+            String joinedMessage;
+            try {
+                GameCache games = games();
+                Board joined = games.acquire(tokens[1]);
+                try {
+                    joinedMessage = String.format("Joined game %1$s: %2$d columns by %3$d rows.",
+                            tokens[1], joined.getColumns(), joined.getRows());
+                } finally {
+                    games.release(tokens[1]);
+                }
+            } catch (IOException ioe) {
+                //The client stays in the game it was playing
+                return "Cannot join game " + tokens[1] + ": " + ioe.getMessage();
+            }
+            session.setGame(tokens[1]);
+            return joinedMessage;
+        }
+        if (session.game() != null) {
+            String game = session.game();
+            GameCache games = games();
+            Board joined = games.acquire(game);
+            try {
+                //Joined games are evicted between commands, so their solvers are not kept either
+                return play(tokens, joined, null, session);
+            } finally {
+                games.release(game);
+            }
+        }
+        Board gameBoard = awaitBoard();
+        if (gameBoard == null) {
+            return loadingMessage;
+        }
+        return play(tokens, gameBoard, solver, session);
+    }
+    
+    /**
+     * Removes a game from this server for a router moving it to another.
+     * 
+     * @param name name of the game
+     * @return "Game NAME: DATA" with the game in Base64, or a message saying why it cannot be exported
+     * @throws IOException if the game was evicted and cannot be read
+     */
+    private String exportGame(String name) throws IOException {
+        try {
+            byte[] saved = games().exportGame(name);
+            if (saved == null) return "No game " + name + ".";
+            return RoutedProtocol.EXPORT_REPLY + name + ": " + Base64.getEncoder().encodeToString(saved);
+        } catch (IllegalStateException ise) {
+            return "Game " + name + " is in use.";
+        }
+    }
+    
+    /**
+     * Adds a game exported from another server, replacing any game of the same name.
+     * 
+     * @param name name of the game
+     * @param data the game in Base64, as exported
+     * @return message to the router, saying why the game was not imported if it was not
+     */
+    private String importGame(String name, String data) {
+        try {
+            games().importGame(name, Base64.getDecoder().decode(data));
+            return "Imported game " + name + ".";
+        } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+            return "Cannot import game " + name + ": " + e.getMessage();
+        }
+    }
+    
+    /**
+     * Runs a board command, charging the client's rate limits for the squares its digs open.
+     * 
+     * @param tokens the command, split on spaces
+     * @param gameBoard the board played on
+     * @param solver solver following gameBoard, or null to start one for a hint
+     * @param session connection to the client, which board replies are written to
+     * @return message to client, or null if none
+     * @throws IOException if a board reply cannot be written to the client
+     */
+    private String play(String[] tokens, Board gameBoard, Solver solver, ClientSession session) throws IOException {
+        if (tokens[0].equals("look")) {
+            return sendBoard(gameBoard, tokens.length == 3 ? Integer.parseInt(tokens[2]) : 0, session);
+        } else if (tokens[0].equals("status")) {
+            return String.format("Safe squares left: %1$d. Flags placed: %2$d. Bombs detonated: %3$d.",
+                    gameBoard.safeSquaresLeft(), gameBoard.flagsPlaced(), gameBoard.bombsDetonated());
+        } else if (tokens[0].equals("hint")) {
+            Solver hints = solver == null ? new Solver(gameBoard) : solver;
+            return tokens.length == 1 ? hint(hints) : hintAll(hints);
+        } else if (tokens[0].equals("dig-many")) {
+            DigResult dug = gameBoard.digAll(positions(tokens));
+            session.limiter().chargeCascade(dug.safeSquaresDug());
+            if (dug.detonated()) {
+                return "BOOM!";
+            }
+            return lookAfterDig(gameBoard, dug, session);
+        } else if (tokens[0].equals("flag-many")) {
+            gameBoard.flagAll(positions(tokens));
+            return sendBoard(gameBoard, session);
         } else {
             int x = Integer.parseInt(tokens[1]);
             int y = Integer.parseInt(tokens[2]);
-            System.out.println(x);
-            System.out.println(y);
             if (tokens[0].equals("dig")) {
-                if (gameBoard.checkBomb(x,y)) {
-                    gameBoard.dig(x, y);
+                    DigResult dug = gameBoard.dig(x, y);
+                session.limiter().chargeCascade(dug.safeSquaresDug());
+                if (dug.detonated()) {
+                    return "BOOM!";
+                }
+                return lookAfterDig(gameBoard, dug, session);
+            } else if (tokens[0].equals("chord")) {
+                    DigResult dug = gameBoard.chord(x, y);
+                session.limiter().chargeCascade(dug.safeSquaresDug());
+                if (dug.detonated()) {
                     return "BOOM!";
-                } gameBoard.dig(x, y);                
-                return gameBoard.look();
+                }
+                return lookAfterDig(gameBoard, dug, session);
             } else if (tokens[0].equals("flag")) {
                 gameBoard.flag(x, y);
-                return gameBoard.look();
+                return sendBoard(gameBoard, session);
             } else if (tokens[0].equals("deflag")) {
                 gameBoard.deflag(x,y);
-                return gameBoard.look();
+                return sendBoard(gameBoard, session);
             }
         }
         throw new UnsupportedOperationException("Should never reach here");
     }
 
+    /**
+     * Handles binary protocol requests until the client says bye, disconnects, or is disconnected after
+     * a BOOM. Replies are buffered while further pipelined requests are already waiting, and flushed
+     * once the client's requests run out.
+     * 
+     * @param socketIn input stream of the client's socket, positioned at the first request frame
+     * @param session connection to the client
+     * @throws IOException if the connection fails
+     */
+    private void serveBinary(InputStream socketIn, ClientSession session) throws IOException {
+        InputStream in = new BufferedInputStream(socketIn);
+        OutputStream out = new BufferedOutputStream(session.stream());
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        while (true) {
+            byte[] request;
+            reply.reset();
+            try {
+                request = BinaryProtocol.readFrame(in, BinaryProtocol.MAX_REQUEST_FRAME);
+            } catch (BinaryProtocol.MalformedFrameException malformed) {
+                //The frame's request id is unknown, so the error answers request 0
+                BinaryProtocol.writeVarint(reply, 0);
+                reply.write(BinaryProtocol.REPLY_ERROR);
+                BinaryProtocol.writeFrame(out, reply.toByteArray(), reply.size());
+                if ( ! malformed.atNextFrame()) break;
+                if (in.available() == 0) out.flush();
+                continue;
+            }
+            //Only the end of the stream between frames ends the connection quietly
+            if (request == null) break;
+            int code = runBinaryRequest(request, session, "binary", reply);
+            publishToWebSockets(null);
+            BinaryProtocol.writeFrame(out, reply.toByteArray(), reply.size());
+            if (code == BinaryProtocol.REPLY_BYE || (code == BinaryProtocol.REPLY_BOOM && !debug)) {
+                break;
+            }
+            if (in.available() == 0) out.flush();
+        }
+        out.flush();
+    }
+    
+    /**
+     * Runs a binary protocol request, unless the client's rate limits refuse it, taking a turn at the
+     * board like any other command, and records it in the access log. A truncated request is answered
+     * with REPLY_ERROR without being run.
+     * 
+     * @param request the request payload
+     * @param session the client's session
+     * @param protocol name of the protocol the request came by, for the flight recorder
+     * @param reply receives the reply payload
+     * @return the reply code written
+     * @throws IOException if the reply cannot be written
+     */
+    int runBinaryRequest(byte[] request, ClientSession session, String protocol, ByteArrayOutputStream reply)
+            throws IOException {
+        CommandLimiter limiter = session.limiter();
+        ByteArrayInputStream arguments = new ByteArrayInputStream(request);
+        int requestId = 0;
+        int opcode;
+        boolean positional;
+        try {
+            requestId = BinaryProtocol.readVarint(arguments);
+            opcode = arguments.read();
+            positional = opcode >= BinaryProtocol.DIG && opcode <= BinaryProtocol.CHORD;
+            arguments.mark(request.length);
+            if (positional) {
+                //Both coordinates are read now, so a truncated request never takes a turn at the board
+                BinaryProtocol.readVarint(arguments);
+                BinaryProtocol.readVarint(arguments);
+                arguments.reset();
+            }
+        } catch (IOException truncated) {
+            BinaryProtocol.writeVarint(reply, requestId);
+            reply.write(BinaryProtocol.REPLY_ERROR);
+            accessLog.record(session.name(), BinaryProtocol.verb(-1), AccessLog.NO_POSITION, AccessLog.NO_POSITION,
+                    0, reply.size());
+            return BinaryProtocol.REPLY_ERROR;
+        }
+        boolean digs = opcode == BinaryProtocol.DIG || opcode == BinaryProtocol.CHORD;
+        if (opcode != BinaryProtocol.BYE && ! limiter.admit(digs || opcode == BinaryProtocol.LOOK, 1)) {
+            BinaryProtocol.writeVarint(reply, requestId);
+            reply.write(BinaryProtocol.REPLY_THROTTLED);
+            return BinaryProtocol.REPLY_THROTTLED;
+        }
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        long waitStart = System.nanoTime();
+        Semaphore turns = commandTurns;
+        turns.acquireUninterruptibly();
+        long turnWait = System.nanoTime() - waitStart;
+        int code;
+        Board.onThreadYield(passTurn(turns));
+        try {
+            code = handleBinaryRequest(requestId, opcode, arguments, session, reply);
+        } finally {
+            Board.onThreadYield(null);
+            turns.release();
+        }
+        long latency = System.nanoTime() - waitStart;
+        int row = AccessLog.NO_POSITION;
+        int column = AccessLog.NO_POSITION;
+        if (positional) {
+            //Re-read the coordinates, which handleBinaryRequest has consumed
+            arguments.reset();
+            row = BinaryProtocol.unzigzag(BinaryProtocol.readVarint(arguments));
+            column = BinaryProtocol.unzigzag(BinaryProtocol.readVarint(arguments));
+        }
+        accessLog.record(session.name(), BinaryProtocol.verb(opcode), row, column, latency, reply.size());
+        if (event.shouldCommit()) {
+            event.verb = BinaryProtocol.verb(opcode);
+            event.protocol = protocol;
+            event.turnWait = turnWait;
+            if (positional) {
+                event.row = row;
+                event.column = column;
+            }
+            event.commit();
+        }
+        return code;
+    }
+    
+    /**
+     * Handler for a binary protocol request, performing the requested operation on the game the client
+     * plays, the one it joined or else the server's own, and writing the reply payload.
+     * 
+     * @param requestId id of the request
+     * @param opcode opcode of the request, or -1 if it has none
+     * @param arguments the rest of the request payload
+     * @param session the client's session, whose rate limiter is charged for the squares a dig opens
+     * @param reply receives the reply payload
+     * @return the reply code written
+     * @throws IOException if the request is truncated, which runBinaryRequest has ruled out already, or
+     *         the client's joined game was evicted and cannot be read
+     */
+    private int handleBinaryRequest(int requestId, int opcode, InputStream arguments, ClientSession session,
+            OutputStream reply) throws IOException {
+        BinaryProtocol.writeVarint(reply, requestId);
+        if (opcode == BinaryProtocol.BYE || opcode < BinaryProtocol.LOOK || opcode > BinaryProtocol.BYE) {
+            int code = opcode == BinaryProtocol.BYE ? BinaryProtocol.REPLY_BYE : BinaryProtocol.REPLY_ERROR;
+            reply.write(code);
+            return code;
+        }
+        String game = session.game();
+        if (game == null) {
+            return playBinary(opcode, arguments, awaitBoard(), session, reply);
+        }
+        GameCache games = games();
+        Board joined = games.acquire(game);
+        try {
+            return playBinary(opcode, arguments, joined, session, reply);
+        } finally {
+            games.release(game);
+        }
+    }
+    
+    /**
+     * Performs a binary protocol request on a board, and writes the reply code and the rest of the
+     * reply payload.
+     * 
+     * @param opcode the request's opcode, from LOOK to STATUS
+     * @param arguments the rest of the request payload
+     * @param gameBoard the board played on, or null if the server's own is still loading
+     * @param session the client's session, whose rate limiter is charged for the squares a dig opens,
+     *        and whose buffer the board is rendered into
+     * @param reply receives the reply code and payload
+     * @return the reply code written
+     * @throws IOException if the request is truncated, which runBinaryRequest has ruled out already
+     */
+    private static int playBinary(int opcode, InputStream arguments, Board gameBoard, ClientSession session,
+            OutputStream reply) throws IOException {
+        int code = binaryReplyCode(opcode, arguments, gameBoard, session.limiter());
+        reply.write(code);
+        if (code == BinaryProtocol.REPLY_BOARD || code == BinaryProtocol.REPLY_WON) {
+            BinaryProtocol.writeBoard(gameBoard, reply, session.renderBuffer());
+        } else if (code == BinaryProtocol.REPLY_STATUS) {
+            BinaryProtocol.writeVarint(reply, gameBoard.safeSquaresLeft());
+            BinaryProtocol.writeVarint(reply, gameBoard.flagsPlaced());
+            BinaryProtocol.writeVarint(reply, gameBoard.bombsDetonated());
+        }
+        return code;
+    }
+    
+    /**
+     * Performs a binary protocol request on a board.
+     * 
+     * @param opcode the request's opcode, from LOOK to STATUS
+     * @param arguments the rest of the request payload
+     * @param gameBoard the board played on, or null if the server's own is still loading
+     * @param limiter the client's rate limiter, charged for the squares a dig opens
+     * @return code of the reply to send
+     * @throws IOException if the request is truncated, which runBinaryRequest has ruled out already
+     */
+    private static int binaryReplyCode(int opcode, InputStream arguments, Board gameBoard, CommandLimiter limiter)
+            throws IOException {
+        if (gameBoard == null) {
+            return BinaryProtocol.REPLY_LOADING;
+        } else if (opcode == BinaryProtocol.LOOK) {
+            return BinaryProtocol.REPLY_BOARD;
+        } else if (opcode == BinaryProtocol.STATUS) {
+            return BinaryProtocol.REPLY_STATUS;
+        }
+        int x = BinaryProtocol.unzigzag(BinaryProtocol.readVarint(arguments));
+        int y = BinaryProtocol.unzigzag(BinaryProtocol.readVarint(arguments));
+        if (opcode == BinaryProtocol.FLAG) {
+            gameBoard.flag(x, y);
+            return BinaryProtocol.REPLY_BOARD;
+        } else if (opcode == BinaryProtocol.DEFLAG) {
+            gameBoard.deflag(x, y);
+            return BinaryProtocol.REPLY_BOARD;
+        }
+        DigResult dug = opcode == BinaryProtocol.DIG ? gameBoard.dig(x, y) : gameBoard.chord(x, y);
+        limiter.chargeCascade(dug.safeSquaresDug());
+        if (dug.detonated()) {
+            return BinaryProtocol.REPLY_BOOM;
+        }
+        return dug.clearedLastSquare() ? BinaryProtocol.REPLY_WON : BinaryProtocol.REPLY_BOARD;
+    }
+
+    /**
+     * @param tokens a bulk command split on spaces, whose arguments are pairs of coordinates
+     * @return the positions given, in order
+     */
+    private static List<Point> positions(String[] tokens) {
+        List<Point> positions = new ArrayList<>();
+        for (int i = 1; i + 1 < tokens.length; i += 2) {
+            positions.add(new Point(Integer.parseInt(tokens[i]), Integer.parseInt(tokens[i + 1])));
+        }
+        return positions;
+    }
+    
+    /**
+     * Streams the board to the client in the session's encoding, followed by a newline.
+     * 
+     * @param gameBoard the board to send
+     * @param session connection to the client
+     * @return null, as there is no further message
+     * @throws IOException if the board cannot be written to the client
+     */
+    private static String sendBoard(Board gameBoard, ClientSession session) throws IOException {
+        return sendBoard(gameBoard, 0, session);
+    }
+    
+    /**
+     * Streams the board, zoomed out as Board.look(Writer, int) does, to the client in the session's
+     * encoding, followed by a newline.
+     * 
+     * @param gameBoard the board to send
+     * @param zoom 0 for the full board, greater to zoom out
+     * @param session connection to the client
+     * @return null, as there is no further message
+     * @throws IOException if the board cannot be written to the client
+     */
+    private static String sendBoard(Board gameBoard, int zoom, ClientSession session) throws IOException {
+        //Not the session's PrintWriter, which would hide a client gone while the board is streamed
+        Writer out = session.boardOut();
+        if (session.runLength()) {
+            RunLengthWriter encoded = new RunLengthWriter(out);
+            gameBoard.look(encoded, zoom, session.renderBuffer());
+            encoded.endBoard();
+        } else {
+            gameBoard.look(out, zoom, session.renderBuffer());
+        }
+        out.write(System.lineSeparator());
+        session.flushBoard();
+        return null;
+    }
+    
+    /**
+     * Streams the board to the client after a dig.
+     * 
+     * @param gameBoard the board just dug
+     * @param dug the outcome of the dig, which won the game if it cleared the last safe square
+     * @param session connection to the client
+     * @return a win notice if the dig cleared the last safe square, otherwise null
+     * @throws IOException if the board cannot be written to the client
+     */
+    private static String lookAfterDig(Board gameBoard, DigResult dug, ClientSession session) throws IOException {
+        sendBoard(gameBoard, session);
+        if (dug.clearedLastSquare()) {
+            return WIN_MESSAGE;
+        }
+        return null;
+    }
+    
+    /**
+     * Lists the undug squares which can be deduced to be safe, and the squares deduced to hold bombs,
+     * from the dug squares alone.
+     * 
+     * @param solver solver following the board
+     * @return message of the form "Safe: (x,y) ... Mines: (x,y) ...", with "none" for empty lists
+     */
+    private static String hint(Solver solver) {
+        return "Safe: " + describe(solver.safeSquares()) + ". Mines: " + describe(solver.bombSquares()) + ".";
+    }
+    
+    /**
+     * Lists the bomb probability of every square on the frontier of the dug area, one per line as
+     * "(x,y) P", followed by a final "Other: P" line for every square not listed.
+     * 
+     * @param solver solver following the board
+     * @return message of bomb probabilities
+     */
+    private static String hintAll(Solver solver) {
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<Point, Double> entry : solver.probabilities().entrySet()) {
+            message.append(String.format(Locale.ROOT, "%s %.2f\n", entry.getKey(), entry.getValue()));
+        }
+        return message.append(String.format(Locale.ROOT, "Other: %.2f", solver.otherProbability())).toString();
+    }
+    
+    private static String describe(List<Point> squares) {
+        if (squares.isEmpty()) return "none";
+        StringJoiner joined = new StringJoiner(" ");
+        for (Point square : squares) joined.add(square.toString());
+        return joined.toString();
+    }
+
     /**
      * Start a MinesweeperServer using the given arguments.
      * 
      * <br> Usage:
-     *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
+     *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE] [--safe-first | --no-guess]
+     *                        [--websocket-port WS_PORT] [--access-log LOG_FILE] [--audit LEVEL]
      * 
      * <br> The --debug argument means the server should run in debug mode. The server should disconnect a
      *      client after a BOOM message if and only if the --debug flag was NOT given.
@@ -210,12 +1358,42 @@ public class MinesweeperServer {
      * 
      * <br> Note that --file and --size may not be specified simultaneously.
      * 
+     * <br> The --safe-first argument means bombs on a random board are only placed on the first dig,
+     *      never on or around the dug square. It has no effect on a board loaded from a file.
+     * <br> E.g. "MinesweeperServer --size 30,16 --safe-first" starts a random board whose first dig is safe.
+     * 
+     * <br> The --no-guess argument means the random board is generated so that, from an opening dug around
+     *      its centre square, it can be solved without guessing. If no such board is found within a few
+     *      seconds, a random board with the same opening is used instead.
+     *      It has no effect on a board loaded from a file.
+     * 
+     * <br> WS_PORT is an optional integer in the range 0 to 65535 inclusive, specifying a port on which the
+     *      server also accepts WebSocket clients, playing on the same board.
+     * <br> E.g. "MinesweeperServer --websocket-port 8080" also serves WebSocket clients on port 8080.
+     * 
+     * <br> LOG_FILE is an optional file pathname the server appends a line to for every connection and
+     *      command, rotating it to LOG_FILE.1 once it reaches 64MB and keeping 4 older files.
+     * <br> E.g. "MinesweeperServer --access-log access.log" logs every command to access.log.
+     * 
+     * <br> LEVEL is an optional argument, one of off (the default), incremental or sampling, specifying
+     *      how the server audits its boards' invariants: not at all, the squares changed by every
+     *      command as it finishes, or squares picked at random by a background thread every 100ms.
+     *      Violations are printed to standard error.
+     * <br> E.g. "MinesweeperServer --audit sampling" audits the boards in the background.
+     * 
+     * <br> SECRET_FILE is an optional file pathname whose first line is the secret a ClusterRouter must
+     *      send to play its clients' games on this server and move games to and from it. Without it,
+     *      the server refuses every router.
+     * <br> E.g. "MinesweeperServer --cluster-secret cluster.key" serves routers given the same file.
+     * 
      * @param args arguments as described
      */
     public static void main(String[] args) {
         // Command-line argument parsing is provided. Do not change this method.
+        // The options added to the provided ones are parsed by parseOption() into options, and listed in USAGE.
         boolean debug = false;
         int port = DEFAULT_PORT;
+        ServerOptions options = ServerOptions.DEFAULTS;
         int sizeX = DEFAULT_SIZE;
         int sizeY = DEFAULT_SIZE;
         Optional<File> file = Optional.empty();
@@ -247,7 +1425,7 @@ public class MinesweeperServer {
                             throw new IllegalArgumentException("file not found: \"" + file.get() + "\"");
                         }
                     } else {
-                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                        options = parseOption(flag, arguments, options);
                     }
                 } catch (NoSuchElementException nsee) {
                     throw new IllegalArgumentException("missing argument for " + flag);
@@ -257,20 +1435,54 @@ public class MinesweeperServer {
             }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+            System.err.println(USAGE);
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            runMinesweeperServer(debug, file, sizeX, sizeY, port, options);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
     }
 
+    /**
+     * Parses one of the options main() accepts beyond those it was provided with.
+     * 
+     * @param flag the option, without its argument
+     * @param arguments the arguments left, the option's argument first if it takes one, which is removed
+     * @param options the options parsed so far
+     * @return options with flag applied
+     * @throws IllegalArgumentException if flag is not an option, or its argument is invalid
+     * @throws NoSuchElementException if flag's argument is missing
+     * @throws NumberFormatException if flag's argument should be a number but is not
+     */
+    private static ServerOptions parseOption(String flag, Queue<String> arguments, ServerOptions options) {
+        if (flag.equals("--safe-first")) {
+            return options.withRandomBoard(ServerOptions.RandomBoard.SAFE_FIRST_DIG);
+        } else if (flag.equals("--no-guess")) {
+            return options.withRandomBoard(ServerOptions.RandomBoard.NO_GUESS);
+        } else if (flag.equals("--websocket-port")) {
+            int webSocketPort = Integer.parseInt(arguments.remove());
+            if (webSocketPort < 0 || webSocketPort > MAXIMUM_PORT) {
+                throw new IllegalArgumentException("port " + webSocketPort + " out of range");
+            }
+            return options.withWebSocketPort(webSocketPort);
+        } else if (flag.equals("--access-log")) {
+            return options.withAccessLog(new File(arguments.remove()));
+        } else if (flag.equals("--audit")) {
+            return options.withAuditLevel(BoardAuditor.Level.valueOf(arguments.remove().toUpperCase(Locale.ROOT)));
+        } else if (flag.equals("--cluster-secret")) {
+            return options.withClusterSecret(new File(arguments.remove()));
+        } else {
+            throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+        }
+    }
+
     /**
      * Start a MinesweeperServer running on the specified port, with either a random new board or a
-     * board loaded from a file.
+     * board loaded from a file. The server starts accepting connections straight away, while the board
+     * is built on a background thread; until it is ready clients are told the board is loading.
      * 
      * @param debug The server will disconnect a client after a BOOM message if and only if debug is false.
      * @param file If file.isPresent(), start with a board loaded from the specified file,
@@ -284,25 +1496,81 @@ public class MinesweeperServer {
      * @throws RuntimeException if board file is improperly formatted
      */
     public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port) throws IOException {
+        runMinesweeperServer(debug, file, sizeX, sizeY, port, ServerOptions.DEFAULTS);
+    }
+
+    /**
+     * Start a MinesweeperServer as runMinesweeperServer(debug, file, sizeX, sizeY, port), with options
+     * for how a random board is generated, WebSocket clients, the access log, auditing and cluster routers.
+     * 
+     * @param options the server's options; ServerOptions.DEFAULTS starts it as the overload without them
+     * @throws IllegalArgumentException if the cluster secret file does not start with a valid secret
+     * @see #runMinesweeperServer(boolean, Optional, int, int, int)
+     */
+    public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port,
+            ServerOptions options) throws IOException {
+        ServerOptions.RandomBoard randomBoard = options.randomBoard();
+        Optional<File> accessLog = options.accessLog();
+        Optional<File> clusterSecret = options.clusterSecret();
         
-        if (file.isPresent()) {
-            try {
-                gameBoard = new Board(file.get());
-                } catch (IllegalArgumentException iae) {
-                    throw new RuntimeException("Unable to parse board from file");
-                } catch (NoSuchElementException nsee) {
-                    throw new RuntimeException("Unable to parse board from file");
+        MinesweeperServer server;
+        try {
+            //Bind before building the board, so clients can connect while a large board loads
+            server = new MinesweeperServer(port, debug);
+            if (options.webSocketPort() >= 0) server.startWebSockets(options.webSocketPort());
+        } catch (IOException ioe) {
+            throw new IOException("Network error occurred");
+        }
+        server.setAuditLevel(options.auditLevel());
+        if (clusterSecret.isPresent()) {
+            server.setClusterSecret(RoutedProtocol.readSecret(clusterSecret.get().toPath()));
+        }
+        if (accessLog.isPresent()) {
+            AccessLog log = new AccessLog(accessLog.get().toPath(), ACCESS_LOG_CAPACITY, ACCESS_LOG_FILE_BYTES,
+                    ACCESS_LOG_KEPT_FILES, server.metrics());
+            server.setAccessLog(log);
+            //The server runs until the process is stopped, so write out the records left then
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    log.close();
+                } catch (IOException ioe) {
+                    System.err.println("Access log not written: " + ioe.getMessage());
                 }
-            
-        } else { 
-            //If file isn't present, build board from input dimensions (default = 10x10)
-            gameBoard = new Board(sizeY, sizeX);
-                    }
+            }));
+        }
+        
+        //Games joined by name are taken from the pool, so have one ready before the first join
+        BOARD_POOL.prepare(DEFAULT_SIZE, DEFAULT_SIZE, Board.DEFAULT_BOMB_PROBABILITY);
+        List<Exception> loadFailure = new CopyOnWriteArrayList<>();
+        server.loadBoard(() -> {
+            if (file.isPresent()) {
+                return new Board(file.get());
+            } else if (randomBoard == ServerOptions.RandomBoard.SAFE_FIRST_DIG) {
+                //Bomb placement, the expensive part of generation, is deferred to the first dig
+                return new Board(sizeY, sizeX, Board.DEFAULT_BOMB_PROBABILITY, true);
+            } else if (randomBoard == ServerOptions.RandomBoard.NO_GUESS) {
+                return new NoGuessGenerator(sizeY, sizeX, NO_GUESS_BOMB_PROBABILITY,
+                        Runtime.getRuntime().availableProcessors()).generate(NO_GUESS_DEADLINE_MILLIS);
+            } else {
+                //If file isn't present, take a board of the input dimensions (default = 10x10) from the pool,
+                //which is only refilled if joined games will take boards of the same size
+                return BOARD_POOL.take(sizeY, sizeX, Board.DEFAULT_BOMB_PROBABILITY,
+                        sizeX == DEFAULT_SIZE && sizeY == DEFAULT_SIZE);
+            }
+        }, loadFailure::add);
         
         try {
-            MinesweeperServer server = new MinesweeperServer(port, debug);
             server.serve();
         } catch (IOException ioe) {
+            if ( ! loadFailure.isEmpty()) {
+                Exception cause = loadFailure.get(0);
+                if (cause instanceof IllegalArgumentException || cause instanceof NoSuchElementException) {
+                    throw new RuntimeException("Unable to parse board from file");
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
             throw new IOException("Network error occurred");
         }
     }
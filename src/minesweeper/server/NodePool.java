@@ -0,0 +1,227 @@
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Connections from a ClusterRouter to one MinesweeperServer node, speaking the RoutedProtocol. A
+ * command borrows an idle connection, or opens one if none is idle, and hands it back once the reply
+ * has been read, so the router needs only as many connections as it runs commands at once.
+ */
+class NodePool implements Closeable {
+
+    /** Milliseconds to wait for a node to accept a connection. */
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    /** Milliseconds to wait for a reply before giving up on a node. */
+    private static final int REPLY_TIMEOUT_MILLIS = 30000;
+    /** Milliseconds a connection may stay idle before it is closed, well within the nodes' idle timeout. */
+    private static final long MAX_IDLE_MILLIS = 60 * 1000;
+
+    private final String node;
+    private final InetSocketAddress address;
+    private final String secret;
+    private final int maxIdle;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    // Abstraction function: The connections to node, at address, which no command is using: idle,
+    //  most recently used last, each used within MAX_IDLE_MILLIS or about to be closed. Connections in use belong to the thread running the command. Every
+    //  connection has sent secret in its handshake.
+    //
+    // Rep invariant: idle.size() <= maxIdle
+    //                closed implies idle is empty
+    //
+    // Rep exposure: All fields are private; connections never leave the pool's methods.
+    //
+    // Thread safety: idle and closed are guarded by the pool's lock, which is never held while
+    //  talking to the node. A connection is used by one thread at a time, having been taken from idle.
+
+    /**
+     * @param node name of the node, "host:port"
+     * @param secret the cluster's secret, sent in the RoutedProtocol handshake
+     * @param maxIdle most idle connections kept open, >= 0
+     */
+    NodePool(String node, String secret, int maxIdle) {
+        int colon = node.lastIndexOf(':');
+        this.node = node;
+        this.address = new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        this.secret = secret;
+        this.maxIdle = maxIdle;
+        checkRep();
+    }
+
+    private synchronized void checkRep() {
+        assert this.idle.size() <= this.maxIdle;
+        assert !this.closed || this.idle.isEmpty();
+    }
+
+    /**
+     * @return name of the node, "host:port"
+     */
+    String node() {
+        return this.node;
+    }
+
+    /**
+     * Runs a command on the node, in a game. Connections are closed before the node's idle timeout
+     * could close them. If an idle connection fails before the command is sent on it, while joining
+     * the game, the command is tried on another. Once the command has been sent it is never sent
+     * again, since the node may have run it even if no reply arrives.
+     *
+     * @param game name of the game to run command in, or null to run it wherever the connection is
+     * @param command a command of the text protocol
+     * @return the lines of the node's reply, without the RoutedProtocol.END line
+     * @throws IOException if the node cannot be reached or fails while replying
+     */
+    List<String> send(String game, String command) throws IOException {
+        while (true) {
+            Connection connection = takeIdle();
+            boolean reused = connection != null;
+            if (!reused) connection = new Connection(this.address, this.secret);
+            try {
+                //Joining changes only which game the connection plays, so it is harmless to repeat
+                if (game != null && !game.equals(connection.game) && !command.equals("join " + game)) {
+                    List<String> joined = connection.request("join " + game);
+                    if (!game.equals(connection.game)) throw new IOException("Cannot join " + game + ": " + joined);
+                }
+            } catch (IOException ioe) {
+                connection.close();
+                if (reused) continue;
+                throw ioe;
+            }
+            try {
+                List<String> reply = connection.request(command);
+                giveBack(connection);
+                return reply;
+            } catch (IOException ioe) {
+                connection.close();
+                throw ioe;
+            }
+        }
+    }
+
+    /**
+     * @return the idle connection used most recently, or null if there is none; idle connections
+     *         unused for longer than MAX_IDLE_MILLIS are closed
+     */
+    private Connection takeIdle() {
+        List<Connection> stale = new ArrayList<>();
+        Connection connection;
+        synchronized (this) {
+            //The least recently used come first
+            while (!this.idle.isEmpty() && this.idle.peekFirst().idleMillis() > MAX_IDLE_MILLIS) {
+                stale.add(this.idle.pollFirst());
+            }
+            connection = this.idle.pollLast();
+        }
+        for (Connection closing : stale) closing.close();
+        return connection;
+    }
+
+    private void giveBack(Connection connection) {
+        connection.lastUsedNanos = System.nanoTime();
+        synchronized (this) {
+            if (!this.closed && this.idle.size() < this.maxIdle) {
+                this.idle.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes the idle connections, and every connection in use as it is handed back.
+     */
+    @Override
+    public void close() {
+        List<Connection> closing;
+        synchronized (this) {
+            this.closed = true;
+            closing = new ArrayList<>(this.idle);
+            this.idle.clear();
+        }
+        for (Connection connection : closing) connection.close();
+    }
+
+    /**
+     * A routed connection to the node.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private String game = null;
+        private long lastUsedNanos = System.nanoTime();
+
+        // Abstraction function: A connection playing the game named game on the node, or the node's
+        //  own game if game is null, which last finished a command at System.nanoTime() lastUsedNanos.
+        //
+        // Thread safety: Not threadsafe; used by one thread at a time.
+
+        /**
+         * Connects to a node and switches the connection to the routed protocol.
+         */
+        Connection(InetSocketAddress address, String secret) throws IOException {
+            this.socket = new Socket();
+            try {
+                this.socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                this.socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+                this.socket.setTcpNoDelay(true);
+                this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+                this.out = new PrintWriter(this.socket.getOutputStream(), true);
+                String welcome = this.in.readLine();
+                if (welcome == null) throw new EOFException("Node closed the connection");
+                this.out.println(RoutedProtocol.HANDSHAKE + " " + secret);
+                //A refusal is a reply of the text protocol, which no END line follows
+                String reply = this.in.readLine();
+                if (!RoutedProtocol.HANDSHAKE_REPLY.equals(reply) || !RoutedProtocol.END.equals(this.in.readLine())) {
+                    throw new IOException("Node refused the routed protocol: " + reply);
+                }
+            } catch (IOException ioe) {
+                close();
+                throw ioe;
+            }
+        }
+
+        /**
+         * Sends a command and reads its reply, following the connection to any game it joins.
+         */
+        List<String> request(String command) throws IOException {
+            this.out.println(command);
+            List<String> reply = new ArrayList<>();
+            for (String line = this.in.readLine(); !RoutedProtocol.END.equals(line); line = this.in.readLine()) {
+                if (line == null) throw new EOFException("Node closed the connection");
+                reply.add(line);
+            }
+            if (command.startsWith("join ") && !reply.isEmpty() && reply.get(0).startsWith("Joined game ")) {
+                this.game = command.substring("join ".length());
+            }
+            return reply;
+        }
+
+        /**
+         * @return milliseconds since the connection last finished a command
+         */
+        long idleMillis() {
+            return (System.nanoTime() - this.lastUsedNanos) / 1_000_000;
+        }
+
+        void close() {
+            try {
+                this.socket.close();
+            } catch (IOException ioe) {
+                //already closed
+            }
+        }
+    }
+}
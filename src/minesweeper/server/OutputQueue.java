@@ -0,0 +1,329 @@
+package minesweeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The output stream of one client connection, which queues replies for a writer to send, so the
+ * thread handling the client's commands never blocks on a client that is slow to read. Every flush()
+ * queues the bytes written since the last one as a frame. The writer is a task run on an executor
+ * shared by every connection, and only while the connection has frames to send, so an idle
+ * connection holds no writer thread.
+ *
+ * The queue holds at most a fixed number of bytes. A reply streamed out in pieces, such as a large
+ * board, waits for the writer to make room for each piece, so it is sent at the pace the client reads
+ * it; the client is disconnected only if it reads nothing for STALL_MILLIS. When a complete frame
+ * would overflow the queue, board replies still waiting are dropped if the new frame is a board reply
+ * superseding them; if that does not make room, the client is disconnected.
+ */
+class OutputQueue extends OutputStream {
+
+    /** Bytes buffered before they are queued even without a flush, so large boards stream out in pieces. */
+    static final int CHUNK_BYTES = 64 << 10;
+    /** Milliseconds close() waits for queued replies to be sent. */
+    static final long DRAIN_MILLIS = 2000;
+    /** Milliseconds a piece of a streamed reply waits for the writer to make room for it. */
+    static final long STALL_MILLIS = 10000;
+
+    private final Socket socket;
+    private final OutputStream socketOut;
+    private final long limit;
+    private final ServerMetrics metrics;
+    private final Executor writers;
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private boolean pendingChunked = false;
+    private boolean snapshot = false;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private long totalBytes = 0;
+    private boolean closed = false;
+    private boolean draining = false;
+    private boolean finished = false;
+
+    // Abstraction function: A connection over socket whose replies frames, oldest first, are waiting
+    //  to be sent, followed by the bytes pending which have not been queued yet. draining is true
+    //  while a writer task on writers is sending them; the frame it is currently sending, if any, has
+    //  already left frames.
+    //  pendingChunked is true if part of the reply being written has already been queued, and the
+    //  rest waits for room in the queue rather than overflowing it. The next
+    //  frame queued is a complete board reply if snapshot is set. Once closed, no more frames are
+    //  queued and the writer task closes the socket's output after sending those left, and finished is
+    //  set once it has, or once the connection was aborted. totalBytes counts the bytes of every frame
+    //  ever queued.
+    //
+    // Rep invariant: queuedBytes == sum of the lengths of frames
+    //                queuedBytes <= limit, unless frames holds a single frame
+    //                at most one writer task runs at once
+    //
+    // Rep exposure: All fields are private. Frames hold copies of the bytes written, or bytes queued
+    //  whole by queueFrame(), which its callers never change.
+    //
+    // Thread safety: The connection thread writes and flushes, and the writer task takes frames;
+    //  all shared state is guarded by this object's lock. A writer task is only started, under the
+    //  lock, when draining is false, and it clears draining under the lock once frames is empty, so
+    //  only one task at a time ever writes to socketOut. close() waits on the lock for finished, and
+    //  the connection thread for room for the next piece of a streamed reply; the writer notifies the
+    //  lock whenever it takes a frame.
+
+    /**
+     * Makes the output queue of a client connection.
+     *
+     * @param socket the client's socket
+     * @param limit most bytes queued at once, > 0
+     * @param metrics receives queue depths, dropped replies and disconnects
+     * @param writers runs the tasks sending queued frames, one at a time for this connection
+     * @throws IOException if the socket's output stream cannot be opened
+     */
+    OutputQueue(Socket socket, long limit, ServerMetrics metrics, Executor writers) throws IOException {
+        this.socket = socket;
+        this.socketOut = socket.getOutputStream();
+        this.limit = limit;
+        this.metrics = metrics;
+        this.writers = writers;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        pending.write(b);
+        if (pending.size() >= CHUNK_BYTES) queuePending(true);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        pending.write(buffer, offset, length);
+        if (pending.size() >= CHUNK_BYTES) queuePending(true);
+    }
+
+    /**
+     * Queues the bytes written since the last flush as a frame.
+     *
+     * @throws IOException if the connection is closed, or was just closed because the queue overflowed
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        queuePending(false);
+    }
+
+    /**
+     * Marks the reply being written as a complete board, which a later board reply may replace while
+     * it is still queued. Takes effect unless part of the reply has already been queued.
+     */
+    synchronized void markSnapshot() {
+        snapshot = true;
+    }
+
+    /**
+     * Queues a complete reply as a frame of its own, after any bytes pending, without copying it. The
+     * same bytes may be queued on many connections.
+     *
+     * @param bytes the reply, which must never change afterwards
+     * @param snapshot true if the reply is a complete board, which a later board reply may replace
+     *                 while it is still queued
+     * @throws IOException if the connection is closed, or was just closed because the queue overflowed
+     */
+    synchronized void queueFrame(byte[] bytes, boolean snapshot) throws IOException {
+        queuePending(false);
+        enqueue(new Frame(bytes, snapshot));
+    }
+
+    /**
+     * @return bytes of every frame queued so far, whether or not they have been sent or dropped since
+     */
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Queues the pending bytes as a frame.
+     *
+     * @param chunk true if the reply being written continues after these bytes
+     */
+    private void queuePending(boolean chunk) throws IOException {
+        if (closed) throw new IOException("Connection closed");
+        if (pending.size() == 0) return;
+        Frame frame = new Frame(pending.toByteArray(), snapshot && !chunk && !pendingChunked);
+        boolean streamed = chunk || pendingChunked;
+        pending.reset();
+        pendingChunked = chunk;
+        snapshot = false;
+        if (streamed) awaitRoom(frame.bytes.length);
+        enqueue(frame);
+    }
+
+    /**
+     * Waits up to STALL_MILLIS for the writer to send enough queued frames that length more bytes
+     * fit, or the queue to empty, so a reply streamed out in pieces never overflows the queue while
+     * the client is still reading.
+     *
+     * @param length bytes of the piece to queue next
+     * @throws IOException if the connection was closed while waiting
+     */
+    private void awaitRoom(int length) throws IOException {
+        long deadline = System.currentTimeMillis() + STALL_MILLIS;
+        try {
+            for (long left = STALL_MILLIS; !closed && queuedBytes + length > limit && !frames.isEmpty() && left > 0;
+                    left = deadline - System.currentTimeMillis()) {
+                wait(left);
+            }
+        } catch (InterruptedException ie) {
+            //enqueue() disconnects the client if there is still no room
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a frame to the queue, making room by dropping board replies it supersedes, or closing the
+     * connection if there is no room.
+     */
+    private void enqueue(Frame frame) throws IOException {
+        if (closed) throw new IOException("Connection closed");
+        if (queuedBytes + frame.bytes.length > limit && !frames.isEmpty() && frame.snapshot) {
+            dropSnapshots();
+        }
+        if (queuedBytes + frame.bytes.length > limit && !frames.isEmpty()) {
+            metrics.slowClientDisconnected();
+            abort();
+            throw new IOException("Client is not reading its replies");
+        }
+        frames.addLast(frame);
+        queuedBytes += frame.bytes.length;
+        totalBytes += frame.bytes.length;
+        metrics.queued(frame.bytes.length, queuedBytes);
+        startWriter();
+    }
+
+    /**
+     * Starts a writer task unless one is running already, aborting the connection if the writers
+     * refuse it.
+     */
+    private void startWriter() {
+        if (draining || finished) return;
+        draining = true;
+        try {
+            writers.execute(this::drain);
+        } catch (RejectedExecutionException ree) {
+            //The server is shutting down
+            draining = false;
+            abort();
+        }
+    }
+
+    /**
+     * Drops every queued board reply.
+     */
+    private void dropSnapshots() {
+        Iterator<Frame> queued = frames.iterator();
+        while (queued.hasNext()) {
+            Frame frame = queued.next();
+            if (frame.snapshot) {
+                queued.remove();
+                queuedBytes -= frame.bytes.length;
+                metrics.dequeued(frame.bytes.length);
+                metrics.dropped();
+            }
+        }
+    }
+
+    /**
+     * Discards every queued frame and closes the socket, which stops the writer.
+     */
+    private void abort() {
+        closed = true;
+        finished = true;
+        for (Frame frame : frames) {
+            metrics.dequeued(frame.bytes.length);
+        }
+        frames.clear();
+        queuedBytes = 0;
+        notifyAll();
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            //ignore;
+        }
+    }
+
+    /**
+     * Queues any pending bytes, then waits up to DRAIN_MILLIS for the writer to send every queued
+     * frame and close the socket's output stream.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            try {
+                queuePending(false);
+            } catch (IOException ioe) {
+                //already closed for overflowing
+            }
+            closed = true;
+            //Even with nothing left to send, a writer closes the socket's output
+            startWriter();
+        }
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        try {
+            for (long left = DRAIN_MILLIS; !finished && left > 0; left = deadline - System.currentTimeMillis()) {
+                wait(left);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of a writer task: sends frames in order until there are none left, then ends, unless the
+     * queue is closed, in which case it closes the socket's output stream.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    if (frames.isEmpty() && !closed) {
+                        draining = false;
+                        return;
+                    }
+                    if (frames.isEmpty()) break;
+                    frame = frames.removeFirst();
+                    queuedBytes -= frame.bytes.length;
+                    metrics.dequeued(frame.bytes.length);
+                    //A streamed reply may be waiting for the room just made
+                    notifyAll();
+                }
+                socketOut.write(frame.bytes);
+                socketOut.flush();
+            }
+            socketOut.close();
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * A reply, or a piece of one, waiting to be sent.
+     */
+    private static class Frame {
+        private final byte[] bytes;
+        private final boolean snapshot;
+
+        // Thread safety: Immutable; the bytes are never changed after construction.
+
+        Frame(byte[] bytes, boolean snapshot) {
+            this.bytes = bytes;
+            this.snapshot = snapshot;
+        }
+    }
+}
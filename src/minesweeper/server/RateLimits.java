@@ -0,0 +1,78 @@
+package minesweeper.server;
+
+/**
+ * Per-client command rate limits of a MinesweeperServer. Each client gets two token buckets: one
+ * for cheap commands such as flag, and one for expensive commands which render or dig the board.
+ * A command spends one token from its bucket per square it names, and a dig or chord which cascades
+ * also spends costPerRevealedSquare expensive tokens for each further square it reveals.
+ * 
+ * A client without enough tokens is slowed down until its bucket refills; only a command which would
+ * have to wait longer than maxDelayMillis is refused.
+ */
+public class RateLimits {
+
+    /** Limits which never slow a client down. */
+    public static final RateLimits UNLIMITED = new RateLimits(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, 0, 0);
+
+    private final double cheapPerSecond;
+    private final double cheapBurst;
+    private final double expensivePerSecond;
+    private final double expensiveBurst;
+    private final double costPerRevealedSquare;
+    private final long maxDelayMillis;
+
+    // Rep invariant: every field > 0, except costPerRevealedSquare and maxDelayMillis >= 0
+    //
+    // Thread safety: Immutable: all fields are final.
+
+    /**
+     * @param cheapPerSecond cheap tokens added to a client's bucket per second, > 0
+     * @param cheapBurst most cheap tokens a client's bucket holds, > 0
+     * @param expensivePerSecond expensive tokens added to a client's bucket per second, > 0
+     * @param expensiveBurst most expensive tokens a client's bucket holds, > 0
+     * @param costPerRevealedSquare expensive tokens spent for each square a dig reveals beyond the one dug, >= 0
+     * @param maxDelayMillis longest a command is delayed before it is refused instead, >= 0
+     */
+    public RateLimits(double cheapPerSecond, double cheapBurst, double expensivePerSecond, double expensiveBurst,
+            double costPerRevealedSquare, long maxDelayMillis) {
+        this.cheapPerSecond = cheapPerSecond;
+        this.cheapBurst = cheapBurst;
+        this.expensivePerSecond = expensivePerSecond;
+        this.expensiveBurst = expensiveBurst;
+        this.costPerRevealedSquare = costPerRevealedSquare;
+        this.maxDelayMillis = maxDelayMillis;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert cheapPerSecond > 0 && cheapBurst > 0;
+        assert expensivePerSecond > 0 && expensiveBurst > 0;
+        assert costPerRevealedSquare >= 0;
+        assert maxDelayMillis >= 0;
+    }
+
+    double cheapPerSecond() {
+        return cheapPerSecond;
+    }
+
+    double cheapBurst() {
+        return cheapBurst;
+    }
+
+    double expensivePerSecond() {
+        return expensivePerSecond;
+    }
+
+    double expensiveBurst() {
+        return expensiveBurst;
+    }
+
+    double costPerRevealedSquare() {
+        return costPerRevealedSquare;
+    }
+
+    long maxDelayMillis() {
+        return maxDelayMillis;
+    }
+}
@@ -0,0 +1,68 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Text protocol spoken between a ClusterRouter and the MinesweeperServer nodes behind it. A router
+ * selects it by sending 'protocol routed SECRET' on a new connection, where SECRET is the secret the
+ * node was given; a node refuses the handshake from anyone else, or from everyone if it was given no
+ * secret. The secret is sent in plain text, so nodes should only be reachable on a network the
+ * cluster trusts. From then on the connection carries the commands of the text protocol, but the
+ * server ends every reply with a line holding only END, so the router knows where a reply of any
+ * number of lines stops, and no longer disconnects after a BOOM, since the connection is shared by
+ * the router's clients.
+ *
+ * Routed connections may also move games between servers:
+ *   'export NAME' removes the game from the server and replies "Game NAME: DATA", or "No game NAME."
+ *     if the server holds no such game; DATA is the game in Base64, in the format GameCache saves
+ *     evicted games in.
+ *   'import NAME DATA' replaces any game of that name with the exported game and replies
+ *     "Imported game NAME."
+ */
+public final class RoutedProtocol {
+
+    /** Command sent on the text protocol, followed by a space and the secret, to switch the connection to this one. */
+    public static final String HANDSHAKE = "protocol routed";
+    /** Reply acknowledging the handshake. */
+    public static final String HANDSHAKE_REPLY = "Protocol: routed.";
+    /** Reply refusing a handshake without the node's secret. */
+    public static final String REFUSED_REPLY = "The routed protocol is only for the cluster's routers.";
+    /** Line ending every reply; never a board row or a message. */
+    public static final String END = ".";
+    /** Start of a successful reply to 'export NAME', followed by the name, ": " and the data. */
+    static final String EXPORT_REPLY = "Game ";
+    /** Secrets allowed: printable ASCII without spaces, so the secret is one word of the handshake. */
+    private static final Pattern SECRET = Pattern.compile("[!-~]{1,256}");
+
+    private RoutedProtocol() {
+        // not instantiable
+    }
+
+    /**
+     * @param secret a string
+     * @return true if secret may be a cluster's secret: 1 to 256 printable ASCII characters other than space
+     */
+    public static boolean isValidSecret(String secret) {
+        return SECRET.matcher(secret).matches();
+    }
+
+    /**
+     * Reads a cluster's secret from the first line of a file, trimmed.
+     *
+     * @param file the file
+     * @return the secret
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file does not start with a valid secret
+     */
+    public static String readSecret(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+        String secret = lines.isEmpty() ? "" : lines.get(0).trim();
+        if ( ! isValidSecret(secret)) throw new IllegalArgumentException("no valid secret in " + file);
+        return secret;
+    }
+}
@@ -0,0 +1,92 @@
+package minesweeper.server;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer which run-length encodes a board written to it in the format of Board.look().
+ * 
+ * Each row of the board is written on its own line as runs separated by commas. A run is the square's
+ * character, with '_' standing for a dug square with no adjacent bombs, followed by how many times it
+ * repeats when that is more than once. E.g. the row "- - - 1 1  " is encoded as "-3,12,_".
+ */
+class RunLengthWriter extends FilterWriter {
+    
+    private int position = 0;
+    private char run;
+    private int count = 0;
+    private boolean firstRun = true;
+    
+    // Abstraction function: Encodes the board written so far. position is the index of the next
+    //  character within the current row of the board; even positions hold squares and odd positions
+    //  hold the spaces between them. The last count squares of the row read were all run, and have
+    //  not been written yet.
+    //
+    // Rep invariant: position >= 0, count >= 0
+    //
+    // Thread safety: Not threadsafe; confined to the connection thread sending the board.
+    
+    /**
+     * @param out destination of the encoded board
+     */
+    RunLengthWriter(Writer out) {
+        super(out);
+    }
+    
+    @Override
+    public void write(int c) throws IOException {
+        if (c == '\n') {
+            endRow();
+            out.write('\n');
+            return;
+        }
+        if (position++ % 2 != 0) return;
+        char square = (char) c;
+        if (count > 0 && square == run) {
+            count++;
+        } else {
+            writeRun();
+            run = square;
+            count = 1;
+        }
+    }
+    
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(buffer[i]);
+        }
+    }
+    
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(text.charAt(i));
+        }
+    }
+    
+    /**
+     * Writes the pending run of the final row, which is not followed by a newline. Does not flush.
+     * 
+     * @throws IOException if the underlying writer fails
+     */
+    void endBoard() throws IOException {
+        endRow();
+    }
+    
+    private void endRow() throws IOException {
+        writeRun();
+        position = 0;
+        firstRun = true;
+    }
+    
+    private void writeRun() throws IOException {
+        if (count == 0) return;
+        if (!firstRun) out.write(',');
+        out.write(run == ' ' ? '_' : run);
+        if (count > 1) out.write(Integer.toString(count));
+        firstRun = false;
+        count = 0;
+    }
+}
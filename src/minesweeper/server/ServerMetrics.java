@@ -0,0 +1,213 @@
+package minesweeper.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and gauges describing how a MinesweeperServer is coping with its clients.
+ */
+public class ServerMetrics {
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong queuedFrames = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong peakQueuedBytes = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong slowClientDisconnects = new AtomicLong();
+    private final AtomicLong idleDisconnects = new AtomicLong();
+    private final AtomicLong delayedCommands = new AtomicLong();
+    private final AtomicLong refusedCommands = new AtomicLong();
+    private final AtomicLong invariantViolations = new AtomicLong();
+    private final AtomicLong droppedLogRecords = new AtomicLong();
+    private final AtomicLong boardReadyMillis = new AtomicLong(-1);
+    private final AtomicLong firstAcceptMillis = new AtomicLong(-1);
+
+    // Abstraction function: connections is the number of clients currently connected, and
+    //  rejectedConnections counts the clients turned away because the server was full.
+    //  queuedFrames and queuedBytes are the replies currently waiting in every
+    //  client's output queue; peakQueuedBytes is the most ever waiting in a single client's queue.
+    //  droppedFrames counts board replies superseded by a later board before they were sent,
+    //  slowClientDisconnects the clients disconnected for not reading their replies, and
+    //  idleDisconnects the clients disconnected for sending nothing. delayedCommands and
+    //  refusedCommands count the commands slowed down and refused by clients' rate limits.
+    //  invariantViolations counts the board invariant violations found by the server's auditor, and
+    //  droppedLogRecords the records its access log could not write.
+    //  boardReadyMillis and firstAcceptMillis are the milliseconds from the server's start until its
+    //  board was ready and its first connection was accepted, or -1 until then.
+    //
+    // Rep invariant: every counter >= 0
+    //                boardReadyMillis >= -1, firstAcceptMillis >= -1
+    //
+    // Thread safety: Every field is atomic and updated independently, so a reader may see one
+    //  counter updated before another.
+
+    /**
+     * @return number of clients currently connected
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * @return number of clients turned away because the server was full
+     */
+    public long rejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * @return number of replies waiting to be sent, over all clients
+     */
+    public long queuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * @return bytes waiting to be sent, over all clients
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return most bytes ever waiting to be sent to one client
+     */
+    public long peakQueuedBytes() {
+        return peakQueuedBytes.get();
+    }
+
+    /**
+     * @return number of board replies dropped because a later board superseded them
+     */
+    public long droppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return number of clients disconnected because their output queue overflowed
+     */
+    public long slowClientDisconnects() {
+        return slowClientDisconnects.get();
+    }
+
+    /**
+     * @return number of clients disconnected because they sent nothing for too long
+     */
+    public long idleDisconnects() {
+        return idleDisconnects.get();
+    }
+
+    /**
+     * @return number of commands delayed by their client's rate limits
+     */
+    public long delayedCommands() {
+        return delayedCommands.get();
+    }
+
+    /**
+     * @return number of commands refused because their client's rate limits would delay them too long
+     */
+    public long refusedCommands() {
+        return refusedCommands.get();
+    }
+
+    /**
+     * @return number of board invariant violations found by the server's auditor
+     */
+    public long invariantViolations() {
+        return invariantViolations.get();
+    }
+
+    /**
+     * @return number of access log records dropped because the log was full or its file could not be written
+     */
+    public long droppedLogRecords() {
+        return droppedLogRecords.get();
+    }
+
+    /**
+     * @return milliseconds from the server's start until its board was ready, or -1 if it is still loading
+     */
+    public long boardReadyMillis() {
+        return boardReadyMillis.get();
+    }
+
+    /**
+     * @return milliseconds from the server's start until it accepted its first connection, or -1 if
+     *         it has accepted none
+     */
+    public long firstAcceptMillis() {
+        return firstAcceptMillis.get();
+    }
+
+    void connected() {
+        connections.incrementAndGet();
+    }
+
+    void disconnected() {
+        connections.decrementAndGet();
+    }
+
+    void rejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    void invariantViolated() {
+        invariantViolations.incrementAndGet();
+    }
+
+    void droppedLogRecords(long records) {
+        droppedLogRecords.addAndGet(records);
+    }
+
+    void boardReady(long millis) {
+        boardReadyMillis.compareAndSet(-1, millis);
+    }
+
+    void firstAccepted(long millis) {
+        firstAcceptMillis.compareAndSet(-1, millis);
+    }
+
+    /**
+     * Records a reply entering a client's queue.
+     *
+     * @param bytes length of the reply
+     * @param clientQueuedBytes bytes now waiting in that client's queue
+     */
+    void queued(int bytes, long clientQueuedBytes) {
+        queuedFrames.incrementAndGet();
+        queuedBytes.addAndGet(bytes);
+        peakQueuedBytes.accumulateAndGet(clientQueuedBytes, Math::max);
+    }
+
+    /**
+     * Records a reply leaving a client's queue, whether sent or dropped.
+     *
+     * @param bytes length of the reply
+     */
+    void dequeued(int bytes) {
+        queuedFrames.decrementAndGet();
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    void dropped() {
+        droppedFrames.incrementAndGet();
+    }
+
+    void slowClientDisconnected() {
+        slowClientDisconnects.incrementAndGet();
+    }
+
+    void idleDisconnected() {
+        idleDisconnects.incrementAndGet();
+    }
+
+    void delayedCommand() {
+        delayedCommands.incrementAndGet();
+    }
+
+    void refusedCommand() {
+        refusedCommands.incrementAndGet();
+    }
+}
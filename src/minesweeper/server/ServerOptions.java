@@ -0,0 +1,125 @@
+package minesweeper.server;
+
+import java.io.File;
+import java.util.Optional;
+
+import minesweeper.BoardAuditor;
+
+/**
+ * Options of a MinesweeperServer started by runMinesweeperServer, beyond its board and port: how a
+ * random board is generated, whether WebSocket clients are served, the access log, how boards are
+ * audited, and the secret cluster routers must send. Start from DEFAULTS and change only the options
+ * needed, e.g.
+ * <pre>
+ *   ServerOptions.DEFAULTS.withWebSocketPort(8080).withAuditLevel(BoardAuditor.Level.SAMPLING)
+ * </pre>
+ */
+public class ServerOptions {
+
+    /** How a random board is generated. */
+    public enum RandomBoard {
+        /** Every square holds a bomb with the default probability. */
+        UNIFORM,
+        /** No bombs are placed until the first dig, and none on or around the dug square. */
+        SAFE_FIRST_DIG,
+        /**
+         * A board which can be solved without guessing from an opening dug around its centre, falling
+         * back to a random board with that opening if none is found in time.
+         */
+        NO_GUESS
+    }
+
+    /** A uniform random board, no WebSocket clients, no access log, no audit, and no routers. */
+    public static final ServerOptions DEFAULTS = new ServerOptions(RandomBoard.UNIFORM, -1, Optional.empty(),
+            BoardAuditor.Level.OFF, Optional.empty());
+
+    private final RandomBoard randomBoard;
+    private final int webSocketPort;
+    private final Optional<File> accessLog;
+    private final BoardAuditor.Level auditLevel;
+    private final Optional<File> clusterSecret;
+
+    // Abstraction function: A server generating random boards as randomBoard says, accepting WebSocket
+    //  clients on webSocketPort unless it is -1, appending its access log to accessLog if present,
+    //  auditing boards at auditLevel, and serving routers sending the secret on the first line of
+    //  clusterSecret if present, refusing every router otherwise.
+    //
+    // Rep invariant: 0 <= webSocketPort <= 65535, or webSocketPort == -1
+    //
+    // Thread safety: Immutable: all fields are final and refer to immutable values.
+
+    private ServerOptions(RandomBoard randomBoard, int webSocketPort, Optional<File> accessLog,
+            BoardAuditor.Level auditLevel, Optional<File> clusterSecret) {
+        this.randomBoard = randomBoard;
+        this.webSocketPort = webSocketPort;
+        this.accessLog = accessLog;
+        this.auditLevel = auditLevel;
+        this.clusterSecret = clusterSecret;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert webSocketPort == -1 || (webSocketPort >= 0 && webSocketPort <= 65535);
+    }
+
+    /**
+     * @param randomBoard how a random board is generated; a board loaded from a file is used as it is
+     * @return these options, generating random boards that way
+     */
+    public ServerOptions withRandomBoard(RandomBoard randomBoard) {
+        return new ServerOptions(randomBoard, webSocketPort, accessLog, auditLevel, clusterSecret);
+    }
+
+    /**
+     * @param port port for WebSocket clients, requires 0 <= port <= 65535, or -1 for none
+     * @return these options, also accepting WebSocket clients on port
+     */
+    public ServerOptions withWebSocketPort(int port) {
+        return new ServerOptions(randomBoard, port, accessLog, auditLevel, clusterSecret);
+    }
+
+    /**
+     * @param file the file to append a line to for every connection and command, rotated once it
+     *             reaches 64MB
+     * @return these options, logging to file
+     */
+    public ServerOptions withAccessLog(File file) {
+        return new ServerOptions(randomBoard, webSocketPort, Optional.of(file), auditLevel, clusterSecret);
+    }
+
+    /**
+     * @param level how closely the server's boards are audited
+     * @return these options, auditing at level
+     */
+    public ServerOptions withAuditLevel(BoardAuditor.Level level) {
+        return new ServerOptions(randomBoard, webSocketPort, accessLog, level, clusterSecret);
+    }
+
+    /**
+     * @param file a file whose first line is the secret cluster routers must send
+     * @return these options, serving routers which send that secret
+     */
+    public ServerOptions withClusterSecret(File file) {
+        return new ServerOptions(randomBoard, webSocketPort, accessLog, auditLevel, Optional.of(file));
+    }
+
+    RandomBoard randomBoard() {
+        return randomBoard;
+    }
+
+    int webSocketPort() {
+        return webSocketPort;
+    }
+
+    Optional<File> accessLog() {
+        return accessLog;
+    }
+
+    BoardAuditor.Level auditLevel() {
+        return auditLevel;
+    }
+
+    Optional<File> clusterSecret() {
+        return clusterSecret;
+    }
+}
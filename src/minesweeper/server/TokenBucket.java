@@ -0,0 +1,63 @@
+package minesweeper.server;
+
+/**
+ * A token bucket which fills at a steady rate up to a maximum. Spending more tokens than the bucket
+ * holds leaves it in debt, which the refill pays off before any tokens are available again.
+ */
+class TokenBucket {
+
+    private final double perNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    // Abstraction function: A bucket holding tokens, as of System.nanoTime() == lastRefill, gaining
+    //  perNano tokens every nanosecond up to capacity. An infinite capacity is never empty.
+    //
+    // Rep invariant: perNano > 0, capacity > 0, tokens <= capacity
+    //
+    // Thread safety: Not threadsafe; each bucket belongs to one connection and is only used by its
+    //  thread, so clients never contend over their limits.
+
+    /**
+     * Creates a full bucket.
+     * 
+     * @param perSecond tokens added per second, > 0
+     * @param capacity most tokens held, > 0
+     */
+    TokenBucket(double perSecond, double capacity) {
+        this.perNano = perSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @param cost tokens wanted, >= 0
+     * @return nanoseconds until the bucket holds cost tokens, or 0 if it does already; at most the
+     *         time to fill the bucket completely plus pay off any debt
+     */
+    long delayFor(double cost) {
+        if (Double.isInfinite(capacity)) return 0;
+        refill();
+        double missing = Math.min(cost, capacity) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / perNano);
+    }
+
+    /**
+     * Removes tokens, going into debt if the bucket holds fewer than cost.
+     * 
+     * @param cost tokens to remove, >= 0
+     */
+    void spend(double cost) {
+        if (Double.isInfinite(capacity)) return;
+        refill();
+        tokens -= cost;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * perNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,213 @@
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Client of a WebSocketGateway, sending BinaryProtocol requests as WebSocket messages.
+ */
+public class WebSocketClient implements Closeable {
+
+    /** Largest reply accepted, enough for a board of 2^24 squares. */
+    private static final int MAX_REPLY_MESSAGE = (1 << 23) + 16;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final WebSocketProtocol.Reader reader;
+    private final boolean deflate;
+    private final Random masks = new SecureRandom();
+    private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    private int nextRequestId = 1;
+
+    // Abstraction function: A WebSocket connection to a gateway over socket, past the opening
+    //  handshake, whose replies are compressed iff deflate. Messages are written to out and read from
+    //  in by reader. The next request sent gets id nextRequestId; id 0 is left for board updates.
+    //
+    // Rep invariant: nextRequestId > 0
+    //
+    // Thread safety: Not threadsafe; each client should be used by one thread.
+
+    /**
+     * Connects to a gateway and completes the opening handshake.
+     *
+     * @param host gateway host name
+     * @param port gateway port
+     * @param deflate true to offer permessage-deflate
+     * @throws IOException if the connection fails or the gateway refuses the handshake
+     */
+    public WebSocketClient(String host, int port, boolean deflate) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = socket.getOutputStream();
+        byte[] nonce = new byte[16];
+        masks.nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+        out.write(("GET / HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n"
+                + (deflate ? "Sec-WebSocket-Extensions: " + WebSocketProtocol.DEFLATE_EXTENSION + "; client_max_window_bits\r\n" : "")
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        String status = readLine();
+        boolean accepted = false;
+        boolean compressed = false;
+        for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+            String lower = header.toLowerCase();
+            if (lower.startsWith("sec-websocket-accept:")) {
+                accepted = header.substring(header.indexOf(':') + 1).trim().equals(WebSocketProtocol.acceptKey(key));
+            } else if (lower.startsWith("sec-websocket-extensions:")) {
+                compressed = lower.contains(WebSocketProtocol.DEFLATE_EXTENSION);
+            }
+        }
+        if (!status.startsWith("HTTP/1.1 101") || !accepted) {
+            socket.close();
+            throw new IOException("Gateway refused the handshake: " + status);
+        }
+        this.deflate = compressed;
+        this.reader = new WebSocketProtocol.Reader(in, MAX_REPLY_MESSAGE, false);
+        if (compressed) reader.enableDeflate();
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException("Gateway closed the connection");
+            if (b != '\r') line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return true if the gateway agreed to compress its messages
+     */
+    public boolean deflate() {
+        return deflate;
+    }
+
+    /**
+     * Sends a request without arguments.
+     *
+     * @param opcode BinaryProtocol.LOOK, STATUS or BYE
+     * @return id of the request
+     * @throws IOException if the connection fails
+     */
+    public int send(int opcode) throws IOException {
+        request.reset();
+        int id = nextRequestId++;
+        BinaryProtocol.writeVarint(request, id);
+        request.write(opcode);
+        sendMessage(WebSocketProtocol.BINARY, request.toByteArray());
+        return id;
+    }
+
+    /**
+     * Sends a request on a square.
+     *
+     * @param opcode BinaryProtocol.DIG, FLAG, DEFLAG or CHORD
+     * @param row row of the square
+     * @param col column of the square
+     * @return id of the request
+     * @throws IOException if the connection fails
+     */
+    public int send(int opcode, int row, int col) throws IOException {
+        request.reset();
+        int id = nextRequestId++;
+        BinaryProtocol.writeVarint(request, id);
+        request.write(opcode);
+        BinaryProtocol.writeVarint(request, BinaryProtocol.zigzag(row));
+        BinaryProtocol.writeVarint(request, BinaryProtocol.zigzag(col));
+        sendMessage(WebSocketProtocol.BINARY, request.toByteArray());
+        return id;
+    }
+
+    /**
+     * Sends a ping, which the gateway answers with a pong that receive() skips.
+     *
+     * @throws IOException if the connection fails
+     */
+    public void ping() throws IOException {
+        sendMessage(WebSocketProtocol.PING, new byte[0]);
+    }
+
+    private void sendMessage(int opcode, byte[] payload) throws IOException {
+        out.write(WebSocketProtocol.encode(opcode, payload, payload.length, null, masks));
+        out.flush();
+    }
+
+    /**
+     * Waits for the next reply or board update.
+     *
+     * @return the reply
+     * @throws IOException if the connection fails or the gateway closes it
+     */
+    public BinaryClient.Reply receive() throws IOException {
+        while (true) {
+            WebSocketProtocol.Message message = reader.read();
+            if (message == null || message.opcode() == WebSocketProtocol.CLOSE) {
+                throw new EOFException("Gateway closed the connection");
+            } else if (message.opcode() == WebSocketProtocol.BINARY) {
+                return new BinaryClient.Reply(new ByteArrayInputStream(message.payload()));
+            }
+        }
+    }
+
+    /**
+     * Sends a request on a square and waits for its reply, skipping board updates.
+     *
+     * @param opcode BinaryProtocol.DIG, FLAG, DEFLAG or CHORD
+     * @param row row of the square
+     * @param col column of the square
+     * @return the reply
+     * @throws IOException if the connection fails
+     */
+    public BinaryClient.Reply call(int opcode, int row, int col) throws IOException {
+        return replyTo(send(opcode, row, col));
+    }
+
+    /**
+     * Sends a request without arguments and waits for its reply, skipping board updates.
+     *
+     * @param opcode BinaryProtocol.LOOK, STATUS or BYE
+     * @return the reply
+     * @throws IOException if the connection fails
+     */
+    public BinaryClient.Reply call(int opcode) throws IOException {
+        return replyTo(send(opcode));
+    }
+
+    private BinaryClient.Reply replyTo(int id) throws IOException {
+        BinaryClient.Reply reply;
+        do {
+            reply = receive();
+        } while (reply.requestId() != id);
+        return reply;
+    }
+
+    /**
+     * Sends a close frame and closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sendMessage(WebSocketProtocol.CLOSE, WebSocketProtocol.closePayload(WebSocketProtocol.CLOSE_NORMAL));
+        } catch (IOException ioe) {
+            //already closed
+        } finally {
+            reader.close();
+            socket.close();
+        }
+    }
+}
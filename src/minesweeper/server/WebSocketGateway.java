@@ -0,0 +1,417 @@
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+import minesweeper.Board;
+import minesweeper.RenderBuffer;
+
+/**
+ * WebSocket endpoint of a MinesweeperServer, for browsers, which cannot open raw sockets. Clients
+ * send binary messages holding BinaryProtocol requests, which run through the server's own request
+ * handling on the same board, and receive BinaryProtocol replies as binary messages, compressed with
+ * permessage-deflate if they offered it.
+ *
+ * Whenever any client of the server, on any protocol, changes the board, every WebSocket client but
+ * the one which changed it is sent a REPLY_UPDATE message with request id 0 carrying the new board.
+ * The update is encoded and compressed once, and the same frame queued on every connection; a client
+ * too slow to read has older updates dropped in favour of newer ones.
+ *
+ * WebSocket clients count towards the server's connection limit, as its other clients do, and are
+ * handled on the same threads. A browser's handshake carries the Origin of the page which opened
+ * the socket; it is refused unless the page came from the gateway's own host and port, or from an
+ * origin allowed by allowOrigin(), so other sites' pages cannot play as their visitors.
+ */
+public class WebSocketGateway {
+
+    /** Largest opening handshake accepted. */
+    private static final int MAX_HANDSHAKE_BYTES = 8192;
+    /** Replies smaller than this are sent uncompressed, as compression would save next to nothing. */
+    private static final int MIN_COMPRESSED_BYTES = 64;
+    /** End of the opening handshake's headers. */
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+    /** Reply to a handshake while the server is full. */
+    private static final byte[] BUSY_REPLY = ("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n"
+            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final MinesweeperServer server;
+    private final ServerSocket serverSocket;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Set<String> allowedOrigins = ConcurrentHashMap.newKeySet();
+    private Update latest = null;
+    private final RenderBuffer updateBuffer = new RenderBuffer();
+
+    // Abstraction function: A WebSocket endpoint on serverSocket for server's board, with a client on
+    //  every open connection in connections. latest is the last board update encoded, if any, its
+    //  board rendered into updateBuffer, which every update reuses. Pages from allowedOrigins,
+    //  lowercase, may open connections besides those from serverSocket's host.
+    //
+    // Rep invariant: true
+    //
+    // Rep exposure: All fields are private; update frames are shared between connections, which
+    //  never change them.
+    //
+    // Thread safety: connections and allowedOrigins are concurrent sets. latest and updateBuffer are
+    //  guarded by the gateway's lock, held only to find or encode the update for a board version.
+    //  Each connection is handled by one of the server's connection threads, and pushed updates from
+    //  any thread, under the connection's lock.
+
+    /**
+     * Make a WebSocketGateway that listens for connections on port.
+     *
+     * @param server the server whose board and request handling clients use
+     * @param port port number, requires 0 <= port <= 65535
+     * @throws IOException if an error occurs opening the server socket
+     */
+    WebSocketGateway(MinesweeperServer server, int port) throws IOException {
+        this.server = server;
+        this.serverSocket = new ServerSocket(port);
+    }
+
+    /**
+     * Lets pages from an origin other than the gateway's own open WebSocket connections.
+     *
+     * @param origin the origin, as browsers send it: scheme, host and any port, e.g. "https://example.com"
+     */
+    public void allowOrigin(String origin) {
+        allowedOrigins.add(origin.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Accepts WebSocket clients, within the server's connection limit and on its connection threads,
+     * until the server socket fails.
+     *
+     * @throws IOException if the server socket is broken
+     */
+    void serve() throws IOException {
+        server.acceptClients(serverSocket, this::handleConnection, BUSY_REPLY);
+    }
+
+    /**
+     * Handles a client from its opening handshake until either side closes the connection.
+     */
+    private void handleConnection(Socket socket) throws IOException {
+        socket.setSoTimeout(server.idleTimeoutMillis());
+        socket.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        try (ClientSession session = server.openSession(socket)) {
+            Map<String, String> headers = readHandshake(in);
+            String key = headers.get("sec-websocket-key");
+            if (key == null || ! headers.getOrDefault("upgrade", "").toLowerCase(Locale.ROOT).contains("websocket")
+                    || ! headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT).contains("upgrade")
+                    || ! "13".equals(headers.get("sec-websocket-version"))) {
+                session.queueFrame(("HTTP/1.1 400 Bad Request\r\nSec-WebSocket-Version: 13\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII), false);
+                return;
+            }
+            String origin = headers.get("origin");
+            if (origin != null && ! isAllowedOrigin(origin, headers.getOrDefault("host", ""))) {
+                session.queueFrame(("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII), false);
+                return;
+            }
+            boolean deflate = acceptsDeflate(headers.getOrDefault("sec-websocket-extensions", ""));
+            session.queueFrame(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + WebSocketProtocol.acceptKey(key.trim()) + "\r\n"
+                    + (deflate ? "Sec-WebSocket-Extensions: " + WebSocketProtocol.DEFLATE_EXTENSION
+                            + "; server_no_context_takeover\r\n" : "")
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII), false);
+            Connection connection = new Connection(session, deflate);
+            connections.add(connection);
+            try {
+                connection.serve(in);
+            } finally {
+                connections.remove(connection);
+                connection.close();
+            }
+        } catch (SocketTimeoutException ste) {
+            server.metrics().idleDisconnected();
+        }
+    }
+
+    /**
+     * Reads the opening handshake's request line and headers.
+     *
+     * @return the headers, by lowercase name, repeated headers joined with commas
+     * @throws IOException if the connection fails, or the handshake is too long
+     */
+    private static Map<String, String> readHandshake(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < HEADERS_END.length) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Connection closed during the handshake");
+            if (head.size() >= MAX_HANDSHAKE_BYTES) throw new IOException("Handshake too long");
+            head.write(b);
+            matched = b == HEADERS_END[matched] ? matched + 1 : (b == HEADERS_END[0] ? 1 : 0);
+        }
+        String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        if ( ! lines[0].startsWith("GET ")) return headers;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            headers.merge(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                    lines[i].substring(colon + 1).trim(), (a, b) -> a + ", " + b);
+        }
+        return headers;
+    }
+
+    /**
+     * @param origin the handshake's Origin header
+     * @param host the handshake's Host header
+     * @return true if origin was allowed by allowOrigin(), or is the host the client connected to,
+     *         over http or https
+     */
+    private boolean isAllowedOrigin(String origin, String host) {
+        String lowerOrigin = origin.toLowerCase(Locale.ROOT);
+        if (allowedOrigins.contains(lowerOrigin)) return true;
+        String lowerHost = host.toLowerCase(Locale.ROOT);
+        return ! lowerHost.isEmpty()
+                && (lowerOrigin.equals("http://" + lowerHost) || lowerOrigin.equals("https://" + lowerHost));
+    }
+
+    /**
+     * @param extensions the client's Sec-WebSocket-Extensions header
+     * @return true if the client offered permessage-deflate with parameters the gateway can meet:
+     *         it always compresses with a full window and without context takeover
+     */
+    private static boolean acceptsDeflate(String extensions) {
+        for (String offer : extensions.split(",")) {
+            String[] parameters = offer.split(";");
+            if ( ! parameters[0].trim().equals(WebSocketProtocol.DEFLATE_EXTENSION)) continue;
+            boolean acceptable = true;
+            for (int i = 1; i < parameters.length; i++) {
+                String[] parameter = parameters[i].trim().split("=", 2);
+                String value = parameter.length > 1 ? parameter[1].trim().replace("\"", "") : null;
+                switch (parameter[0].trim()) {
+                case "server_no_context_takeover":
+                case "client_no_context_takeover":
+                case "client_max_window_bits":
+                    break;
+                case "server_max_window_bits":
+                    acceptable &= "15".equals(value);
+                    break;
+                default:
+                    acceptable = false;
+                }
+            }
+            if (acceptable) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends a board update to every client but origin, unless the board has not changed since the
+     * client was last sent it.
+     *
+     * @param board the server's board
+     * @param origin the connection whose command changed the board, or null
+     */
+    void publish(Board board, Object origin) {
+        long version = board.version();
+        Update update = null;
+        for (Connection connection : connections) {
+            if (connection == origin) {
+                connection.received(board, version);
+            } else if (connection.behind(board, version)) {
+                //Encoded only once some client needs it
+                if (update == null) update = update(board);
+                connection.push(update);
+            }
+        }
+    }
+
+    /**
+     * @param board the server's board
+     * @param deflate true for the compressed frame
+     * @return the frame of the update carrying the board as it is now, shared by every connection
+     */
+    byte[] updateFrame(Board board, boolean deflate) {
+        return update(board).frame(deflate);
+    }
+
+    /**
+     * @return the update carrying the board's current version, encoded now unless it already was
+     */
+    private Update update(Board board) {
+        long version = board.version();
+        synchronized (this) {
+            if (latest == null || latest.board != board || latest.version != version) {
+                latest = new Update(board, version, updateBuffer);
+            }
+            return latest;
+        }
+    }
+
+    /**
+     * A board update, encoded once for every connection.
+     */
+    private static class Update {
+        private final Board board;
+        private final long version;
+        private final byte[] payload;
+        private byte[] plain = null;
+        private byte[] deflated = null;
+
+        // Abstraction function: The update sending board as of version, whose reply payload is
+        //  payload, and whose frames, once first needed, are plain and deflated.
+        //
+        // Thread safety: plain and deflated are guarded by the update's lock, and never change once set.
+
+        Update(Board board, long version, RenderBuffer buffer) {
+            this.board = board;
+            this.version = version;
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            try {
+                BinaryProtocol.writeVarint(payload, 0);
+                payload.write(BinaryProtocol.REPLY_UPDATE);
+                BinaryProtocol.writeBoard(board, payload, buffer);
+            } catch (IOException ioe) {
+                throw new AssertionError("Writing to memory cannot fail", ioe);
+            }
+            this.payload = payload.toByteArray();
+        }
+
+        synchronized byte[] frame(boolean deflate) {
+            if (deflate && deflated == null) {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+                try {
+                    deflated = WebSocketProtocol.encode(WebSocketProtocol.BINARY, payload, payload.length, deflater, null);
+                } finally {
+                    deflater.end();
+                }
+            } else if (!deflate && plain == null) {
+                plain = WebSocketProtocol.encode(WebSocketProtocol.BINARY, payload, payload.length, null, null);
+            }
+            return deflate ? deflated : plain;
+        }
+    }
+
+    /**
+     * A WebSocket client, past the opening handshake.
+     */
+    private class Connection {
+        private final ClientSession session;
+        private final boolean deflate;
+        private final Deflater deflater;
+        private long sentVersion = -1;
+        private Board sentBoard = null;
+
+        // Abstraction function: A client whose replies and updates are queued on session, compressed
+        //  by deflater iff deflate. The client has been sent sentBoard as of sentVersion, or no board
+        //  if sentBoard is null.
+        //
+        // Thread safety: The connection's thread reads requests and sends replies; updates are pushed
+        //  from any thread. sentVersion, sentBoard and the session's output queue are used under the
+        //  connection's lock, so updates and replies are queued whole, and updates in version order.
+        //  The session's queue never blocks, so the lock is never held waiting on the client.
+
+        Connection(ClientSession session, boolean deflate) {
+            this.session = session;
+            this.deflate = deflate;
+            this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED, true) : null;
+        }
+
+        /**
+         * Handles the client's messages until either side closes the connection.
+         */
+        void serve(InputStream in) throws IOException {
+            WebSocketProtocol.Reader reader = new WebSocketProtocol.Reader(in, BinaryProtocol.MAX_REQUEST_FRAME, true);
+            if (deflate) reader.enableDeflate();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            try {
+                WebSocketProtocol.Message message;
+                while ((message = reader.read()) != null) {
+                    switch (message.opcode()) {
+                    case WebSocketProtocol.PING:
+                        send(WebSocketProtocol.PONG, message.payload(), message.payload().length);
+                        break;
+                    case WebSocketProtocol.PONG:
+                        break;
+                    case WebSocketProtocol.CLOSE:
+                        //Echo the client's status, as RFC 6455 asks
+                        send(WebSocketProtocol.CLOSE, message.payload(), Math.min(2, message.payload().length));
+                        return;
+                    case WebSocketProtocol.TEXT:
+                        sendClose(WebSocketProtocol.CLOSE_UNSUPPORTED);
+                        return;
+                    default:
+                        reply.reset();
+                        int code = server.runBinaryRequest(message.payload(), session, "websocket", reply);
+                        server.publishToWebSockets(this);
+                        send(WebSocketProtocol.BINARY, reply.toByteArray(), reply.size());
+                        if (code == BinaryProtocol.REPLY_BYE || (code == BinaryProtocol.REPLY_BOOM && ! server.debug())) {
+                            sendClose(WebSocketProtocol.CLOSE_NORMAL);
+                            return;
+                        }
+                    }
+                }
+            } catch (WebSocketProtocol.WebSocketException wse) {
+                sendClose(wse.status());
+            } finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * Queues a message, compressing a large enough data message if the client accepts compression.
+         */
+        private synchronized void send(int opcode, byte[] payload, int length) throws IOException {
+            boolean compress = deflate && opcode == WebSocketProtocol.BINARY && length >= MIN_COMPRESSED_BYTES;
+            session.queueFrame(WebSocketProtocol.encode(opcode, payload, length, compress ? deflater : null, null), false);
+        }
+
+        private void sendClose(int status) throws IOException {
+            byte[] payload = WebSocketProtocol.closePayload(status);
+            send(WebSocketProtocol.CLOSE, payload, payload.length);
+        }
+
+        /**
+         * @return true if the client has not been sent board as of version
+         */
+        synchronized boolean behind(Board board, long version) {
+            return board != sentBoard || version > sentVersion;
+        }
+
+        /**
+         * Records that the client has board as of version, in a reply.
+         */
+        synchronized void received(Board board, long version) {
+            if (behind(board, version)) {
+                sentBoard = board;
+                sentVersion = version;
+            }
+        }
+
+        /**
+         * Queues an update, unless the client has been sent the board as of its version or later.
+         */
+        synchronized void push(Update update) {
+            if ( ! behind(update.board, update.version)) return;
+            sentBoard = update.board;
+            sentVersion = update.version;
+            try {
+                session.queueFrame(update.frame(deflate), true);
+            } catch (IOException ioe) {
+                //The connection has closed; its thread is finishing
+            }
+        }
+
+        void close() {
+            if (deflater != null) deflater.end();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package minesweeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format of the WebSocket gateway: RFC 6455 frames, optionally compressed with the
+ * permessage-deflate extension of RFC 7692. Each binary message carries one payload of the
+ * BinaryProtocol, without the varint length prefix, since messages delimit themselves: requests
+ * from the client, replies and board updates from the server.
+ *
+ * Compressed messages have RSV1 set on their first frame and are DEFLATE data, ended by a sync flush
+ * whose final 4 bytes 00 00 FF FF are left out. The server never carries its compression context
+ * from one message to the next, so a message it compresses once may be sent to every client.
+ */
+public final class WebSocketProtocol {
+
+    /** Name of the compression extension, in Sec-WebSocket-Extensions. */
+    public static final String DEFLATE_EXTENSION = "permessage-deflate";
+    /** Continuation of a fragmented message. */
+    static final int CONTINUATION = 0x0;
+    /** Text message, which the gateway does not accept. */
+    static final int TEXT = 0x1;
+    /** Binary message. */
+    static final int BINARY = 0x2;
+    /** Close control frame. */
+    static final int CLOSE = 0x8;
+    /** Ping control frame. */
+    static final int PING = 0x9;
+    /** Pong control frame. */
+    static final int PONG = 0xA;
+
+    /** Close status: the connection has done its job. */
+    static final int CLOSE_NORMAL = 1000;
+    /** Close status: the peer broke the protocol. */
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    /** Close status: the peer sent a kind of message not accepted. */
+    static final int CLOSE_UNSUPPORTED = 1003;
+    /** Close status: the peer sent a message too big to accept. */
+    static final int CLOSE_TOO_BIG = 1009;
+
+    /** Appended to Sec-WebSocket-Key before hashing it into Sec-WebSocket-Accept. */
+    private static final String KEY_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    /** End of a sync flush, left out of every compressed message. */
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    /** Largest control frame payload allowed by RFC 6455. */
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private WebSocketProtocol() {
+        // not instantiable
+    }
+
+    /**
+     * @param key the client's Sec-WebSocket-Key
+     * @return the server's Sec-WebSocket-Accept for key
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + KEY_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError("Every JVM provides SHA-1", nsae);
+        }
+    }
+
+    /**
+     * Encodes a message as a single frame.
+     *
+     * @param opcode BINARY, CLOSE, PING or PONG
+     * @param payload message contents
+     * @param length number of bytes of payload to send
+     * @param deflater compresses the message, after being reset, or null to send it uncompressed;
+     *                 only for data messages, and created with nowrap for raw DEFLATE data
+     * @param masks supplies the masking key of a client's frame, or null for a server's unmasked frame
+     * @return the frame
+     */
+    static byte[] encode(int opcode, byte[] payload, int length, Deflater deflater, Random masks) {
+        byte[] body = payload;
+        int bodyLength = length;
+        if (deflater != null) {
+            body = compress(deflater, payload, length);
+            bodyLength = body.length;
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(bodyLength + 14);
+        frame.write(0x80 | (deflater != null ? 0x40 : 0) | opcode);
+        int maskBit = masks != null ? 0x80 : 0;
+        if (bodyLength < 126) {
+            frame.write(maskBit | bodyLength);
+        } else if (bodyLength <= 0xFFFF) {
+            frame.write(maskBit | 126);
+            frame.write(bodyLength >>> 8);
+            frame.write(bodyLength);
+        } else {
+            frame.write(maskBit | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                frame.write((int) ((long) bodyLength >>> shift));
+            }
+        }
+        if (masks == null) {
+            frame.write(body, 0, bodyLength);
+        } else {
+            byte[] mask = new byte[4];
+            masks.nextBytes(mask);
+            frame.write(mask, 0, mask.length);
+            for (int i = 0; i < bodyLength; i++) {
+                frame.write(body[i] ^ mask[i % 4]);
+            }
+        }
+        return frame.toByteArray();
+    }
+
+    /**
+     * @return payload[0 .. length-1] compressed on its own as a permessage-deflate message
+     */
+    private static byte[] compress(Deflater deflater, byte[] payload, int length) {
+        deflater.reset();
+        deflater.setInput(payload, 0, length);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 16);
+        byte[] buffer = new byte[Math.max(64, Math.min(length + 16, 1 << 16))];
+        int written;
+        do {
+            written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            compressed.write(buffer, 0, written);
+        } while (written == buffer.length);
+        byte[] flushed = compressed.toByteArray();
+        byte[] message = new byte[flushed.length - SYNC_TAIL.length];
+        System.arraycopy(flushed, 0, message, 0, message.length);
+        return message;
+    }
+
+    /**
+     * @param status a close status code
+     * @return payload of a close frame with that status
+     */
+    static byte[] closePayload(int status) {
+        return new byte[] {(byte) (status >>> 8), (byte) status};
+    }
+
+    /**
+     * A message or control frame received.
+     */
+    static class Message {
+        private final int opcode;
+        private final byte[] payload;
+
+        // Thread safety: Immutable; payload is never changed after construction.
+
+        Message(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        /**
+         * @return TEXT, BINARY, CLOSE, PING or PONG
+         */
+        int opcode() {
+            return opcode;
+        }
+
+        /**
+         * @return the message's contents, decompressed; must not be changed
+         */
+        byte[] payload() {
+            return payload;
+        }
+    }
+
+    /**
+     * Reads the messages of one side of a connection, joining fragments and decompressing them.
+     */
+    static class Reader {
+        private final InputStream in;
+        private final int maxMessage;
+        private final boolean masked;
+        private Inflater inflater = null;
+        private final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+        private int fragmentedOpcode = -1;
+        private boolean fragmentedCompressed = false;
+
+        // Abstraction function: Messages arriving on in, each at most maxMessage bytes once
+        //  decompressed, from a peer which masks its frames iff masked. fragments holds the frames of a
+        //  message whose final frame has not arrived yet, of type fragmentedOpcode and compressed iff
+        //  fragmentedCompressed, or is empty with fragmentedOpcode -1. inflater decompresses messages
+        //  once compression has been negotiated, keeping its context from message to message.
+        //
+        // Thread safety: Not threadsafe; confined to the thread reading the connection.
+
+        /**
+         * @param in the connection's input
+         * @param maxMessage largest message accepted, decompressed
+         * @param masked true to read a client's frames, which must be masked
+         */
+        Reader(InputStream in, int maxMessage, boolean masked) {
+            this.in = in;
+            this.maxMessage = maxMessage;
+            this.masked = masked;
+        }
+
+        /**
+         * Accepts compressed messages from now on.
+         */
+        void enableDeflate() {
+            if (inflater == null) inflater = new Inflater(true);
+        }
+
+        /**
+         * Reads the next message, or control frame, which may arrive between the fragments of a message.
+         *
+         * @return the message, or null if the connection ended cleanly before a frame
+         * @throws IOException if the connection fails or ends within a frame
+         * @throws WebSocketException if the peer breaks the protocol or sends a message too big
+         */
+        Message read() throws IOException {
+            while (true) {
+                int first = in.read();
+                if (first < 0) {
+                    if (fragmentedOpcode >= 0) throw new EOFException("End of stream within a message");
+                    return null;
+                }
+                int second = readByte();
+                boolean fin = (first & 0x80) != 0;
+                boolean compressed = (first & 0x40) != 0;
+                int opcode = first & 0x0F;
+                if ((first & 0x30) != 0 || (compressed && inflater == null)) {
+                    throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Reserved bits set");
+                }
+                if (((second & 0x80) != 0) != masked) {
+                    throw new WebSocketException(CLOSE_PROTOCOL_ERROR, masked ? "Frame not masked" : "Frame masked");
+                }
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = readByte() << 8 | readByte();
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) length = length << 8 | readByte();
+                }
+                boolean control = (opcode & 0x8) != 0;
+                if (control && (!fin || compressed || length > MAX_CONTROL_PAYLOAD)) {
+                    throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Malformed control frame");
+                }
+                //Compressed messages are checked again once inflated; incompressible ones grow a little
+                if (length < 0 || fragments.size() + length > maxMessage + 64) {
+                    throw new WebSocketException(CLOSE_TOO_BIG, "Message too big");
+                }
+                byte[] payload = readPayload((int) length);
+                if (control) return new Message(opcode, payload);
+                if (opcode == CONTINUATION) {
+                    if (fragmentedOpcode < 0 || compressed) {
+                        throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Unexpected continuation");
+                    }
+                } else {
+                    if (fragmentedOpcode >= 0) throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Expected continuation");
+                    if (opcode != TEXT && opcode != BINARY) {
+                        throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+                    }
+                    fragmentedOpcode = opcode;
+                    fragmentedCompressed = compressed;
+                }
+                fragments.write(payload, 0, payload.length);
+                if (!fin) continue;
+                byte[] message = fragments.toByteArray();
+                if (fragmentedCompressed) message = decompress(message);
+                if (message.length > maxMessage) throw new WebSocketException(CLOSE_TOO_BIG, "Message too big");
+                Message complete = new Message(fragmentedOpcode, message);
+                fragments.reset();
+                fragmentedOpcode = -1;
+                return complete;
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) throw new EOFException("End of stream within a frame");
+            return b;
+        }
+
+        private byte[] readPayload(int length) throws IOException {
+            byte[] mask = new byte[4];
+            if (masked) readFully(mask);
+            byte[] payload = new byte[length];
+            readFully(payload);
+            if (masked) {
+                for (int i = 0; i < length; i++) payload[i] ^= mask[i % 4];
+            }
+            return payload;
+        }
+
+        private void readFully(byte[] buffer) throws IOException {
+            for (int read = 0; read < buffer.length; ) {
+                int n = in.read(buffer, read, buffer.length - read);
+                if (n < 0) throw new EOFException("End of stream within a frame");
+                read += n;
+            }
+        }
+
+        /**
+         * Inflates a compressed message, refusing to inflate it past maxMessage bytes.
+         */
+        private byte[] decompress(byte[] message) throws WebSocketException {
+            byte[] input = new byte[message.length + SYNC_TAIL.length];
+            System.arraycopy(message, 0, input, 0, message.length);
+            System.arraycopy(SYNC_TAIL, 0, input, message.length, SYNC_TAIL.length);
+            inflater.setInput(input);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            byte[] buffer = new byte[Math.min(maxMessage + 1, 1 << 16)];
+            try {
+                while (!inflater.needsInput()) {
+                    int n = inflater.inflate(buffer);
+                    inflated.write(buffer, 0, n);
+                    if (inflated.size() > maxMessage) throw new WebSocketException(CLOSE_TOO_BIG, "Message too big");
+                    if (n == 0) break;
+                }
+                //A peer may end a message with a final block, after which the context starts afresh
+                if (inflater.finished()) inflater.reset();
+            } catch (DataFormatException dfe) {
+                throw new WebSocketException(CLOSE_PROTOCOL_ERROR, "Corrupt compressed message");
+            }
+            return inflated.toByteArray();
+        }
+
+        /**
+         * Releases the inflater's native memory.
+         */
+        void close() {
+            if (inflater != null) inflater.end();
+        }
+    }
+
+    /**
+     * A violation of the protocol, which ends the connection with a close frame carrying status.
+     */
+    static class WebSocketException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        WebSocketException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        /**
+         * @return the close status to send
+         */
+        int status() {
+            return status;
+        }
+    }
+}
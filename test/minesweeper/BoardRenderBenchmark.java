@@ -0,0 +1,42 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how long Board takes to render a large board, as a String and streamed to a Writer.
+ * Not a JUnit test: run main directly, with assertions disabled, optionally passing the board size.
+ * Compare runs with -Djava.util.concurrent.ForkJoinPool.common.parallelism=N to see how rendering
+ * scales with the number of cores.
+ */
+public class BoardRenderBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Board board = new Board(size, size);
+        Writer discard = new Writer() {
+            @Override public void write(char[] buffer, int offset, int length) {}
+            @Override public void flush() {}
+            @Override public void close() {}
+        };
+
+        for (int run = 0; run <= RUNS; run++) {
+            long start = System.nanoTime();
+            int length = board.toString().length();
+            double stringMillis = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            board.look(discard);
+            double streamMillis = (System.nanoTime() - start) / 1e6;
+            //The first run only warms up
+            if (run == 0) continue;
+            System.out.println(String.format("%dx%d, parallelism %d: toString %.1f ms (%d chars), streamed %.1f ms",
+                    size, size, ForkJoinPool.getCommonPoolParallelism(), stringMillis, length, streamMillis));
+        }
+    }
+}
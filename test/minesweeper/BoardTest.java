@@ -7,12 +7,31 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 
 /**
  * Test suite for Minesweeper Board
@@ -26,6 +45,8 @@ public class BoardTest {
     // Partitions
     //
     // look()
+    // Streamed to a Writer, matching the String form
+    // Board large enough to be rendered in parallel bands
     //
     // dig()
     // digging an untouched square
@@ -33,7 +54,20 @@ public class BoardTest {
     // digging an already dug square
     // digging a square with a flag
     // digging a grid of entirely empty squares 
+    // first dig on a safe-first-dig board, with and without an earlier flag
+    // cascade over a region much larger than a slice: no stack overflow, published slice by slice,
+    //   another thread's flag running between slices and skipped by the rest of the cascade
+    //
     //
+    // digAll(), flagAll()
+    // Squares whose cascades overlap, squares outside the grid, a list including a bomb
+    // Safe squares dug counted once each, by dig(), digAll() and chord()
+    //
+    // chord()
+    // Chording a number with too few flags around it
+    // Chording a number whose flags are all correct
+    // Chording a number with a wrongly placed flag
+    // Chording an untouched square
     //
     // flag()
     // Flagging an untouched square
@@ -45,10 +79,43 @@ public class BoardTest {
     // Unflagging a dug square
     // Unflagging an already unflagged square
     //
+    // safeSquaresLeft(), flagsPlaced(), bombsDetonated(), isWon()
+    // New board, after flagging and deflagging, after digging a bomb, after digging the last safe square
+    // DigResult.clearedLastSquare(): only for the dig or chord which dug the last safe square
+    // Flagging the same square twice, flagging a dug square
+    //
     // adjacentBombs()
     // No adjacent bombs
     // Multiple adjacent bombs
     //
+    // Flight recorder events
+    // Dig cascading over several squares, dig of a bomb; render as a String and streamed
+    //
+    // Allocation budgets, averaged over many warmed up calls
+    // flag() and deflag(), checkBomb(): none, once the snapshots they replace are reused
+    // dig() of a dug square: at most one event object
+    // look(Writer, RenderBuffer) reusing one buffer: bounded, whatever the board size
+    // dig() cascading over a whole board, look(): bounded per square, on small and larger boards
+    //
+    // Snapshots, version()
+    // look() and toString() while another thread cascades over the board: before or after, never between
+    // look() streaming in chunks while its rows are changed: the arrays of the snapshot being
+    //   streamed are not reused until it is done
+    // Mutators which change nothing shown, which change one square, and which change several
+    //
+    // look(Writer, zoom), zoomLevels(), count()
+    // Zoom 0, partial tiles at the board's edge, tiles untouched, flagged, partly dug, fully dug, exploded
+    // Zoom beyond the top level; 1x1 board
+    // Regions inside, overlapping and outside the grid, compared with counting every square
+    //
+    // writeTo(), readFrom()
+    // Board with untouched, flagged, dug and exploded squares, restored and played on further
+    // Safe-first-dig board saved before its first dig; data which is not a saved board
+    //
+    // BoardAuditor
+    // Incremental: flag, deflag, cascade, chord and explosion on a healthy board; a corrupted square
+    // Sampling: healthy board; board whose dug numbers no longer match its bombs
+    //
     // Square
     // 
     // Partitions
@@ -70,6 +137,54 @@ public class BoardTest {
     //
     // Point
     // getX, getY
+    //
+    // Solver
+    //
+    // Partitions
+    //
+    // safeSquares(), bombSquares()
+    // Nothing dug yet
+    // Deduction from a single number
+    // Deduction needing the subset rule
+    // Deductions updated after further digging
+    // A deduced bomb exploding, an undeduced bomb exploding before the solver reads the board;
+    //   random boards played on after explosions, every hint checked against the bombs
+    //
+    // probabilities()
+    // Frontier with two equally likely layouts
+    // Frontier enumerated exactly, and estimated once the search budget runs out
+    //
+    // NoGuessGenerator
+    //
+    // Partitions
+    //
+    // isSolvableWithoutGuessing()
+    // Layout needing a guess
+    //
+    // generate()
+    // Board with no bombs
+    // Deadline too short to find a board
+    //
+    // BoardPool
+    //
+    // Partitions
+    //
+    // take()
+    // Taking a prepared size once the pool is filled
+    // Taking a size that was never prepared
+    // Taking with a memory budget too small to pool any board
+    // Taking a size once, without refilling the pool
+    //
+    // GameCache
+    //
+    // Partitions
+    //
+    // acquire(), release()
+    // New game, resident game, game evicted to disk and reloaded with its moves
+    // Budget exceeded while the least recent game is in use; invalid name
+    //
+    // setAuditor()
+    // Boards audited once acquired
 
     @Test(expected=AssertionError.class)
     public void testAssertionsEnabled() {
@@ -175,6 +290,39 @@ public class BoardTest {
         assertEquals(testBoard.toString(), "-");
     }
     
+    @Test
+    public void testBoardLookStreamed() throws IOException {
+        Board testBoard = new Board(3, 4, false);
+        testBoard.placeBomb(0, 3);
+        testBoard.dig(2, 0);
+        testBoard.flag(0, 3);
+        StringWriter out = new StringWriter();
+        testBoard.look(out);
+        assertEquals(out.toString(), testBoard.look());
+        assertEquals(out.toString(), "    1 F\n    1 1\n       ");
+    }
+    
+    @Test
+    public void testBoardLookParallel() throws IOException {
+        int size = 600;
+        Board testBoard = new Board(size, size, false);
+        testBoard.flag(0, 0);
+        testBoard.flag(size - 1, size - 1);
+        
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                expected.append((i == j && (i == 0 || i == size - 1)) ? "F" : "-");
+                if (j != size - 1) expected.append(" ");
+            }
+            if (i != size - 1) expected.append("\n");
+        }
+        assertEquals(testBoard.toString(), expected.toString());
+        StringWriter out = new StringWriter();
+        testBoard.look(out);
+        assertEquals(out.toString(), expected.toString());
+    }
+    
     @Test
     public void testBoardFlagging() {
         Board testBoard = new Board(1,1);
@@ -193,6 +341,45 @@ public class BoardTest {
         assertEquals(testBoard.toString(),"- - -\n- - -\n- - -");
     }
     
+    @Test
+    public void testBoardStatusCounters() {
+        Board testBoard = new Board(2, 2, false);
+        testBoard.placeBomb(0, 0);
+        assertEquals(testBoard.safeSquaresLeft(), 3);
+        assertFalse(testBoard.isWon());
+        
+        testBoard.flag(0, 1);
+        testBoard.flag(0, 1);
+        assertEquals(testBoard.flagsPlaced(), 1);
+        testBoard.deflag(0, 1);
+        assertEquals(testBoard.flagsPlaced(), 0);
+        
+        testBoard.dig(1, 1);
+        testBoard.flag(1, 1);
+        assertEquals(testBoard.toString(), "- -\n- 1");
+        assertEquals(testBoard.flagsPlaced(), 0);
+        assertEquals(testBoard.safeSquaresLeft(), 2);
+        
+        DigResult notLast = testBoard.dig(0, 1);
+        DigResult last = testBoard.dig(1, 0);
+        assertEquals(testBoard.safeSquaresLeft(), 0);
+        assertEquals(testBoard.bombsDetonated(), 0);
+        assertTrue(testBoard.isWon());
+        //Only the dig which cleared the last safe square won, though the board is won after both
+        assertFalse(notLast.clearedLastSquare());
+        assertTrue(last.clearedLastSquare());
+        assertFalse(testBoard.dig(1, 0).clearedLastSquare());
+    }
+    
+    @Test
+    public void testBoardStatusDetonation() {
+        Board testBoard = new Board(1, 2, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.dig(0, 0);
+        assertEquals(testBoard.bombsDetonated(), 1);
+        assertEquals(testBoard.safeSquaresLeft(), 1);
+    }
+    
     @Test
     public void testBoardAdjacentBombs() {
         Board testBoard = new Board(3, 3);
@@ -232,6 +419,84 @@ public class BoardTest {
         assertEquals(testBoard.toString(),"- 1  \n1 1  \n     ");
     }
     
+    @Test
+    public void testSafeFirstDig() {
+        //Every square would hold a bomb, except those around the first dig
+        Board testBoard = new Board(5, 5, 1.0, true);
+        assertFalse(testBoard.checkBomb(0, 0));
+        testBoard.flag(0, 0);
+        testBoard.dig(2, 2);
+        assertTrue(testBoard.checkBomb(0, 0));
+        assertTrue(testBoard.checkBomb(4, 4));
+        assertFalse(testBoard.checkBomb(1, 1));
+        assertEquals(testBoard.toString(), "F - - - -\n- 5 3 5 -\n- 3   3 -\n- 5 3 5 -\n- - - - -");
+    }
+    
+    @Test
+    public void testSafeFirstDigOutOfBounds() {
+        Board testBoard = new Board(3, 3, 1.0, true);
+        testBoard.dig(7, 7);
+        assertFalse(testBoard.checkBomb(0, 0));
+        testBoard.dig(0, 0);
+        assertEquals(testBoard.toString(), "  2 -\n2 5 -\n- - -");
+    }
+    
+    @Test
+    public void testDigAllOverlappingCascades() {
+        Board testBoard = new Board(3, 4, false);
+        testBoard.placeBomb(0, 3);
+        DigResult dug = testBoard.digAll(Arrays.asList(new Point(2, 0), new Point(1, 1), new Point(9, 9)));
+        assertFalse(dug.detonated());
+        assertEquals(dug.safeSquaresDug(), 11);
+        assertEquals(testBoard.toString(), "    1 -\n    1 1\n       ");
+        assertEquals(testBoard.revealedCount(), 11);
+        
+        testBoard.flagAll(Arrays.asList(new Point(0, 3), new Point(0, 0), new Point(9, 9)));
+        assertEquals(testBoard.toString(), "    1 F\n    1 1\n       ");
+        assertEquals(testBoard.flagsPlaced(), 1);
+    }
+    
+    @Test
+    public void testDigAllBomb() {
+        Board testBoard = new Board(2, 2, false);
+        testBoard.placeBomb(1, 1);
+        DigResult dug = testBoard.digAll(Arrays.asList(new Point(0, 0), new Point(1, 1)));
+        assertTrue(dug.detonated());
+        assertEquals(dug.safeSquaresDug(), 1);
+        assertFalse(dug.clearedLastSquare());
+        assertEquals(testBoard.bombsDetonated(), 1);
+    }
+    
+    @Test
+    public void testChord() {
+        Board testBoard = new Board(3, 3, false);
+        testBoard.placeBomb(0, 0);
+        assertEquals(testBoard.dig(1, 1).safeSquaresDug(), 1);
+        assertEquals(testBoard.dig(1, 1).safeSquaresDug(), 0);
+        assertEquals(testBoard.chord(1, 1).safeSquaresDug(), 0);
+        assertEquals(testBoard.toString(), "- - -\n- 1 -\n- - -");
+        
+        testBoard.flag(0, 0);
+        assertFalse(testBoard.chord(2, 2).detonated());
+        DigResult dug = testBoard.chord(1, 1);
+        assertFalse(dug.detonated());
+        assertEquals(dug.safeSquaresDug(), 7);
+        assertTrue(dug.clearedLastSquare());
+        assertEquals(testBoard.toString(), "F 1  \n1 1  \n     ");
+        assertTrue(testBoard.isWon());
+    }
+    
+    @Test
+    public void testChordWrongFlag() {
+        Board testBoard = new Board(3, 3, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.dig(1, 1);
+        testBoard.flag(0, 1);
+        assertTrue(testBoard.chord(1, 1).detonated());
+        assertEquals(testBoard.bombsDetonated(), 1);
+        assertEquals(testBoard.flagsPlaced(), 1);
+    }
+    
     @Test
     public void testDiggingBomb() {
         //Creates a 3x3 with a single bomb in the corner at 0,0
@@ -250,6 +515,665 @@ public class BoardTest {
         assertEquals(testBoard.checkBomb(1,0), false);
     }
     
+    @Test
+    public void testNoGuessLayoutNeedsGuess() {
+        //The opening around (2,2) cannot tell which of the top row and left column squares hold bombs
+        NoGuessGenerator generator = new NoGuessGenerator(4, 4, 0.5, 1);
+        boolean[] bombs = new boolean[16];
+        bombs[1] = bombs[2] = bombs[3] = bombs[8] = true;
+        assertFalse(generator.isSolvableWithoutGuessing(bombs));
+    }
+    
+    @Test(timeout = 5000)
+    public void testNoGuessNoBombs() {
+        Board testBoard = new NoGuessGenerator(3, 3, 0, 2).generate(1000);
+        assertEquals(testBoard.toString(), "     \n     \n     ");
+    }
+    
+    @Test(timeout = 5000)
+    public void testNoGuessDeadline() {
+        //Either a no-guess board or the fallback, both opened at the centre square
+        Board testBoard = new NoGuessGenerator(30, 30, 0.5, 2).generate(1);
+        assertEquals(testBoard.dugCount(15, 15), 0);
+        assertFalse(testBoard.checkBomb(14, 14));
+    }
+    
+    @Test(timeout = 5000)
+    public void testBoardPoolPreparedSize() throws InterruptedException {
+        BoardPool pool = new BoardPool(2, 1 << 20, 1);
+        pool.prepare(4, 5, 0.5);
+        while (pool.available(4, 5, 0.5) < 2) Thread.sleep(1);
+        
+        Board taken = pool.take(4, 5, 0.5);
+        assertEquals(taken.getRows(), 4);
+        assertEquals(taken.getColumns(), 5);
+        assertEquals(taken.toString(), "- - - - -\n- - - - -\n- - - - -\n- - - - -");
+        assertNotSame(taken, pool.take(4, 5, 0.5));
+        pool.shutdown();
+    }
+    
+    @Test
+    public void testBoardPoolUnpreparedSize() {
+        BoardPool pool = new BoardPool(1, 1 << 20, 1);
+        Board taken = pool.take(2, 3, 0);
+        assertEquals(taken.boardSize(), 6);
+        assertFalse(taken.checkBomb(1, 2));
+        pool.shutdown();
+    }
+    
+    @Test
+    public void testBoardPoolOverBudget() throws InterruptedException {
+        BoardPool pool = new BoardPool(1, BoardPool.ESTIMATED_BYTES_PER_SQUARE, 1);
+        pool.prepare(3, 3, 1);
+        Thread.sleep(50);
+        assertEquals(pool.available(3, 3, 1), 0);
+        assertEquals(pool.pooledBytes(), 0);
+        assertTrue(pool.take(3, 3, 1).checkBomb(2, 2));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testBoardPoolTakeWithoutRefill() throws InterruptedException {
+        BoardPool pool = new BoardPool(1, 1 << 20, 1);
+        assertEquals(pool.take(3, 4, 0, false).boardSize(), 12);
+        Thread.sleep(50);
+        assertEquals(pool.available(3, 4, 0), 0);
+        assertEquals(pool.pooledBytes(), 0);
+        pool.shutdown();
+    }
+    
+    @Test
+    public void testSolverNothingDug() {
+        Solver solver = new Solver(new Board(3, 3));
+        assertTrue(solver.safeSquares().isEmpty());
+        assertTrue(solver.bombSquares().isEmpty());
+        assertTrue(solver.probabilities().isEmpty());
+    }
+    
+    @Test
+    public void testSolverSingleNumber() {
+        Board testBoard = new Board(3, 3, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.dig(2, 2);
+        Solver solver = new Solver(testBoard);
+        assertEquals(solver.bombSquares(), Collections.singletonList(new Point(0, 0)));
+        assertTrue(solver.safeSquares().isEmpty());
+    }
+    
+    @Test
+    public void testSolverSubsetRuleAndUpdate() {
+        Board testBoard = new Board(2, 3, false);
+        testBoard.placeBomb(0, 0);
+        Solver solver = new Solver(testBoard);
+        testBoard.dig(1, 0);
+        testBoard.dig(1, 1);
+        //(1,0) needs one bomb in {(0,0),(0,1)}, so the rest of (1,1)'s neighbours are safe
+        assertEquals(solver.safeSquares(), Arrays.asList(new Point(0, 2), new Point(1, 2)));
+        assertTrue(solver.bombSquares().isEmpty());
+        
+        testBoard.dig(0, 2);
+        assertEquals(solver.bombSquares(), Collections.singletonList(new Point(0, 0)));
+        assertTrue(solver.safeSquares().isEmpty());
+    }
+    
+    @Test
+    public void testSolverAfterExplosion() {
+        Board testBoard = new Board(3, 3, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.placeBomb(0, 2);
+        testBoard.dig(2, 1);
+        Solver before = new Solver(testBoard);
+        assertEquals(before.bombSquares(), Arrays.asList(new Point(0, 0), new Point(0, 2)));
+        assertEquals(before.safeSquares(), Collections.singletonList(new Point(0, 1)));
+        
+        //(1,0) and (1,1) still count the bomb at (0,0), which is gone
+        assertTrue(testBoard.dig(0, 0).detonated());
+        assertTrue(testBoard.exploded(0, 0));
+        assertFalse(testBoard.exploded(1, 1));
+        Solver after = new Solver(testBoard);
+        for (Solver solver : Arrays.asList(before, after)) {
+            assertEquals(solver.bombSquares(), Collections.singletonList(new Point(0, 2)));
+            assertEquals(solver.safeSquares(), Collections.singletonList(new Point(0, 1)));
+            assertEquals(solver.probabilities().get(new Point(0, 2)), 1.0, 1e-9);
+        }
+        
+        //(0,1) is dug after the explosion, so its number does not count the bomb
+        testBoard.dig(0, 1);
+        assertEquals(testBoard.dugCount(0, 1), 1);
+        assertEquals(before.bombSquares(), Collections.singletonList(new Point(0, 2)));
+        assertTrue(before.safeSquares().isEmpty());
+    }
+    
+    @Test
+    public void testSolverHintsAfterExplosionsOnRandomBoards() {
+        Random random = new Random(29);
+        for (int game = 0; game < 500; game++) {
+            int rows = 2 + random.nextInt(5);
+            int cols = 2 + random.nextInt(5);
+            Board testBoard = new Board(rows, cols, false);
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    if (random.nextDouble() < 0.3) testBoard.placeBomb(row, col);
+                }
+            }
+            Solver solver = new Solver(testBoard);
+            for (int move = 0; move < rows * cols; move++) {
+                testBoard.dig(random.nextInt(rows), random.nextInt(cols));
+                for (Point safe : solver.safeSquares()) {
+                    assertFalse("game " + game + " " + safe, testBoard.checkBomb(safe.getX(), safe.getY()));
+                }
+                for (Point bomb : solver.bombSquares()) {
+                    assertTrue("game " + game + " " + bomb, testBoard.checkBomb(bomb.getX(), bomb.getY()));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testSolverProbabilities() {
+        Board testBoard = new Board(2, 3, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.dig(0, 2);
+        Solver solver = new Solver(testBoard);
+        Map<Point, Double> probabilities = solver.probabilities();
+        assertEquals(probabilities.keySet(), new HashSet<Point>(Arrays.asList(new Point(0, 0), new Point(1, 0))));
+        assertEquals(probabilities.get(new Point(0, 0)), 0.5, 1e-9);
+        assertEquals(probabilities.get(new Point(1, 0)), 0.5, 1e-9);
+    }
+    
+    @Test
+    public void testSolverSearchBudget() {
+        Board testBoard = new Board(2, 4, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.placeBomb(0, 3);
+        testBoard.dig(1, 1);
+        testBoard.dig(1, 2);
+        //Either one bomb between the two numbers, or one on each side of them
+        Map<Point, Double> exact = new Solver(testBoard, 0.2).probabilities();
+        assertEquals(exact.get(new Point(0, 1)), 1.0 / 3, 1e-9);
+        assertEquals(exact.get(new Point(0, 0)), 1.0 / 6, 1e-9);
+        
+        Map<Point, Double> estimated = new Solver(testBoard, 0.2, 0).probabilities();
+        assertEquals(estimated.keySet(), exact.keySet());
+        assertEquals(estimated.get(new Point(0, 1)), 0.25, 1e-9);
+        assertEquals(estimated.get(new Point(0, 0)), 0.25, 1e-9);
+    }
+    
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        Board testBoard = new Board(2, 3, false);
+        testBoard.placeBomb(0, 0);
+        Path file = Files.createTempFile("board", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("minesweeper.Dig");
+            recording.enable("minesweeper.Render");
+            recording.start();
+            testBoard.dig(1, 2);
+            testBoard.dig(0, 0);
+            testBoard.toString();
+            testBoard.look(new StringWriter());
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        
+        List<RecordedEvent> digs = new ArrayList<>();
+        List<RecordedEvent> renders = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals("minesweeper.Dig")) digs.add(event);
+            if (event.getEventType().getName().equals("minesweeper.Render")) renders.add(event);
+        }
+        assertEquals(digs.size(), 2);
+        assertEquals(digs.get(0).getInt("squaresRevealed"), 4);
+        assertFalse(digs.get(0).getBoolean("detonated"));
+        assertEquals(digs.get(1).getInt("squaresRevealed"), 1);
+        assertTrue(digs.get(1).getBoolean("detonated"));
+        assertEquals(renders.size(), 2);
+        assertFalse(renders.get(0).getBoolean("streamed"));
+        assertTrue(renders.get(1).getBoolean("streamed"));
+        assertEquals(renders.get(1).getLong("charactersRendered"), 11);
+    }
+    
+    /**
+     * Runs command calls times to warm it up, then calls times more while measuring.
+     * @return Bytes allocated by the current thread per measured call
+     */
+    private static double allocatedPerCall(Runnable command, int calls) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        for (int i = 0; i < calls; i++) {
+            command.run();
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < calls; i++) {
+            command.run();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - before) / (double) calls;
+    }
+    
+    @Test
+    public void testAllocationBudgetsWithoutGarbage() {
+        Writer discard = new Writer() {
+            @Override public void write(char[] buffer, int offset, int length) {}
+            @Override public void flush() {}
+            @Override public void close() {}
+        };
+        for (int size : new int[] {10, 40}) {
+            Board testBoard = new Board(size, size, false);
+            testBoard.placeBomb(0, 0);
+            testBoard.dig(size - 1, size - 1);
+            assertTrue(allocatedPerCall(() -> {
+                testBoard.flag(0, 0);
+                testBoard.deflag(0, 0);
+            }, 100000) < 1);
+            assertTrue(allocatedPerCall(() -> testBoard.checkBomb(0, 0), 100000) < 1);
+            assertTrue(allocatedPerCall(() -> testBoard.checkBomb(size, size), 100000) < 1);
+            assertTrue(allocatedPerCall(() -> testBoard.dig(size - 1, size - 1), 100000) <= 64);
+            
+            RenderBuffer buffer = new RenderBuffer();
+            assertTrue(allocatedPerCall(() -> {
+                try {
+                    testBoard.look(discard, buffer);
+                } catch (IOException ioe) {
+                    throw new AssertionError(ioe);
+                }
+            }, 1000) <= 128);
+            assertEquals(buffer.capacity(), 2 * size * size);
+        }
+    }
+    
+    @Test
+    public void testAllocationBudgetsPerSquare() {
+        Writer discard = new Writer() {
+            @Override public void write(char[] buffer, int offset, int length) {}
+            @Override public void flush() {}
+            @Override public void close() {}
+        };
+        for (int size : new int[] {10, 40}) {
+            int squares = size * size;
+            Board lookBoard = new Board(size, size, false);
+            lookBoard.dig(0, 0);
+            assertTrue(allocatedPerCall(() -> {
+                try {
+                    lookBoard.look(discard);
+                } catch (IOException ioe) {
+                    throw new AssertionError(ioe);
+                }
+            }, 1000) <= 4 * squares + 512);
+            
+            //Boards are built up front so only the cascades are measured
+            int calls = 50;
+            List<Board> boards = new ArrayList<>();
+            for (int i = 0; i < 2 * calls; i++) {
+                boards.add(new Board(size, size, false));
+            }
+            Iterator<Board> fresh = boards.iterator();
+            assertTrue(allocatedPerCall(() -> fresh.next().dig(0, 0), calls) <= 32 * squares + 512);
+        }
+    }
+    
+    @Test(timeout = 20000)
+    public void testDigHugeRegionInSlices() {
+        Board testBoard = new Board(300, 300, false);
+        testBoard.dig(150, 150);
+        assertEquals(testBoard.safeSquaresLeft(), 0);
+        assertEquals(testBoard.revealedCount(), 300 * 300);
+        //A region this size is published in many slices, each leaving the board consistent
+        assertTrue(testBoard.version() > 1);
+        assertEquals(testBoard.toString().indexOf('-'), -1);
+    }
+    
+    @Test(timeout = 20000)
+    public void testFlagBetweenCascadeSlices() throws InterruptedException {
+        int size = 400;
+        Board testBoard = new Board(size, size, false);
+        CountDownLatch yielded = new CountDownLatch(1);
+        CountDownLatch flagged = new CountDownLatch(1);
+        //The cascade waits at its first yield until the flag is placed, then never again
+        testBoard.onYield(() -> {
+            yielded.countDown();
+            try {
+                flagged.await();
+            } catch (InterruptedException ie) {
+                throw new AssertionError(ie);
+            }
+        });
+        Thread digger = new Thread(() -> testBoard.dig(0, 0));
+        digger.start();
+        yielded.await();
+        //The far corner is the last square the cascade reaches
+        testBoard.flag(size - 1, size - 1);
+        int safeSquaresWhenFlagged = testBoard.safeSquaresLeft();
+        flagged.countDown();
+        digger.join();
+        assertTrue(safeSquaresWhenFlagged > 1);
+        assertEquals(testBoard.safeSquaresLeft(), 1);
+        assertEquals(testBoard.flagsPlaced(), 1);
+        assertEquals(testBoard.revealedCount(), size * size - 1);
+        assertTrue(testBoard.toString().endsWith("    F"));
+    }
+    
+    @Test
+    public void testSnapshotVersions() {
+        Board testBoard = new Board(2, 3, false);
+        testBoard.placeBomb(0, 0);
+        assertEquals(testBoard.version(), 0);
+        testBoard.deflag(1, 1);
+        testBoard.checkBomb(0, 0);
+        assertEquals(testBoard.version(), 0);
+        testBoard.flag(1, 1);
+        assertEquals(testBoard.version(), 1);
+        assertEquals(testBoard.toString(), "- - -\n- F -");
+        testBoard.flagAll(Arrays.asList(new Point(0, 1), new Point(0, 2)));
+        assertEquals(testBoard.version(), 2);
+        testBoard.deflag(1, 1);
+        testBoard.dig(1, 2);
+        assertEquals(testBoard.version(), 4);
+        assertEquals(testBoard.toString(), "- F F\n- 1  ");
+    }
+    
+    @Test
+    public void testLookDuringCascadeIsConsistent() throws InterruptedException {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            Board testBoard = new Board(60, 60, false);
+            String before = testBoard.toString();
+            Thread digger = new Thread(() -> testBoard.dig(0, 0));
+            digger.start();
+            while (digger.isAlive()) {
+                String seen = testBoard.toString();
+                assertTrue(seen.equals(before) || seen.indexOf('-') < 0);
+                StringWriter streamed = new StringWriter();
+                try {
+                    testBoard.look(streamed);
+                } catch (IOException ioe) {
+                    throw new AssertionError(ioe);
+                }
+                assertTrue(streamed.toString().equals(before) || streamed.toString().indexOf('-') < 0);
+            }
+            digger.join();
+            assertEquals(testBoard.toString().indexOf('-'), -1);
+            assertEquals(testBoard.version(), 1);
+        }
+    }
+    
+    @Test(timeout = 20000)
+    public void testLookWhileSnapshotsAreReused() throws IOException {
+        //Streamed in two chunks of rows, the second starting at row 1024
+        int rows = 1040;
+        int cols = 1024;
+        Board testBoard = new Board(rows, cols, false);
+        //Every row of the second chunk has a flag of its own, so a row rendered from another row's array shows up
+        for (int i = 1024; i < rows; i++) {
+            testBoard.flag(i, i - 1024);
+        }
+        String expected = testBoard.toString();
+        //While the first chunk is written, each row of the second is changed, replacing its array in
+        //the snapshot being streamed
+        StringWriter streamed = new StringWriter() {
+            private boolean mutated = false;
+            
+            @Override public void write(char[] buffer, int offset, int length) {
+                if (!mutated) {
+                    mutated = true;
+                    for (int i = 1024; i < rows; i++) {
+                        testBoard.flag(i, i - 1023);
+                    }
+                }
+                super.write(buffer, offset, length);
+            }
+        };
+        testBoard.look(streamed, new RenderBuffer());
+        assertEquals(streamed.toString(), expected);
+        assertEquals(testBoard.flagsPlaced(), 2 * (rows - 1024));
+    }
+    
+    /**
+     * @return The board zoomed out as look(Writer, int) writes it
+     */
+    private static String zoomed(Board board, int zoom) throws IOException {
+        StringWriter out = new StringWriter();
+        board.look(out, zoom);
+        return out.toString();
+    }
+    
+    @Test
+    public void testZoomedLook() throws IOException {
+        Board testBoard = new Board(3, 5, false);
+        testBoard.placeBomb(2, 4);
+        assertEquals(testBoard.zoomLevels(), 3);
+        assertEquals(zoomed(testBoard, 0), testBoard.toString());
+        assertEquals(zoomed(testBoard, 1), "- - -\n- - -");
+        testBoard.flag(0, 0);
+        assertEquals(zoomed(testBoard, 1), "F - -\n- - -");
+        testBoard.dig(0, 2);
+        assertEquals(zoomed(testBoard, 1), "7    \n    -");
+        assertEquals(zoomed(testBoard, 2), "9 6");
+        assertEquals(zoomed(testBoard, 3), "8");
+        assertEquals(zoomed(testBoard, 9), "8");
+        testBoard.dig(2, 4);
+        assertEquals(zoomed(testBoard, 1), "7    \n    *");
+        assertEquals(zoomed(testBoard, 3), "*");
+        
+        Board single = new Board(1, 1, false);
+        assertEquals(single.zoomLevels(), 0);
+        assertEquals(zoomed(single, 2), "-");
+    }
+    
+    @Test
+    public void testRegionCounts() {
+        Random rng = new Random(7);
+        Board testBoard = new Board(13, 21, 0.2);
+        boolean[][] bombs = new boolean[13][21];
+        for (int row = 0; row < 13; row++) {
+            for (int col = 0; col < 21; col++) {
+                bombs[row][col] = testBoard.checkBomb(row, col);
+            }
+        }
+        for (int move = 0; move < 40; move++) {
+            int row = rng.nextInt(13);
+            int col = rng.nextInt(21);
+            if (rng.nextBoolean()) testBoard.dig(row, col);
+            else testBoard.flag(row, col);
+            
+            String[] rows = testBoard.toString().split("\n");
+            for (int query = 0; query < 20; query++) {
+                int top = rng.nextInt(17) - 2;
+                int left = rng.nextInt(25) - 2;
+                int bottom = top + rng.nextInt(16);
+                int right = left + rng.nextInt(24);
+                int[] expected = new int[SquareState.values().length];
+                for (int r = Math.max(0, top); r < Math.min(13, bottom); r++) {
+                    for (int c = Math.max(0, left); c < Math.min(21, right); c++) {
+                        char square = rows[r].charAt(2 * c);
+                        SquareState state = square == '-' ? SquareState.UNTOUCHED
+                                : square == 'F' ? SquareState.FLAGGED
+                                : bombs[r][c] ? SquareState.EXPLODED : SquareState.DUG;
+                        expected[state.ordinal()]++;
+                    }
+                }
+                for (SquareState state : SquareState.values()) {
+                    assertEquals(testBoard.count(state, top, left, bottom, right), expected[state.ordinal()]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return A copy of board, saved and restored
+     */
+    private static Board saveAndRestore(Board board) throws IOException {
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        board.writeTo(saved);
+        return Board.readFrom(new ByteArrayInputStream(saved.toByteArray()));
+    }
+    
+    @Test
+    public void testSaveAndRestore() throws IOException {
+        Board testBoard = new Board(3, 4, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.placeBomb(2, 3);
+        testBoard.flag(0, 1);
+        testBoard.dig(2, 0);
+        testBoard.dig(2, 3);
+        
+        Board restored = saveAndRestore(testBoard);
+        assertEquals(restored.toString(), testBoard.toString());
+        assertEquals(restored.version(), testBoard.version());
+        assertEquals(restored.safeSquaresLeft(), testBoard.safeSquaresLeft());
+        assertEquals(restored.flagsPlaced(), 1);
+        assertEquals(restored.bombsDetonated(), 1);
+        assertEquals(restored.count(SquareState.EXPLODED, 0, 0, 3, 4), 1);
+        assertEquals(restored.revealedCount(), testBoard.revealedCount());
+        for (int i = 0; i < restored.revealedCount(); i++) {
+            assertEquals(restored.revealed(i), testBoard.revealed(i));
+        }
+        assertTrue(restored.checkBomb(0, 0));
+        
+        restored.deflag(0, 1);
+        restored.dig(0, 1);
+        testBoard.deflag(0, 1);
+        testBoard.dig(0, 1);
+        assertEquals(restored.toString(), testBoard.toString());
+        assertEquals(restored.safeSquaresLeft(), testBoard.safeSquaresLeft());
+        assertEquals(restored.isWon(), testBoard.isWon());
+    }
+    
+    @Test
+    public void testSaveBeforeFirstDig() throws IOException {
+        Board restored = saveAndRestore(new Board(5, 5, 1.0, true));
+        restored.dig(2, 2);
+        assertEquals(restored.toString(), "- - - - -\n- 5 3 5 -\n- 3   3 -\n- 5 3 5 -\n- - - - -");
+    }
+    
+    @Test(expected = IOException.class)
+    public void testRestoreNotABoard() throws IOException {
+        Board.readFrom(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+    
+    @Test
+    public void testGameCacheEvictsIdleGames() throws IOException {
+        Path directory = Files.createTempDirectory("games");
+        List<String> created = new ArrayList<>();
+        //Room for two 4x4 boards
+        GameCache games = new GameCache(directory, 2 * 16 * BoardPool.ESTIMATED_BYTES_PER_SQUARE, name -> {
+            created.add(name);
+            Board board = new Board(4, 4, false);
+            board.placeBomb(3, 3);
+            return board;
+        });
+        
+        Board first = games.acquire("first");
+        first.flag(3, 3);
+        first.dig(0, 0);
+        String firstState = first.toString();
+        games.release("first");
+        games.acquire("second");
+        games.release("second");
+        assertEquals(games.evictions(), 0);
+        
+        games.acquire("third");
+        assertFalse(games.isResident("first"));
+        assertTrue(games.isResident("second"));
+        assertEquals(games.evictions(), 1);
+        assertTrue(Files.exists(directory.resolve("first.board")));
+        
+        //Games in use are never evicted, even over the budget
+        games.acquire("second");
+        Board reloaded = games.acquire("first");
+        assertEquals(reloaded.toString(), firstState);
+        assertEquals(reloaded.flagsPlaced(), 1);
+        assertEquals(games.reloads(), 1);
+        assertFalse(Files.exists(directory.resolve("first.board")));
+        assertEquals(games.residentBytes(), 3 * 16 * BoardPool.ESTIMATED_BYTES_PER_SQUARE);
+        assertEquals(created, Arrays.asList("first", "second", "third"));
+        
+        games.release("third");
+        assertFalse(games.isResident("third"));
+        assertTrue(Files.exists(directory.resolve("third.board")));
+        games.release("second");
+        games.release("first");
+        assertEquals(games.residentBytes(), 2 * 16 * BoardPool.ESTIMATED_BYTES_PER_SQUARE);
+        assertEquals(games.evictions(), 2);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testGameCacheInvalidName() throws IOException {
+        new GameCache(Files.createTempDirectory("games"), 0, name -> new Board(1, 1, false)).acquire("../escape");
+    }
+    
+    @Test
+    public void testIncrementalAuditOfHealthyBoard() {
+        List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+        BoardAuditor auditor = new BoardAuditor(BoardAuditor.Level.INCREMENTAL, 0, 0, violations::add);
+        Board testBoard = new Board(6, 6, false);
+        testBoard.placeBomb(0, 0);
+        testBoard.placeBomb(5, 0);
+        auditor.watch(testBoard);
+        testBoard.flag(0, 0);
+        testBoard.flag(1, 1);
+        testBoard.deflag(1, 1);
+        testBoard.dig(3, 3);
+        testBoard.chord(1, 1);
+        testBoard.dig(5, 0);
+        testBoard.look();
+        assertEquals(violations, Collections.emptyList());
+        assertEquals(auditor.violations(), 0);
+        //Every square changed, each counted once per change
+        assertTrue(auditor.squaresChecked() >= 36);
+    }
+    
+    @Test
+    public void testIncrementalAuditFindsCorruptedSquare() {
+        List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+        BoardAuditor auditor = new BoardAuditor(BoardAuditor.Level.INCREMENTAL, 0, 0, violations::add);
+        Board testBoard = new Board(4, 4, false);
+        auditor.watch(testBoard);
+        testBoard.dig(3, 3);
+        assertEquals(violations, Collections.emptyList());
+        //Burying a bomb under a dug square leaves it in the reveal log
+        testBoard.placeBomb(3, 3);
+        assertEquals(violations, Arrays.asList("16 squares in the reveal log but 15 squares dug"));
+        
+        auditor.unwatch(testBoard);
+        testBoard.flag(0, 0);
+        assertEquals(auditor.violations(), 1);
+    }
+    
+    @Test(timeout = 5000)
+    public void testSamplingAuditFindsWrongNumbers() throws InterruptedException {
+        List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+        Board healthy = new Board(10, 10, false);
+        healthy.placeBomb(0, 0);
+        healthy.dig(9, 9);
+        Board corrupted = new Board(10, 10, false);
+        corrupted.dig(9, 9);
+        try (BoardAuditor auditor = new BoardAuditor(BoardAuditor.Level.SAMPLING, 50, 1, violations::add)) {
+            auditor.watch(healthy);
+            while (auditor.squaresChecked() < 1000) Thread.sleep(1);
+            assertEquals(violations, Collections.emptyList());
+            
+            auditor.watch(corrupted);
+            //Placing a bomb on a dug square changes the number its neighbours should show
+            corrupted.placeBomb(5, 5);
+            while (auditor.violations() == 0) Thread.sleep(1);
+        }
+        assertTrue(violations.toString(), violations.contains("Square (4,4) shows 0 but has 1 bombs around it")
+                || violations.contains("100 squares in the reveal log but 99 squares dug"));
+    }
+    
+    @Test
+    public void testGameCacheBoardsAudited() throws IOException {
+        List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+        BoardAuditor auditor = new BoardAuditor(BoardAuditor.Level.INCREMENTAL, 0, 0, violations::add);
+        GameCache games = new GameCache(Files.createTempDirectory("games"), 1 << 20, name -> new Board(3, 3, false));
+        games.setAuditor(auditor);
+        games.acquire("red").dig(0, 0);
+        games.release("red");
+        assertEquals(auditor.squaresChecked(), 9);
+        assertEquals(violations, Collections.emptyList());
+    }
+    
     @Test
     public void testBoardFromFile() throws FileNotFoundException {
         File file = new File("testboard1");
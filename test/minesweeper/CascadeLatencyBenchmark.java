@@ -0,0 +1,70 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures how long another player's flag waits while dig cascades open whole boards: one thread
+ * digs a fresh board without bombs after another, each dig opening every square, while this thread
+ * flags and deflags a square on the board being dug, timing each call. Cascades are opened in slices,
+ * so the flag's latency should stay near one slice however large the board. The maximum also
+ * includes garbage collection pauses, mostly from building the boards.
+ * Not a JUnit test: run main directly, with assertions disabled.
+ */
+public class CascadeLatencyBenchmark {
+
+    private static final int RUNS = 5;
+    private static final long RUN_MILLIS = 2000;
+    private static final int MAX_SAMPLES = 1 << 22;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int size : new int[] {100, 300, 1000}) {
+            for (int run = 0; run <= RUNS; run++) {
+                //Boards are built ahead of the digger, so it only digs
+                Board[] boards = new Board[4];
+                for (int i = 0; i < boards.length; i++) {
+                    boards[i] = new Board(size, size, false);
+                    boards[i].flag(size - 1, size - 1);
+                }
+                AtomicReference<Board> digging = new AtomicReference<>(boards[0]);
+                long[] cascades = {0};
+                long[] cascadeNanos = {0};
+                Thread digger = new Thread(() -> {
+                    for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                        Board board = boards[i % boards.length];
+                        digging.set(board);
+                        long start = System.nanoTime();
+                        board.dig(0, 0);
+                        cascadeNanos[0] += System.nanoTime() - start;
+                        cascades[0]++;
+                        //Reset the board for its next turn, flagging the square the flagger uses
+                        boards[i % boards.length] = new Board(size, size, false);
+                        boards[i % boards.length].flag(size - 1, size - 1);
+                    }
+                });
+                digger.start();
+                long[] latencies = new long[MAX_SAMPLES];
+                int samples = 0;
+                long deadline = System.currentTimeMillis() + RUN_MILLIS;
+                while (System.currentTimeMillis() < deadline && samples < MAX_SAMPLES) {
+                    Board board = digging.get();
+                    long start = System.nanoTime();
+                    board.deflag(size - 1, size - 1);
+                    board.flag(size - 1, size - 1);
+                    latencies[samples++] = System.nanoTime() - start;
+                }
+                digger.interrupt();
+                digger.join();
+                //The first run only warms up
+                if (run == 0) continue;
+                Arrays.sort(latencies, 0, samples);
+                System.out.println(String.format("%dx%d: %d cascades of %.1f ms; deflag and flag p50 %.1f us, p99 %.1f us, max %.1f us",
+                        size, size, cascades[0], cascadeNanos[0] / 1e6 / Math.max(1, cascades[0]),
+                        latencies[samples / 2] / 1e3, latencies[(int) (samples * 0.99)] / 1e3, latencies[samples - 1] / 1e3));
+            }
+        }
+    }
+}
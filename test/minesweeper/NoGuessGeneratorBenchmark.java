@@ -0,0 +1,46 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.util.Random;
+
+/**
+ * Measures how quickly NoGuessGenerator checks candidate layouts on 100x100 boards, and how long it
+ * takes to find a no-guess board. Not a JUnit test: run main directly, with assertions disabled.
+ */
+public class NoGuessGeneratorBenchmark {
+
+    private static final int SIZE = 100;
+    private static final int CANDIDATES = 200;
+
+    public static void main(String[] args) {
+        double bombProbability = args.length > 0 ? Double.parseDouble(args[0]) : 0.15;
+        NoGuessGenerator generator = new NoGuessGenerator(SIZE, SIZE, bombProbability, 1);
+        Random rng = new Random(0);
+
+        //Warm up, then time single-threaded candidate checks
+        checkCandidates(generator, rng, CANDIDATES);
+        long start = System.nanoTime();
+        int solvable = checkCandidates(generator, rng, CANDIDATES);
+        double millisPerCheck = (System.nanoTime() - start) / 1e6 / CANDIDATES;
+        System.out.println(String.format("%dx%d at %.2f: %.2f ms per candidate check, %d of %d solvable",
+                SIZE, SIZE, bombProbability, millisPerCheck, solvable, CANDIDATES));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        NoGuessGenerator parallel = new NoGuessGenerator(SIZE, SIZE, bombProbability, threads);
+        start = System.nanoTime();
+        parallel.generate(10_000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d threads: board generated in %.3f s, %d candidates (%.0f per second)",
+                threads, seconds, parallel.candidatesChecked(), parallel.candidatesChecked() / seconds));
+    }
+
+    private static int checkCandidates(NoGuessGenerator generator, Random rng, int count) {
+        int solvable = 0;
+        for (int i = 0; i < count; i++) {
+            if (generator.isSolvableWithoutGuessing(generator.layout(rng))) solvable++;
+        }
+        return solvable;
+    }
+}
@@ -0,0 +1,63 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Measures what publishing a snapshot after every mutator costs: flag and deflag, which copy one
+ * row each time, on boards of growing size, and how often look() completes while another thread
+ * flags as fast as it can.
+ * Not a JUnit test: run main directly, with assertions disabled.
+ */
+public class SnapshotBenchmark {
+
+    private static final int RUNS = 5;
+    private static final int FLAGS = 200000;
+    private static final long LOOK_MILLIS = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Writer discard = new Writer() {
+            @Override public void write(char[] buffer, int offset, int length) {}
+            @Override public void flush() {}
+            @Override public void close() {}
+        };
+
+        for (int size : new int[] {10, 100, 1000}) {
+            Board board = new Board(size, size, false);
+            for (int run = 0; run <= RUNS; run++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < FLAGS; i++) {
+                    board.flag(i % size, i / size % size);
+                    board.deflag(i % size, i / size % size);
+                }
+                double nanosPerPublish = (System.nanoTime() - start) / (2.0 * FLAGS);
+                //The first run only warms up
+                if (run == 0) continue;
+                System.out.println(String.format("%dx%d: flag or deflag with publication %.0f ns",
+                        size, size, nanosPerPublish));
+            }
+
+            Thread flagger = new Thread(() -> {
+                for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                    board.flag(i % size, i / size % size);
+                    board.deflag(i % size, i / size % size);
+                }
+            });
+            flagger.start();
+            long versionBefore = board.version();
+            long looks = 0;
+            long deadline = System.currentTimeMillis() + LOOK_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                board.look(discard);
+                looks++;
+            }
+            flagger.interrupt();
+            flagger.join();
+            System.out.println(String.format("%dx%d: %d looks and %d snapshots published in %d ms",
+                    size, size, looks, board.version() - versionBefore, LOOK_MILLIS));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import minesweeper.Board;
+import minesweeper.BoardPool;
+import minesweeper.GameCache;
+
+/**
+ * Measures how long another client's commands wait, through the server, while dig cascades open
+ * whole boards: one client joins a fresh game without bombs after another and digs it open, while
+ * this thread flags and deflags a square of the server's own small board over its own connection,
+ * timing each command from sending it to reading the whole reply. The server runs one command at a
+ * time, so the flag waits for the dig's turn; a cascade passes its turn on between slices, so the
+ * flag's latency should stay near one slice however large the board. Unlike
+ * minesweeper.CascadeLatencyBenchmark, the boards differ, so only the turns are contended.
+ * Not a JUnit test: run main directly, with assertions disabled.
+ */
+public class CascadeTurnBenchmark {
+
+    private static final int PORT = 4959;
+    private static final int RUNS = 5;
+    private static final long RUN_MILLIS = 2000;
+    private static final int MAX_SAMPLES = 1 << 20;
+    private static final int FLAG_BOARD_SIZE = 10;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = PORT;
+        for (int size : new int[] {300, 1000}) {
+            MinesweeperServer server = new MinesweeperServer(port, true,
+                    new Board(FLAG_BOARD_SIZE, FLAG_BOARD_SIZE, false));
+            server.setCommandWorkers(1);
+            server.setRateLimits(RateLimits.UNLIMITED);
+            //Room for a few games, so joining a new one seldom waits for an old one to be saved
+            server.setGameCache(new GameCache(Files.createTempDirectory("cascade-turns"),
+                    4 * BoardPool.ESTIMATED_BYTES_PER_SQUARE * size * size, name -> new Board(size, size, false)));
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    //server stopped
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                in.readLine();
+                for (int run = 0; run <= RUNS; run++) {
+                    measure(size, port, run, in, out);
+                }
+            }
+            port++;
+        }
+    }
+
+    /**
+     * Digs games open on another connection while timing flags and deflags on this one, and prints
+     * the latencies unless this is the first run, which only warms up.
+     */
+    private static void measure(int size, int port, int run, BufferedReader in, PrintWriter out)
+            throws IOException, InterruptedException {
+        long[] cascades = {0};
+        Thread digger = new Thread(() -> {
+            for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                try (Socket socket = new Socket("127.0.0.1", port)) {
+                    BufferedReader digIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter digOut = new PrintWriter(socket.getOutputStream(), true);
+                    digIn.readLine();
+                    digOut.println("join run" + run + "-" + i);
+                    digOut.println("dig 0 0");
+                    digOut.println("bye");
+                    while (digIn.readLine() != null) {
+                        //read the whole board
+                    }
+                    cascades[0]++;
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+        });
+        digger.start();
+        long[] latencies = new long[MAX_SAMPLES];
+        int samples = 0;
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        while (System.currentTimeMillis() < deadline && samples < MAX_SAMPLES) {
+            long start = System.nanoTime();
+            out.println(samples % 2 == 0 ? "flag 0 0" : "deflag 0 0");
+            for (int row = 0; row < FLAG_BOARD_SIZE; row++) {
+                in.readLine();
+            }
+            latencies[samples++] = System.nanoTime() - start;
+        }
+        digger.interrupt();
+        digger.join();
+        if (run == 0) return;
+        Arrays.sort(latencies, 0, samples);
+        System.out.println(String.format("%dx%d: %d cascades; other client's flag or deflag p50 %.1f us, p99 %.1f us, max %.1f us",
+                size, size, cascades[0], latencies[samples / 2] / 1e3, latencies[(int) (samples * 0.99)] / 1e3,
+                latencies[samples - 1] / 1e3));
+    }
+}
@@ -6,24 +6,81 @@ package minesweeper.server;
 import static org.junit.Assert.*;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.InflaterInputStream;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 import minesweeper.Board;
+import minesweeper.BoardAuditor;
+import minesweeper.BoardPool;
+import minesweeper.GameCache;
 
 
 /**
  * Testing strategy:
  * 
- * 
+ * Connecting while the board is still loading: welcome message, help, board commands, startup timings
+ * hint: no deductions, safe squares and mines deduced; hint all: frontier probabilities
+ * status: before and after digging; win notice after the last safe square is dug
+ * chord: unsatisfied number, satisfied number clearing the board
+ * dig-many, flag-many: several positions answered with a single board
+ * encoding: plain (default), rle with repeated and single squares, rle with DEFLATE compression
+ * binary protocol: each opcode, pipelined requests matched by id, win, BOOM in debug mode, bye;
+ *   truncated request, empty frame, frame too long, end of stream within a frame
+ * Output queues: client idle past the timeout; client not reading board replies, other replies;
+ *   board reply larger than the queue to a client reading slowly; board reply to a connection
+ *   already closed
+ * Connection limit: reject policy, wait policy; connection count after a BOOM disconnect
+ * Rate limits: expensive command delayed, refused after a cascading dig; cheap commands unaffected;
+ *   help and bye never limited
+ * look zoom: zoomed out past a partly dug tile, beyond the top level, zoom 0, after a BOOM in debug mode
+ * join: new game, game evicted to disk while idle and reloaded by the next command, back to a joined game,
+ *   saved game that cannot be loaded; no temporary directory made when games are set; joined game
+ *   played after switching to the binary protocol
+ * Hash ring: spread over nodes; adding a node moves only games to it, removing one only its own games
+ * WebSocket gateway: handshake with and without permessage-deflate, malformed handshake, accept key;
+ *   reply to the requester, update pushed to the other socket, update after a move on the text
+ *   protocol, update frames shared, ping, bye closing the socket; WebSocket and text clients sharing
+ *   the connection limit; Origin of another site refused, same origin and an allowed origin accepted
+ * Cluster router: nodes in separate processes, games spread over them, node added and node removed
+ *   with the games moved keeping their moves, moved game found on its new node directly; routed
+ *   protocol refused without the secret and with a wrong one, export refused to other clients;
+ *   node failing after a command was sent, which is not sent again; node failed before it is removed,
+ *   its games left on it; rate limits applied to each client separately
+ * Access log: connect, text commands with and without a position, binary command, disconnect;
+ *   rotation past the size limit keeping a fixed number of files; record() allocating nothing;
+ *   file failing to rotate, records waiting in the ring and those past it dropped and counted in
+ *   metrics, file reopened after the failure
+ * Audit level: incremental audit of the game board and a joined game, violation counted in metrics
+ * Server options: defaults unchanged by with-methods; safe first dig, WebSocket port and access log
+ *   all applied by runMinesweeperServer
  * 
  */
 public class MinesweeperServerTest {
@@ -77,6 +134,509 @@ public class MinesweeperServerTest {
         }
     }
     
+    /**
+     * Run an already constructed server on a daemon thread.
+     * 
+     * @param server server to run
+     */
+    private static void serveInBackground(MinesweeperServer server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                //server stopped
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Start a MinesweeperServer in debug mode in a new JVM, and wait until it accepts connections.
+     * 
+     * @param port port for the server
+     * @param secret file holding the cluster's secret
+     * @return the server's process
+     * @throws IOException if the process cannot be started, or the server never accepts connections
+     */
+    private static Process startNodeProcess(int port, Path secret) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "minesweeper.server.MinesweeperServer", "--debug", "--port", Integer.toString(port),
+                "--cluster-secret", secret.toString())
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+        for (int attempts = 0; ; attempts++) {
+            try {
+                new Socket(LOCALHOST, port).close();
+                return process;
+            } catch (ConnectException ce) {
+                if ( ! process.isAlive() || attempts > 100) {
+                    process.destroy();
+                    throw new IOException("Server process not accepting connections", ce);
+                }
+                try { Thread.sleep(100); } catch (InterruptedException ie) {}
+            }
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void TestAccessLog() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("log").resolve("access.log");
+        AccessLog log = new AccessLog(file, 1024, 1 << 20, 2);
+        MinesweeperServer server = new MinesweeperServer(PORT + 30, true, new Board(3, 3, false));
+        server.setAccessLog(log);
+        serveInBackground(server);
+        
+        try (Socket socket = new Socket(LOCALHOST, PORT + 30)) {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            out.println("flag 1 2");
+            for (int row = 0; row < 3; row++) in.readLine();
+            out.println("look zoom 1");
+            in.readLine();
+            in.readLine();
+            out.println("bye");
+            assertEquals(in.readLine(), "bye");
+        }
+        //The text client's disconnect is recorded before the binary client connects
+        while (server.metrics().connections() > 0) Thread.sleep(10);
+        try (BinaryClient client = new BinaryClient(LOCALHOST, PORT + 30)) {
+            assertEquals(client.call(BinaryProtocol.DIG, 0, 1).code(), BinaryProtocol.REPLY_BOARD);
+        }
+        while (server.metrics().connections() > 0) Thread.sleep(10);
+        log.close();
+        
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(lines.size(), 9);
+        for (String line : lines) {
+            assertTrue(line, line.matches("\\S+Z client=#\\d+@\\S+ verb=[a-z-]+( row=-?\\d+ col=-?\\d+)? micros=\\d+ bytes=\\d+"));
+        }
+        String client = lines.get(0).split(" ")[1];
+        assertTrue(lines.get(0), lines.get(0).endsWith(" verb=connect micros=0 bytes=0"));
+        //Three rows of "- - -" and their newlines
+        assertTrue(lines.get(1), lines.get(1).contains(client + " verb=flag row=1 col=2 micros="));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" bytes=18"));
+        assertTrue(lines.get(2), lines.get(2).contains(client + " verb=look micros="));
+        assertTrue(lines.get(3), lines.get(3).endsWith(" bytes=4"));
+        assertTrue(lines.get(4), lines.get(4).contains(client + " verb=disconnect micros="));
+        String binaryClient = lines.get(5).split(" ")[1];
+        assertNotEquals(binaryClient, client);
+        assertTrue(lines.get(6), lines.get(6).contains(binaryClient + " verb=protocol micros="));
+        assertTrue(lines.get(7), lines.get(7).contains(binaryClient + " verb=dig row=0 col=1 "));
+        assertTrue(lines.get(8), lines.get(8).contains(binaryClient + " verb=disconnect "));
+        assertEquals(log.dropped(), 0);
+    }
+    
+    @Test(timeout = 5000)
+    public void TestAccessLogRotation() throws IOException {
+        Path file = Files.createTempDirectory("log").resolve("access.log");
+        AccessLog log = new AccessLog(file, 64, 300, 2);
+        for (int i = 0; i < 40; i++) {
+            log.record("#1@test", "dig", i, 0, 1000, 10);
+        }
+        log.close();
+        
+        Path first = file.resolveSibling("access.log.1");
+        Path second = file.resolveSibling("access.log.2");
+        assertTrue(Files.exists(first));
+        assertTrue(Files.exists(second));
+        assertFalse(Files.exists(file.resolveSibling("access.log.3")));
+        assertTrue(Files.size(second) >= 300);
+        List<String> kept = new ArrayList<>(Files.readAllLines(second));
+        kept.addAll(Files.readAllLines(first));
+        kept.addAll(Files.readAllLines(file));
+        //The oldest records were rotated away; the rest are kept in order
+        int firstKept = 40 - kept.size();
+        assertTrue(firstKept > 0);
+        for (int i = 0; i < kept.size(); i++) {
+            assertTrue(kept.get(i), kept.get(i).endsWith(" client=#1@test verb=dig row=" + (firstKept + i) + " col=0 micros=1 bytes=10"));
+        }
+    }
+    
+    @Test(timeout = 5000)
+    public void TestAccessLogReopenedAfterFailure() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("log").resolve("access.log");
+        //Already past the size limit, so the first record written rotates the file
+        Files.write(file, Arrays.asList(new String(new char[1000]).replace('\0', 'x')));
+        //A directory in the way of the rotated file makes rotation fail
+        Path blocker = file.resolveSibling("access.log.1");
+        Files.createDirectory(blocker);
+        Files.createFile(blocker.resolve("in-the-way"));
+        ServerMetrics metrics = new ServerMetrics();
+        AccessLog log = new AccessLog(file, 4, 1000, 1, metrics);
+        
+        log.record("#1@test", "dig", 0, 0, 1000, 10);
+        while ( ! log.failing()) Thread.sleep(10);
+        //Four records wait in the ring while the file is failing; the two past it are dropped
+        for (int i = 1; i <= 6; i++) {
+            log.record("#1@test", "dig", i, 0, 1000, 10);
+        }
+        assertEquals(log.dropped(), 2);
+        assertEquals(metrics.droppedLogRecords(), 2);
+        
+        Files.delete(blocker.resolve("in-the-way"));
+        Files.delete(blocker);
+        while (log.failing()) Thread.sleep(10);
+        log.close();
+        
+        List<String> rotated = Files.readAllLines(blocker);
+        assertEquals(rotated.size(), 3);
+        assertTrue(rotated.get(1), rotated.get(1).endsWith(" verb=dig row=0 col=0 micros=1 bytes=10"));
+        assertTrue(rotated.get(2), rotated.get(2).endsWith(" verb=dig row=1 col=0 micros=1 bytes=10"));
+        List<String> current = Files.readAllLines(file);
+        assertEquals(current.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(current.get(i), current.get(i).endsWith(" verb=dig row=" + (i + 2) + " col=0 micros=1 bytes=10"));
+        }
+        assertEquals(log.dropped(), 2);
+    }
+    
+    @Test(timeout = 10000)
+    public void TestAccessLogRecordAllocatesNothing() throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        AccessLog log = new AccessLog(Files.createTempDirectory("log").resolve("access.log"), 1024, 1 << 20, 1);
+        int calls = 100000;
+        for (int i = 0; i < calls; i++) {
+            log.record("#1@test", "dig", i, i, i, i);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < calls; i++) {
+            log.record("#1@test", "dig", i, i, i, i);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        log.close();
+        assertTrue(allocated + " bytes", allocated / (double) calls < 1);
+    }
+    
+    @Test(timeout = 10000)
+    public void TestAuditLevel() throws IOException {
+        Board board = new Board(3, 3, false);
+        MinesweeperServer server = new MinesweeperServer(PORT + 31, true, board);
+        server.setGameCache(new GameCache(Files.createTempDirectory("games"), 1 << 20, name -> new Board(2, 2, false)));
+        BoardAuditor auditor = server.setAuditLevel(BoardAuditor.Level.INCREMENTAL);
+        serveInBackground(server);
+        
+        try (Socket socket = new Socket(LOCALHOST, PORT + 31)) {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            out.println("dig 0 0");
+            for (int row = 0; row < 3; row++) in.readLine();
+            assertEquals(auditor.squaresChecked(), 9);
+            out.println("join red");
+            in.readLine();
+            out.println("flag 1 1");
+            for (int row = 0; row < 2; row++) in.readLine();
+            assertEquals(auditor.squaresChecked(), 10);
+            assertEquals(server.metrics().invariantViolations(), 0);
+            
+            //Burying a bomb under a dug square leaves it in the reveal log
+            board.placeBomb(2, 2);
+            assertEquals(server.metrics().invariantViolations(), 1);
+            out.println("bye");
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void TestWebSocketGateway() throws IOException {
+        Board board = new Board(20, 20, false);
+        board.placeBomb(0, 0);
+        MinesweeperServer server = new MinesweeperServer(PORT + 28, true, board);
+        serveInBackground(server);
+        WebSocketGateway gateway = server.startWebSockets(PORT + 29);
+        assertEquals(WebSocketProtocol.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="), "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+        
+        try (Socket malformed = new Socket(LOCALHOST, PORT + 29)) {
+            malformed.setSoTimeout(3000);
+            malformed.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(malformed.getInputStream()));
+            assertEquals(in.readLine(), "HTTP/1.1 400 Bad Request");
+        }
+        
+        try (WebSocketClient compressed = new WebSocketClient(LOCALHOST, PORT + 29, true);
+                WebSocketClient plain = new WebSocketClient(LOCALHOST, PORT + 29, false)) {
+            assertTrue(compressed.deflate());
+            assertFalse(plain.deflate());
+            BinaryClient.Reply reply = compressed.call(BinaryProtocol.FLAG, 5, 5);
+            assertEquals(reply.code(), BinaryProtocol.REPLY_BOARD);
+            assertEquals(reply.getRows(), 20);
+            assertEquals(reply.square(5, 5), BinaryProtocol.FLAGGED);
+            BinaryClient.Reply update = plain.receive();
+            assertEquals(update.requestId(), 0);
+            assertEquals(update.code(), BinaryProtocol.REPLY_UPDATE);
+            assertEquals(update.square(5, 5), BinaryProtocol.FLAGGED);
+            
+            Socket socket = new Socket(LOCALHOST, PORT + 28);
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            out.println("dig 10 10");
+            for (int row = 0; row < 20; row++) in.readLine();
+            for (WebSocketClient client : Arrays.asList(compressed, plain)) {
+                update = client.receive();
+                assertEquals(update.code(), BinaryProtocol.REPLY_UPDATE);
+                assertEquals(update.square(10, 10), 0);
+                assertEquals(update.square(0, 0), BinaryProtocol.UNTOUCHED);
+            }
+            assertSame(gateway.updateFrame(board, true), gateway.updateFrame(board, true));
+            socket.close();
+            
+            plain.ping();
+            reply = plain.call(BinaryProtocol.STATUS);
+            //The flagged square is left undug
+            assertEquals(reply.safeSquaresLeft(), 1);
+            assertEquals(reply.flagsPlaced(), 1);
+            assertEquals(compressed.call(BinaryProtocol.BYE).code(), BinaryProtocol.REPLY_BYE);
+            try {
+                compressed.receive();
+                fail("expected the gateway to close the connection");
+            } catch (EOFException eofe) {
+                //closed after bye
+            }
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void TestWebSocketLimitAndOrigin() throws IOException, InterruptedException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 34, true, new Board(3, 3, false));
+        server.setConnectionLimit(1, MinesweeperServer.OverloadPolicy.REJECT);
+        serveInBackground(server);
+        WebSocketGateway gateway = server.startWebSockets(PORT + 35);
+        String handshake = "GET / HTTP/1.1\r\nHost: " + LOCALHOST + ":" + (PORT + 35) + "\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n";
+        
+        try (Socket foreign = new Socket(LOCALHOST, PORT + 35)) {
+            foreign.setSoTimeout(3000);
+            foreign.getOutputStream().write((handshake + "Origin: http://elsewhere.example\r\n\r\n").getBytes("US-ASCII"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(foreign.getInputStream()));
+            assertEquals(in.readLine(), "HTTP/1.1 403 Forbidden");
+        }
+        while (server.metrics().connections() > 0) Thread.sleep(10);
+        
+        try (Socket sameOrigin = new Socket(LOCALHOST, PORT + 35)) {
+            sameOrigin.setSoTimeout(3000);
+            sameOrigin.getOutputStream().write((handshake + "Origin: http://" + LOCALHOST + ":" + (PORT + 35)
+                    + "\r\n\r\n").getBytes("US-ASCII"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(sameOrigin.getInputStream()));
+            assertEquals(in.readLine(), "HTTP/1.1 101 Switching Protocols");
+            
+            //The WebSocket client holds the server's only connection slot
+            try (Socket text = new Socket(LOCALHOST, PORT + 34)) {
+                text.setSoTimeout(3000);
+                BufferedReader textIn = new BufferedReader(new InputStreamReader(text.getInputStream()));
+                assertEquals(textIn.readLine(), "The server is full, please try again later.");
+            }
+            try (Socket busy = new Socket(LOCALHOST, PORT + 35)) {
+                busy.setSoTimeout(3000);
+                BufferedReader busyIn = new BufferedReader(new InputStreamReader(busy.getInputStream()));
+                assertEquals(busyIn.readLine(), "HTTP/1.1 503 Service Unavailable");
+            }
+            assertEquals(server.metrics().rejectedConnections(), 2);
+        }
+        while (server.metrics().connections() > 0) Thread.sleep(10);
+        
+        gateway.allowOrigin("https://Game.example");
+        try (Socket allowed = new Socket(LOCALHOST, PORT + 35)) {
+            allowed.setSoTimeout(3000);
+            allowed.getOutputStream().write((handshake + "Origin: https://game.example\r\n\r\n").getBytes("US-ASCII"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(allowed.getInputStream()));
+            assertEquals(in.readLine(), "HTTP/1.1 101 Switching Protocols");
+        }
+    }
+    
+    @Test
+    public void TestHashRing() {
+        List<String> games = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) games.add("game" + i);
+        HashRing three = new HashRing(Arrays.asList("a:1", "b:2", "c:3"));
+        HashRing four = three.withNode("d:4");
+        Map<String, Integer> perNode = new HashMap<>();
+        int moved = 0;
+        for (String game : games) {
+            perNode.merge(four.nodeFor(game), 1, Integer::sum);
+            if ( ! three.nodeFor(game).equals(four.nodeFor(game))) {
+                moved++;
+                assertEquals(four.nodeFor(game), "d:4");
+            }
+            //Removing a node moves only its own games
+            if ( ! four.nodeFor(game).equals("b:2")) {
+                assertEquals(four.withoutNode("b:2").nodeFor(game), four.nodeFor(game));
+            }
+        }
+        assertTrue("moved " + moved, moved > 150 && moved < 350);
+        for (int count : perNode.values()) assertTrue("spread " + perNode, count > 150 && count < 350);
+        assertEquals(new HashRing(Arrays.asList("d:4", "c:3", "b:2", "a:1")).nodeFor("game0"), four.nodeFor("game0"));
+        assertNull(new HashRing(new ArrayList<String>()).nodeFor("game0"));
+    }
+    
+    @Test(timeout = 10000)
+    public void TestNodePoolNeverResends() throws IOException {
+        List<String> received = new CopyOnWriteArrayList<>();
+        try (ServerSocket listener = new ServerSocket(PORT + 33)) {
+            //A node which fails after receiving a dig, before replying
+            Thread node = new Thread(() -> {
+                try {
+                    while (true) {
+                        try (Socket socket = listener.accept()) {
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                            out.println("Welcome");
+                            in.readLine();
+                            out.println(RoutedProtocol.HANDSHAKE_REPLY);
+                            out.println(RoutedProtocol.END);
+                            for (String line = in.readLine(); line != null && received.add(line); line = in.readLine()) {
+                                if (line.startsWith("dig")) break;
+                                out.println("ok");
+                                out.println(RoutedProtocol.END);
+                            }
+                        }
+                    }
+                } catch (IOException ioe) {
+                    //listener closed
+                }
+            });
+            node.setDaemon(true);
+            node.start();
+            
+            NodePool pool = new NodePool(LOCALHOST + ":" + (PORT + 33), "test-secret", 1);
+            assertEquals(pool.send(null, "look"), Arrays.asList("ok"));
+            try {
+                pool.send(null, "dig 0 0");
+                fail("expected IOException");
+            } catch (IOException ioe) {
+                //the node failed
+            }
+            assertEquals(received, Arrays.asList("look", "dig 0 0"));
+            pool.close();
+        }
+    }
+    
+    @Test(timeout = 60000)
+    public void TestClusterRouter() throws IOException, InterruptedException {
+        List<Process> nodes = new ArrayList<>();
+        Path secret = Files.createTempFile("cluster", ".key");
+        Files.write(secret, Arrays.asList("test-secret"));
+        try {
+            nodes.add(startNodeProcess(PORT + 25, secret));
+            nodes.add(startNodeProcess(PORT + 26, secret));
+            String first = LOCALHOST + ":" + (PORT + 25);
+            String second = LOCALHOST + ":" + (PORT + 26);
+            String third = LOCALHOST + ":" + (PORT + 27);
+            ClusterRouter router = new ClusterRouter(PORT + 24, true, Arrays.asList(first, second), "test-secret");
+            Thread routing = new Thread(() -> {
+                try {
+                    router.serve();
+                } catch (IOException ioe) {
+                    //router stopped
+                }
+            });
+            routing.setDaemon(true);
+            routing.start();
+            
+            Socket socket = new Socket(LOCALHOST, PORT + 24);
+            socket.setSoTimeout(10000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertEquals(in.readLine(), "Welcome to Minesweeper. Players: 1 including you. "
+                    + "Board: 10 columns by 10 rows. Type 'help' for help.");
+            List<String> games = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                games.add("g" + i);
+                out.println("join g" + i);
+                assertEquals(in.readLine(), "Joined game g" + i + ": 10 columns by 10 rows.");
+                out.println("flag 0 0");
+                assertTrue(in.readLine().startsWith("F"));
+                for (int row = 1; row < 10; row++) in.readLine();
+            }
+            Set<String> used = new HashSet<>();
+            for (String game : games) used.add(router.nodeFor(game));
+            assertEquals(used, new HashSet<>(Arrays.asList(first, second)));
+            
+            nodes.add(startNodeProcess(PORT + 27, secret));
+            int moved = router.addNode(third);
+            int onThird = router.nodeFor(ClusterRouter.DEFAULT_GAME).equals(third) ? 1 : 0;
+            String movedGame = null;
+            for (String game : games) {
+                if (router.nodeFor(game).equals(third)) {
+                    onThird++;
+                    movedGame = game;
+                }
+            }
+            assertEquals(moved, onThird);
+            assertNotNull("no game moved to the new node", movedGame);
+            try (Socket direct = new Socket(LOCALHOST, PORT + 27)) {
+                direct.setSoTimeout(10000);
+                BufferedReader directIn = new BufferedReader(new InputStreamReader(direct.getInputStream()));
+                PrintWriter directOut = new PrintWriter(direct.getOutputStream(), true);
+                assertTrue(directIn.readLine().startsWith("Welcome"));
+                directOut.println("join " + movedGame);
+                directIn.readLine();
+                directOut.println("status");
+                assertTrue(directIn.readLine().contains("Flags placed: 1."));
+                
+                //Clients without the secret can neither route nor move games
+                directOut.println("protocol routed");
+                assertEquals(directIn.readLine(), RoutedProtocol.REFUSED_REPLY);
+                directOut.println("protocol routed wrong-secret");
+                assertEquals(directIn.readLine(), RoutedProtocol.REFUSED_REPLY);
+                directOut.println("export " + movedGame);
+                assertTrue(directIn.readLine().startsWith("Enter 'dig'"));
+                directOut.println("status");
+                assertTrue(directIn.readLine().contains("Flags placed: 1."));
+            }
+            
+            router.removeNode(first);
+            for (String game : games) {
+                assertNotEquals(router.nodeFor(game), first);
+                out.println("join " + game);
+                assertEquals(in.readLine(), "Joined game " + game + ": 10 columns by 10 rows.");
+                out.println("status");
+                assertTrue(in.readLine().contains("Flags placed: 1."));
+            }
+            
+            //Games on a node which failed stay there, rather than starting afresh elsewhere
+            nodes.get(2).destroy();
+            nodes.get(2).waitFor();
+            router.removeNode(third);
+            assertEquals(router.nodeFor(movedGame), third);
+            assertTrue(router.failedMoves() > 0);
+            assertEquals(router.failedMoves(), router.strandedGames());
+            assertEquals(router.lostGames(), 0);
+            out.println("join " + movedGame);
+            assertTrue(in.readLine().startsWith("The game's server is unavailable"));
+            
+            //The router limits each client, although they share its connections to the nodes
+            router.setRateLimits(new RateLimits(1, 1, 1, 1, 0, 0));
+            try (Socket limited = new Socket(LOCALHOST, PORT + 24); Socket other = new Socket(LOCALHOST, PORT + 24)) {
+                limited.setSoTimeout(10000);
+                other.setSoTimeout(10000);
+                BufferedReader limitedIn = new BufferedReader(new InputStreamReader(limited.getInputStream()));
+                PrintWriter limitedOut = new PrintWriter(limited.getOutputStream(), true);
+                BufferedReader otherIn = new BufferedReader(new InputStreamReader(other.getInputStream()));
+                PrintWriter otherOut = new PrintWriter(other.getOutputStream(), true);
+                assertTrue(limitedIn.readLine().startsWith("Welcome"));
+                assertTrue(otherIn.readLine().startsWith("Welcome"));
+                limitedOut.println("status");
+                assertNotEquals(limitedIn.readLine(), CommandLimiter.THROTTLED_MESSAGE);
+                limitedOut.println("status");
+                assertEquals(limitedIn.readLine(), CommandLimiter.THROTTLED_MESSAGE);
+                otherOut.println("status");
+                assertNotEquals(otherIn.readLine(), CommandLimiter.THROTTLED_MESSAGE);
+                assertEquals(router.metrics().refusedCommands(), 1);
+            }
+            out.println("bye");
+            assertEquals(in.readLine(), "bye");
+            socket.close();
+        } finally {
+            for (Process node : nodes) node.destroy();
+        }
+    }
+    
     @Test(timeout = 10000)
     public void TestSingleConnection() throws IOException {
         MinesweeperServer server = new MinesweeperServer(PORT + 5, true);
@@ -100,6 +660,643 @@ public class MinesweeperServerTest {
         Socket client3 = connectToMinesweeperServer(thread);
     }
     
+    @Test(timeout = 10000)
+    public void TestConnectWhileBoardLoading() throws IOException {
+        //A server with no board yet behaves as if its board is still being built
+        MinesweeperServer server = new MinesweeperServer(PORT + 7, true);
+        serveInBackground(server);
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 7);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        
+        assertTrue("expected loading status", in.readLine().contains("Board: loading."));
+        assertFalse(server.boardReady());
+        assertEquals(server.metrics().boardReadyMillis(), -1);
+        assertTrue(server.metrics().firstAcceptMillis() >= 0);
+        
+        out.println("look");
+        assertTrue(in.readLine().contains("loading"));
+        out.println("dig 0 0");
+        assertTrue(in.readLine().contains("loading"));
+        out.println("help");
+        assertTrue(in.readLine().startsWith("Enter 'dig'"));
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestHint() throws IOException {
+        Board board = new Board(2, 3, false);
+        board.placeBomb(0, 0);
+        serveInBackground(new MinesweeperServer(PORT + 8, true, board));
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 8);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        out.println("hint");
+        assertEquals("Safe: none. Mines: none.", in.readLine());
+        
+        out.println("dig 0 2");
+        assertEquals("- 1  ", in.readLine());
+        assertEquals("- 1  ", in.readLine());
+        out.println("hint all");
+        assertEquals("(0,0) 0.50", in.readLine());
+        assertEquals("(1,0) 0.50", in.readLine());
+        assertEquals("Other: 0.25", in.readLine());
+        
+        out.println("dig 1 0");
+        assertEquals("- 1  ", in.readLine());
+        assertEquals("1 1  ", in.readLine());
+        assertEquals("You win! Every safe square has been dug.", in.readLine());
+        out.println("hint");
+        assertEquals("Safe: none. Mines: (0,0).", in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestStatusAndWin() throws IOException {
+        Board board = new Board(1, 3, false);
+        board.placeBomb(0, 0);
+        serveInBackground(new MinesweeperServer(PORT + 9, true, board));
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 9);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        out.println("flag 0 0");
+        assertEquals("F - -", in.readLine());
+        out.println("status");
+        assertEquals("Safe squares left: 2. Flags placed: 1. Bombs detonated: 0.", in.readLine());
+        
+        out.println("dig 0 2");
+        assertEquals("F 1  ", in.readLine());
+        assertEquals("You win! Every safe square has been dug.", in.readLine());
+        out.println("status");
+        assertEquals("Safe squares left: 0. Flags placed: 1. Bombs detonated: 0.", in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestChord() throws IOException {
+        Board board = new Board(2, 2, false);
+        board.placeBomb(0, 0);
+        serveInBackground(new MinesweeperServer(PORT + 10, true, board));
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 10);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        out.println("dig 1 1");
+        assertEquals("- -", in.readLine());
+        assertEquals("- 1", in.readLine());
+        out.println("chord 1 1");
+        assertEquals("- -", in.readLine());
+        assertEquals("- 1", in.readLine());
+        
+        out.println("flag 0 0");
+        assertEquals("F -", in.readLine());
+        assertEquals("- 1", in.readLine());
+        out.println("chord 1 1");
+        assertEquals("F 1", in.readLine());
+        assertEquals("1 1", in.readLine());
+        assertEquals("You win! Every safe square has been dug.", in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestBulkCommands() throws IOException {
+        Board board = new Board(2, 3, false);
+        board.placeBomb(0, 0);
+        serveInBackground(new MinesweeperServer(PORT + 11, true, board));
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 11);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        out.println("flag-many 0 0 1 2");
+        assertEquals("F - -", in.readLine());
+        assertEquals("- - F", in.readLine());
+        out.println("dig-many 1 0 1 1 0 2");
+        assertEquals("F 1  ", in.readLine());
+        assertEquals("1 1 F", in.readLine());
+        out.println("dig-many 0 1 0 0");
+        assertEquals("BOOM!", in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestEncodings() throws IOException {
+        Board board = new Board(2, 3, false);
+        board.placeBomb(0, 0);
+        serveInBackground(new MinesweeperServer(PORT + 12, true, board));
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 12);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        out.println("look");
+        assertEquals("- - -", in.readLine());
+        assertEquals("- - -", in.readLine());
+        out.println("encoding rle");
+        assertEquals("Encoding: rle.", in.readLine());
+        out.println("look");
+        assertEquals("-3", in.readLine());
+        assertEquals("-3", in.readLine());
+        out.println("dig 1 2");
+        assertEquals("-,1,_", in.readLine());
+        assertEquals("-,1,_", in.readLine());
+        
+        //Everything after the acknowledgement is compressed
+        out.println("encoding rle deflate");
+        assertEquals("Encoding: rle deflate.", in.readLine());
+        in = new BufferedReader(new InputStreamReader(new InflaterInputStream(socket.getInputStream()) {
+            //InflaterInputStream reports bytes available until the end of the stream, which would make
+            //the reader block for more input after a complete reply
+            @Override
+            public int available() throws IOException {
+                return inf.needsInput() ? 0 : super.available();
+            }
+        }));
+        out.println("flag 1 0");
+        assertEquals("-,1,_", in.readLine());
+        assertEquals("F,1,_", in.readLine());
+        out.println("encoding plain");
+        assertEquals("Encoding: plain.", in.readLine());
+        out.println("look");
+        assertEquals("- 1  ", in.readLine());
+        assertEquals("F 1  ", in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestBinaryProtocol() throws IOException {
+        Board board = new Board(2, 3, false);
+        board.placeBomb(0, 0);
+        serveInBackground(new MinesweeperServer(PORT + 13, true, board));
+        
+        try (BinaryClient client = new BinaryClient(LOCALHOST, PORT + 13)) {
+            BinaryClient.Reply look = client.call(BinaryProtocol.LOOK);
+            assertEquals(look.code(), BinaryProtocol.REPLY_BOARD);
+            assertEquals(look.getRows(), 2);
+            assertEquals(look.getColumns(), 3);
+            assertEquals(look.square(1, 2), BinaryProtocol.UNTOUCHED);
+            
+            int flag = client.send(BinaryProtocol.FLAG, 1, 0);
+            int dig = client.send(BinaryProtocol.DIG, 1, 2);
+            int status = client.send(BinaryProtocol.STATUS);
+            client.flush();
+            BinaryClient.Reply flagged = client.receive();
+            assertEquals(flagged.requestId(), flag);
+            assertEquals(flagged.square(1, 0), BinaryProtocol.FLAGGED);
+            BinaryClient.Reply dug = client.receive();
+            assertEquals(dug.requestId(), dig);
+            assertEquals(dug.code(), BinaryProtocol.REPLY_BOARD);
+            assertEquals(dug.square(0, 1), 1);
+            assertEquals(dug.square(1, 2), 0);
+            BinaryClient.Reply counts = client.receive();
+            assertEquals(counts.requestId(), status);
+            assertEquals(counts.safeSquaresLeft(), 1);
+            assertEquals(counts.flagsPlaced(), 1);
+            assertEquals(counts.bombsDetonated(), 0);
+            
+            assertEquals(client.call(BinaryProtocol.DEFLAG, 1, 0).square(1, 0), BinaryProtocol.UNTOUCHED);
+            BinaryClient.Reply won = client.call(BinaryProtocol.DIG, 1, 0);
+            assertEquals(won.code(), BinaryProtocol.REPLY_WON);
+            assertEquals(won.square(1, 0), 1);
+            assertEquals(client.call(BinaryProtocol.DIG, 0, 0).code(), BinaryProtocol.REPLY_BOOM);
+            assertEquals(client.call(BinaryProtocol.BYE).code(), BinaryProtocol.REPLY_BYE);
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void TestBinaryProtocolMalformedFrames() throws IOException {
+        serveInBackground(new MinesweeperServer(PORT + 32, true, new Board(2, 3)));
+        
+        try (Socket socket = new Socket(LOCALHOST, PORT + 32)) {
+            socket.setSoTimeout(3000);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write((BinaryProtocol.HANDSHAKE + "\n").getBytes("US-ASCII"));
+            //Skip the welcome message and the acknowledgement, byte by byte so no frame is buffered
+            for (int lines = 0; lines < 2; ) {
+                if (in.read() == '\n') lines++;
+            }
+            
+            //Dig with its column missing, an empty frame, and a frame longer than allowed
+            out.write(new byte[] {3, 5, BinaryProtocol.DIG, 2});
+            out.write(new byte[] {0});
+            out.write(BinaryProtocol.MAX_REQUEST_FRAME + 1);
+            out.write(new byte[BinaryProtocol.MAX_REQUEST_FRAME + 1]);
+            out.write(new byte[] {2, 6, BinaryProtocol.LOOK});
+            assertArrayEquals(BinaryProtocol.readFrame(in, 64), new byte[] {5, BinaryProtocol.REPLY_ERROR});
+            assertArrayEquals(BinaryProtocol.readFrame(in, 64), new byte[] {0, BinaryProtocol.REPLY_ERROR});
+            assertArrayEquals(BinaryProtocol.readFrame(in, 64), new byte[] {0, BinaryProtocol.REPLY_ERROR});
+            byte[] look = BinaryProtocol.readFrame(in, 64);
+            assertEquals(look[0], 6);
+            assertEquals(look[1], BinaryProtocol.REPLY_BOARD);
+            
+            //A frame cut short by the end of the stream is answered, then the connection closed
+            out.write(new byte[] {4, 7});
+            socket.shutdownOutput();
+            assertArrayEquals(BinaryProtocol.readFrame(in, 64), new byte[] {0, BinaryProtocol.REPLY_ERROR});
+            assertNull(BinaryProtocol.readFrame(in, 64));
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void TestIdleTimeout() throws IOException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 14, true, new Board(3, 3));
+        server.setIdleTimeout(200);
+        serveInBackground(server);
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 14);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        assertNull("expected disconnect", in.readLine());
+        assertEquals(server.metrics().idleDisconnects(), 1);
+        socket.close();
+    }
+    
+    @Test(timeout = 30000)
+    public void TestSlowClientBoardsDropped() throws IOException, InterruptedException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 15, true, new Board(20, 20));
+        server.setOutputQueueLimit(1);
+        serveInBackground(server);
+        
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress(LOCALHOST, PORT + 15));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        //Boards are asked for without being read, until older ones are superseded in the queue
+        while (server.metrics().droppedFrames() == 0) {
+            for (int i = 0; i < 100; i++) {
+                out.println("look");
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(server.metrics().slowClientDisconnects(), 0);
+        assertTrue("expected queued replies", server.metrics().peakQueuedBytes() > 0);
+        out.println("flag 0 0");
+        String line;
+        String lastBoardRow = null;
+        do {
+            line = in.readLine();
+            if (line.startsWith("F")) lastBoardRow = line;
+        } while (lastBoardRow == null);
+        socket.close();
+    }
+    
+    @Test(timeout = 30000)
+    public void TestSlowClientDisconnected() throws IOException, InterruptedException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 16, true, new Board(3, 3));
+        server.setOutputQueueLimit(1);
+        serveInBackground(server);
+        
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress(LOCALHOST, PORT + 16));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        
+        //Help is not a board, so it can't be dropped when the queue overflows
+        while (server.metrics().slowClientDisconnects() == 0) {
+            for (int i = 0; i < 100; i++) {
+                out.println("help");
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(server.metrics().droppedFrames(), 0);
+        socket.close();
+    }
+    
+    @Test(timeout = 30000)
+    public void TestSlowClientReadsBoardLargerThanQueue() throws IOException, InterruptedException {
+        int size = 500;
+        MinesweeperServer server = new MinesweeperServer(PORT + 39, true, new Board(size, size));
+        server.setOutputQueueLimit(OutputQueue.CHUNK_BYTES);
+        serveInBackground(server);
+        
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress(LOCALHOST, PORT + 39));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        //The board is several times the queue, and read more slowly than it is rendered
+        out.println("look");
+        for (int row = 0; row < size; row++) {
+            String line = in.readLine();
+            assertNotNull("expected board row " + row, line);
+            assertEquals(line.length(), 2 * size - 1);
+            if (row % 50 == 0) Thread.sleep(50);
+        }
+        out.println("help");
+        assertTrue("expected help after the board", in.readLine().length() > 0);
+        assertEquals(server.metrics().slowClientDisconnects(), 0);
+        assertEquals(server.metrics().droppedFrames(), 0);
+        assertTrue("expected the queue to stay near its limit",
+                server.metrics().peakQueuedBytes() <= 2 * OutputQueue.CHUNK_BYTES);
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestBoardReplyToClosedConnection() throws IOException {
+        try (ServerSocket listener = new ServerSocket(0);
+                Socket client = new Socket(LOCALHOST, listener.getLocalPort());
+                Socket socket = listener.accept()) {
+            OutputQueue queue = new OutputQueue(socket, 1 << 20, new ServerMetrics(), Runnable::run);
+            ClientSession session = new ClientSession("#1", AccessLog.DISABLED, queue,
+                    new CommandLimiter(RateLimits.UNLIMITED, new ServerMetrics()));
+            queue.close();
+            assertEquals(client.getInputStream().read(), -1);
+            
+            //The reply writer hides the failure, but board replies see it
+            session.out().println("help");
+            assertTrue(session.out().checkError());
+            session.boardOut().write("- -");
+            try {
+                session.flushBoard();
+                fail("expected IOException");
+            } catch (IOException ioe) {
+                //the connection is closed
+            }
+        }
+    }
+    
+    @Test(timeout = 10000)
+    public void TestConnectionLimitReject() throws IOException, InterruptedException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 17, true, new Board(3, 3));
+        server.setConnectionLimit(1, MinesweeperServer.OverloadPolicy.REJECT);
+        serveInBackground(server);
+        
+        Socket first = new Socket(LOCALHOST, PORT + 17);
+        BufferedReader firstIn = new BufferedReader(new InputStreamReader(first.getInputStream()));
+        PrintWriter firstOut = new PrintWriter(first.getOutputStream(), true);
+        assertTrue("expected HELLO message", firstIn.readLine().contains("Players: 1 including you"));
+        
+        Socket second = new Socket(LOCALHOST, PORT + 17);
+        BufferedReader secondIn = new BufferedReader(new InputStreamReader(second.getInputStream()));
+        assertEquals("The server is full, please try again later.", secondIn.readLine());
+        assertNull("expected disconnect", secondIn.readLine());
+        assertEquals(server.metrics().rejectedConnections(), 1);
+        second.close();
+        
+        firstOut.println("bye");
+        assertEquals("bye", firstIn.readLine());
+        first.close();
+        while (server.metrics().connections() > 0) {
+            Thread.sleep(10);
+        }
+        Socket third = new Socket(LOCALHOST, PORT + 17);
+        BufferedReader thirdIn = new BufferedReader(new InputStreamReader(third.getInputStream()));
+        assertTrue("expected HELLO message", thirdIn.readLine().startsWith("Welcome"));
+        third.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestConnectionLimitWait() throws IOException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 18, true, new Board(3, 3));
+        server.setConnectionLimit(1, MinesweeperServer.OverloadPolicy.WAIT);
+        serveInBackground(server);
+        
+        Socket first = new Socket(LOCALHOST, PORT + 18);
+        BufferedReader firstIn = new BufferedReader(new InputStreamReader(first.getInputStream()));
+        PrintWriter firstOut = new PrintWriter(first.getOutputStream(), true);
+        assertTrue("expected HELLO message", firstIn.readLine().startsWith("Welcome"));
+        
+        //The second client waits in the backlog until the first leaves
+        Socket second = new Socket(LOCALHOST, PORT + 18);
+        second.setSoTimeout(300);
+        BufferedReader secondIn = new BufferedReader(new InputStreamReader(second.getInputStream()));
+        try {
+            secondIn.readLine();
+            fail("expected no welcome while the server is full");
+        } catch (SocketTimeoutException ste) {
+            //still waiting
+        }
+        firstOut.println("bye");
+        assertEquals("bye", firstIn.readLine());
+        first.close();
+        second.setSoTimeout(3000);
+        assertTrue("expected HELLO message", secondIn.readLine().contains("Players: 1 including you"));
+        assertEquals(server.metrics().rejectedConnections(), 0);
+        second.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestConnectionCountAfterBoom() throws IOException, InterruptedException {
+        Board board = new Board(2, 2, false);
+        board.placeBomb(0, 0);
+        MinesweeperServer server = new MinesweeperServer(PORT + 19, false, board);
+        serveInBackground(server);
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 19);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        out.println("dig 0 0");
+        assertEquals("BOOM!", in.readLine());
+        assertNull("expected disconnect", in.readLine());
+        socket.close();
+        while (server.metrics().connections() > 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(server.metrics().connections(), 0);
+    }
+    
+    @Test(timeout = 10000)
+    public void TestRateLimitDelays() throws IOException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 20, true, new Board(2, 2, false));
+        server.setRateLimits(new RateLimits(1000, 1000, 20, 1, 0, 1000));
+        serveInBackground(server);
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 20);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            out.println("look");
+            assertEquals("- -", in.readLine());
+            assertEquals("- -", in.readLine());
+        }
+        assertTrue("expected looks to be slowed down", System.nanoTime() - start >= 80_000_000);
+        assertEquals(server.metrics().delayedCommands(), 2);
+        assertEquals(server.metrics().refusedCommands(), 0);
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestRateLimitRefusesAfterCascade() throws IOException {
+        MinesweeperServer server = new MinesweeperServer(PORT + 21, true, new Board(3, 3, false));
+        server.setRateLimits(new RateLimits(1000, 1000, 1, 2, 1, 200));
+        serveInBackground(server);
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 21);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        //Revealing all 9 squares charges 8 more tokens than the bucket holds
+        out.println("dig 1 1");
+        for (int row = 0; row < 3; row++) {
+            assertEquals("     ", in.readLine());
+        }
+        assertTrue("expected win notice", in.readLine().startsWith("You win!"));
+        out.println("look");
+        assertEquals("Too many commands, please slow down.", in.readLine());
+        out.println("status");
+        assertEquals("Safe squares left: 0. Flags placed: 0. Bombs detonated: 0.", in.readLine());
+        assertEquals(server.metrics().refusedCommands(), 1);
+        //Help and bye cost nothing, so a throttled client can still leave
+        out.println("help");
+        assertTrue(in.readLine().startsWith("Enter 'dig'"));
+        out.println("bye");
+        assertEquals("bye", in.readLine());
+        assertEquals(server.metrics().refusedCommands(), 1);
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestLookZoom() throws IOException {
+        Board board = new Board(4, 4, false);
+        board.placeBomb(0, 0);
+        serveInBackground(new MinesweeperServer(PORT + 22, true, board));
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 22);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        out.println("look zoom 1");
+        assertEquals("- -", in.readLine());
+        assertEquals("- -", in.readLine());
+        //Every square but the bomb is dug
+        out.println("dig 3 3");
+        for (int row = 0; row < 4; row++) {
+            in.readLine();
+        }
+        assertTrue("expected win notice", in.readLine().startsWith("You win!"));
+        out.println("look zoom 1");
+        assertEquals("7  ", in.readLine());
+        assertEquals("   ", in.readLine());
+        out.println("look zoom 12");
+        assertEquals("9", in.readLine());
+        out.println("look zoom 0");
+        assertEquals("- 1    ", in.readLine());
+        assertEquals("1 1    ", in.readLine());
+        assertEquals("       ", in.readLine());
+        assertEquals("       ", in.readLine());
+        out.println("dig 0 0");
+        assertEquals("BOOM!", in.readLine());
+        out.println("look zoom 2");
+        assertEquals("*", in.readLine());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestJoinGames() throws IOException {
+        //Room for one 2x3 game
+        Path directory = Files.createTempDirectory("games");
+        GameCache games = new GameCache(directory, 6 * BoardPool.ESTIMATED_BYTES_PER_SQUARE,
+                name -> new Board(2, 3, false));
+        Files.write(directory.resolve("broken.board"), new byte[] { 1, 2, 3 });
+        MinesweeperServer server = new MinesweeperServer(PORT + 23, true, new Board(1, 1, false));
+        assertNull(server.gamesDirectory());
+        server.setGameCache(games);
+        serveInBackground(server);
+        
+        Socket socket = new Socket(LOCALHOST, PORT + 23);
+        socket.setSoTimeout(3000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+        
+        out.println("join red");
+        assertEquals("Joined game red: 3 columns by 2 rows.", in.readLine());
+        out.println("flag 1 2");
+        assertEquals("- - -", in.readLine());
+        assertEquals("- - F", in.readLine());
+        out.println("join blue");
+        assertEquals("Joined game blue: 3 columns by 2 rows.", in.readLine());
+        out.println("look");
+        assertEquals("- - -", in.readLine());
+        assertEquals("- - -", in.readLine());
+        assertFalse(games.isResident("red"));
+        
+        out.println("join red");
+        assertEquals("Joined game red: 3 columns by 2 rows.", in.readLine());
+        out.println("status");
+        assertEquals("Safe squares left: 6. Flags placed: 1. Bombs detonated: 0.", in.readLine());
+        assertEquals(games.reloads(), 1);
+        assertFalse(games.isResident("blue"));
+        
+        out.println("join broken");
+        assertTrue(in.readLine().startsWith("Cannot join game broken: "));
+        out.println("status");
+        assertEquals("Safe squares left: 6. Flags placed: 1. Bombs detonated: 0.", in.readLine());
+        assertNull(server.gamesDirectory());
+        socket.close();
+    }
+    
+    @Test(timeout = 10000)
+    public void TestJoinThenBinaryProtocol() throws IOException {
+        GameCache games = new GameCache(Files.createTempDirectory("games"), 1 << 20, name -> new Board(2, 3, false));
+        MinesweeperServer server = new MinesweeperServer(PORT + 38, true, new Board(1, 1, false));
+        server.setGameCache(games);
+        serveInBackground(server);
+        
+        try (Socket socket = new Socket(LOCALHOST, PORT + 38)) {
+            socket.setSoTimeout(3000);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(("join red\n" + BinaryProtocol.HANDSHAKE + "\n").getBytes("US-ASCII"));
+            //Skip the welcome message, the join reply and the acknowledgement, byte by byte so no frame is buffered
+            for (int lines = 0; lines < 3; ) {
+                if (in.read() == '\n') lines++;
+            }
+            //Status of red, 2x3 without bombs, rather than the server's own 1x1 board
+            out.write(new byte[] {2, 1, BinaryProtocol.STATUS});
+            assertArrayEquals(BinaryProtocol.readFrame(in, 64), new byte[] {1, BinaryProtocol.REPLY_STATUS, 6, 0, 0});
+            //Flag (1, 2), zigzag encoded
+            out.write(new byte[] {4, 2, BinaryProtocol.FLAG, 2, 4});
+            byte[] flagged = BinaryProtocol.readFrame(in, 64);
+            assertEquals(flagged[1], BinaryProtocol.REPLY_BOARD);
+        }
+        
+        try (Socket socket = new Socket(LOCALHOST, PORT + 38)) {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            out.println("status");
+            assertEquals(in.readLine(), "Safe squares left: 1. Flags placed: 0. Bombs detonated: 0.");
+            out.println("join red");
+            in.readLine();
+            out.println("look");
+            assertEquals(in.readLine(), "- - -");
+            assertEquals(in.readLine(), "- - F");
+        }
+    }
+    
     @Test
     public void TestRandomBoard() throws IOException {
         Board gameBoard = new Board(3,3);
@@ -124,6 +1321,48 @@ public class MinesweeperServerTest {
 
     }
     
+    @Test(timeout = 10000)
+    public void TestServerOptions() throws IOException, InterruptedException {
+        ServerOptions options = ServerOptions.DEFAULTS.withRandomBoard(ServerOptions.RandomBoard.SAFE_FIRST_DIG);
+        assertEquals(ServerOptions.DEFAULTS.randomBoard(), ServerOptions.RandomBoard.UNIFORM);
+        assertEquals(ServerOptions.DEFAULTS.webSocketPort(), -1);
+        assertFalse(ServerOptions.DEFAULTS.accessLog().isPresent());
+        
+        File log = Files.createTempDirectory("log").resolve("access.log").toFile();
+        ServerOptions started = options.withWebSocketPort(PORT + 37).withAccessLog(log);
+        assertEquals(options.webSocketPort(), -1);
+        Thread thread = new Thread(() -> {
+            try {
+                MinesweeperServer.runMinesweeperServer(true, Optional.empty(), 10, 10, PORT + 36, started);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        
+        Socket socket = null;
+        while (socket == null) {
+            try {
+                socket = new Socket(LOCALHOST, PORT + 36);
+            } catch (ConnectException ce) {
+                assertTrue(thread.isAlive());
+                Thread.sleep(10);
+            }
+        }
+        try (Socket client = socket) {
+            client.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+            //The first dig of a safe-first board never finds a bomb
+            out.println("dig 5 5");
+            assertNotEquals(in.readLine(), "BOOM!");
+        }
+        new Socket(LOCALHOST, PORT + 37).close();
+        assertTrue(log.isFile());
+    }
+    
     @Test
     public void TestBoardInputFromUser() throws IOException {
         MinesweeperServer.runMinesweeperServer(true, Optional.empty(), 4, 3, PORT);
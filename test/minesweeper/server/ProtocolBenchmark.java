@@ -0,0 +1,108 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+import minesweeper.Board;
+
+/**
+ * Compares how many commands per second the server answers over the text protocol, the binary
+ * protocol, one command at a time and pipelined, and the binary protocol over WebSocket, with and
+ * without compression. Each command flags or deflags a square and is
+ * answered with the whole board, so on large boards rendering the board dominates either way.
+ * Not a JUnit test: run main directly, with assertions disabled, optionally passing the board size
+ * and the number of commands per run.
+ */
+public class ProtocolBenchmark {
+
+    private static final int PORT = 4949;
+    private static final int RUNS = 5;
+    private static final int PIPELINE_DEPTH = 32;
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        MinesweeperServer server = new MinesweeperServer(PORT, true, new Board(size, size));
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ioe) {
+                //server stopped
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        server.startWebSockets(PORT + 1);
+
+        for (int run = 0; run <= RUNS; run++) {
+            double text = text(size, commands);
+            double binary = binary(size, commands, 1);
+            double pipelined = binary(size, commands, PIPELINE_DEPTH);
+            double webSocket = webSocket(size, commands, false);
+            double deflated = webSocket(size, commands, true);
+            //The first run only warms up
+            if (run == 0) continue;
+            System.out.println(String.format("%dx%d: text %.0f/s, binary %.0f/s, binary pipelined x%d %.0f/s, "
+                    + "websocket %.0f/s, websocket deflate %.0f/s",
+                    size, size, text, binary, PIPELINE_DEPTH, pipelined, webSocket, deflated));
+        }
+    }
+
+    /**
+     * @return commands answered per second over the text protocol
+     */
+    private static double text(int size, int commands) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            in.readLine();
+            long start = System.nanoTime();
+            for (int i = 0; i < commands; i++) {
+                out.println((i % 2 == 0 ? "flag " : "deflag ") + (i / 2 % size) + " 0");
+                for (int row = 0; row < size; row++) {
+                    in.readLine();
+                }
+            }
+            return commands / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /**
+     * @return commands answered per second over the binary protocol, keeping up to depth requests in flight
+     */
+    private static double binary(int size, int commands, int depth) throws IOException {
+        try (BinaryClient client = new BinaryClient("127.0.0.1", PORT)) {
+            long start = System.nanoTime();
+            for (int sent = 0; sent < commands; sent += depth) {
+                int batch = Math.min(depth, commands - sent);
+                for (int i = sent; i < sent + batch; i++) {
+                    client.send(i % 2 == 0 ? BinaryProtocol.FLAG : BinaryProtocol.DEFLAG, i / 2 % size, 0);
+                }
+                client.flush();
+                for (int i = 0; i < batch; i++) {
+                    client.receive();
+                }
+            }
+            return commands / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /**
+     * @return commands answered per second over the binary protocol carried by WebSocket messages
+     */
+    private static double webSocket(int size, int commands, boolean deflate) throws IOException {
+        try (WebSocketClient client = new WebSocketClient("127.0.0.1", PORT + 1, deflate)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < commands; i++) {
+                client.call(i % 2 == 0 ? BinaryProtocol.FLAG : BinaryProtocol.DEFLAG, i / 2 % size, 0);
+            }
+            return commands / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+}